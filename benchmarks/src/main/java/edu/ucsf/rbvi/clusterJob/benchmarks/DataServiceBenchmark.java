@@ -0,0 +1,107 @@
+package edu.ucsf.rbvi.clusterJob.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.cytoscape.jobs.CyJobData;
+import org.cytoscape.model.CyIdentifiable;
+import org.cytoscape.model.CyNetwork;
+
+import edu.ucsf.rbvi.clusterJob.internal.model.ClusterJobDataService;
+
+/**
+ * Benchmarks for the hot paths in {@link ClusterJobDataService}: building
+ * the job data from a network, serializing it for upload, parsing the
+ * server's response, and applying the results back to the network.
+ *
+ * Run with <code>-prof gc</code> to get the allocation rate alongside
+ * throughput and latency, and use <code>-p edges=...</code> to pick the
+ * network sizes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx16g"})
+public class DataServiceBenchmark {
+	@Param({"10000", "100000", "1000000", "5000000"})
+	public int edges;
+
+	@Param({"10"})
+	public int edgesPerNode;
+
+	InMemoryServices services;
+	ClusterJobDataService dataService;
+	CyNetwork network;
+	List<CyIdentifiable> nodesAndEdges;
+	List<String> edgeColumns;
+	CyJobData jobData;
+	String serialized;
+	JSONObject result;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		services = new InMemoryServices();
+		InMemoryNetwork net = InMemoryNetwork.createRandom(Math.max(1, edges/edgesPerNode), edges, 42L);
+		network = net.getNetwork();
+		services.addNetwork(network);
+		dataService = new ClusterJobDataService(services.getRegistrar());
+
+		nodesAndEdges = new ArrayList<CyIdentifiable>(network.getNodeList());
+		nodesAndEdges.addAll(network.getEdgeList());
+		edgeColumns = Arrays.asList("weight");
+
+		jobData = dataService.addData(null, "network", network, nodesAndEdges, null, edgeColumns);
+		serialized = dataService.getSerializedData(jobData).toString();
+
+		// Fake a server response: the submitted network with a cluster
+		// number on every node
+		result = (JSONObject)new JSONParser().parse(serialized);
+		JSONArray nodes = (JSONArray)((JSONObject)result.get("network")).get("nodes");
+		Random random = new Random(42L);
+		for (Object node: nodes) {
+			((JSONObject)node).put("ClusterNumber", Long.valueOf(random.nextInt(100)));
+		}
+	}
+
+	@Benchmark
+	public CyJobData addData() {
+		return dataService.addData(null, "network", network, nodesAndEdges, null, edgeColumns);
+	}
+
+	@Benchmark
+	public Object getSerializedData() {
+		return dataService.getSerializedData(jobData);
+	}
+
+	@Benchmark
+	public CyJobData deserialize() {
+		return dataService.deserialize(serialized);
+	}
+
+	@Benchmark
+	public CyNetwork getNetworkData() {
+		CyJobData data = dataService.deserialize(result);
+		return dataService.getNetworkData(data, "network");
+	}
+}
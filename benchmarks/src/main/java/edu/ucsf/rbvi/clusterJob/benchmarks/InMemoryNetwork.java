@@ -0,0 +1,315 @@
+package edu.ucsf.rbvi.clusterJob.benchmarks;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.cytoscape.model.CyColumn;
+import org.cytoscape.model.CyEdge;
+import org.cytoscape.model.CyIdentifiable;
+import org.cytoscape.model.CyNetwork;
+import org.cytoscape.model.CyNode;
+import org.cytoscape.model.CyRow;
+import org.cytoscape.model.CyTable;
+import org.cytoscape.model.subnetwork.CyRootNetwork;
+
+/**
+ * A lightweight, in-memory stand-in for a {@link CyNetwork}.  Only the
+ * parts of the model API that the clusterJob data service touches are
+ * implemented (rows, default tables, node and edge lookup); everything
+ * else throws {@link UnsupportedOperationException}.  The Cytoscape
+ * interfaces are implemented with dynamic proxies so that we don't need
+ * the model implementation bundles on the classpath.
+ */
+public class InMemoryNetwork implements InvocationHandler {
+	static final AtomicLong suidFactory = new AtomicLong(1L);
+
+	final long suid = suidFactory.getAndIncrement();
+	final CyNetwork proxy;
+	final InMemoryTable networkTable = new InMemoryTable("network");
+	final InMemoryTable nodeTable = new InMemoryTable("node");
+	final InMemoryTable edgeTable = new InMemoryTable("edge");
+	final List<CyNode> nodes = new ArrayList<>();
+	final List<CyEdge> edges = new ArrayList<>();
+	final Map<Long, CyNode> nodeMap = new HashMap<>();
+	final Map<Long, CyEdge> edgeMap = new HashMap<>();
+	final Map<Long, List<CyEdge>> adjacency = new HashMap<>();
+
+	public InMemoryNetwork(String name) {
+		proxy = proxy(CyNetwork.class, this);
+		for (InMemoryTable table: new InMemoryTable[] {networkTable, nodeTable, edgeTable}) {
+			table.createColumn(CyNetwork.NAME, String.class);
+			table.createColumn(CyRootNetwork.SHARED_NAME, String.class);
+		}
+		networkTable.set(suid, CyNetwork.NAME, name);
+		networkTable.set(suid, CyRootNetwork.SHARED_NAME, name);
+	}
+
+	public CyNetwork getNetwork() { return proxy; }
+
+	public InMemoryTable getNodeTable() { return nodeTable; }
+
+	public InMemoryTable getEdgeTable() { return edgeTable; }
+
+	/**
+	 * Build a random network with the given number of nodes and edges.  Edges
+	 * get a "weight" column, and the degree distribution is skewed so that
+	 * we get a few hub nodes, the way real biological networks do.
+	 */
+	public static InMemoryNetwork createRandom(int nodeCount, int edgeCount, long seed) {
+		InMemoryNetwork net = new InMemoryNetwork("Synthetic "+nodeCount+"/"+edgeCount);
+		Random random = new Random(seed);
+		net.edgeTable.createColumn("weight", Double.class);
+		for (int i = 0; i < nodeCount; i++) {
+			CyNode node = net.addNode();
+			net.nodeTable.set(node.getSUID(), CyNetwork.NAME, "node"+i);
+			net.nodeTable.set(node.getSUID(), CyRootNetwork.SHARED_NAME, "node"+i);
+		}
+		for (int i = 0; i < edgeCount; i++) {
+			// Square the random number to bias towards low indices (hubs)
+			double r = random.nextDouble();
+			CyNode source = net.nodes.get((int)(r*r*nodeCount));
+			CyNode target = net.nodes.get(random.nextInt(nodeCount));
+			CyEdge edge = net.addEdge(source, target, false);
+			String name = "node"+source.getSUID()+" (pp) node"+target.getSUID();
+			net.edgeTable.set(edge.getSUID(), CyNetwork.NAME, name);
+			net.edgeTable.set(edge.getSUID(), CyRootNetwork.SHARED_NAME, name);
+			net.edgeTable.set(edge.getSUID(), "weight", random.nextDouble());
+		}
+		return net;
+	}
+
+	public CyNode addNode() {
+		final long nodeSuid = suidFactory.getAndIncrement();
+		CyNode node = proxy(CyNode.class, new ElementHandler(nodeSuid, null, null));
+		nodes.add(node);
+		nodeMap.put(nodeSuid, node);
+		nodeTable.getRow(nodeSuid);
+		return node;
+	}
+
+	public CyEdge addEdge(CyNode source, CyNode target, boolean directed) {
+		final long edgeSuid = suidFactory.getAndIncrement();
+		CyEdge edge = proxy(CyEdge.class, new ElementHandler(edgeSuid, source, target));
+		edges.add(edge);
+		edgeMap.put(edgeSuid, edge);
+		edgeTable.getRow(edgeSuid);
+		addAdjacent(source.getSUID(), edge);
+		if (!source.getSUID().equals(target.getSUID()))
+			addAdjacent(target.getSUID(), edge);
+		return edge;
+	}
+
+	private void addAdjacent(Long nodeSuid, CyEdge edge) {
+		List<CyEdge> list = adjacency.get(nodeSuid);
+		if (list == null) {
+			list = new ArrayList<>();
+			adjacency.put(nodeSuid, list);
+		}
+		list.add(edge);
+	}
+
+	@Override
+	public Object invoke(Object p, Method method, Object[] args) {
+		String name = method.getName();
+		switch (name) {
+			case "getSUID": return suid;
+			case "getNodeList": return new ArrayList<>(nodes);
+			case "getEdgeList": return new ArrayList<>(edges);
+			case "getNodeCount": return nodes.size();
+			case "getEdgeCount": return edges.size();
+			case "getNode": return nodeMap.get((Long)args[0]);
+			case "getEdge": return edgeMap.get((Long)args[0]);
+			case "containsNode": return nodeMap.containsKey(((CyNode)args[0]).getSUID());
+			case "containsEdge":
+				if (args.length == 1)
+					return edgeMap.containsKey(((CyEdge)args[0]).getSUID());
+				break;
+			case "addNode": return addNode();
+			case "addEdge": return addEdge((CyNode)args[0], (CyNode)args[1], (Boolean)args[2]);
+			case "getAdjacentEdgeList": {
+				List<CyEdge> list = adjacency.get(((CyNode)args[0]).getSUID());
+				return list == null ? new ArrayList<CyEdge>() : new ArrayList<>(list);
+			}
+			case "getNeighborList": {
+				CyNode node = (CyNode)args[0];
+				List<CyNode> neighbors = new ArrayList<>();
+				List<CyEdge> list = adjacency.get(node.getSUID());
+				if (list != null) {
+					for (CyEdge edge: list) {
+						CyNode other = edge.getSource().getSUID().equals(node.getSUID()) ? edge.getTarget() : edge.getSource();
+						neighbors.add(other);
+					}
+				}
+				return neighbors;
+			}
+			case "getRow": return tableFor((CyIdentifiable)args[0]).getRow(((CyIdentifiable)args[0]).getSUID());
+			case "getDefaultNetworkTable": return networkTable.proxy;
+			case "getDefaultNodeTable": return nodeTable.proxy;
+			case "getDefaultEdgeTable": return edgeTable.proxy;
+			case "equals": return p == args[0];
+			case "hashCode": return (int)suid;
+			case "toString": return "InMemoryNetwork("+suid+")";
+		}
+		throw new UnsupportedOperationException("InMemoryNetwork."+name);
+	}
+
+	private InMemoryTable tableFor(CyIdentifiable id) {
+		if (id instanceof CyNode) return nodeTable;
+		if (id instanceof CyEdge) return edgeTable;
+		return networkTable;
+	}
+
+	@SuppressWarnings("unchecked")
+	static <T> T proxy(Class<T> type, InvocationHandler handler) {
+		return (T)Proxy.newProxyInstance(InMemoryNetwork.class.getClassLoader(), new Class<?>[] {type}, handler);
+	}
+
+	static class ElementHandler implements InvocationHandler {
+		final Long suid;
+		final CyNode source;
+		final CyNode target;
+
+		ElementHandler(Long suid, CyNode source, CyNode target) {
+			this.suid = suid;
+			this.source = source;
+			this.target = target;
+		}
+
+		@Override
+		public Object invoke(Object p, Method method, Object[] args) {
+			switch (method.getName()) {
+				case "getSUID": return suid;
+				case "getSource": return source;
+				case "getTarget": return target;
+				case "isDirected": return false;
+				case "equals": return p == args[0];
+				case "hashCode": return suid.hashCode();
+				case "toString": return "Element("+suid+")";
+			}
+			throw new UnsupportedOperationException(method.getName());
+		}
+	}
+
+	/**
+	 * A row-oriented, in-memory {@link CyTable}
+	 */
+	public static class InMemoryTable implements InvocationHandler {
+		final String title;
+		final CyTable proxy;
+		final Map<String, CyColumn> columns = new LinkedHashMap<>();
+		final Map<Long, Map<String, Object>> rows = new HashMap<>();
+		final Map<Long, CyRow> rowProxies = new HashMap<>();
+
+		InMemoryTable(String title) {
+			this.title = title;
+			this.proxy = proxy(CyTable.class, this);
+		}
+
+		public CyTable getTable() { return proxy; }
+
+		void createColumn(String name, Class<?> type) {
+			createColumn(name, type, null);
+		}
+
+		void createColumn(final String name, final Class<?> type, final Class<?> elementType) {
+			if (columns.containsKey(name)) return;
+			CyColumn column = proxy(CyColumn.class, new InvocationHandler() {
+				public Object invoke(Object p, Method method, Object[] args) {
+					switch (method.getName()) {
+						case "getName": return name;
+						case "getType": return type;
+						case "getListElementType": return elementType;
+						case "getTable": return proxy;
+						case "equals": return p == args[0];
+						case "hashCode": return name.hashCode();
+						case "toString": return "Column("+name+")";
+					}
+					throw new UnsupportedOperationException("CyColumn."+method.getName());
+				}
+			});
+			columns.put(name, column);
+		}
+
+		void set(Long key, String column, Object value) {
+			getValues(key).put(column, value);
+		}
+
+		Map<String, Object> getValues(Long key) {
+			Map<String, Object> values = rows.get(key);
+			if (values == null) {
+				values = new HashMap<>();
+				rows.put(key, values);
+			}
+			return values;
+		}
+
+		CyRow getRow(final Long key) {
+			CyRow row = rowProxies.get(key);
+			if (row != null) return row;
+			final Map<String, Object> values = getValues(key);
+			row = proxy(CyRow.class, new InvocationHandler() {
+				public Object invoke(Object p, Method method, Object[] args) {
+					switch (method.getName()) {
+						case "get":
+						case "getRaw":
+							return values.get((String)args[0]);
+						case "getList":
+							return values.get((String)args[0]);
+						case "set":
+							values.put((String)args[0], args[1]);
+							return null;
+						case "isSet":
+							return values.containsKey((String)args[0]);
+						case "getAllValues":
+							return new HashMap<>(values);
+						case "getTable":
+							return proxy;
+						case "equals": return p == args[0];
+						case "hashCode": return key.hashCode();
+						case "toString": return "Row("+key+")";
+					}
+					throw new UnsupportedOperationException("CyRow."+method.getName());
+				}
+			});
+			rowProxies.put(key, row);
+			return row;
+		}
+
+		@Override
+		public Object invoke(Object p, Method method, Object[] args) {
+			switch (method.getName()) {
+				case "getTitle": return title;
+				case "getColumn": return columns.get((String)args[0]);
+				case "getColumns": return (Collection<CyColumn>)new ArrayList<>(columns.values());
+				case "createColumn":
+					createColumn((String)args[0], (Class<?>)args[1]);
+					return null;
+				case "createListColumn":
+					createColumn((String)args[0], List.class, (Class<?>)args[1]);
+					return null;
+				case "getRow": return getRow((Long)args[0]);
+				case "rowExists": return rows.containsKey((Long)args[0]);
+				case "getRowCount": return rows.size();
+				case "getAllRows": {
+					List<CyRow> all = new ArrayList<>();
+					for (Long key: rows.keySet())
+						all.add(getRow(key));
+					return all;
+				}
+				case "equals": return p == args[0];
+				case "hashCode": return title.hashCode();
+				case "toString": return "InMemoryTable("+title+")";
+			}
+			throw new UnsupportedOperationException("CyTable."+method.getName());
+		}
+	}
+}
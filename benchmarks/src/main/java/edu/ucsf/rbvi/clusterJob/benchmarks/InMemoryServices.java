@@ -0,0 +1,91 @@
+package edu.ucsf.rbvi.clusterJob.benchmarks;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.cytoscape.model.CyNetwork;
+import org.cytoscape.model.CyNetworkFactory;
+import org.cytoscape.model.CyNetworkManager;
+import org.cytoscape.service.util.CyServiceRegistrar;
+
+/**
+ * A {@link CyServiceRegistrar} stand-in that provides just the services
+ * the clusterJob data service needs: a network manager and a network
+ * factory, both backed by {@link InMemoryNetwork}.
+ */
+public class InMemoryServices implements InvocationHandler {
+	final Map<Long, CyNetwork> networks = new LinkedHashMap<>();
+	final CyServiceRegistrar registrar;
+	final CyNetworkManager networkManager;
+	final CyNetworkFactory networkFactory;
+	final Map<Class<?>, Object> extraServices = new LinkedHashMap<>();
+
+	public InMemoryServices() {
+		registrar = InMemoryNetwork.proxy(CyServiceRegistrar.class, this);
+		networkManager = InMemoryNetwork.proxy(CyNetworkManager.class, new InvocationHandler() {
+			public Object invoke(Object p, Method method, Object[] args) {
+				switch (method.getName()) {
+					case "networkExists": return networks.containsKey((Long)args[0]);
+					case "getNetwork": return networks.get((Long)args[0]);
+					case "getNetworkSet": return new HashSet<>(networks.values());
+					case "addNetwork":
+						addNetwork((CyNetwork)args[0]);
+						return null;
+					case "destroyNetwork":
+						networks.remove(((CyNetwork)args[0]).getSUID());
+						return null;
+					case "equals": return p == args[0];
+					case "hashCode": return System.identityHashCode(p);
+					case "toString": return "InMemoryNetworkManager";
+				}
+				throw new UnsupportedOperationException("CyNetworkManager."+method.getName());
+			}
+		});
+		networkFactory = InMemoryNetwork.proxy(CyNetworkFactory.class, new InvocationHandler() {
+			public Object invoke(Object p, Method method, Object[] args) {
+				switch (method.getName()) {
+					case "createNetwork":
+					case "createNetworkWithPrivateTables":
+						return new InMemoryNetwork("New network").getNetwork();
+					case "equals": return p == args[0];
+					case "hashCode": return System.identityHashCode(p);
+					case "toString": return "InMemoryNetworkFactory";
+				}
+				throw new UnsupportedOperationException("CyNetworkFactory."+method.getName());
+			}
+		});
+	}
+
+	public CyServiceRegistrar getRegistrar() { return registrar; }
+
+	public void addNetwork(CyNetwork network) {
+		networks.put(network.getSUID(), network);
+	}
+
+	/**
+	 * Register an additional service (e.g. a job manager) by its interface
+	 */
+	public <S> void addService(Class<S> clazz, S service) {
+		extraServices.put(clazz, service);
+	}
+
+	@Override
+	public Object invoke(Object p, Method method, Object[] args) {
+		switch (method.getName()) {
+			case "getService": {
+				Class<?> clazz = (Class<?>)args[0];
+				if (clazz.equals(CyNetworkManager.class)) return networkManager;
+				if (clazz.equals(CyNetworkFactory.class)) return networkFactory;
+				if (extraServices.containsKey(clazz)) return extraServices.get(clazz);
+				return null;
+			}
+			case "equals": return p == args[0];
+			case "hashCode": return System.identityHashCode(p);
+			case "toString": return "InMemoryServices";
+		}
+		throw new UnsupportedOperationException("CyServiceRegistrar."+method.getName());
+	}
+}
@@ -0,0 +1,329 @@
+package edu.ucsf.rbvi.clusterJob.benchmarks;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.simple.JSONObject;
+
+import org.cytoscape.jobs.CyJob;
+import org.cytoscape.jobs.CyJobData;
+import org.cytoscape.jobs.CyJobStatus;
+import org.cytoscape.jobs.CyJobStatus.Status;
+import org.cytoscape.model.CyIdentifiable;
+import org.cytoscape.model.CyNetwork;
+
+import edu.ucsf.rbvi.clusterJob.internal.io.ClusterJobExecutionService;
+import edu.ucsf.rbvi.clusterJob.internal.io.RemoteCallExecutor;
+
+/**
+ * End-to-end load test: start a {@link LocalClusterService}, then push
+ * thousands of concurrent cluster jobs through the real
+ * {@link ClusterJobExecutionService} (submit, poll, fetch) and report
+ * latency percentiles for each call along with resource use.  Run it
+ * from the benchmarks jar:
+ * <pre>
+ *   java -cp target/benchmarks.jar edu.ucsf.rbvi.clusterJob.benchmarks.LoadTest --jobs=5000
+ * </pre>
+ *
+ * Arguments are all of the form --name=value:
+ * <pre>
+ *   --jobs=2000          number of jobs to run
+ *   --concurrency=64     number of threads submitting jobs
+ *   --pollThreads=16     number of threads polling and fetching
+ *   --pollInterval=1000  milliseconds between polls of a job
+ *   --nodes=1000         nodes in each submitted network
+ *   --edges=5000         edges in each submitted network
+ *   --latency=20         mean latency added to each request (ms)
+ *   --failureRate=0.0    fraction of requests that fail
+ *   --minDuration=1000   shortest job run time (ms)
+ *   --maxDuration=5000   longest job run time (ms)
+ *   --maxRetries=3       consecutive failed polls before a job is abandoned
+ *   --ioMode=direct      where the remote calls run: direct (on our own
+ *                        submit and poll threads), virtual or pool
+ *   --ioThreads=16       size of the I/O pool for --ioMode=pool
+ *   --replicas=1         number of local cluster services to balance over
+ *   --balance=least      how to pick a replica: least (outstanding jobs)
+ *                        or latency
+ *   --out=file.json      also write the summary as JSON
+ * </pre>
+ */
+public class LoadTest {
+	final Map<String, String> options;
+	final Map<String, ConcurrentLinkedQueue<Long>> latencies = new HashMap<>();
+	final AtomicInteger completed = new AtomicInteger();
+	final AtomicInteger failed = new AtomicInteger();
+	final AtomicLong peakHeap = new AtomicLong();
+
+	ClusterJobExecutionService executionService;
+	ScheduledExecutorService poller;
+	RemoteCallExecutor remoteExecutor;
+	CountDownLatch done;
+	long pollInterval;
+	int maxRetries;
+
+	public LoadTest(Map<String, String> options) {
+		this.options = options;
+		for (String op: new String[] {"submit", "poll", "fetch", "endToEnd"})
+			latencies.put(op, new ConcurrentLinkedQueue<Long>());
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<>();
+		for (String arg: args) {
+			if (!arg.startsWith("--")) continue;
+			int eq = arg.indexOf('=');
+			if (eq < 0)
+				options.put(arg.substring(2), "true");
+			else
+				options.put(arg.substring(2, eq), arg.substring(eq+1));
+		}
+		JSONObject summary = new LoadTest(options).run();
+		System.out.println(summary.toJSONString());
+		if (options.containsKey("out")) {
+			FileWriter writer = new FileWriter(options.get("out"));
+			summary.writeJSONString(writer);
+			writer.close();
+		}
+		System.exit(0);
+	}
+
+	public JSONObject run() throws Exception {
+		int jobs = getInt("jobs", 2000);
+		int concurrency = getInt("concurrency", 64);
+		pollInterval = getInt("pollInterval", 1000);
+		maxRetries = getInt("maxRetries", 3);
+
+		LocalClusterService.Config config = new LocalClusterService.Config();
+		config.latencyMillis = getInt("latency", 20);
+		config.failureRate = Double.parseDouble(get("failureRate", "0.0"));
+		config.minDurationMillis = getInt("minDuration", 1000);
+		config.maxDurationMillis = getInt("maxDuration", 5000);
+		int replicas = Math.max(1, getInt("replicas", 1));
+		List<LocalClusterService> localServices = new ArrayList<>();
+		StringBuilder urls = new StringBuilder();
+		for (int i = 0; i < replicas; i++) {
+			LocalClusterService localService = new LocalClusterService(config);
+			localService.start();
+			localServices.add(localService);
+			if (i > 0) urls.append(',');
+			urls.append(localService.getURL());
+		}
+		System.setProperty("clusterJob.balance", get("balance", "least"));
+
+		InMemoryServices services = new InMemoryServices();
+		// Don't leave thousands of load test jobs in the user's journal
+		if (System.getProperty("clusterJob.journal") == null)
+			System.setProperty("clusterJob.journal", "false");
+		executionService = new ClusterJobExecutionService(null, services.getRegistrar());
+		// Everything goes over real HTTP to our local service
+		executionService.setServiceURL(urls.toString());
+		executionService.setIOMode(RemoteCallExecutor.Mode.fromString(get("ioMode", "direct")), getInt("ioThreads", 16));
+		remoteExecutor = executionService.getRemoteExecutor();
+
+		InMemoryNetwork net = InMemoryNetwork.createRandom(getInt("nodes", 1000), getInt("edges", 5000), 42L);
+		final CyNetwork network = net.getNetwork();
+		services.addNetwork(network);
+		final List<CyIdentifiable> nodesAndEdges = new ArrayList<CyIdentifiable>(network.getNodeList());
+		nodesAndEdges.addAll(network.getEdgeList());
+		final List<String> edgeColumns = Arrays.asList("weight");
+
+		ExecutorService submitters = Executors.newFixedThreadPool(concurrency);
+		poller = Executors.newScheduledThreadPool(getInt("pollThreads", 16));
+		ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+		sampler.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				long used = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+				if (used > peakHeap.get()) peakHeap.set(used);
+			}
+		}, 0, 100, TimeUnit.MILLISECONDS);
+
+		done = new CountDownLatch(jobs);
+		long cpuStart = getProcessCpuTime();
+		long gcStart = getGCTime();
+		long start = System.nanoTime();
+
+		for (int i = 0; i < jobs; i++) {
+			final int jobNumber = i;
+			Runnable submitter = new Runnable() {
+				public void run() {
+					submit(jobNumber, network, nodesAndEdges, edgeColumns);
+				}
+			};
+			// In direct mode our own threads block on the network
+			if (remoteExecutor.getMode() == RemoteCallExecutor.Mode.DIRECT)
+				submitters.execute(submitter);
+			else
+				remoteExecutor.execute(submitter);
+		}
+
+		done.await();
+		long elapsed = System.nanoTime() - start;
+		submitters.shutdown();
+		poller.shutdown();
+		sampler.shutdown();
+		executionService.shutdown();
+		for (LocalClusterService localService: localServices)
+			localService.stop();
+
+		JSONObject summary = new JSONObject();
+		summary.put("jobs", jobs);
+		summary.put("ioMode", remoteExecutor.getMode().toString());
+		summary.put("completed", completed.get());
+		summary.put("failed", failed.get());
+		summary.put("wallTimeMillis", elapsed/1000000L);
+		summary.put("jobsPerSecond", completed.get() / (elapsed/1.0e9));
+		JSONObject latencyObj = new JSONObject();
+		for (String op: latencies.keySet())
+			latencyObj.put(op, percentiles(latencies.get(op)));
+		summary.put("latencyMillis", latencyObj);
+
+		JSONObject resources = new JSONObject();
+		resources.put("cpuTimeMillis", (getProcessCpuTime() - cpuStart)/1000000L);
+		resources.put("gcTimeMillis", getGCTime() - gcStart);
+		resources.put("peakHeapBytes", peakHeap.get());
+		resources.put("peakThreads", ManagementFactory.getThreadMXBean().getPeakThreadCount());
+		summary.put("resources", resources);
+		Map<String, Long> requestCounts = new HashMap<>();
+		for (LocalClusterService localService: localServices) {
+			Map<String, Long> counts = localService.getRequestCounts();
+			for (String key: counts.keySet()) {
+				Long total = requestCounts.get(key);
+				requestCounts.put(key, (total == null ? 0L : total) + counts.get(key));
+			}
+		}
+		summary.put("replicas", replicas);
+		summary.put("serverRequests", new JSONObject(requestCounts));
+		summary.put("endpoints", executionService.getEndpointPool().toJSON());
+		summary.put("clientMetrics", executionService.getMetrics().toJSON(false));
+		return summary;
+	}
+
+	void submit(int jobNumber, CyNetwork network, List<CyIdentifiable> nodesAndEdges, List<String> edgeColumns) {
+		long start = System.nanoTime();
+		try {
+			CyJob job = executionService.createCyJob("LoadTest "+jobNumber);
+			CyJobData data = job.getJobDataService().addData(null, "network", network, nodesAndEdges, null, edgeColumns);
+			CyJobStatus status = executionService.executeJob(job, null, null, data);
+			latencies.get("submit").add(System.nanoTime() - start);
+			if (status == null || isFailure(status.getStatus())) {
+				finish(false, start);
+				return;
+			}
+			schedulePoll(job, start, 0);
+		} catch (Exception e) {
+			finish(false, start);
+		}
+	}
+
+	void schedulePoll(final CyJob job, final long jobStart, final int failures) {
+		final Runnable pollRunnable = new Runnable() {
+			public void run() {
+				poll(job, jobStart, failures);
+			}
+		};
+		// The scheduler only keeps time; the poll itself runs wherever the
+		// execution service runs its remote calls
+		poller.schedule(new Runnable() {
+			public void run() {
+				remoteExecutor.execute(pollRunnable);
+			}
+		}, pollInterval, TimeUnit.MILLISECONDS);
+	}
+
+	void poll(CyJob job, long jobStart, int failures) {
+		long start = System.nanoTime();
+		CyJobStatus status = executionService.checkJobStatus(job);
+		latencies.get("poll").add(System.nanoTime() - start);
+
+		if (status == null || isFailure(status.getStatus())) {
+			if (failures + 1 > maxRetries)
+				finish(false, jobStart);
+			else
+				schedulePoll(job, jobStart, failures+1);
+			return;
+		}
+
+		if (status.getStatus() != Status.FINISHED) {
+			schedulePoll(job, jobStart, 0);
+			return;
+		}
+
+		start = System.nanoTime();
+		CyJobData result = job.getJobDataService().getDataInstance();
+		CyJobStatus fetchStatus = executionService.fetchResults(job, result);
+		latencies.get("fetch").add(System.nanoTime() - start);
+		finish(fetchStatus != null && fetchStatus.getStatus() == Status.FINISHED, jobStart);
+	}
+
+	void finish(boolean success, long jobStart) {
+		if (success) {
+			completed.incrementAndGet();
+			latencies.get("endToEnd").add(System.nanoTime() - jobStart);
+		} else {
+			failed.incrementAndGet();
+		}
+		done.countDown();
+	}
+
+	static boolean isFailure(Status status) {
+		return status == Status.ERROR || status == Status.FAILED || status == Status.UNKNOWN ||
+		       status == Status.TERMINATED || status == Status.CANCELED || status == Status.PURGED;
+	}
+
+	static JSONObject percentiles(ConcurrentLinkedQueue<Long> samples) {
+		long[] values = new long[samples.size()];
+		int i = 0;
+		for (Long v: samples) {
+			if (i >= values.length) break;
+			values[i++] = v;
+		}
+		Arrays.sort(values, 0, i);
+		JSONObject obj = new JSONObject();
+		obj.put("count", i);
+		if (i == 0) return obj;
+		obj.put("p50", values[(int)(0.50*(i-1))]/1.0e6);
+		obj.put("p90", values[(int)(0.90*(i-1))]/1.0e6);
+		obj.put("p99", values[(int)(0.99*(i-1))]/1.0e6);
+		obj.put("p999", values[(int)(0.999*(i-1))]/1.0e6);
+		obj.put("max", values[i-1]/1.0e6);
+		return obj;
+	}
+
+	static long getProcessCpuTime() {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.OperatingSystemMXBean)
+			return ((com.sun.management.OperatingSystemMXBean)os).getProcessCpuTime();
+		return -1L;
+	}
+
+	static long getGCTime() {
+		long total = 0L;
+		for (GarbageCollectorMXBean gc: ManagementFactory.getGarbageCollectorMXBeans())
+			total += Math.max(0L, gc.getCollectionTime());
+		return total;
+	}
+
+	String get(String key, String defaultValue) {
+		return options.containsKey(key) ? options.get(key) : defaultValue;
+	}
+
+	int getInt(String key, int defaultValue) {
+		return Integer.parseInt(get(key, Integer.toString(defaultValue)));
+	}
+}
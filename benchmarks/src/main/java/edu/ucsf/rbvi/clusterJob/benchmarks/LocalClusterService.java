@@ -0,0 +1,173 @@
+package edu.ucsf.rbvi.clusterJob.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.json.simple.JSONObject;
+
+import edu.ucsf.rbvi.clusterJob.internal.io.MockHttpServer;
+
+/**
+ * A real, local HTTP stand-in for the cluster service.  It speaks the
+ * command protocol used by ClusterJobExecutionService (a form POST with
+ * command, job_id and inputData) and lets us configure the request
+ * latency, the rate of injected failures and how long jobs take to run.
+ * The jobs themselves are tracked by a private {@link MockHttpServer}
+ * engine; this class adds the HTTP transport, latency and failures.
+ */
+public class LocalClusterService implements HttpHandler {
+	static final String COMMAND = "command";
+	static final String ERROR = "errorMessage";
+
+	public static class Config {
+		/** Mean added latency for each request */
+		public long latencyMillis = 20;
+		/** Probability that any request fails with a server error */
+		public double failureRate = 0.0;
+		/** Range for how long each job runs once submitted */
+		public long minDurationMillis = 1000;
+		public long maxDurationMillis = 5000;
+		/** The fraction of the duration that a job sits in the queue */
+		public double queueFraction = 0.1;
+		/** Number of threads servicing HTTP requests */
+		public int threads = 64;
+	}
+
+	final Config config;
+	final MockHttpServer engine;
+	final ConcurrentMap<String, AtomicLong> requestCounts = new ConcurrentHashMap<>();
+	final AtomicLong failures = new AtomicLong();
+	HttpServer server;
+	ExecutorService executor;
+
+	public LocalClusterService(Config config) {
+		this.config = config;
+		// The mock server does the real work of tracking the jobs
+		this.engine = new MockHttpServer(4);
+		engine.setJobDuration(config.minDurationMillis, config.maxDurationMillis, config.queueFraction);
+		engine.setClusterCount(20);
+	}
+
+	public void start() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+		server.createContext("/", this);
+		executor = Executors.newFixedThreadPool(config.threads);
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+		engine.shutdown();
+	}
+
+	public String getURL() {
+		return "http://127.0.0.1:"+server.getAddress().getPort()+"/clusterService/";
+	}
+
+	public Map<String, Long> getRequestCounts() {
+		Map<String, Long> counts = new HashMap<>();
+		for (String command: requestCounts.keySet())
+			counts.put(command, requestCounts.get(command).get());
+		counts.put("injectedFailures", failures.get());
+		return counts;
+	}
+
+	@Override
+	public void handle(HttpExchange exchange) throws IOException {
+		try {
+			Map<String, String> args = parseForm(readBody(exchange.getRequestBody()));
+			String command = args.get(COMMAND);
+			count(command == null ? "none" : command);
+
+			simulateLatency();
+
+			if (config.failureRate > 0.0 && ThreadLocalRandom.current().nextDouble() < config.failureRate) {
+				failures.incrementAndGet();
+				respond(exchange, 500, error("Injected failure"));
+				return;
+			}
+
+			Object response = engine.postJSON(exchange.getRequestURI().toString(), args, null);
+			if (response instanceof JSONObject)
+				respond(exchange, 200, (JSONObject)response);
+			else
+				respond(exchange, 400, error("Unknown command: "+command));
+		} catch (Exception e) {
+			respond(exchange, 500, error(e.getMessage()));
+		}
+	}
+
+	void simulateLatency() throws InterruptedException {
+		if (config.latencyMillis <= 0) return;
+		// Spread the latency +/- 50% around the mean
+		long latency = config.latencyMillis/2 + ThreadLocalRandom.current().nextLong(config.latencyMillis+1);
+		Thread.sleep(latency);
+	}
+
+	void count(String command) {
+		AtomicLong counter = requestCounts.get(command);
+		if (counter == null) {
+			requestCounts.putIfAbsent(command, new AtomicLong());
+			counter = requestCounts.get(command);
+		}
+		counter.incrementAndGet();
+	}
+
+	static JSONObject error(String message) {
+		JSONObject obj = new JSONObject();
+		obj.put(ERROR, message);
+		return obj;
+	}
+
+	static void respond(HttpExchange exchange, int code, JSONObject response) throws IOException {
+		byte[] bytes = response.toJSONString().getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(code, bytes.length);
+		OutputStream os = exchange.getResponseBody();
+		os.write(bytes);
+		os.close();
+	}
+
+	static String readBody(InputStream is) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		byte[] buffer = new byte[65536];
+		int n;
+		while ((n = is.read(buffer)) > 0)
+			bos.write(buffer, 0, n);
+		is.close();
+		return bos.toString("UTF-8");
+	}
+
+	static Map<String, String> parseForm(String body) throws IOException {
+		Map<String, String> args = new HashMap<>();
+		if (body == null || body.length() == 0)
+			return args;
+		for (String pair: body.split("&")) {
+			int eq = pair.indexOf('=');
+			if (eq < 0)
+				args.put(URLDecoder.decode(pair, "UTF-8"), "");
+			else
+				args.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+				         URLDecoder.decode(pair.substring(eq+1), "UTF-8"));
+		}
+		return args;
+	}
+}
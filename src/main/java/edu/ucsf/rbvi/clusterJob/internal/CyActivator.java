@@ -1,31 +1,46 @@
 package edu.ucsf.rbvi.clusterJob.internal;
 
 import static org.cytoscape.work.ServiceProperties.COMMAND;
+import static org.cytoscape.work.ServiceProperties.COMMAND_DESCRIPTION;
 import static org.cytoscape.work.ServiceProperties.COMMAND_NAMESPACE;
 import static org.cytoscape.work.ServiceProperties.IN_MENU_BAR;
 import static org.cytoscape.work.ServiceProperties.MENU_GRAVITY;
 import static org.cytoscape.work.ServiceProperties.PREFERRED_MENU;
 import static org.cytoscape.work.ServiceProperties.TITLE;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Properties;
 
 import org.cytoscape.application.swing.CySwingApplication;
+import org.cytoscape.event.CyEventHelper;
+import org.cytoscape.jobs.CyJob;
 import org.cytoscape.jobs.CyJobExecutionService;
 import org.cytoscape.jobs.CyJobManager;
+import org.cytoscape.model.CyNetwork;
 import org.cytoscape.service.util.AbstractCyActivator;
 import org.cytoscape.service.util.CyServiceRegistrar;
+import org.cytoscape.session.CySession;
 import org.cytoscape.session.events.SessionAboutToBeSavedListener;
+import org.cytoscape.session.events.SessionLoadedEvent;
 import org.cytoscape.session.events.SessionLoadedListener;
 import org.cytoscape.task.NetworkTaskFactory;
 import org.cytoscape.work.TaskFactory;
 import org.osgi.framework.BundleContext;
 
 
+import edu.ucsf.rbvi.clusterJob.internal.handlers.ClusterJobHandler;
 import edu.ucsf.rbvi.clusterJob.internal.io.ClusterJobExecutionService;
+import edu.ucsf.rbvi.clusterJob.internal.model.ClusterJobDataService;
+import edu.ucsf.rbvi.clusterJob.internal.tasks.BatchClusterTaskFactory;
+import edu.ucsf.rbvi.clusterJob.internal.tasks.ConsensusTaskFactory;
+import edu.ucsf.rbvi.clusterJob.internal.tasks.MetricsTaskFactory;
 import edu.ucsf.rbvi.clusterJob.internal.tasks.SubmitJobTaskFactory;
 
 
 public class CyActivator extends AbstractCyActivator {
+	ClusterJobExecutionService clusterJobService = null;
 
 	public CyActivator() {
 		super();
@@ -34,13 +49,14 @@ public class CyActivator extends AbstractCyActivator {
 	public void start(BundleContext bc) throws Exception {
 		// See if we have a graphics console or not
 		CyServiceRegistrar registrar = getService(bc, CyServiceRegistrar.class);
-		CyJobManager cyJobManager = getService(bc, CyJobManager.class);
+		final CyJobManager cyJobManager = getService(bc, CyJobManager.class);
+		ClusterJobHandler.getProvisionalResults().setEventHelper(getService(bc, CyEventHelper.class));
 
+		final ClusterJobExecutionService clusterJobService = 
+						new ClusterJobExecutionService(cyJobManager, registrar);
+		this.clusterJobService = clusterJobService;
 		{
 			Properties props = new Properties();
-			ClusterJobExecutionService clusterJobService = 
-							new ClusterJobExecutionService(cyJobManager, registrar);
-
 			props.setProperty(TITLE, "ClusterJobExecutor");
 			registerService(bc, clusterJobService, CyJobExecutionService.class, props);
 		}
@@ -53,5 +69,86 @@ public class CyActivator extends AbstractCyActivator {
 			registerService(bc, factory, NetworkTaskFactory.class, props);
 		}
 
+		{
+			Properties props = new Properties();
+			ConsensusTaskFactory factory = new ConsensusTaskFactory(registrar);
+			props.setProperty(TITLE, "Consensus cluster job");
+			props.setProperty(PREFERRED_MENU, "Apps.TestRemote");
+			registerService(bc, factory, NetworkTaskFactory.class, props);
+		}
+
+		{
+			Properties props = new Properties();
+			MetricsTaskFactory factory = new MetricsTaskFactory(clusterJobService.getMetrics());
+			props.setProperty(COMMAND_NAMESPACE, "clusterjob");
+			props.setProperty(COMMAND, "metrics");
+			props.setProperty(COMMAND_DESCRIPTION, "Report latency and throughput metrics for cluster jobs");
+			registerService(bc, factory, TaskFactory.class, props);
+		}
+
+		{
+			Properties props = new Properties();
+			BatchClusterTaskFactory factory = new BatchClusterTaskFactory(registrar);
+			props.setProperty(COMMAND_NAMESPACE, "clusterjob");
+			props.setProperty(COMMAND, "batch");
+			props.setProperty(COMMAND_DESCRIPTION, "Cluster a list of networks with a list of algorithms and report the timings");
+			registerService(bc, factory, TaskFactory.class, props);
+		}
+
+		// Pick up any jobs that were still outstanding when we last stopped.
+		// Their networks don't exist until the session they were in is
+		// loaded, so we hold on to them until then.
+		final List<CyJob> recovered = new ArrayList<>();
+		if (!"false".equalsIgnoreCase(System.getProperty("clusterJob.recoverJobs")))
+			recovered.addAll(clusterJobService.recoverJobs());
+
+		{
+			// SUID mappings from the last session are no good after a new one is loaded
+			final ClusterJobDataService dataService = (ClusterJobDataService)clusterJobService.getDataService();
+			registerService(bc, new SessionLoadedListener() {
+				public void handleEvent(SessionLoadedEvent e) {
+					dataService.sessionLoaded();
+					attachRecoveredJobs(clusterJobService, cyJobManager, recovered, e.getLoadedSession());
+				}
+			}, SessionLoadedListener.class, new Properties());
+		}
+	}
+
+	/**
+	 * Called from stop(), once our services are unregistered: stop our
+	 * threads and close the journal
+	 */
+	@Override
+	public void shutDown() {
+		if (clusterJobService != null)
+			clusterJobService.shutdown();
+		clusterJobService = null;
+		ClusterJobHandler.getNotifications().shutdown();
+		ClusterJobHandler.getProvisionalResults().shutdown();
+	}
+
+	/**
+	 * Start monitoring the recovered jobs whose networks are in session.  Jobs
+	 * the session restored itself are dropped, and the rest wait for the next
+	 * session.
+	 */
+	static void attachRecoveredJobs(ClusterJobExecutionService clusterJobService, CyJobManager cyJobManager,
+	                                List<CyJob> recovered, CySession session) {
+		synchronized (recovered) {
+			for (Iterator<CyJob> iterator = recovered.iterator(); iterator.hasNext(); ) {
+				CyJob job = iterator.next();
+				if (!clusterJobService.isRecovered(job)) {
+					iterator.remove();
+					continue;
+				}
+				CyNetwork network = clusterJobService.getRecoveredNetwork(job, session);
+				if (network == null)
+					continue;
+				iterator.remove();
+				ClusterJobHandler jobHandler = new ClusterJobHandler(job, network);
+				job.setJobMonitor(jobHandler);
+				cyJobManager.addJob(job, jobHandler, job.getPollInterval());
+			}
+		}
 	}
 }
@@ -1,7 +1,7 @@
 package edu.ucsf.rbvi.clusterJob.internal.handlers;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.CancellationException;
 
 import org.cytoscape.jobs.CyJob;
 import org.cytoscape.jobs.CyJobData;
@@ -11,27 +11,202 @@ import org.cytoscape.model.CyNetwork;
 
 import org.cytoscape.work.TaskMonitor;
 
+import edu.ucsf.rbvi.clusterJob.internal.io.ClusterJobExecutionService;
+import edu.ucsf.rbvi.clusterJob.internal.io.JobLogger;
+import edu.ucsf.rbvi.clusterJob.internal.model.ClusterJob;
+import edu.ucsf.rbvi.clusterJob.internal.model.ClusterJobDataService;
+import edu.ucsf.rbvi.clusterJob.internal.model.IntermediatePartition;
+import edu.ucsf.rbvi.clusterJob.internal.model.JobMetrics;
+import edu.ucsf.rbvi.clusterJob.internal.model.ShardGroup;
+
 public class ClusterJobHandler implements CyJobMonitor {
-	static Map<CyJob, CyNetwork> networkMap = new HashMap<>();
+	static final JobLogger log = JobLogger.getLogger(ClusterJobHandler.class);
+	static final JobNetworkRegistry networkRegistry = new JobNetworkRegistry();
+	static final JobSupersession supersession = new JobSupersession();
+	static final ProvisionalResults provisional = new ProvisionalResults();
+	static final StatusDispatcher notifications = new StatusDispatcher();
+	// Our job might not have an id yet, so hang on to the network until it does
+	final WeakReference<CyNetwork> networkRef;
+	// Set once the job has ended, so a late status can't register it again
+	volatile boolean finished = false;
+	// Does the work for a status change, on the dispatcher's thread
+	final StatusDispatcher.Listener applyStatus = new StatusDispatcher.Listener() {
+		public void jobStatusChanged(CyJob job, CyJobStatus status) {
+			applyStatus(job, status);
+		}
+	};
 
 	public ClusterJobHandler(CyJob job, CyNetwork network) {
-		networkMap.put(job, network); 
+		networkRef = new WeakReference<>(network);
+		networkRegistry.register(job.getJobId(), network);
+	}
+
+	public static JobSupersession getSupersession() { return supersession; }
+
+	public static ProvisionalResults getProvisionalResults() { return provisional; }
+
+	/**
+	 * Where to listen for job status changes, rather than every poll
+	 */
+	public static StatusDispatcher getNotifications() { return notifications; }
+
+	/**
+	 * Record that job is the latest submission for targetColumn on this
+	 * network, and cancel (or just ignore the results of) the older jobs it
+	 * replaces.  Jobs from the same submission share the submission token.
+	 */
+	public static void supersede(ClusterJob job, Long networkSUID, String targetColumn, Object submission) {
+		String key = JobSupersession.getKey(networkSUID, targetColumn);
+		job.setSupersessionKey(key);
+		for (CyJob old: supersession.submitted(key, submission, job)) {
+			if (!(old instanceof ClusterJob))
+				continue;
+			((ClusterJob)old).setSuperseded(true);
+			log.info("job.superseded", "job", old.getJobId(), "by", job.getJobId(), "mode", supersession.getMode());
+			if (supersession.getMode() == JobSupersession.Mode.CANCEL)
+				old.getJobExecutionService().cancelJob(old);
+		}
+	}
+
+	/**
+	 * A running job sent us a partition, so show it in the provisional
+	 * column.  Shards number their clusters independently until they're
+	 * merged, so their partitions aren't shown.
+	 */
+	public static void intermediateResults(ClusterJob job, IntermediatePartition partition) {
+		if (job.getShard() != null || job.isSuperseded())
+			return;
+		provisional.offer(job.getJobId(), networkRegistry.get(job.getJobId()), partition);
+	}
+
+	/**
+	 * Get the network a job was submitted against
+	 */
+	public static CyNetwork getNetwork(CyJob job) {
+		return networkRegistry.get(job.getJobId());
 	}
 
 	@Override
 	public void jobStatusChanged(CyJob job, CyJobStatus status) {
-		System.out.println("Job status changed to "+status.toString());
+		// Most polls don't change anything, and the rest are handled off the poll thread
+		notifications.statusChanged(job, status, applyStatus);
+	}
+
+	private void applyStatus(CyJob job, CyJobStatus status) {
+		log.debug("job.status", "job", job.getJobId(), "status", status.getStatus(), "message", status.getMessage());
+		switch (status.getStatus()) {
+			case CANCELED:
+			case ERROR:
+			case FAILED:
+			case PURGED:
+			case TERMINATED:
+				// Nothing more will happen with this job
+				finished = true;
+				networkRegistry.remove(job.getJobId());
+				notifications.forget(job.getJobId());
+				provisional.finished(job.getJobId());
+				if (job instanceof ClusterJob)
+					supersession.finished(((ClusterJob)job).getSupersessionKey(), job);
+				break;
+			case SUBMITTED:
+			case QUEUED:
+			case RUNNING:
+				// This can be delivered after loadData is done with the job
+				if (finished || networkRegistry.get(job.getJobId()) != null)
+					break;
+				networkRegistry.register(job.getJobId(), networkRef.get());
+				// ...or loadData might have finished while we were registering
+				if (finished)
+					networkRegistry.remove(job.getJobId());
+				break;
+			default:
+				break;
+		}
 	}
 
 	@Override
 	public void loadData(CyJob job, TaskMonitor monitor) {
+		finished = true;
+		notifications.forget(job.getJobId());
+		provisional.finished(job.getJobId());
+		if (job instanceof ClusterJob)
+			supersession.finished(((ClusterJob)job).getSupersessionKey(), job);
+		// A newer job will overwrite whatever we'd apply
+		if (job instanceof ClusterJob && ((ClusterJob)job).isSuperseded()) {
+			log.info("job.skipApply", "job", job.getJobId());
+			networkRegistry.remove(job.getJobId());
+			return;
+		}
+
+		// If we know the network, apply the results as they download
+		CyNetwork target = networkRegistry.get(job.getJobId());
+		if (target != null && job instanceof ClusterJob &&
+		    job.getJobExecutionService() instanceof ClusterJobExecutionService &&
+		    job.getJobDataService() instanceof ClusterJobDataService) {
+			PipelinedResultLoader loader = 
+				new PipelinedResultLoader((ClusterJobExecutionService)job.getJobExecutionService(),
+				                          (ClusterJobDataService)job.getJobDataService());
+			try {
+				if (loader.load((ClusterJob)job, target, monitor)) {
+					mergeShard(job, target);
+					provisional.clear(target);
+					((ClusterJobExecutionService)job.getJobExecutionService()).resultsApplied(job);
+					networkRegistry.remove(job.getJobId());
+					return;
+				}
+			} catch (CancellationException ce) {
+				log.info("job.loadCanceled", "job", job.getJobId());
+				networkRegistry.remove(job.getJobId());
+				return;
+			} catch (Exception e) {
+				log.error(e, "job.loadFailed", "job", job.getJobId(), "error", e.getMessage());
+				if (monitor != null)
+					monitor.showMessage(TaskMonitor.Level.ERROR, "Unable to load results: "+e.getMessage());
+				networkRegistry.remove(job.getJobId());
+				return;
+			}
+		}
+
 		CyJobData data = job.getJobDataService().getDataInstance();
 		CyJobStatus status = job.getJobExecutionService().fetchResults(job, data);
+		if (status != null && status.getStatus() == CyJobStatus.Status.CANCELED) {
+			networkRegistry.remove(job.getJobId());
+			return;
+		}
 
 		// We need to save the job so the ClusterDataService can
 		// restore the SUIDs
 		data.put("job", job);
 		// Now we need to extract the network from the data
+		long start = System.nanoTime();
 		CyNetwork network = job.getJobDataService().getNetworkData(data, "network");
+		if (job instanceof ClusterJob) {
+			JobMetrics metrics = ((ClusterJob)job).getMetrics();
+			if (metrics != null)
+				metrics.record(JobMetrics.Stage.APPLY, System.nanoTime()-start);
+		}
+		if (network != null) {
+			mergeShard(job, network);
+			provisional.clear(network);
+			if (job.getJobExecutionService() instanceof ClusterJobExecutionService)
+				((ClusterJobExecutionService)job.getJobExecutionService()).resultsApplied(job);
+		}
+		// The results are in, so we're done with this job
+		networkRegistry.remove(job.getJobId());
+	}
+
+	/**
+	 * If this job was one shard of a network, make its cluster numbers
+	 * unique across the other shards
+	 */
+	private void mergeShard(CyJob job, CyNetwork network) {
+		if (!(job instanceof ClusterJob))
+			return;
+		ShardGroup.Shard shard = ((ClusterJob)job).getShard();
+		if (shard == null)
+			return;
+		shard.merge(network);
+		log.info("job.shardMerged", "job", job.getJobId(), "shard", shard.getIndex(),
+		         "merged", shard.getGroup().getMergedCount(), "of", shard.getGroup().getShardCount());
 	}
 }
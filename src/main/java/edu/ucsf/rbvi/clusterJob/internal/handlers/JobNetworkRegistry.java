@@ -0,0 +1,66 @@
+package edu.ucsf.rbvi.clusterJob.internal.handlers;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.cytoscape.model.CyNetwork;
+
+/**
+ * Keep track of which network each job belongs to.  Lookups are by job id,
+ * the networks are only weakly referenced (so a destroyed network can be
+ * collected even if its job is still around), and entries are removed as
+ * soon as a job is done with.  Safe to use from task and job manager
+ * threads at the same time.
+ */
+public class JobNetworkRegistry {
+	final ConcurrentMap<String, NetworkReference> networkMap = new ConcurrentHashMap<>();
+	final ReferenceQueue<CyNetwork> queue = new ReferenceQueue<>();
+
+	public void register(String jobId, CyNetwork network) {
+		if (jobId == null || network == null) return;
+		expunge();
+		networkMap.put(jobId, new NetworkReference(jobId, network, queue));
+	}
+
+	public CyNetwork get(String jobId) {
+		if (jobId == null) return null;
+		expunge();
+		NetworkReference ref = networkMap.get(jobId);
+		if (ref == null) return null;
+		CyNetwork network = ref.get();
+		if (network == null)
+			networkMap.remove(jobId, ref);
+		return network;
+	}
+
+	public void remove(String jobId) {
+		if (jobId == null) return;
+		networkMap.remove(jobId);
+		expunge();
+	}
+
+	public int size() {
+		expunge();
+		return networkMap.size();
+	}
+
+	/**
+	 * Drop the entries for networks that have been garbage collected
+	 */
+	private void expunge() {
+		NetworkReference ref;
+		while ((ref = (NetworkReference)queue.poll()) != null) {
+			networkMap.remove(ref.jobId, ref);
+		}
+	}
+
+	static class NetworkReference extends WeakReference<CyNetwork> {
+		final String jobId;
+		NetworkReference(String jobId, CyNetwork network, ReferenceQueue<CyNetwork> queue) {
+			super(network, queue);
+			this.jobId = jobId;
+		}
+	}
+}
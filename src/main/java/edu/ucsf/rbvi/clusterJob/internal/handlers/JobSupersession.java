@@ -0,0 +1,110 @@
+package edu.ucsf.rbvi.clusterJob.internal.handlers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.cytoscape.jobs.CyJob;
+
+/**
+ * Keep track of the latest submission for each network and target column,
+ * so that when the same network is resubmitted the older jobs don't
+ * overwrite the newer results.  All of the jobs from one submission (e.g.
+ * the shards of a sharded submit) share a submission token and never
+ * supersede each other.
+ *
+ * In CANCEL mode superseded jobs are cancelled on the server; in
+ * SKIP_APPLY mode they are left to finish but their results are ignored.
+ */
+public class JobSupersession {
+	public enum Mode {
+		CANCEL("cancel"),
+		SKIP_APPLY("skip"),
+		OFF("off");
+
+		String text;
+		Mode(String text) {
+			this.text = text;
+		}
+		public String toString() { return text; }
+
+		public static Mode fromString(String text) {
+			for (Mode mode: values()) {
+				if (mode.text.equalsIgnoreCase(text) || mode.name().equalsIgnoreCase(text))
+					return mode;
+			}
+			return CANCEL;
+		}
+	}
+
+	final ConcurrentMap<String, Submission> latest = new ConcurrentHashMap<>();
+	volatile Mode mode = Mode.fromString(System.getProperty("clusterJob.supersede"));
+
+	public Mode getMode() { return mode; }
+
+	public void setMode(Mode mode) { this.mode = mode; }
+
+	public static String getKey(Long networkSUID, String targetColumn) {
+		return networkSUID+"/"+targetColumn;
+	}
+
+	/**
+	 * Record that job was submitted for key as part of submission, and
+	 * return the jobs it supersedes (if any).
+	 */
+	public List<CyJob> submitted(String key, Object submission, CyJob job) {
+		if (mode == Mode.OFF)
+			return Collections.emptyList();
+		while (true) {
+			Submission current = latest.get(key);
+			if (current != null && current.token == submission) {
+				current.add(job);
+				return Collections.emptyList();
+			}
+			Submission next = new Submission(submission);
+			next.add(job);
+			if (current == null) {
+				if (latest.putIfAbsent(key, next) == null)
+					return Collections.emptyList();
+			} else if (latest.replace(key, current, next)) {
+				return current.getJobs();
+			}
+		}
+	}
+
+	/**
+	 * The job is done, so we can forget about it
+	 */
+	public void finished(String key, CyJob job) {
+		if (key == null)
+			return;
+		Submission current = latest.get(key);
+		if (current != null && current.remove(job))
+			latest.remove(key, current);
+	}
+
+	public int size() { return latest.size(); }
+
+	static class Submission {
+		final Object token;
+		final List<CyJob> jobs = new ArrayList<>();
+
+		Submission(Object token) {
+			this.token = token;
+		}
+
+		synchronized void add(CyJob job) { jobs.add(job); }
+
+		/**
+		 * Returns true if that was the last job
+		 */
+		synchronized boolean remove(CyJob job) {
+			jobs.remove(job);
+			return jobs.isEmpty();
+		}
+
+		synchronized List<CyJob> getJobs() { return new ArrayList<>(jobs); }
+	}
+}
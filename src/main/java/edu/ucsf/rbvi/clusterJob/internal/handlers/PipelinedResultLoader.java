@@ -0,0 +1,191 @@
+package edu.ucsf.rbvi.clusterJob.internal.handlers;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+
+import org.json.simple.JSONObject;
+
+import org.cytoscape.model.CyEdge;
+import org.cytoscape.model.CyIdentifiable;
+import org.cytoscape.model.CyNetwork;
+import org.cytoscape.model.CyNode;
+import org.cytoscape.work.TaskMonitor;
+
+import edu.ucsf.rbvi.clusterJob.internal.io.ClusterJobExecutionService;
+import edu.ucsf.rbvi.clusterJob.internal.io.JobLogger;
+import edu.ucsf.rbvi.clusterJob.internal.model.ClusterJob;
+import edu.ucsf.rbvi.clusterJob.internal.model.ClusterJobDataService;
+import edu.ucsf.rbvi.clusterJob.internal.model.JobMetrics;
+import edu.ucsf.rbvi.clusterJob.internal.model.NodeDictionary;
+import edu.ucsf.rbvi.clusterJob.internal.model.ResultStreamParser.Kind;
+import edu.ucsf.rbvi.clusterJob.internal.model.ResultStreamParser.ResultElement;
+
+/**
+ * Load a job's results as they download.  The execution service streams
+ * parsed nodes and edges into a bounded queue, and we resolve and write
+ * each one to the network as soon as it arrives, so the time to results
+ * is close to the longer of the download and the apply rather than their
+ * sum.  The bounded queue keeps the download from running too far ahead.
+ *
+ * For a paged fetch, each page ends with a PAGE element carrying that
+ * page's column blocks, which line up with just the nodes and edges of
+ * that page.
+ */
+public class PipelinedResultLoader {
+	public static final int QUEUE_SIZE = 4096;
+	static final int PROGRESS_INTERVAL = 10000;
+	// How many results to remap SUIDs for at once
+	static final int REMAP_BATCH = 1024;
+	static final JobLogger log = JobLogger.getLogger(PipelinedResultLoader.class);
+
+	final ClusterJobExecutionService executionService;
+	final ClusterJobDataService dataService;
+
+	public PipelinedResultLoader(ClusterJobExecutionService executionService, ClusterJobDataService dataService) {
+		this.executionService = executionService;
+		this.dataService = dataService;
+	}
+
+	/**
+	 * Fetch and apply the results for job to network.  Returns false without
+	 * doing anything if the results can't be streamed, in which case the
+	 * caller should fall back to fetching them in one go.
+	 */
+	public boolean load(ClusterJob job, CyNetwork network, TaskMonitor monitor) throws Exception {
+		BlockingQueue<ResultElement> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+		Future<JSONObject> download = executionService.streamResults(job, queue);
+		if (download == null)
+			return false;
+
+		Map<String, CyNode> nodeNameMap = dataService.getNodeNameMap(network);
+		long applyTime = 0L;
+		long count = 0L;
+		// Column blocks (if any) come at the end, so remember the order
+		List<CyNode> nodes = new ArrayList<>();
+		List<CyEdge> edges = new ArrayList<>();
+		NodeDictionary dictionary = null;
+		// Results from a restored session refer to the SUIDs they were saved
+		// with, so remap them the same way getNetworkData does, a batch at a time
+		Map<Long, CyIdentifiable> restoredIds = null;
+		List<ResultElement> batch = new ArrayList<>(REMAP_BATCH);
+		try {
+			boolean done = false;
+			while (!done) {
+				batch.clear();
+				batch.add(queue.take());
+				queue.drainTo(batch, REMAP_BATCH-1);
+				if (job.isCanceled())
+					throw new CancellationException("Job "+job.getJobId()+" was canceled");
+				restoredIds = dataService.getRestoredIds(job, network, getIds(batch));
+
+				for (ResultElement element: batch) {
+					if (element.kind == Kind.END) {
+						done = true;
+						break;
+					}
+					if (element.kind == Kind.ERROR)
+						throw new IOException("Unable to fetch results", element.error);
+
+					if (element.kind == Kind.DICTIONARY) {
+						dictionary = NodeDictionary.fromJSON(element.object);
+						if (dictionary != null)
+							restoredIds = dataService.getRestoredIds(job, network, getIds(dictionary));
+						continue;
+					}
+					if (element.kind == Kind.PAGE) {
+						applyTime += applyColumnBlocks(network, element.object, nodes, edges);
+						nodes.clear();
+						edges.clear();
+						continue;
+					}
+
+					long start = System.nanoTime();
+					if (element.kind == Kind.NODE)
+						nodes.add(dataService.applyNode(network, nodeNameMap, element.object, restoredIds));
+					else
+						edges.add(dataService.applyEdge(network, nodeNameMap, dictionary, element.object, restoredIds));
+					applyTime += System.nanoTime() - start;
+
+					count++;
+					if (monitor != null && count % PROGRESS_INTERVAL == 0)
+						monitor.setStatusMessage("Applied "+count+" results");
+				}
+			}
+		} catch (InterruptedException ie) {
+			// Stop the download too
+			download.cancel(true);
+			throw ie;
+		} catch (Exception e) {
+			download.cancel(true);
+			// Don't hang on to results nobody wants
+			queue.clear();
+			throw e;
+		}
+
+		// Anything else in the response (e.g. an error from the server)?
+		JSONObject rest = download.get();
+		if (rest != null && rest.containsKey("errorMessage"))
+			log.warn("fetch.serverError", "job", job.getJobId(), "error", rest.get("errorMessage"));
+		if (rest != null && rest.get("network") instanceof JSONObject)
+			applyTime += applyColumnBlocks(network, (JSONObject)rest.get("network"), nodes, edges);
+
+		JobMetrics metrics = job.getMetrics();
+		if (metrics != null)
+			metrics.record(JobMetrics.Stage.APPLY, applyTime);
+		log.debug("fetch.applied", "job", job.getJobId(), "count", count);
+		return true;
+	}
+
+	/**
+	 * The SUIDs a batch of nodes and edges refers to, including edge
+	 * endpoints that are sent in full
+	 */
+	private static List<Long> getIds(List<ResultElement> batch) {
+		List<Long> ids = new ArrayList<>(batch.size());
+		for (ResultElement element: batch) {
+			if (element.kind != Kind.NODE && element.kind != Kind.EDGE)
+				continue;
+			addId(ids, element.object);
+			if (element.kind == Kind.EDGE) {
+				addId(ids, element.object.get("source"));
+				addId(ids, element.object.get("target"));
+			}
+		}
+		return ids;
+	}
+
+	private static List<Long> getIds(NodeDictionary dictionary) {
+		List<Long> ids = new ArrayList<>(dictionary.size());
+		for (int i = 0; i < dictionary.size(); i++)
+			ids.add(dictionary.getId(i));
+		return ids;
+	}
+
+	private static void addId(List<Long> ids, Object obj) {
+		if (!(obj instanceof JSONObject))
+			return;
+		Object id = ((JSONObject)obj).get("id");
+		if (id instanceof Number)
+			ids.add(((Number)id).longValue());
+	}
+
+	/**
+	 * Apply any column blocks in netObject, returning how long it took
+	 */
+	private long applyColumnBlocks(CyNetwork network, JSONObject netObject, List<CyNode> nodes, List<CyEdge> edges) {
+		if (netObject == null)
+			return 0L;
+		long start = System.nanoTime();
+		dataService.applyColumnBlocks(network.getDefaultNodeTable(),
+		                              (Map<?, ?>)netObject.get(ClusterJobDataService.NODE_COLUMNS), nodes);
+		dataService.applyColumnBlocks(network.getDefaultEdgeTable(),
+		                              (Map<?, ?>)netObject.get(ClusterJobDataService.EDGE_COLUMNS), edges);
+		return System.nanoTime() - start;
+	}
+}
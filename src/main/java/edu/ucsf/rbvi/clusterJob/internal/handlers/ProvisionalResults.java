@@ -0,0 +1,231 @@
+package edu.ucsf.rbvi.clusterJob.internal.handlers;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.cytoscape.event.CyEventHelper;
+import org.cytoscape.model.CyNetwork;
+import org.cytoscape.model.CyNode;
+import org.cytoscape.model.CyTable;
+
+import edu.ucsf.rbvi.clusterJob.internal.io.JobLogger;
+import edu.ucsf.rbvi.clusterJob.internal.model.IntermediatePartition;
+import edu.ucsf.rbvi.clusterJob.internal.model.ShardGroup;
+
+/**
+ * Write the partitions a job reports while it's still running to a
+ * provisional column, so users can see how it's going (and cancel once
+ * it's good enough).  Updates are coalesced: each job has at most one
+ * partition waiting, a newer one replaces it, and a single background
+ * thread applies whatever is waiting, so a slow table never holds up
+ * polling and we never write a partition that's already out of date.
+ * Only the nodes whose cluster changed since the last level are written,
+ * and their row events go out together once the partition is done.
+ * Once a job is finished nothing more is written for it, and once its
+ * final results are in the provisional column is removed.
+ */
+public class ProvisionalResults {
+	public static final String PROVISIONAL_COLUMN = ShardGroup.CLUSTER_COLUMN+" (provisional)";
+	static final JobLogger log = JobLogger.getLogger(ProvisionalResults.class);
+	// How many finished jobs we remember, to turn away their late partitions
+	static final int MAX_FINISHED = 1024;
+
+	// The newest partition for each job that hasn't been applied yet
+	final ConcurrentMap<String, Pending> pending = new ConcurrentHashMap<>();
+	// What we've written for each job that's still going
+	final ConcurrentMap<String, Written> written = new ConcurrentHashMap<>();
+	// Held while writing, so a job can't finish part way through a partition
+	final Object lock = new Object();
+	// Jobs that are done, so nothing more is written for them
+	final Map<String, Boolean> finishedJobs = new LinkedHashMap<String, Boolean>() {
+		protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+			return size() > MAX_FINISHED;
+		}
+	};
+	volatile CyEventHelper eventHelper = null;
+	// Started again if we're used after a shutdown
+	ExecutorService writer = newWriter();
+
+	/**
+	 * Used to send the row events for a partition all at once
+	 */
+	public void setEventHelper(CyEventHelper eventHelper) {
+		this.eventHelper = eventHelper;
+	}
+
+	/**
+	 * Queue partition to be written to network, unless we've already
+	 * written one at least as new
+	 */
+	public void offer(String jobId, CyNetwork network, IntermediatePartition partition) {
+		if (jobId == null || network == null || partition == null)
+			return;
+		Written last = written.get(jobId);
+		if (last != null && last.level >= partition.getLevel())
+			return;
+		final Pending next = new Pending(jobId, network, partition);
+		while (true) {
+			Pending previous = pending.putIfAbsent(jobId, next);
+			if (previous == null) {
+				writer().execute(new Runnable() {
+					public void run() {
+						apply(next.jobId);
+					}
+				});
+				return;
+			}
+			// We got them out of order, so keep the newer one
+			if (previous.partition.getLevel() >= partition.getLevel())
+				return;
+			// Otherwise the writer hasn't got to it yet, so ours replaces it
+			if (pending.replace(jobId, previous, next))
+				return;
+		}
+	}
+
+	/**
+	 * The job is done, so forget anything we haven't written for it yet,
+	 * and don't write anything that comes in for it later
+	 */
+	public void finished(String jobId) {
+		if (jobId == null)
+			return;
+		synchronized (lock) {
+			finishedJobs.put(jobId, Boolean.TRUE);
+			pending.remove(jobId);
+			written.remove(jobId);
+		}
+	}
+
+	/**
+	 * A job's final results are in network, so the provisional clusters
+	 * are out of date.  Remove the column, unless another job is still
+	 * writing to it.
+	 */
+	public void clear(CyNetwork network) {
+		if (network == null)
+			return;
+		synchronized (lock) {
+			for (Written other: written.values()) {
+				if (other.network == network)
+					return;
+			}
+			CyTable table = network.getDefaultNodeTable();
+			if (table.getColumn(PROVISIONAL_COLUMN) != null)
+				table.deleteColumn(PROVISIONAL_COLUMN);
+		}
+	}
+
+	/**
+	 * Stop our thread, dropping anything not yet written
+	 */
+	public synchronized void shutdown() {
+		writer.shutdownNow();
+		pending.clear();
+		written.clear();
+	}
+
+	synchronized ExecutorService writer() {
+		if (writer.isShutdown())
+			writer = newWriter();
+		return writer;
+	}
+
+	private static ExecutorService newWriter() {
+		return Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ClusterJob provisional results");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	private void apply(String jobId) {
+		Pending next = pending.remove(jobId);
+		if (next == null)
+			return;
+		synchronized (lock) {
+			if (finishedJobs.containsKey(jobId))
+				return;
+			Written last = written.get(jobId);
+			if (last != null && last.level >= next.partition.getLevel())
+				return;
+			try {
+				if (last == null) {
+					last = new Written(next.network);
+					written.put(jobId, last);
+				}
+				int changed = write(next.network, next.partition, last.clusters);
+				last.level = next.partition.getLevel();
+				log.debug("provisional.applied", "job", jobId, "level", next.partition.getLevel(),
+				          "nodes", next.partition.size(), "changed", changed);
+			} catch (RuntimeException e) {
+				log.warn("provisional.failed", "job", jobId, "error", e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Write the nodes whose cluster isn't what we last wrote for them, and
+	 * return how many there were
+	 */
+	private int write(CyNetwork network, IntermediatePartition partition, Map<Long, Integer> clusters) {
+		CyTable table = network.getDefaultNodeTable();
+		if (table.getColumn(PROVISIONAL_COLUMN) == null)
+			table.createColumn(PROVISIONAL_COLUMN, Integer.class, false);
+		int changed = 0;
+		for (int i = 0; i < partition.size(); i++) {
+			long suid = partition.getId(i);
+			int cluster = partition.getCluster(i);
+			Integer value = cluster < 0 ? null : Integer.valueOf(cluster);
+			if (clusters.containsKey(suid) && equal(clusters.get(suid), value))
+				continue;
+			CyNode node = network.getNode(suid);
+			if (node == null)
+				continue;
+			network.getRow(node).set(PROVISIONAL_COLUMN, value);
+			clusters.put(suid, value);
+			changed++;
+		}
+		// Hand the row events on as one batch, rather than leaving them to trickle out
+		CyEventHelper eventHelper = this.eventHelper;
+		if (eventHelper != null && changed > 0)
+			eventHelper.flushPayloadEvents();
+		return changed;
+	}
+
+	private static boolean equal(Integer a, Integer b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	static class Written {
+		final CyNetwork network;
+		// The cluster we last wrote for each node
+		final Map<Long, Integer> clusters = new HashMap<>();
+		// The level we last wrote
+		volatile int level = 0;
+
+		Written(CyNetwork network) {
+			this.network = network;
+		}
+	}
+
+	static class Pending {
+		final String jobId;
+		final CyNetwork network;
+		final IntermediatePartition partition;
+
+		Pending(String jobId, CyNetwork network, IntermediatePartition partition) {
+			this.jobId = jobId;
+			this.network = network;
+			this.partition = partition;
+		}
+	}
+}
@@ -0,0 +1,225 @@
+package edu.ucsf.rbvi.clusterJob.internal.handlers;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.cytoscape.jobs.CyJob;
+import org.cytoscape.jobs.CyJobStatus;
+import org.cytoscape.jobs.CyJobStatus.Status;
+
+import edu.ucsf.rbvi.clusterJob.internal.io.JobLogger;
+import edu.ucsf.rbvi.clusterJob.internal.model.ClusterJob;
+
+/**
+ * Pass job status changes on to listeners without flooding them.  The job
+ * manager tells us the status of every job after every poll, but we only
+ * pass on real changes (of status, message or whole percent of progress,
+ * ignoring the percent the message itself ends with), and changes that
+ * arrive within windowMillis of each other are delivered together, with
+ * only the latest for each job.  Delivery happens on our own thread, so a
+ * slow listener never holds up polling.  The job's own monitor hears about
+ * each change first, then the listeners.
+ */
+public class StatusDispatcher {
+	static final JobLogger log = JobLogger.getLogger(StatusDispatcher.class);
+	static final String WINDOW_PROPERTY = "clusterJob.notifyWindow";
+	static final long DEFAULT_WINDOW_MILLIS = 250;
+
+	public interface Listener {
+		void jobStatusChanged(CyJob job, CyJobStatus status);
+	}
+
+	final List<Listener> listeners = new CopyOnWriteArrayList<>();
+	// The last status we passed on for each job that's still going
+	final ConcurrentMap<String, Seen> lastSeen = new ConcurrentHashMap<>();
+	// Changes waiting for the next delivery, in the order they happened
+	final Map<CyJob, Change> pending = new LinkedHashMap<>();
+	final AtomicLong received = new AtomicLong();
+	final AtomicLong delivered = new AtomicLong();
+	// Guarded by pending, and started again if we're used after a shutdown
+	ScheduledExecutorService deliverer = newDeliverer();
+	volatile long windowMillis = Long.getLong(WINDOW_PROPERTY, DEFAULT_WINDOW_MILLIS);
+	boolean scheduled = false;
+
+	public void addListener(Listener listener) { listeners.add(listener); }
+
+	public void removeListener(Listener listener) { listeners.remove(listener); }
+
+	public void setWindow(long millis) { windowMillis = millis; }
+
+	/**
+	 * A poll came back with status.  Returns true if it was a change.
+	 */
+	public boolean statusChanged(CyJob job, CyJobStatus status) {
+		return statusChanged(job, status, null);
+	}
+
+	/**
+	 * A poll came back with status.  If anything changed, monitor (which may
+	 * be null) and then the listeners are told on our thread.  Returns true
+	 * if it was a change.
+	 */
+	public boolean statusChanged(CyJob job, CyJobStatus status, Listener monitor) {
+		received.incrementAndGet();
+		String jobId = job.getJobId();
+		Status current = status.getStatus();
+		if (jobId != null) {
+			Seen seen = new Seen(job, status);
+			Seen previous = lastSeen.put(jobId, seen);
+			if (seen.equals(previous))
+				return false;
+			// Nothing follows these, so we don't need to remember them
+			if (isTerminal(current))
+				lastSeen.remove(jobId);
+		}
+
+		synchronized (pending) {
+			// Put it at the end, so deliveries stay in order
+			pending.remove(job);
+			pending.put(job, new Change(status, monitor));
+			if (!scheduled) {
+				scheduled = true;
+				if (deliverer.isShutdown())
+					deliverer = newDeliverer();
+				deliverer.schedule(new Runnable() {
+					public void run() {
+						deliver();
+					}
+				}, windowMillis, TimeUnit.MILLISECONDS);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Stop remembering what we last passed on for a job that's gone (canceled
+	 * or removed) without a final status
+	 */
+	public void forget(String jobId) {
+		if (jobId != null)
+			lastSeen.remove(jobId);
+	}
+
+	/**
+	 * Polls we were told about, and how many notifications we actually sent
+	 */
+	public long getReceivedCount() { return received.get(); }
+
+	public long getDeliveredCount() { return delivered.get(); }
+
+	/**
+	 * Stop our thread, dropping anything not yet delivered
+	 */
+	public void shutdown() {
+		synchronized (pending) {
+			deliverer.shutdownNow();
+			pending.clear();
+			scheduled = false;
+		}
+		lastSeen.clear();
+	}
+
+	private static ScheduledExecutorService newDeliverer() {
+		return Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ClusterJob status notifications");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	private void deliver() {
+		List<Map.Entry<CyJob, Change>> batch;
+		synchronized (pending) {
+			batch = new ArrayList<>(pending.entrySet());
+			pending.clear();
+			scheduled = false;
+		}
+		for (Map.Entry<CyJob, Change> entry: batch) {
+			Change change = entry.getValue();
+			if (change.monitor != null)
+				notify(change.monitor, entry.getKey(), change.status);
+			for (Listener listener: listeners)
+				notify(listener, entry.getKey(), change.status);
+			delivered.incrementAndGet();
+		}
+	}
+
+	private static void notify(Listener listener, CyJob job, CyJobStatus status) {
+		try {
+			listener.jobStatusChanged(job, status);
+		} catch (RuntimeException e) {
+			log.warn("notify.failed", "job", job.getJobId(), "error", e.getMessage());
+		}
+	}
+
+	static class Change {
+		final CyJobStatus status;
+		final Listener monitor;
+
+		Change(CyJobStatus status, Listener monitor) {
+			this.status = status;
+			this.monitor = monitor;
+		}
+	}
+
+	/**
+	 * What a status looked like to the user
+	 */
+	static class Seen {
+		// The "(NN%)" that getStatus adds to a running job's message
+		static final Pattern PERCENT = Pattern.compile("\\s*\\(\\d+%\\)$");
+		final Status status;
+		final String message;
+		// Whole percent, or -1 if the service hasn't said
+		final long percent;
+
+		Seen(CyJob job, CyJobStatus status) {
+			this.status = status.getStatus();
+			String message = status.getMessage();
+			this.message = message == null ? null : PERCENT.matcher(message).replaceFirst("");
+			double progress = job instanceof ClusterJob ? ((ClusterJob)job).getProgress() : -1.0;
+			this.percent = progress < 0.0 ? -1 : Math.round(progress*100.0);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Seen))
+				return false;
+			Seen other = (Seen)o;
+			return status == other.status && percent == other.percent &&
+			       (message == null ? other.message == null : message.equals(other.message));
+		}
+
+		@Override
+		public int hashCode() {
+			return status.hashCode()*31 + (message == null ? 0 : message.hashCode());
+		}
+	}
+
+	static boolean isTerminal(Status status) {
+		switch (status) {
+			case CANCELED:
+			case ERROR:
+			case FAILED:
+			case FINISHED:
+			case PURGED:
+			case TERMINATED:
+				return true;
+			default:
+				return false;
+		}
+	}
+}
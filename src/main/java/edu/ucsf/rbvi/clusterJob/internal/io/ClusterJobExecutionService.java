@@ -1,17 +1,32 @@
 package edu.ucsf.rbvi.clusterJob.internal.io;
 
+import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import org.apache.log4j.Logger;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
+import org.cytoscape.application.CyApplicationConfiguration;
 import org.cytoscape.application.CyUserLog;
 import org.cytoscape.jobs.CyJob;
 import org.cytoscape.jobs.CyJobData;
@@ -21,12 +36,19 @@ import org.cytoscape.jobs.CyJobStatus.Status;
 import org.cytoscape.jobs.CyJobExecutionService;
 import org.cytoscape.jobs.CyJobMonitor;
 import org.cytoscape.jobs.CyJobManager;
+import org.cytoscape.model.CyNetwork;
 import org.cytoscape.service.util.CyServiceRegistrar;
 import org.cytoscape.session.CySession;
 import org.cytoscape.work.TaskMonitor;
 
 import edu.ucsf.rbvi.clusterJob.internal.model.ClusterJob;
 import edu.ucsf.rbvi.clusterJob.internal.model.ClusterJobDataService;
+import edu.ucsf.rbvi.clusterJob.internal.model.ClusterJobMetrics;
+import edu.ucsf.rbvi.clusterJob.internal.model.IntermediatePartition;
+import edu.ucsf.rbvi.clusterJob.internal.model.JobMetrics;
+import edu.ucsf.rbvi.clusterJob.internal.model.JobMetrics.Stage;
+import edu.ucsf.rbvi.clusterJob.internal.model.ResultStreamParser;
+import edu.ucsf.rbvi.clusterJob.internal.model.ResultStreamParser.ResultElement;
 import edu.ucsf.rbvi.clusterJob.internal.handlers.ClusterJobHandler;
 
 /**
@@ -62,15 +84,58 @@ import edu.ucsf.rbvi.clusterJob.internal.handlers.ClusterJobHandler;
 
 public class ClusterJobExecutionService implements CyJobExecutionService {
 	static final Logger logger = Logger.getLogger(CyUserLog.NAME);
+	static final JobLogger log = JobLogger.getLogger(ClusterJobExecutionService.class);
 	static final String COMMAND = "command";
 	static final String ERROR = "errorMessage";
 	static final String JOBID = "job_id";
 	static final String STATUS = "jobStatus";
 	static final String STATUS_MESSAGE = "message";
 	static final String SUBMIT = "submit";
+	static final String ALGORITHM = "algorithm";
+	static final String DEFAULT_ALGORITHM = "leiden";
+	// Where the configuration goes in an uploaded file
+	static final String PARAMETERS = "parameters";
+	// Configuration key: the node column to take the starting partition from
+	public static final String WARM_START = "warmStart";
+	static final String SERVICE_URL_PROPERTY = "clusterJob.serviceURL";
+	static final String BALANCE_PROPERTY = "clusterJob.balance";
+	static final long HEALTH_CHECK_MILLIS = 10000;
+	static final String IO_MODE_PROPERTY = "clusterJob.ioMode";
+	static final String JOURNAL_PROPERTY = "clusterJob.journal";
+	static final String JOURNAL_DIR_PROPERTY = "clusterJob.journalDir";
+	static final String STATUS_TTL_PROPERTY = "clusterJob.statusTTL";
+	static final long DEFAULT_STATUS_TTL_MILLIS = 500;
+	static final String PAGE_SIZE_PROPERTY = "clusterJob.pageSize";
+	static final int DEFAULT_PAGE_SIZE = 100000;
+	static final int MAX_PAGE_ATTEMPTS = 3;
+	static final long PAGE_RETRY_MILLIS = 500;
+	static final String CURSOR = "cursor";
+	static final String LIMIT = "limit";
+	static final String NEXT_CURSOR = "nextCursor";
+	static final String PROGRESS = "progress";
+	// Sent with a check: the partition level we already have
+	static final String PARTITION_LEVEL = "partitionLevel";
 	final ClusterJobDataService dataService;
 	final CyJobManager cyJobManager; //responsible for managing all the running ClusterJobs: polls the changes in the Status, calls some methods in this class
 	final CyServiceRegistrar cyServiceRegistrar;
+	final ClusterJobMetrics metrics;
+	// If set, we talk to this service using the command protocol described above
+	volatile String serviceURL = null;
+	// The replicas of that service we spread our jobs over
+	volatile EndpointPool endpoints = null;
+	// Where executeJobAsync and result downloads run their remote calls
+	volatile RemoteCallExecutor remoteExecutor;
+	// Our on-disk record of outstanding jobs (null if we couldn't open one)
+	volatile JobJournal journal;
+	// Jobs we recovered from the journal at startup
+	final ConcurrentMap<String, CyJob> recoveredJobs = new ConcurrentHashMap<>();
+	// Simultaneous checks or fetches of the same job share one request
+	final SingleFlight<String, JSONObject> inFlight = new SingleFlight<>();
+	// Recent status responses, so back to back checks don't go to the server
+	final ConcurrentMap<String, CachedStatus> statusCache = new ConcurrentHashMap<>();
+	volatile long statusTTLMillis = Long.getLong(STATUS_TTL_PROPERTY, DEFAULT_STATUS_TTL_MILLIS);
+	// How many nodes to ask for per fetch (0 to fetch everything at once)
+	volatile int pageSize = Integer.getInteger(PAGE_SIZE_PROPERTY, DEFAULT_PAGE_SIZE);
 
 	public enum Command {
 		CANCEL("cancel"),
@@ -90,6 +155,446 @@ public class ClusterJobExecutionService implements CyJobExecutionService {
 		cyJobManager = manager;
 		cyServiceRegistrar = registrar;
 		dataService = new ClusterJobDataService(cyServiceRegistrar);
+		metrics = new ClusterJobMetrics();
+		setServiceURL(System.getProperty(SERVICE_URL_PROPERTY));
+		remoteExecutor = RemoteCallExecutor.create(RemoteCallExecutor.Mode.fromString(System.getProperty(IO_MODE_PROPERTY)),
+		                                           RemoteCallExecutor.DEFAULT_POOL_SIZE);
+		if (!"false".equalsIgnoreCase(System.getProperty(JOURNAL_PROPERTY)))
+			journal = openJournal(registrar);
+	}
+
+	/**
+	 * The journal goes in clusterJob.journalDir if that's set, otherwise
+	 * in our app configuration directory.
+	 */
+	private static JobJournal openJournal(CyServiceRegistrar registrar) {
+		File directory = null;
+		if (System.getProperty(JOURNAL_DIR_PROPERTY) != null) {
+			directory = new File(System.getProperty(JOURNAL_DIR_PROPERTY));
+		} else {
+			try {
+				CyApplicationConfiguration config = registrar.getService(CyApplicationConfiguration.class);
+				directory = new File(config.getAppConfigurationDirectoryLocation(ClusterJobExecutionService.class), "jobs");
+			} catch (RuntimeException e) {
+				directory = new File(System.getProperty("user.home"), ".clusterJob");
+			}
+		}
+		try {
+			return new JobJournal(directory);
+		} catch (IOException ioe) {
+			log.warn("journal.openFailed", "directory", directory, "error", ioe.getMessage());
+			return null;
+		}
+	}
+
+	public ClusterJobMetrics getMetrics() { return metrics; }
+
+	/**
+	 * Point this execution service at a specific cluster service (e.g. a local
+	 * stand-in for load testing).  This may be a comma separated list of
+	 * replicas, in which case new jobs are balanced across them (see
+	 * {@link EndpointPool}).  Passing null reverts to the default remote
+	 * server.  Calls only go to the mock server when no URL is set.
+	 */
+	public void setServiceURL(String url) {
+		EndpointPool old = endpoints;
+		EndpointPool pool = EndpointPool.fromString(url, EndpointPool.Strategy.fromString(System.getProperty(BALANCE_PROPERTY)));
+		if (pool != null)
+			pool.startHealthChecks(HEALTH_CHECK_MILLIS, logger);
+		endpoints = pool;
+		serviceURL = pool == null ? null : url;
+		// The default remote server only reads the original payload format
+		dataService.setExtendedFormat(pool != null);
+		HttpUtils.setDebug(pool == null);
+		if (old != null)
+			old.shutdown();
+	}
+
+	public String getServiceURL() { return serviceURL; }
+
+	public EndpointPool getEndpointPool() { return endpoints; }
+
+	/**
+	 * Choose where asynchronous submits and result downloads run: on the
+	 * calling thread (DIRECT), on virtual threads (VIRTUAL), or on a small
+	 * dedicated I/O pool (POOL).  VIRTUAL falls back to POOL on JVMs
+	 * without virtual threads.  Status checks come from the job manager's
+	 * own polling thread, so they aren't affected.
+	 */
+	public void setIOMode(RemoteCallExecutor.Mode mode, int poolSize) {
+		RemoteCallExecutor old = remoteExecutor;
+		remoteExecutor = RemoteCallExecutor.create(mode, poolSize);
+		old.shutdown();
+	}
+
+	public RemoteCallExecutor getRemoteExecutor() { return remoteExecutor; }
+
+	/**
+	 * How long a status response is reused for.  0 turns the cache off
+	 * (simultaneous checks still share one request).
+	 */
+	public void setStatusTTL(long millis) {
+		statusTTLMillis = millis;
+		if (millis <= 0)
+			statusCache.clear();
+	}
+
+	public long getStatusTTL() { return statusTTLMillis; }
+
+	/**
+	 * Fetch streamed results pageSize nodes at a time, so a failure only
+	 * costs us one page.  0 fetches everything in one request.
+	 */
+	public void setPageSize(int pageSize) { this.pageSize = pageSize; }
+
+	public int getPageSize() { return pageSize; }
+
+	/**
+	 * How many checks and fetches were answered by another caller's request
+	 */
+	public long getSharedRequestCount() { return inFlight.getSharedCount(); }
+
+	public JobJournal getJournal() { return journal; }
+
+	/**
+	 * Use a different journal (or none at all)
+	 */
+	public void setJournal(JobJournal journal) {
+		JobJournal old = this.journal;
+		this.journal = journal;
+		if (old != null && old != journal)
+			old.close();
+	}
+
+	public void shutdown() {
+		remoteExecutor.shutdown();
+		if (endpoints != null)
+			endpoints.shutdown();
+		if (journal != null)
+			journal.close();
+	}
+
+	/**
+	 * Recreate the jobs that were still outstanding when we last stopped,
+	 * in one pass over the journal.  Jobs whose results were already
+	 * fetched will be reapplied from the saved copy.
+	 */
+	public List<CyJob> recoverJobs() {
+		List<CyJob> jobs = new ArrayList<>();
+		JobJournal journal = this.journal;
+		if (journal == null)
+			return jobs;
+		for (JobJournal.Entry entry: journal.getOutstanding()) {
+			if (entry.name == null)
+				continue;
+			CyJob job = getCyJob(entry.name, entry.path, entry.jobId);
+			if (entry.pollInterval > 0)
+				job.setPollInterval(entry.pollInterval);
+			recoveredJobs.put(entry.jobId, job);
+			jobs.add(job);
+		}
+		log.info("journal.recovered", "jobs", jobs.size(), "directory", journal.getDirectory());
+		return jobs;
+	}
+
+	/**
+	 * Is job one we recovered from the journal that hasn't been restored
+	 * from a session or finished since?
+	 */
+	public boolean isRecovered(CyJob job) {
+		return recoveredJobs.get(job.getJobId()) == job;
+	}
+
+	/**
+	 * The network a recovered job was submitted against, if it's in session.
+	 * The journal has the network's SUID from before the restart, so only
+	 * the session can tell us which network that is now.
+	 */
+	public CyNetwork getRecoveredNetwork(CyJob job, CySession session) {
+		JobJournal journal = this.journal;
+		if (journal == null || session == null || !isRecovered(job))
+			return null;
+		JobJournal.Entry entry = journal.getEntry(job.getJobId());
+		if (entry == null || entry.networkSUID == null)
+			return null;
+		return session.getObject(entry.networkSUID, CyNetwork.class);
+	}
+
+	/**
+	 * A job's results have been applied, so we can forget about it
+	 */
+	public void resultsApplied(CyJob job) {
+		recoveredJobs.remove(job.getJobId());
+		if (journal != null)
+			journal.applied(job.getJobId());
+	}
+
+	/**
+	 * Start streaming a job's results into queue.  Each node and edge is put
+	 * on the queue as soon as it has been parsed, followed by END (or ERROR
+	 * if something went wrong).  The future's value is whatever was left of
+	 * the response after the nodes and edges were taken out.
+	 *
+	 * The download always runs on a different thread from the caller, since
+	 * the caller is expected to drain the queue.  Returns null if this job's
+	 * service can't stream its results.
+	 *
+	 * Unless we have a saved copy, the results are fetched a page at a time
+	 * (see {@link #setPageSize}).  Each page is passed on, followed by a
+	 * PAGE element, once all of it has arrived, so a page that fails can be
+	 * fetched again without anything being applied twice.  Servers that
+	 * don't page just send everything as the one and only page.  Each page
+	 * is saved in the journal once it has arrived, and the saved pages are
+	 * replayed the same way.  The future's value is null for paged results.
+	 */
+	public Future<JSONObject> streamResults(final ClusterJob job, final BlockingQueue<ResultElement> queue) {
+		final JobJournal journal = this.journal;
+		// If we already have the results, read them from disk
+		final boolean local = journal != null && journal.getResults(job.getJobId()) != null;
+		if (!local && (serviceURL == null || job.getBasePath() == null))
+			return null;
+
+		final Map<String, String> argMap = new HashMap<>();
+		argMap.put(COMMAND, Command.FETCH.toString());
+		argMap.put(JOBID, job.getJobId());
+
+		if (local && journal.isPaged(job.getJobId())) {
+			return startDownload(job, new Callable<JSONObject>() {
+				public JSONObject call() throws Exception {
+					return readSavedPages(job, journal, queue);
+				}
+			});
+		}
+
+		final int pageSize = this.pageSize;
+		if (!local && pageSize > 0) {
+			return startDownload(job, new Callable<JSONObject>() {
+				public JSONObject call() throws Exception {
+					return fetchPages(job, argMap, pageSize, queue, journal);
+				}
+			});
+		}
+
+		Callable<JSONObject> download = new Callable<JSONObject>() {
+			public JSONObject call() throws Exception {
+				final JobMetrics jobMetrics = job.getMetrics();
+				final ResultStreamParser handler = new ResultStreamParser(queue);
+				long start = System.nanoTime();
+				HttpUtils.ReaderHandler<Object> parse = new HttpUtils.ReaderHandler<Object>() {
+					public Object read(Reader reader) throws Exception {
+						// Keep a copy of what we download in case we need it again
+						JobJournal.ResultsTee tee = local || journal == null ? null : journal.teeResults(job.getJobId(), reader);
+						CountingReader counter = new CountingReader(tee == null ? reader : tee);
+						try {
+							new JSONParser().parse(counter, handler);
+						} catch (Exception e) {
+							if (tee != null) tee.discard();
+							throw e;
+						}
+						if (tee != null) tee.commit();
+						if (jobMetrics != null)
+							jobMetrics.record(Stage.FETCH_BYTES, counter.getCount());
+						return handler.getRoot();
+					}
+				};
+				try {
+					Object root;
+					if (local) {
+						log.debug("fetch.local", "job", job.getJobId());
+						try (Reader reader = journal.openResults(job.getJobId())) {
+							root = parse.read(reader);
+						}
+					} else {
+						root = HttpUtils.postForReader(job.getBasePath(), argMap, logger, parse, job.getRequestHandle());
+					}
+					queue.put(ResultElement.END);
+					log.debug("fetch.streamed", "job", job.getJobId(), "nodes", handler.getNodeCount(),
+					          "edges", handler.getEdgeCount());
+					return root instanceof JSONObject ? (JSONObject)root : null;
+				} catch (Exception e) {
+					log.error(e, "fetch.streamFailed", "job", job.getJobId(), "error", e.getMessage());
+					queue.put(ResultElement.error(e));
+					throw e;
+				} finally {
+					if (jobMetrics != null)
+						jobMetrics.record(Stage.FETCH, System.nanoTime()-start);
+				}
+			}
+		};
+
+		return startDownload(job, download);
+	}
+
+	/**
+	 * Run a download on a different thread from the caller
+	 */
+	private Future<JSONObject> startDownload(ClusterJob job, Callable<JSONObject> download) {
+		if (remoteExecutor.getMode() == RemoteCallExecutor.Mode.DIRECT) {
+			FutureTask<JSONObject> task = new FutureTask<>(download);
+			Thread thread = new Thread(task, "ClusterJob fetch "+job.getJobId());
+			thread.setDaemon(true);
+			thread.start();
+			return task;
+		}
+		return remoteExecutor.submit(download);
+	}
+
+	private JSONObject fetchPages(ClusterJob job, Map<String, String> argMap, int pageSize,
+	                              BlockingQueue<ResultElement> queue, JobJournal journal) throws Exception {
+		JobMetrics jobMetrics = job.getMetrics();
+		long start = System.nanoTime();
+		int pages = 0;
+		// Keep a copy of each page in case we need the results again
+		JobJournal.PagedResults saved = journal == null ? null : journal.savePages(job.getJobId());
+		try {
+			String cursor = null;
+			do {
+				Map<String, String> pageArgs = new HashMap<>(argMap);
+				pageArgs.put(LIMIT, Integer.toString(pageSize));
+				if (cursor != null)
+					pageArgs.put(CURSOR, cursor);
+				ResultPage page = fetchPage(job, pageArgs, saved != null);
+				if (saved != null)
+					saved.addPage(page.text);
+				for (ResultElement element: page.elements)
+					queue.put(element);
+				queue.put(ResultElement.page(page.network));
+				cursor = page.nextCursor;
+				pages++;
+			} while (cursor != null);
+			if (saved != null)
+				saved.commit();
+			queue.put(ResultElement.END);
+			log.debug("fetch.paged", "job", job.getJobId(), "pages", pages);
+			return null;
+		} catch (Exception e) {
+			if (saved != null)
+				saved.discard();
+			log.error(e, "fetch.streamFailed", "job", job.getJobId(), "page", pages, "error", e.getMessage());
+			queue.put(ResultElement.error(e));
+			throw e;
+		} finally {
+			if (jobMetrics != null) {
+				jobMetrics.end(Stage.FETCH_BYTES);
+				jobMetrics.record(Stage.FETCH, System.nanoTime()-start);
+			}
+		}
+	}
+
+	/**
+	 * Replay results that were saved a page per line, just as they were
+	 * fetched
+	 */
+	private JSONObject readSavedPages(ClusterJob job, JobJournal journal,
+	                                  BlockingQueue<ResultElement> queue) throws Exception {
+		log.debug("fetch.local", "job", job.getJobId(), "paged", true);
+		int pages = 0;
+		try (Reader results = journal.openResults(job.getJobId())) {
+			if (results == null)
+				throw new IOException("Saved results for "+job.getJobId()+" are gone");
+			BufferedReader reader = new BufferedReader(results);
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.trim().isEmpty())
+					continue;
+				ResultPage page = parsePage(new StringReader(line));
+				for (ResultElement element: page.elements)
+					queue.put(element);
+				queue.put(ResultElement.page(page.network));
+				pages++;
+			}
+			queue.put(ResultElement.END);
+			return null;
+		} catch (Exception e) {
+			log.error(e, "fetch.streamFailed", "job", job.getJobId(), "page", pages, "error", e.getMessage());
+			queue.put(ResultElement.error(e));
+			throw e;
+		}
+	}
+
+	/**
+	 * Fetch one page, trying again a couple of times if it fails
+	 */
+	private ResultPage fetchPage(ClusterJob job, Map<String, String> pageArgs, boolean keepText) throws Exception {
+		for (int attempt = 1; ; attempt++) {
+			try {
+				return readPage(job, pageArgs, keepText);
+			} catch (Exception e) {
+				if (job.isCanceled())
+					throw new CancellationException("Job "+job.getJobId()+" was canceled");
+				if (attempt >= MAX_PAGE_ATTEMPTS)
+					throw e;
+				log.warn("fetch.pageRetry", "job", job.getJobId(), "cursor", pageArgs.get(CURSOR),
+				         "attempt", attempt, "error", e.getMessage());
+				Thread.sleep(PAGE_RETRY_MILLIS*attempt);
+			}
+		}
+	}
+
+	private ResultPage readPage(final ClusterJob job, Map<String, String> pageArgs,
+	                            boolean keepText) throws Exception {
+		final JobMetrics jobMetrics = job.getMetrics();
+		// A page at most, so this can't get too big
+		final StringBuilder text = keepText ? new StringBuilder() : null;
+		ResultPage page = HttpUtils.postForReader(job.getBasePath(), pageArgs, logger, new HttpUtils.ReaderHandler<ResultPage>() {
+			public ResultPage read(Reader reader) throws Exception {
+				CountingReader counter = new CountingReader(reader, text);
+				try {
+					return parsePage(counter);
+				} finally {
+					if (jobMetrics != null)
+						jobMetrics.add(Stage.FETCH_BYTES, counter.getCount());
+				}
+			}
+		}, job.getRequestHandle());
+		if (page == null)
+			throw new IOException("Empty response");
+		page.text = text;
+		return page;
+	}
+
+	private static ResultPage parsePage(Reader reader) throws Exception {
+		final LinkedBlockingQueue<ResultElement> buffer = new LinkedBlockingQueue<>();
+		ResultStreamParser handler = new ResultStreamParser(buffer);
+		new JSONParser().parse(reader, handler);
+		Object root = handler.getRoot();
+		if (!(root instanceof JSONObject))
+			throw new IOException("Empty response");
+		JSONObject page = (JSONObject)root;
+		if (page.containsKey(ERROR))
+			throw new IOException(page.get(ERROR).toString());
+		Object network = page.get("network");
+		Object nextCursor = page.get(NEXT_CURSOR);
+		return new ResultPage(new ArrayList<ResultElement>(buffer),
+		                      network instanceof JSONObject ? (JSONObject)network : null,
+		                      nextCursor == null ? null : nextCursor.toString());
+	}
+
+	static class ResultPage {
+		final List<ResultElement> elements;
+		final JSONObject network;
+		final String nextCursor;
+		// What the page looked like on the wire, if we're saving it
+		CharSequence text = null;
+
+		ResultPage(List<ResultElement> elements, JSONObject network, String nextCursor) {
+			this.elements = elements;
+			this.network = network;
+			this.nextCursor = nextCursor;
+		}
+	}
+
+	/**
+	 * Submit a job without blocking the calling thread on the upload
+	 */
+	public Future<CyJobStatus> executeJobAsync(final CyJob job, final String basePath,
+	                                           final Map<String, Object> configuration,
+	                                           final CyJobData inputData) {
+		return remoteExecutor.submit(new Callable<CyJobStatus>() {
+			public CyJobStatus call() {
+				return executeJob(job, basePath, configuration, inputData);
+			}
+		});
 	}
 
 	@Override
@@ -98,7 +603,9 @@ public class ClusterJobExecutionService implements CyJobExecutionService {
 	//create a CLusterjob
 	@Override
 	public CyJob createCyJob(String name) {
-		return new ClusterJob(name, null, this, dataService, null, null);
+		ClusterJob job = new ClusterJob(name, null, this, dataService, null, null);
+		job.setMetrics(metrics.createJobMetrics());
+		return job;
 	}
 
 	@Override
@@ -107,10 +614,30 @@ public class ClusterJobExecutionService implements CyJobExecutionService {
 	//checks whether the CyJob is a ClusterJob and cancels it, returns the status of the job
 	@Override 
 	public CyJobStatus cancelJob(CyJob job) {
-		System.out.println("Canceling the job!");
+		log.debug("cancel", "job", job.getJobId());
 		if (job instanceof ClusterJob) {
-			JSONObject obj = handleCommand((ClusterJob)job, Command.CANCEL, null);
-			return getStatus(obj, null);
+			ClusterJob clJob = (ClusterJob)job;
+			// Stop anything we're still uploading or downloading for this job
+			clJob.cancelRequests();
+			if (job.getJobId() != null)
+				statusCache.remove(job.getJobId());
+			ClusterJobHandler.getNotifications().forget(job.getJobId());
+			if (clJob.getMetrics() != null)
+				clJob.getMetrics().statusChanged(Status.CANCELED);
+			if (job.getJobId() == null) {
+				// Still uploading: executeJob will cancel it if the server got it anyway
+				return new CyJobStatus(Status.CANCELED, "Job canceled before it was submitted");
+			}
+
+			// Now tell the server to stop working on it
+			CyJobStatus status = getStatus(handleCommand(clJob, Command.CANCEL, null), null);
+			if (status == null)
+				status = new CyJobStatus(Status.CANCELED, "Job canceled");
+			if (journal != null)
+				journal.removed(job.getJobId());
+			if (endpoints != null)
+				endpoints.jobFinished(job.getJobId());
+			return status;
 		}
 		return new CyJobStatus(Status.ERROR, "CyJob is not a ClusterJob");
 	}
@@ -119,8 +646,23 @@ public class ClusterJobExecutionService implements CyJobExecutionService {
 	@Override
 	public CyJobStatus checkJobStatus(CyJob job) {
 		if (job instanceof ClusterJob) {
-			JSONObject result = handleCommand((ClusterJob)job, Command.CHECK, null);
-			return getStatus(result, null);
+			ClusterJob clJob = (ClusterJob)job;
+			if (clJob.isCanceled())
+				return new CyJobStatus(Status.CANCELED, "Job canceled");
+			JSONObject result = checkCommand(clJob);
+			readProgress(clJob, result);
+			CyJobStatus status = getStatus(result, null);
+			if (status != null && clJob.getMetrics() != null)
+				clJob.getMetrics().statusChanged(status.getStatus());
+			if (status != null && journal != null)
+				journal.statusChanged(clJob.getJobId(), status.getStatus());
+			if (status != null && isTerminal(status.getStatus())) {
+				// Nobody will ask again, so don't hang on to the response
+				statusCache.remove(clJob.getJobId());
+				if (endpoints != null)
+					endpoints.jobFinished(clJob.getJobId());
+			}
+			return status;
 		}
 		return new CyJobStatus(Status.ERROR, "CyJob is not a ClusterJob");
 	}
@@ -134,45 +676,111 @@ public class ClusterJobExecutionService implements CyJobExecutionService {
 			return new CyJobStatus(Status.ERROR, "CyJob is not a ClusterJob"); //error message if not clusterjob
 
 		ClusterJob clJob = (ClusterJob)job; //converts CyJob into ClusterJob
+		JobMetrics jobMetrics = clJob.getMetrics();
+		if (jobMetrics == null) {
+			jobMetrics = metrics.createJobMetrics();
+			clJob.setMetrics(jobMetrics);
+		}
 		Map<String, String> queryMap = convertConfiguration(configuration); //converts configuration into Map<String, String>
 
+		long start = System.nanoTime();
+		// Start from the clusters we already have, if we were asked to
+		String warmStart = queryMap.remove(WARM_START);
+		if (warmStart != null && !dataService.addInitialMembership(inputData, "network", warmStart))
+			log.debug("submit.coldStart", "job", clJob.getJobName(), "column", warmStart);
 		String serializedData = dataService.getSerializedData(inputData); //gets serialized data (JSON) using dataService
 		queryMap.put("inputData", serializedData.toString()); //...and puts it into queryMap as key: "inputData", value: String of the data
 		queryMap.put(COMMAND, Command.SUBMIT.toString()); //puts key: COMMAND, value: SUBMIT in the queryMap --> queryMap has two keys
-		
-		JSONParser parser = new JSONParser();
-		JSONObject jsonData = null;
-		try {
-			jsonData = (JSONObject) parser.parse(serializedData);
-		} catch (ParseException e1) {
-			System.out.println("Data to JSONObject conversion failed: " + e1.getMessage());
-		}
-		System.out.println("JSON Data: " + jsonData);
-		
-		RemoteServer rs = new RemoteServer();
+		if (!queryMap.containsKey(ALGORITHM))
+			queryMap.put(ALGORITHM, DEFAULT_ALGORITHM);
+		jobMetrics.record(Stage.SERIALIZE, System.nanoTime()-start);
+		jobMetrics.record(Stage.PAYLOAD, serializedData.length());
+		log.debug("submit.payload", "job", clJob.getJobName(), "chars", serializedData.length(), "data", serializedData);
+		String inputHash = journal != null ? JobJournal.hash(serializedData) : null;
+
+		EndpointPool pool = endpoints;
 		Object value = null;
-		try {
-			value = rs.postFile(rs.getServiceURI("leiden"), jsonData);
-		} catch (Exception e) {
-			System.out.println("Error in postFile method: " + e.getMessage());
+		start = System.nanoTime();
+		if (pool != null) {
+			// Command protocol: the data goes up as a form parameter.  Unless
+			// we were told where to go, pick a replica, and if it doesn't
+			// answer at all, try the next best one we haven't tried yet.
+			boolean pinned = basePath != null;
+			int attempts = pinned ? 1 : pool.getEndpoints().size();
+			Set<String> tried = new HashSet<>();
+			for (int attempt = 0; attempt < attempts && value == null && !clJob.isCanceled(); attempt++) {
+				if (!pinned)
+					basePath = pool.select(tried).getURL();
+				tried.add(basePath);
+				long callStart = System.nanoTime();
+				value = HttpUtils.postJSON(basePath, queryMap, logger, clJob.getRequestHandle());
+				// An upload we aborted isn't the replica's fault
+				if (!clJob.isCanceled())
+					pool.record(basePath, System.nanoTime()-callStart, value != null);
+			}
+		} else {
+			JSONParser parser = new JSONParser();
+			JSONObject jsonData = null;
+			try {
+				jsonData = (JSONObject) parser.parse(serializedData);
+			} catch (ParseException e1) {
+				log.error("submit.parseFailed", "job", clJob.getJobName(), "error", e1.getMessage());
+			}
+			// A file upload has no form parameters, so the configuration (a
+			// seed, for instance) goes along with the data
+			if (jsonData != null) {
+				JSONObject parameters = new JSONObject();
+				for (Map.Entry<String, String> entry: queryMap.entrySet()) {
+					if (!entry.getKey().equals("inputData") && !entry.getKey().equals(COMMAND))
+						parameters.put(entry.getKey(), entry.getValue());
+				}
+				jsonData.put(PARAMETERS, parameters);
+			}
+
+			RemoteServer rs = new RemoteServer();
+			try {
+				value = rs.postFile(rs.getServiceURI(queryMap.get(ALGORITHM)), jsonData);
+			} catch (Exception e) {
+				log.error(e, "submit.failed", "job", clJob.getJobName(), "error", e.getMessage());
+			}
+		}
+		jobMetrics.record(Stage.UPLOAD, System.nanoTime()-start);
+		log.debug("submit.response", "job", clJob.getJobName(), "response", value);
+		// We're done with the payload, so don't hold on to it
+		queryMap.clear();
+		serializedData = null;
+
+		if (clJob.isCanceled()) {
+			// If the server got it anyway, tell it to stop
+			if (value instanceof JSONObject && ((JSONObject)value).containsKey(JOBID)) {
+				clJob.setJobId(((JSONObject)value).get(JOBID).toString());
+				clJob.setBasePath(basePath);
+				handleCommand(clJob, Command.CANCEL, null);
+			}
+			log.info("submit.canceled", "job", clJob.getJobName());
+			return new CyJobStatus(Status.CANCELED, "Job canceled during submission");
 		}
-		System.out.println("JSON Job ID: " + value);
 		
 		if (value == null) 
 			return new CyJobStatus(Status.ERROR, "Job submission failed!");
 		JSONObject json = (JSONObject) value;
 		if (!json.containsKey(JOBID)) {
-			System.out.println("JSON returned: "+json.toString());
+			log.warn("submit.noJobId", "job", clJob.getJobName(), "response", json);
 			return new CyJobStatus(Status.ERROR, "Server didn't return an ID!");
 		}
 
 		String jobId = json.get(JOBID).toString(); //gets the job ID from the JSON Object
 		clJob.setJobId(jobId); //...and sets it to the ClusterJob 
-		System.out.println("ClusterJob jobID: " + clJob.getJobId());
+		jobMetrics.submitted();
+		metrics.register(jobId, jobMetrics);
+		if (pool != null)
+			pool.jobStarted(jobId, basePath);
+		if (journal != null)
+			journalSubmit(journal, clJob, jobId, basePath, inputHash, inputData);
 		//everything above this is to get the job ID from the JSON jobID repsonse from postFile() and put it in the ClusterJob object
 		
 		clJob.setBasePath(basePath); //...and also sets the basePath to the Cluster Job
-		System.out.println("ClusterJob BasePath: " + clJob.getBasePath());
+		log.info("submit.accepted", "job", jobId, "basePath", clJob.getBasePath());
 		
 		//getting status
 		CyJobStatus jobStatus = checkJobStatus(clJob);
@@ -184,10 +792,29 @@ public class ClusterJobExecutionService implements CyJobExecutionService {
 	@Override
 	public CyJobStatus fetchResults(CyJob job, CyJobData data) {
 		if (job instanceof ClusterJob) {
-			JSONObject result = handleCommand((ClusterJob)job, Command.FETCH, null); //handles command FETCH --> argMap is null --> JSON object runs the command
+			JobMetrics jobMetrics = ((ClusterJob)job).getMetrics();
+			if (((ClusterJob)job).isCanceled())
+				return new CyJobStatus(Status.CANCELED, "Job canceled");
+			long start = System.nanoTime();
+			// Did we already fetch these?
+			JSONObject result = readSavedResults(job);
+			if (result == null) {
+				result = sharedCommand((ClusterJob)job, Command.FETCH); //handles command FETCH --> argMap is null --> JSON object runs the command
+				if (result != null && !result.containsKey(ERROR) && journal != null)
+					journal.saveResults(job.getJobId(), result);
+			}
+			if (jobMetrics != null)
+				jobMetrics.record(Stage.FETCH, System.nanoTime()-start);
+			if (endpoints != null)
+				endpoints.jobFinished(job.getJobId());
+			if (result == null)
+				return new CyJobStatus(Status.ERROR, "Unable to fetch results");
 
 			// Get the unserialized data, dataService deserializes the data (the JSON object), CyJobData is basically a HashMap
+			start = System.nanoTime();
 			CyJobData newData = dataService.deserialize(result);
+			if (jobMetrics != null)
+				jobMetrics.record(Stage.PARSE, System.nanoTime()-start);
 
 			// Merge it in, move the information from newData to data
 			for (String key: newData.keySet()) {
@@ -203,18 +830,28 @@ public class ClusterJobExecutionService implements CyJobExecutionService {
 	@Override
 	public CyJob restoreJobFromSession(CySession session, File sessionFile) {
 		CyJob job = null;
-		try {
-			FileReader reader = new FileReader(sessionFile);
+		try (FileReader reader = new FileReader(sessionFile)) {
 			CyJobData sessionData = dataService.deserialize(reader);
+			String jobId = sessionData.get("JobId").toString();
+			// If we already recovered this job from the journal, the session wins
+			CyJob recovered = recoveredJobs.remove(jobId);
+			if (recovered != null) {
+				cyJobManager.removeJob(recovered);
+				ClusterJobHandler.getNotifications().forget(jobId);
+			}
+			Object path = sessionData.get("path");
 			job = getCyJob(sessionData.get("name").toString(), 
-			               sessionData.get("path").toString(),
-										 sessionData.get("JobId").toString());
-			job.setPollInterval((Integer)sessionData.get("pollInterval"));
+			               path == null ? null : path.toString(),
+										 jobId);
+			// json-simple reads all integers back as Longs
+			Object pollInterval = sessionData.get("pollInterval");
+			if (pollInterval instanceof Number)
+				job.setPollInterval(((Number)pollInterval).intValue());
 			String handlerClass = sessionData.get("jobMonitor").toString();
 			if (!handlerClass.equals(ClusterJobHandler.class.getCanonicalName())) {
 				cyJobManager.associateMonitor(job, handlerClass, -1);
 			}
-		} catch (FileNotFoundException fnf) {
+		} catch (IOException ioe) {
 			logger.error("Unable to read session file!");
 		}
 
@@ -223,7 +860,11 @@ public class ClusterJobExecutionService implements CyJobExecutionService {
 
 	//getter, creates new ClusterJob, puts this as the ExecutionService, the same DataService as in this, returns the new clusterjob
 	private CyJob getCyJob(String name, String basePath, String jobId) {
-		return new ClusterJob(name, basePath, this, dataService, null, jobId);
+		ClusterJob job = new ClusterJob(name, basePath, this, dataService, null, jobId);
+		JobMetrics jobMetrics = metrics.createJobMetrics();
+		job.setMetrics(jobMetrics);
+		metrics.register(jobId, jobMetrics);
+		return job;
 	}
 
 	@Override
@@ -236,30 +877,101 @@ public class ClusterJobExecutionService implements CyJobExecutionService {
 		sessionData.put("pollInterval", job.getPollInterval());
 		sessionData.put("jobMonitor", job.getJobMonitor().getClass().getCanonicalName());
 		String data = dataService.getSerializedData(sessionData).toString();
-		try {
-			FileWriter writer = new FileWriter(sessionFile);
+		try (FileWriter writer = new FileWriter(sessionFile)) {
 			writer.write(data);
-			writer.close();
 		} catch (IOException ioe) {
 			logger.error("Unable to save job "+job.getJobId()+" in session!");
 		}
 	}
 
+	/**
+	 * Record a submission in the journal, along with a hash of the input
+	 * and the network it came from
+	 */
+	private void journalSubmit(JobJournal journal, ClusterJob job, String jobId, String basePath,
+	                           String inputHash, CyJobData inputData) {
+		Long networkSUID = null;
+		String networkName = null;
+		Object network = inputData == null ? null : inputData.get("network");
+		if (network instanceof Map) {
+			Object id = ((Map<?, ?>)network).get("id");
+			if (id instanceof Number)
+				networkSUID = ((Number)id).longValue();
+			Object name = ((Map<?, ?>)network).get("name");
+			if (name != null)
+				networkName = name.toString();
+		}
+		journal.submitted(jobId, job.getJobName(), basePath, job.getPollInterval(),
+		                  inputHash, networkSUID, networkName);
+	}
+
+	/**
+	 * Read results we saved before, or null if we don't have any
+	 */
+	private JSONObject readSavedResults(CyJob job) {
+		JobJournal journal = this.journal;
+		if (journal == null)
+			return null;
+		// Saved pages can only be streamed
+		if (journal.isPaged(job.getJobId()))
+			return null;
+		try (Reader reader = journal.openResults(job.getJobId())) {
+			if (reader == null)
+				return null;
+			Object obj = new JSONParser().parse(reader);
+			log.debug("fetch.local", "job", job.getJobId());
+			return obj instanceof JSONObject ? (JSONObject)obj : null;
+		} catch (Exception e) {
+			log.warn("fetch.localFailed", "job", job.getJobId(), "error", e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Nothing more will happen on the server for a job in this state
+	 */
+	static boolean isTerminal(Status status) {
+		switch (status) {
+			case CANCELED:
+			case ERROR:
+			case FAILED:
+			case FINISHED:
+			case PURGED:
+			case TERMINATED:
+				return true;
+			default:
+				return false;
+		}
+	}
+
 	//compare f ex "done" and map that to the status ENUM
 	//added return new CyJobStatus
 	private CyJobStatus getStatus(JSONObject obj, String message) {
+		if (obj == null)
+			return null;
 		if (obj.containsKey(STATUS)) {
 			Status status = Status.UNKNOWN;
 			if (obj.get(STATUS).equals("done")) {
 				status = Status.FINISHED;
 			} else if (obj.get(STATUS).equals("running")) {
 				status = Status.RUNNING;
+			} else {
+				// Services that speak the command protocol send the status name
+				try {
+					status = Status.valueOf(obj.get(STATUS).toString().toUpperCase());
+				} catch (IllegalArgumentException e) {
+					status = Status.UNKNOWN;
+				}
 			}
 			// Did we get any information about our status?
 			if (obj.containsKey(STATUS_MESSAGE)) {
 				if (message == null || message.length() == 0)
 					message = (String)obj.get(STATUS_MESSAGE);
-				return new CyJobStatus(status, message);
+			}
+			// ...and how far along we are?
+			if (obj.get(PROGRESS) instanceof Number && status == Status.RUNNING) {
+				long percent = Math.round(((Number)obj.get(PROGRESS)).doubleValue()*100.0);
+				message = (message == null ? "" : message+" ") + "("+percent+"%)";
 			}
 			return new CyJobStatus(status, message);
 		} else if (obj.containsKey(ERROR)) {
@@ -268,22 +980,111 @@ public class ClusterJobExecutionService implements CyJobExecutionService {
 		return null;
 	}
 
+	/**
+	 * Pick up any progress or intermediate partition from a status response
+	 */
+	private void readProgress(ClusterJob job, JSONObject result) {
+		if (result == null)
+			return;
+		Object progress = result.get(PROGRESS);
+		if (progress instanceof Number)
+			job.setProgress(((Number)progress).doubleValue());
+		IntermediatePartition partition = IntermediatePartition.fromJSON(result.get(IntermediatePartition.KEY));
+		if (partition == null || partition.getLevel() <= job.getPartitionLevel())
+			return;
+		job.setPartitionLevel(partition.getLevel());
+		ClusterJobHandler.intermediateResults(job, partition);
+	}
+
+	/**
+	 * Check a job, reusing a status response younger than the TTL
+	 */
+	private JSONObject checkCommand(ClusterJob job) {
+		String jobId = job.getJobId();
+		long ttl = statusTTLMillis;
+		if (jobId == null || ttl <= 0)
+			return sharedCommand(job, Command.CHECK);
+
+		CachedStatus cached = statusCache.get(jobId);
+		if (cached != null && System.currentTimeMillis() < cached.expires) {
+			log.debug("check.cached", "job", jobId);
+			return cached.response;
+		}
+		JSONObject response = sharedCommand(job, Command.CHECK);
+		// Don't cache anything for a job that was canceled while we were asking
+		if (response != null && !job.isCanceled())
+			statusCache.put(jobId, new CachedStatus(response, System.currentTimeMillis()+ttl));
+		else
+			statusCache.remove(jobId);
+		return response;
+	}
+
+	/**
+	 * Run a command, sharing the request with anyone else running the same
+	 * command for the same job at the same time.  Callers must treat the
+	 * response as read-only, since they all get the same object.
+	 */
+	private JSONObject sharedCommand(final ClusterJob job, final Command command) {
+		if (job.getJobId() == null)
+			return handleCommand(job, command, null);
+		try {
+			return inFlight.execute(command+"/"+job.getJobId(), new Callable<JSONObject>() {
+				public JSONObject call() {
+					return handleCommand(job, command, null);
+				}
+			});
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			// handleCommand doesn't throw checked exceptions
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static class CachedStatus {
+		final JSONObject response;
+		final long expires;
+
+		CachedStatus(JSONObject response, long expires) {
+			this.response = response;
+			this.expires = expires;
+		}
+	}
+
 	private JSONObject handleCommand(ClusterJob job, Command command, Map<String, String> argMap) { //argMap contains COMMAND and a JOB ID
 		if (argMap == null)
 			argMap = new HashMap<>();
 
 		argMap.put(COMMAND, command.toString());
 		argMap.put(JOBID, job.getJobId());
-		
-		RemoteServer rs = new RemoteServer();
+		// Don't send us a partition we already have
+		if (command == Command.CHECK && job.getPartitionLevel() > 0)
+			argMap.put(PARTITION_LEVEL, Integer.toString(job.getPartitionLevel()));
 		
 		JSONObject statusResponse = null;
+		EndpointPool pool = endpoints;
+		if (pool != null) {
+			// We always go back to the replica that has the job
+			long start = System.nanoTime();
+			// A cancel has to get through even though the job's other requests are aborted
+			HttpUtils.RequestHandle handle = command == Command.CANCEL ? null : job.getRequestHandle();
+			Object response = HttpUtils.postJSON(job.getBasePath(), argMap, logger, handle);
+			if (handle == null || !handle.isAborted())
+				pool.record(job.getBasePath(), System.nanoTime()-start, response != null);
+			if (response instanceof JSONObject)
+				statusResponse = (JSONObject)response;
+			log.debug("command.response", "command", command, "job", job.getJobId(), "response", statusResponse);
+			return statusResponse;
+		}
+
+		RemoteServer rs = new RemoteServer();
 		try {
-			statusResponse = rs.fetchJSON(job.getBasePath() + "status/" + job.getJobId());
+			String path = command == Command.CANCEL ? "cancel/" : "status/";
+			statusResponse = rs.fetchJSON(job.getBasePath() + path + job.getJobId());
 		} catch (Exception e) {
-			System.out.println("Exception in fetchJSON: " + e.getMessage());
+			log.error(e, "command.failed", "command", command, "job", job.getJobId(), "error", e.getMessage());
 		}
-		System.out.println("JSON status response: " + statusResponse);
+		log.debug("command.response", "command", command, "job", job.getJobId(), "response", statusResponse);
 		
 		return statusResponse;
 		//return (JSONObject)HttpUtils.postJSON(job.getPath(), argMap, logger); //returns JSONobject, puts in the job path (url), argMap (command and job id) and Logger
@@ -0,0 +1,52 @@
+package edu.ucsf.rbvi.clusterJob.internal.io;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * A Reader that keeps track of how many characters have gone through it,
+ * and optionally keeps a copy of them
+ */
+public class CountingReader extends FilterReader {
+	long count = 0L;
+	final StringBuilder copy;
+
+	public CountingReader(Reader in) {
+		this(in, null);
+	}
+
+	public CountingReader(Reader in, StringBuilder copy) {
+		super(in);
+		this.copy = copy;
+	}
+
+	public long getCount() { return count; }
+
+	@Override
+	public int read() throws IOException {
+		int c = super.read();
+		if (c >= 0) {
+			count++;
+			if (copy != null) copy.append((char)c);
+		}
+		return c;
+	}
+
+	@Override
+	public int read(char[] buf, int off, int len) throws IOException {
+		int n = super.read(buf, off, len);
+		if (n > 0) {
+			count += n;
+			if (copy != null) copy.append(buf, off, n);
+		}
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = super.skip(n);
+		count += skipped;
+		return skipped;
+	}
+}
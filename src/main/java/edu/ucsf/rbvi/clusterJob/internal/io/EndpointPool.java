@@ -0,0 +1,289 @@
+package edu.ucsf.rbvi.clusterJob.internal.io;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * A set of cluster service replicas to spread jobs over.  New jobs go to
+ * the healthy replica with the fewest outstanding jobs (LEAST_OUTSTANDING),
+ * or the lowest expected wait, i.e. recent latency times outstanding jobs
+ * (LATENCY).  Each job then stays pinned to its replica (its base path)
+ * for polling and fetching.
+ *
+ * A replica that fails MAX_FAILURES calls in a row is taken out of
+ * rotation for a backoff period that doubles each time it fails again.
+ * If health checks are running, every replica is pinged, so a replica
+ * that hangs is noticed without any jobs failing on it, and one that's
+ * out is put back as soon as it answers.
+ */
+public class EndpointPool {
+	static final JobLogger log = JobLogger.getLogger(EndpointPool.class);
+	static final int MAX_FAILURES = 3;
+	static final long MIN_BACKOFF_MILLIS = 1000;
+	static final long MAX_BACKOFF_MILLIS = 60000;
+	static final int CHECK_TIMEOUT_MILLIS = 5000;
+	// Weight of the newest sample in the latency average
+	static final double LATENCY_WEIGHT = 0.2;
+
+	public enum Strategy {
+		LEAST_OUTSTANDING("least"),
+		LATENCY("latency");
+
+		String text;
+		Strategy(String text) {
+			this.text = text;
+		}
+		public String toString() { return text; }
+
+		public static Strategy fromString(String text) {
+			for (Strategy strategy: values()) {
+				if (strategy.text.equalsIgnoreCase(text) || strategy.name().equalsIgnoreCase(text))
+					return strategy;
+			}
+			return LEAST_OUTSTANDING;
+		}
+	}
+
+	public static class Endpoint {
+		final String url;
+		final AtomicInteger outstanding = new AtomicInteger();
+		volatile double latencyMillis = 0.0;
+		int failures = 0;
+		long backoffMillis = 0;
+		volatile long downUntil = 0;
+
+		Endpoint(String url) {
+			this.url = url;
+		}
+
+		public String getURL() { return url; }
+
+		public int getOutstanding() { return outstanding.get(); }
+
+		public double getLatencyMillis() { return latencyMillis; }
+
+		public boolean isHealthy() { return downUntil <= System.currentTimeMillis(); }
+
+		synchronized void success(long nanos) {
+			double millis = nanos/1000000.0;
+			latencyMillis = latencyMillis == 0.0 ? millis : (1.0-LATENCY_WEIGHT)*latencyMillis + LATENCY_WEIGHT*millis;
+			failures = 0;
+			backoffMillis = 0;
+			downUntil = 0;
+		}
+
+		/**
+		 * Returns true if this failure took us out of rotation
+		 */
+		synchronized boolean failure() {
+			failures++;
+			if (failures < MAX_FAILURES || !isHealthy())
+				return false;
+			backoffMillis = backoffMillis == 0 ? MIN_BACKOFF_MILLIS : Math.min(backoffMillis*2, MAX_BACKOFF_MILLIS);
+			downUntil = System.currentTimeMillis() + backoffMillis;
+			return true;
+		}
+
+		JSONObject toJSON() {
+			JSONObject obj = new JSONObject();
+			obj.put("url", url);
+			obj.put("outstanding", outstanding.get());
+			obj.put("latencyMillis", latencyMillis);
+			obj.put("healthy", isHealthy());
+			return obj;
+		}
+	}
+
+	final List<Endpoint> endpoints;
+	final Map<String, Endpoint> endpointMap = new HashMap<>();
+	// Which endpoint each outstanding job is counted against
+	final ConcurrentMap<String, Endpoint> jobs = new ConcurrentHashMap<>();
+	volatile Strategy strategy;
+	ScheduledExecutorService healthChecker = null;
+
+	public EndpointPool(List<String> urls, Strategy strategy) {
+		List<Endpoint> list = new ArrayList<>();
+		for (String url: urls) {
+			url = url.trim();
+			if (url.length() == 0 || endpointMap.containsKey(url))
+				continue;
+			Endpoint endpoint = new Endpoint(url);
+			list.add(endpoint);
+			endpointMap.put(url, endpoint);
+		}
+		if (list.size() == 0)
+			throw new IllegalArgumentException("No service URLs given");
+		this.endpoints = Collections.unmodifiableList(list);
+		this.strategy = strategy;
+	}
+
+	/**
+	 * Parse a comma separated list of URLs, returning null if there aren't any
+	 */
+	public static EndpointPool fromString(String urls, Strategy strategy) {
+		if (urls == null || urls.trim().length() == 0)
+			return null;
+		List<String> list = new ArrayList<>();
+		for (String url: urls.split(","))
+			list.add(url);
+		return new EndpointPool(list, strategy);
+	}
+
+	public List<Endpoint> getEndpoints() { return endpoints; }
+
+	public void setStrategy(Strategy strategy) { this.strategy = strategy; }
+
+	/**
+	 * Pick the replica for a new job.  If they're all down, use the one
+	 * that's due back first.
+	 */
+	public Endpoint select() {
+		return select(Collections.<String>emptySet());
+	}
+
+	/**
+	 * Pick the replica for a new job, passing over the ones in exclude
+	 * (the replicas this job has already tried) unless there's nothing
+	 * else left.
+	 */
+	public Endpoint select(Set<String> exclude) {
+		Endpoint best = null;
+		double bestScore = Double.MAX_VALUE;
+		for (Endpoint endpoint: endpoints) {
+			if (!endpoint.isHealthy() || exclude.contains(endpoint.url))
+				continue;
+			double score = score(endpoint);
+			if (best == null || score < bestScore) {
+				best = endpoint;
+				bestScore = score;
+			}
+		}
+		if (best != null)
+			return best;
+
+		for (Endpoint endpoint: endpoints) {
+			if (exclude.contains(endpoint.url))
+				continue;
+			if (best == null || endpoint.downUntil < best.downUntil)
+				best = endpoint;
+		}
+		if (best != null || exclude.isEmpty())
+			return best;
+		return select();
+	}
+
+	private double score(Endpoint endpoint) {
+		int outstanding = endpoint.outstanding.get();
+		if (strategy == Strategy.LATENCY)
+			return (endpoint.latencyMillis + 1.0) * (outstanding + 1);
+		return outstanding;
+	}
+
+	public Endpoint getEndpoint(String url) {
+		return url == null ? null : endpointMap.get(url);
+	}
+
+	/**
+	 * Record the result of a call to url.  A null result is a failure.
+	 */
+	public void record(String url, long nanos, boolean success) {
+		Endpoint endpoint = getEndpoint(url);
+		if (endpoint == null)
+			return;
+		if (success) {
+			endpoint.success(nanos);
+		} else if (endpoint.failure()) {
+			log.warn("endpoint.down", "url", url, "backoffMillis", endpoint.backoffMillis);
+		}
+	}
+
+	/**
+	 * A job was accepted by url, so count it against that replica
+	 */
+	public void jobStarted(String jobId, String url) {
+		Endpoint endpoint = getEndpoint(url);
+		if (jobId == null || endpoint == null)
+			return;
+		if (jobs.putIfAbsent(jobId, endpoint) == null)
+			endpoint.outstanding.incrementAndGet();
+	}
+
+	/**
+	 * The job is done (however it ended).  Safe to call more than once.
+	 */
+	public void jobFinished(String jobId) {
+		if (jobId == null)
+			return;
+		Endpoint endpoint = jobs.remove(jobId);
+		if (endpoint != null)
+			endpoint.outstanding.decrementAndGet();
+	}
+
+	/**
+	 * Ping every replica every periodMillis, so one that stops answering is
+	 * taken out of rotation before jobs fail on it, and one that's out is
+	 * put back as soon as it answers.  We do this even for a single
+	 * replica, since it still tells us when the service is down.
+	 */
+	public synchronized void startHealthChecks(long periodMillis, final Logger logger) {
+		if (healthChecker != null)
+			return;
+		healthChecker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ClusterJob health check");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		healthChecker.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				for (Endpoint endpoint: endpoints)
+					check(endpoint, logger);
+			}
+		}, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void shutdown() {
+		if (healthChecker != null)
+			healthChecker.shutdownNow();
+		healthChecker = null;
+	}
+
+	/**
+	 * Any JSON answer to a bare check means the replica is up.  No answer
+	 * counts as a failure, just like a failed job call.
+	 */
+	void check(Endpoint endpoint, Logger logger) {
+		Map<String, String> args = new HashMap<>();
+		args.put("command", "check");
+		boolean wasHealthy = endpoint.isHealthy();
+		long start = System.nanoTime();
+		// A replica that hangs mustn't hold up the checks on the others
+		Object response = HttpUtils.postJSON(endpoint.url, args, logger, null, CHECK_TIMEOUT_MILLIS);
+		record(endpoint.url, System.nanoTime()-start, response != null);
+		if (response != null && !wasHealthy)
+			log.info("endpoint.up", "url", endpoint.url);
+	}
+
+	public JSONArray toJSON() {
+		JSONArray array = new JSONArray();
+		for (Endpoint endpoint: endpoints)
+			array.add(endpoint.toJSON());
+		return array;
+	}
+}
@@ -1,34 +1,64 @@
 package edu.ucsf.rbvi.clusterJob.internal.io;
 
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
 import java.net.URLEncoder;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.log4j.Logger;
 import org.apache.http.HttpEntity;
 import org.apache.http.NameValuePair;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.util.EntityUtils;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
 public class HttpUtils {
-	static boolean debug = true;
+	// Route calls to the MockHttpServer (until a service URL is set)
+	static volatile boolean debug = true;
+	static final JobLogger log = JobLogger.getLogger(HttpUtils.class);
+	static final int MAX_CONNECTIONS = 200;
+	static CloseableHttpClient client = null;
+
+	public static void setDebug(boolean d) { debug = d; }
+
+	/**
+	 * All of our requests share a single pooled client so that polling many
+	 * jobs reuses connections rather than opening a new one for every call.
+	 */
+	static synchronized CloseableHttpClient getClient() {
+		if (client == null) {
+			PoolingHttpClientConnectionManager cm = new PoolingHttpClientConnectionManager();
+			cm.setMaxTotal(MAX_CONNECTIONS);
+			cm.setDefaultMaxPerRoute(MAX_CONNECTIONS);
+			client = HttpClients.custom().setConnectionManager(cm).build();
+		}
+		return client;
+	}
 	public static Object getJSON(String url, Map<String, String> queryMap, Logger logger) {
 
 		if (debug) {
@@ -37,11 +67,11 @@ public class HttpUtils {
 		}
 
 		// Set up our connection
-		CloseableHttpClient client = HttpClients.createDefault();
+		CloseableHttpClient client = getClient();
 		String args = HttpUtils.getStringArguments(queryMap);
 		HttpGet request = new HttpGet(url+"?"+args);
 		// List<NameValuePair> nvps = HttpUtils.getArguments(queryMap);
-		System.out.println("URL: "+url+"?"+args);
+		log.debug("http.get", "url", url, "args", args);
 		Object jsonObject = null;
 
 		// The underlying HTTP connection is still held by the response object
@@ -66,28 +96,81 @@ public class HttpUtils {
 			// and ensure it is fully consumed
 			EntityUtils.consume(entity1);
 		} catch (Exception e) {
-			logger.error("Unable to parse JSON from server: "+e.getMessage());
-			e.printStackTrace();
+			log.error(e, "http.parseFailed", "url", url, "error", e.getMessage());
 		} finally {
 			try {
-				response1.close();
+				if (response1 != null)
+					response1.close();
 			} catch(Exception e) {
-				logger.error("Unable to send request: "+e.getMessage());
-				e.printStackTrace();
+				log.error(e, "http.closeFailed", "url", url, "error", e.getMessage());
 			}
 		}
 		return jsonObject;
 	}
 
+	/**
+	 * Lets another thread abort a request that's in progress (e.g. an
+	 * upload the user has cancelled).  Once aborted, any request attached
+	 * to the handle is aborted as soon as it starts.
+	 */
+	public static class RequestHandle {
+		volatile boolean aborted = false;
+		final Set<HttpUriRequest> requests = Collections.newSetFromMap(new ConcurrentHashMap<HttpUriRequest, Boolean>());
+
+		public boolean isAborted() { return aborted; }
+
+		public void abort() {
+			aborted = true;
+			for (HttpUriRequest r: requests)
+				r.abort();
+		}
+
+		boolean attach(HttpUriRequest r) {
+			requests.add(r);
+			if (aborted) {
+				r.abort();
+				return false;
+			}
+			return true;
+		}
+
+		void detach(HttpUriRequest r) {
+			requests.remove(r);
+		}
+	}
+
 	public static Object postJSON(String url, Map<String, String> queryMap, Logger logger) {
+		return postJSON(url, queryMap, logger, null);
+	}
+
+	/**
+	 * Post a request and parse the JSON response.  Returns null if the
+	 * request failed or was aborted through handle.
+	 */
+	public static Object postJSON(String url, Map<String, String> queryMap, Logger logger, RequestHandle handle) {
+		return postJSON(url, queryMap, logger, handle, 0);
+	}
+
+	/**
+	 * As above, but give up if we can't connect or the response stalls for
+	 * timeoutMillis (0 waits forever)
+	 */
+	public static Object postJSON(String url, Map<String, String> queryMap, Logger logger, RequestHandle handle,
+	                              int timeoutMillis) {
 		if (debug) {
+			if (handle != null && handle.isAborted())
+				return null;
 			MockHttpServer server = MockHttpServer.getServer();
 			return server.postJSON(url, queryMap, logger);
 		}
 
 		// Set up our connection
-		CloseableHttpClient client = HttpClients.createDefault();
+		CloseableHttpClient client = getClient();
 		HttpPost request = new HttpPost(url);
+		if (timeoutMillis > 0)
+			request.setConfig(RequestConfig.custom().setConnectTimeout(timeoutMillis)
+			                                        .setConnectionRequestTimeout(timeoutMillis)
+			                                        .setSocketTimeout(timeoutMillis).build());
 		List<NameValuePair> nvps = HttpUtils.getArguments(queryMap);
 		Object jsonObject = null;
 
@@ -101,6 +184,8 @@ public class HttpUtils {
 		CloseableHttpResponse response1 = null;
 		try {
 			request.setEntity(new UrlEncodedFormEntity(nvps));
+			if (handle != null && !handle.attach(request))
+				return null;
 			response1 = client.execute(request);
 			HttpEntity entity1 = response1.getEntity();
 			InputStream entityStream = entity1.getContent();
@@ -117,14 +202,20 @@ public class HttpUtils {
 			// and ensure it is fully consumed
 			EntityUtils.consume(entity1);
 		} catch (Exception e) {
-			logger.error("Unable to parse JSON from server: "+e.getMessage());
-			e.printStackTrace();
+			if (handle != null && handle.isAborted()) {
+				log.debug("http.aborted", "url", url);
+				return null;
+			}
+			log.error(e, "http.parseFailed", "url", url, "error", e.getMessage());
 			return null;
 		} finally {
+			if (handle != null)
+				handle.detach(request);
 			try {
-				response1.close();
+				if (response1 != null)
+					response1.close();
 			} catch(Exception e) {
-				e.printStackTrace();
+				log.error(e, "http.closeFailed", "url", url, "error", e.getMessage());
 			}
 		}
 		return jsonObject;
@@ -136,7 +227,7 @@ public class HttpUtils {
 			return server.postText(url, queryMap, logger);
 		}
 
-		CloseableHttpClient client = HttpClients.createDefault();
+		CloseableHttpClient client = getClient();
 		HttpPost request = new HttpPost(url);
 		List<NameValuePair> nvps = HttpUtils.getArguments(queryMap);
 		CloseableHttpResponse response1 = null;
@@ -152,17 +243,71 @@ public class HttpUtils {
 			}
 			EntityUtils.consume(entity1);
 		} catch (Exception e) {
-			e.printStackTrace();
+			log.error(e, "http.postFailed", "url", url, "error", e.getMessage());
 		} finally {
 			try {
-				response1.close();
+				if (response1 != null)
+					response1.close();
 			} catch(Exception e) {
-				e.printStackTrace();
+				log.error(e, "http.closeFailed", "url", url, "error", e.getMessage());
 			}
 			return builder.toString();
 		}
 	}
 
+	/**
+	 * Something that consumes a response as it streams in
+	 */
+	public interface ReaderHandler<T> {
+		T read(Reader reader) throws Exception;
+	}
+
+	/**
+	 * Post a request and hand the response body to handler as a stream, rather
+	 * than reading it all in first.  The response is always closed before
+	 * we return.
+	 */
+	public static <T> T postForReader(String url, Map<String, String> queryMap, Logger logger,
+	                                  ReaderHandler<T> handler) throws Exception {
+		return postForReader(url, queryMap, logger, handler, null);
+	}
+
+	/**
+	 * As above, but the download can be aborted through handle, in which
+	 * case the handler sees the stream fail.
+	 */
+	public static <T> T postForReader(String url, Map<String, String> queryMap, Logger logger,
+	                                  ReaderHandler<T> handler, RequestHandle handle) throws Exception {
+		if (handle != null && handle.isAborted())
+			throw new IOException("Request aborted");
+		if (debug) {
+			MockHttpServer server = MockHttpServer.getServer();
+			Object obj = server.postJSON(url, queryMap, logger);
+			return handler.read(new StringReader(obj == null ? "" : JSONValue.toJSONString(obj)));
+		}
+
+		CloseableHttpClient client = getClient();
+		HttpPost request = new HttpPost(url);
+		request.setEntity(new UrlEncodedFormEntity(getArguments(queryMap)));
+		if (handle != null && !handle.attach(request))
+			throw new IOException("Request aborted");
+		try {
+			CloseableHttpResponse response = client.execute(request);
+			try {
+				HttpEntity entity = response.getEntity();
+				Reader reader = new BufferedReader(new InputStreamReader(entity.getContent(), "UTF-8"));
+				T result = handler.read(reader);
+				EntityUtils.consume(entity);
+				return result;
+			} finally {
+				response.close();
+			}
+		} finally {
+			if (handle != null)
+				handle.detach(request);
+		}
+	}
+
 	public static List<NameValuePair> getArguments(Map<String, String> args) {
 		List<NameValuePair> nvps = new ArrayList<>();
 		for (String key: args.keySet()) {
@@ -180,7 +325,9 @@ public class HttpUtils {
 				else
 					s = key+"="+URLEncoder.encode(args.get(key));
 			}
-		} catch (Exception e) { e.printStackTrace(); }
+		} catch (Exception e) {
+			log.error(e, "http.encodeFailed", "error", e.getMessage());
+		}
 		return s;
 	}
 
@@ -0,0 +1,641 @@
+package edu.ucsf.rbvi.clusterJob.internal.io;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+
+import org.cytoscape.jobs.CyJobStatus.Status;
+
+/**
+ * An append-only, on-disk record of our jobs, so that outstanding jobs
+ * survive a crash or restart.  Each line of journal.jsonl is one event
+ * for one job (submitted, a status change, results fetched, results
+ * applied, removed); reading the file once folds the events into the
+ * latest state of every job.  Fetched results are kept in results/ until
+ * they've been applied, so they can be reapplied without fetching them
+ * again (paged downloads are saved one page per line).  The journal is
+ * compacted to just the live jobs each time it's opened.
+ */
+public class JobJournal {
+	static final JobLogger log = JobLogger.getLogger(JobJournal.class);
+	static final String JOURNAL_FILE = "journal.jsonl";
+	static final String RESULTS_DIR = "results";
+	static final String PAGES_SUFFIX = ".pages";
+
+	public enum Event {
+		SUBMITTED("submitted"),
+		STATUS("status"),
+		FETCHED("fetched"),
+		APPLIED("applied"),
+		REMOVED("removed");
+
+		String text;
+		Event(String text) {
+			this.text = text;
+		}
+		public String toString() { return text; }
+
+		public static Event fromString(String text) {
+			for (Event event: values()) {
+				if (event.text.equals(text))
+					return event;
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * What we know about one job
+	 */
+	public static class Entry {
+		public final String jobId;
+		public String name;
+		public String path;
+		public int pollInterval;
+		public String hash;
+		public Long networkSUID;
+		public String networkName;
+		public Status status = Status.SUBMITTED;
+		public String results;
+		public boolean applied = false;
+		public long updated;
+
+		Entry(String jobId) {
+			this.jobId = jobId;
+		}
+
+		/**
+		 * Is there still something to do for this job?
+		 */
+		public boolean isOutstanding() {
+			if (applied) return false;
+			if (results != null) return true;
+			switch (status) {
+				case CANCELED:
+				case ERROR:
+				case FAILED:
+				case PURGED:
+				case TERMINATED:
+					return false;
+				default:
+					return true;
+			}
+		}
+
+		void apply(Event event, JSONObject record) {
+			updated = getLong(record, "t", updated);
+			switch (event) {
+				case SUBMITTED:
+					name = getString(record, "name", name);
+					path = getString(record, "path", path);
+					pollInterval = (int)getLong(record, "pollInterval", pollInterval);
+					hash = getString(record, "hash", hash);
+					networkName = getString(record, "networkName", networkName);
+					if (record.get("network") instanceof Number)
+						networkSUID = ((Number)record.get("network")).longValue();
+					if (record.containsKey("status"))
+						status = toStatus(record.get("status"));
+					break;
+				case STATUS:
+					status = toStatus(record.get("status"));
+					break;
+				case FETCHED:
+					results = getString(record, "results", results);
+					break;
+				case APPLIED:
+					applied = true;
+					results = null;
+					break;
+				default:
+					break;
+			}
+		}
+
+		JSONObject toRecord() {
+			JSONObject record = new JSONObject();
+			record.put("t", updated);
+			record.put("event", Event.SUBMITTED.toString());
+			record.put("job", jobId);
+			record.put("name", name);
+			record.put("path", path);
+			record.put("pollInterval", pollInterval);
+			record.put("hash", hash);
+			record.put("network", networkSUID);
+			record.put("networkName", networkName);
+			record.put("status", status.toString());
+			if (results != null)
+				record.put("results", results);
+			return record;
+		}
+	}
+
+	final File directory;
+	final File journalFile;
+	final File resultsDirectory;
+	final Map<String, Entry> entries = new LinkedHashMap<>();
+	Writer writer = null;
+
+	/**
+	 * Open (or create) the journal in directory, reading back everything
+	 * that was in it.
+	 */
+	public JobJournal(File directory) throws IOException {
+		this.directory = directory;
+		this.journalFile = new File(directory, JOURNAL_FILE);
+		this.resultsDirectory = new File(directory, RESULTS_DIR);
+		if (!resultsDirectory.isDirectory() && !resultsDirectory.mkdirs())
+			throw new IOException("Unable to create "+resultsDirectory.getAbsolutePath());
+		read();
+		compact();
+	}
+
+	public File getDirectory() { return directory; }
+
+	/**
+	 * All of the jobs we still have something to do for
+	 */
+	public synchronized List<Entry> getOutstanding() {
+		List<Entry> outstanding = new ArrayList<>();
+		for (Entry entry: entries.values()) {
+			if (entry.isOutstanding())
+				outstanding.add(entry);
+		}
+		return outstanding;
+	}
+
+	public synchronized Entry getEntry(String jobId) {
+		return jobId == null ? null : entries.get(jobId);
+	}
+
+	public synchronized void submitted(String jobId, String name, String path, int pollInterval,
+	                                   String hash, Long networkSUID, String networkName) {
+		JSONObject record = newRecord(Event.SUBMITTED, jobId);
+		record.put("name", name);
+		record.put("path", path);
+		record.put("pollInterval", pollInterval);
+		record.put("hash", hash);
+		record.put("network", networkSUID);
+		record.put("networkName", networkName);
+		append(record);
+	}
+
+	/**
+	 * Record a status change.  Repeats of the current status (i.e. most
+	 * polls) aren't written.
+	 */
+	public synchronized void statusChanged(String jobId, Status status) {
+		Entry entry = entries.get(jobId);
+		if (entry == null || status == null || entry.status == status)
+			return;
+		JSONObject record = newRecord(Event.STATUS, jobId);
+		record.put("status", status.toString());
+		append(record);
+	}
+
+	/**
+	 * The job's results have been applied, so we don't need them any more
+	 */
+	public synchronized void applied(String jobId) {
+		Entry entry = entries.get(jobId);
+		if (entry == null || entry.applied)
+			return;
+		deleteResults(entry);
+		append(newRecord(Event.APPLIED, jobId));
+	}
+
+	public synchronized void removed(String jobId) {
+		Entry entry = entries.get(jobId);
+		if (entry == null)
+			return;
+		deleteResults(entry);
+		append(newRecord(Event.REMOVED, jobId));
+		entries.remove(jobId);
+	}
+
+	/**
+	 * The saved results for a job, if we have them
+	 */
+	public synchronized File getResults(String jobId) {
+		Entry entry = entries.get(jobId);
+		if (entry == null || entry.results == null)
+			return null;
+		File file = new File(resultsDirectory, entry.results);
+		return file.isFile() ? file : null;
+	}
+
+	/**
+	 * Save a job's fetched results
+	 */
+	public void saveResults(String jobId, JSONObject results) {
+		if (getEntry(jobId) == null)
+			return;
+		File temp = getTempFile(jobId);
+		try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8))) {
+			results.writeJSONString(out);
+		} catch (IOException ioe) {
+			log.warn("journal.saveFailed", "job", jobId, "error", ioe.getMessage());
+			temp.delete();
+			return;
+		}
+		commitResults(jobId, temp, getResultsName(jobId));
+	}
+
+	/**
+	 * Wrap a result download so that everything read from it is also
+	 * saved.  The saved copy only counts once {@link ResultsTee#commit} is
+	 * called, after the whole download has been read.
+	 */
+	public ResultsTee teeResults(String jobId, Reader reader) {
+		if (getEntry(jobId) == null)
+			return null;
+		File temp = getTempFile(jobId);
+		try {
+			return new ResultsTee(jobId, reader, temp);
+		} catch (IOException ioe) {
+			log.warn("journal.saveFailed", "job", jobId, "error", ioe.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Save a paged download as it arrives.  Pages are added once they've
+	 * arrived in full, so a page that had to be fetched again is only saved
+	 * once.
+	 */
+	public PagedResults savePages(String jobId) {
+		if (getEntry(jobId) == null)
+			return null;
+		File temp = getTempFile(jobId);
+		try {
+			return new PagedResults(jobId, temp);
+		} catch (IOException ioe) {
+			log.warn("journal.saveFailed", "job", jobId, "error", ioe.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Were the saved results for a job saved a page at a time?  If so, each
+	 * line of {@link #openResults} is one page.
+	 */
+	public boolean isPaged(String jobId) {
+		File file = getResults(jobId);
+		return file != null && file.getName().endsWith(PAGES_SUFFIX);
+	}
+
+	public Reader openResults(String jobId) throws IOException {
+		File file = getResults(jobId);
+		if (file == null)
+			return null;
+		return new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+	}
+
+	public synchronized void close() {
+		if (writer == null)
+			return;
+		try {
+			writer.close();
+		} catch (IOException ioe) {
+		}
+		writer = null;
+	}
+
+	/**
+	 * A hash of a job's input, so we can tell if we've already submitted it
+	 */
+	public static String hash(String data) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			byte[] bytes = digest.digest(data.getBytes(StandardCharsets.UTF_8));
+			StringBuilder sb = new StringBuilder(bytes.length*2);
+			for (byte b: bytes)
+				sb.append(String.format("%02x", b & 0xff));
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			return Integer.toHexString(data.hashCode());
+		}
+	}
+
+	private synchronized void commitResults(String jobId, File temp, String name) {
+		Entry entry = entries.get(jobId);
+		if (entry == null) {
+			temp.delete();
+			return;
+		}
+		File file = new File(resultsDirectory, name);
+		try {
+			replace(temp, file);
+		} catch (IOException ioe) {
+			log.warn("journal.saveFailed", "job", jobId, "error", ioe.getMessage());
+			temp.delete();
+			return;
+		}
+		JSONObject record = newRecord(Event.FETCHED, jobId);
+		record.put("results", file.getName());
+		append(record);
+	}
+
+	/**
+	 * Replace target with source in one step, so a crash leaves one or the
+	 * other, never neither
+	 */
+	static void replace(File source, File target) throws IOException {
+		try {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+			           StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private void deleteResults(Entry entry) {
+		if (entry.results != null)
+			new File(resultsDirectory, entry.results).delete();
+	}
+
+	private File getTempFile(String jobId) {
+		return new File(resultsDirectory, getResultsName(jobId)+"."+Thread.currentThread().getId()+".tmp");
+	}
+
+	private static String getResultsName(String jobId) {
+		return jobId.replaceAll("[^A-Za-z0-9._-]", "_")+".json";
+	}
+
+	private JSONObject newRecord(Event event, String jobId) {
+		JSONObject record = new JSONObject();
+		record.put("t", System.currentTimeMillis());
+		record.put("event", event.toString());
+		record.put("job", jobId);
+		return record;
+	}
+
+	/**
+	 * Write a record and fold it into our entries.  Callers hold our lock.
+	 */
+	private void append(JSONObject record) {
+		fold(record);
+		try {
+			if (writer == null)
+				writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFile, true),
+				                                                   StandardCharsets.UTF_8));
+			record.writeJSONString(writer);
+			writer.write('\n');
+			writer.flush();
+		} catch (IOException ioe) {
+			log.warn("journal.writeFailed", "file", journalFile, "error", ioe.getMessage());
+		}
+	}
+
+	private void fold(JSONObject record) {
+		Event event = Event.fromString((String)record.get("event"));
+		Object jobId = record.get("job");
+		if (event == null || jobId == null)
+			return;
+		if (event == Event.REMOVED) {
+			entries.remove(jobId.toString());
+			return;
+		}
+		Entry entry = entries.get(jobId.toString());
+		if (entry == null) {
+			if (event != Event.SUBMITTED)
+				return;
+			entry = new Entry(jobId.toString());
+			entries.put(entry.jobId, entry);
+		}
+		entry.apply(event, record);
+	}
+
+	/**
+	 * One pass over the journal.  A torn last line (from a crash) is skipped.
+	 */
+	private synchronized void read() throws IOException {
+		if (!journalFile.isFile())
+			return;
+		JSONParser parser = new JSONParser();
+		int lineNumber = 0;
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile),
+		                                                                      StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				if (line.trim().length() == 0)
+					continue;
+				try {
+					Object obj = parser.parse(line);
+					if (obj instanceof JSONObject)
+						fold((JSONObject)obj);
+				} catch (Exception e) {
+					log.warn("journal.badRecord", "file", journalFile, "line", lineNumber, "error", e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Rewrite the journal with one record for each job we still care
+	 * about, and clean out results nobody refers to.
+	 */
+	private synchronized void compact() throws IOException {
+		Collection<Entry> live = new ArrayList<>(entries.values());
+		for (Entry entry: live) {
+			if (!entry.isOutstanding())
+				entries.remove(entry.jobId);
+		}
+
+		File temp = new File(directory, JOURNAL_FILE+".tmp");
+		FileOutputStream stream = new FileOutputStream(temp);
+		try (Writer out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8))) {
+			for (Entry entry: entries.values()) {
+				entry.toRecord().writeJSONString(out);
+				out.write('\n');
+			}
+			// Make sure it's all on disk before it replaces the journal
+			out.flush();
+			stream.getFD().sync();
+		}
+		// Never leave a moment with no journal at all
+		replace(temp, journalFile);
+
+		File[] files = resultsDirectory.listFiles();
+		if (files == null)
+			return;
+		for (File file: files) {
+			boolean used = false;
+			for (Entry entry: entries.values()) {
+				if (file.getName().equals(entry.results)) {
+					used = true;
+					break;
+				}
+			}
+			if (!used)
+				file.delete();
+		}
+	}
+
+	static String getString(JSONObject record, String key, String defaultValue) {
+		Object value = record.get(key);
+		return value == null ? defaultValue : value.toString();
+	}
+
+	static long getLong(JSONObject record, String key, long defaultValue) {
+		Object value = record.get(key);
+		return value instanceof Number ? ((Number)value).longValue() : defaultValue;
+	}
+
+	static Status toStatus(Object value) {
+		if (value == null)
+			return Status.UNKNOWN;
+		try {
+			return Status.valueOf(value.toString());
+		} catch (IllegalArgumentException e) {
+			return Status.UNKNOWN;
+		}
+	}
+
+	/**
+	 * Copies everything read from a result download to a temporary file
+	 */
+	public class ResultsTee extends FilterReader {
+		final String jobId;
+		final File temp;
+		final Writer copy;
+		boolean failed = false;
+
+		ResultsTee(String jobId, Reader reader, File temp) throws IOException {
+			super(reader);
+			this.jobId = jobId;
+			this.temp = temp;
+			this.copy = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8));
+		}
+
+		@Override
+		public int read() throws IOException {
+			int c = super.read();
+			if (c >= 0) write(new char[] {(char)c}, 0, 1);
+			return c;
+		}
+
+		@Override
+		public int read(char[] cbuf, int off, int len) throws IOException {
+			int n = super.read(cbuf, off, len);
+			if (n > 0) write(cbuf, off, n);
+			return n;
+		}
+
+		private void write(char[] cbuf, int off, int len) {
+			if (failed) return;
+			try {
+				copy.write(cbuf, off, len);
+			} catch (IOException ioe) {
+				// Keep downloading, we just won't have a copy
+				failed = true;
+			}
+		}
+
+		/**
+		 * The download completed, so keep the copy
+		 */
+		public void commit() {
+			try {
+				copy.close();
+			} catch (IOException ioe) {
+				failed = true;
+			}
+			if (failed)
+				temp.delete();
+			else
+				commitResults(jobId, temp, getResultsName(jobId));
+		}
+
+		/**
+		 * The download failed, so throw the copy away
+		 */
+		public void discard() {
+			try {
+				copy.close();
+			} catch (IOException ioe) {
+			}
+			temp.delete();
+		}
+	}
+
+	/**
+	 * A paged download being saved, one page per line.  JSON never has a
+	 * raw line break inside a string, so any line breaks in a page are just
+	 * whitespace and can be flattened.
+	 */
+	public class PagedResults {
+		final String jobId;
+		final File temp;
+		final Writer copy;
+		boolean failed = false;
+
+		PagedResults(String jobId, File temp) throws IOException {
+			this.jobId = jobId;
+			this.temp = temp;
+			this.copy = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8));
+		}
+
+		public void addPage(CharSequence page) {
+			if (failed) return;
+			try {
+				for (int i = 0; i < page.length(); i++) {
+					char c = page.charAt(i);
+					copy.write(c == '\n' || c == '\r' ? ' ' : c);
+				}
+				copy.write('\n');
+			} catch (IOException ioe) {
+				// Keep downloading, we just won't have a copy
+				failed = true;
+			}
+		}
+
+		/**
+		 * We have every page, so keep the copy
+		 */
+		public void commit() {
+			try {
+				copy.close();
+			} catch (IOException ioe) {
+				failed = true;
+			}
+			if (failed)
+				temp.delete();
+			else
+				commitResults(jobId, temp, getResultsName(jobId)+PAGES_SUFFIX);
+		}
+
+		/**
+		 * The download failed, so throw the copy away
+		 */
+		public void discard() {
+			try {
+				copy.close();
+			} catch (IOException ioe) {
+			}
+			temp.delete();
+		}
+	}
+}
@@ -0,0 +1,152 @@
+package edu.ucsf.rbvi.clusterJob.internal.io;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.json.simple.JSONStreamAware;
+
+/**
+ * A small structured logger for the job submit/poll/fetch paths.  Messages
+ * are an event name followed by key=value pairs, and nothing is formatted
+ * unless the level is enabled.  Values are truncated as they are written,
+ * so logging a multi-megabyte network only costs the first few hundred
+ * characters rather than a full toString().
+ */
+public class JobLogger {
+	public static final int MAX_VALUE_LENGTH = 256;
+	final Logger logger;
+
+	public static JobLogger getLogger(Class<?> clazz) {
+		return new JobLogger(Logger.getLogger(clazz));
+	}
+
+	public JobLogger(Logger logger) {
+		this.logger = logger;
+	}
+
+	public boolean isDebugEnabled() { return logger.isDebugEnabled(); }
+
+	public void debug(String event, Object... keyValues) {
+		log(Level.DEBUG, null, event, keyValues);
+	}
+
+	public void info(String event, Object... keyValues) {
+		log(Level.INFO, null, event, keyValues);
+	}
+
+	public void warn(String event, Object... keyValues) {
+		log(Level.WARN, null, event, keyValues);
+	}
+
+	public void error(String event, Object... keyValues) {
+		log(Level.ERROR, null, event, keyValues);
+	}
+
+	public void error(Throwable t, String event, Object... keyValues) {
+		log(Level.ERROR, t, event, keyValues);
+	}
+
+	void log(Level level, Throwable t, String event, Object... keyValues) {
+		if (!logger.isEnabledFor(level))
+			return;
+		logger.log(level, format(event, keyValues), t);
+	}
+
+	static String format(String event, Object... keyValues) {
+		StringBuilder sb = new StringBuilder(event);
+		if (keyValues == null)
+			return sb.toString();
+		for (int i = 0; i < keyValues.length; i += 2) {
+			sb.append(' ');
+			sb.append(keyValues[i]);
+			sb.append('=');
+			if (i+1 < keyValues.length)
+				appendTruncated(sb, keyValues[i+1], MAX_VALUE_LENGTH);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Append at most maxLength characters of value to sb.  JSON values are
+	 * streamed so that we stop serializing as soon as we have enough.
+	 */
+	static void appendTruncated(StringBuilder sb, Object value, int maxLength) {
+		if (value == null) {
+			sb.append("null");
+		} else if (value instanceof JSONStreamAware) {
+			LimitedWriter writer = new LimitedWriter(sb, maxLength);
+			try {
+				((JSONStreamAware)value).writeJSONString(writer);
+			} catch (LimitReachedException lre) {
+				sb.append("...");
+			} catch (IOException ioe) {
+				sb.append("<unprintable>");
+			}
+		} else if (value instanceof CharSequence) {
+			CharSequence cs = (CharSequence)value;
+			if (cs.length() <= maxLength) {
+				sb.append(cs);
+			} else {
+				sb.append(cs, 0, maxLength);
+				sb.append("...(").append(cs.length()).append(" chars)");
+			}
+		} else {
+			String s = value.toString();
+			if (s.length() <= maxLength) {
+				sb.append(s);
+			} else {
+				sb.append(s, 0, maxLength);
+				sb.append("...");
+			}
+		}
+	}
+
+	static class LimitReachedException extends IOException {
+		LimitReachedException() { super("limit reached"); }
+	}
+
+	static class LimitedWriter extends Writer {
+		final StringBuilder sb;
+		int remaining;
+
+		LimitedWriter(StringBuilder sb, int limit) {
+			this.sb = sb;
+			this.remaining = limit;
+		}
+
+		@Override
+		public void write(char[] buf, int off, int len) throws IOException {
+			if (len > remaining) {
+				sb.append(buf, off, remaining);
+				remaining = 0;
+				throw new LimitReachedException();
+			}
+			sb.append(buf, off, len);
+			remaining -= len;
+		}
+
+		@Override
+		public void write(String str) throws IOException {
+			write(str, 0, str.length());
+		}
+
+		@Override
+		public void write(String str, int off, int len) throws IOException {
+			if (len > remaining) {
+				sb.append(str, off, off+remaining);
+				remaining = 0;
+				throw new LimitReachedException();
+			}
+			sb.append(str, off, off+len);
+			remaining -= len;
+		}
+
+		@Override
+		public void flush() {}
+
+		@Override
+		public void close() {}
+	}
+}
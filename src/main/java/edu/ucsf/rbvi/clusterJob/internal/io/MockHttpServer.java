@@ -1,12 +1,21 @@
 package edu.ucsf.rbvi.clusterJob.internal.io;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 
@@ -15,34 +24,108 @@ import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
-import org.cytoscape.jobs.CyJobStatus;
 import org.cytoscape.jobs.CyJobStatus.Status;
 
+import edu.ucsf.rbvi.clusterJob.internal.model.InitialMembership;
+
 /**
  * Create a mock HTTP service for a remote cluster service
  * that takes node data as input and returns a (currently random)
- * cluster result
+ * cluster result.
+ *
+ * This is a small concurrent job engine: ids come from an atomic counter,
+ * each job gets its own deadlines on a shared scheduler (queued, running,
+ * finished), and the submitted input is reduced to node ids and names
+ * that are never modified, so fetches build fresh results rather than
+ * changing shared state.  It is safe to drive from many threads at once.
+ * If a submission comes with an initial membership, nodes keep the
+ * cluster they started in and only the rest are assigned at random.
+ * If it comes with a seed, that seeds the random assignments.
+ * Fetches with a limit are paged: the cursor is just the offset of the
+ * next node.  A job is kept for a while after its last page is fetched,
+ * so that page can be fetched again, and is removed once a page past the
+ * end is asked for or the retention time is up.
+ * Running jobs report their progress with each check, along with an
+ * intermediate partition after each of LEVELS levels (unless the caller
+ * says it already has that level).
  */
 public class MockHttpServer {
-	static MockHttpServer instance = null;
 	static final String ERROR = "errorMessage";
-	static final String JOBID = "jobId";
+	static final String JOBID = "job_id";
 	static final String STATUS = "jobStatus";
 	static final String STATUS_MESSAGE = "message";
-	static int lastID = 0;
-	final ConcurrentMap<String, CyJobStatus> statusMap;
-	final ConcurrentMap<String, JSONObject> dataMap;
-	Timer timer = null;
-	
+	static final String CURSOR = "cursor";
+	static final String LIMIT = "limit";
+	static final String NEXT_CURSOR = "nextCursor";
+	static final String PROGRESS = "progress";
+	static final String PARTITION_LEVEL = "partitionLevel";
+	static final String SEED = "seed";
+	// How many intermediate partitions a running job reports
+	static final int LEVELS = 3;
+	static final AtomicLong lastID = new AtomicLong();
+	static final JobLogger log = JobLogger.getLogger(MockHttpServer.class);
+	final ConcurrentMap<String, MockJob> jobMap;
+	final ScheduledExecutorService scheduler;
+
+	// How long our jobs take
+	volatile long minDurationMillis = 10000;
+	volatile long maxDurationMillis = 30000;
+	// The fraction of that time spent waiting in the queue
+	volatile double queueFraction = 0.3;
+	volatile int nClusters = 5;
+	// How long we keep a job after its last page has been fetched
+	volatile long retainMillis = 60000;
+
+	private static class Holder {
+		static final MockHttpServer instance = new MockHttpServer();
+	}
+
 	static public MockHttpServer getServer() {
-		if (instance == null)
-			instance = new MockHttpServer();
-		return instance;
+		return Holder.instance;
+	}
+
+	public MockHttpServer() {
+		this(1);
 	}
 
-	protected MockHttpServer() {
-		statusMap = new ConcurrentHashMap<>();
-		dataMap = new ConcurrentHashMap<>();
+	public MockHttpServer(int schedulerThreads) {
+		jobMap = new ConcurrentHashMap<>();
+		scheduler = Executors.newScheduledThreadPool(schedulerThreads, new ThreadFactory() {
+			final AtomicInteger count = new AtomicInteger();
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "MockHttpServer scheduler "+count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Set how long jobs run.  Each job picks a duration uniformly between
+	 * min and max and spends queueFraction of it queued.
+	 */
+	public void setJobDuration(long minMillis, long maxMillis, double queueFraction) {
+		this.minDurationMillis = minMillis;
+		this.maxDurationMillis = Math.max(minMillis, maxMillis);
+		this.queueFraction = queueFraction;
+	}
+
+	public void setClusterCount(int nClusters) {
+		this.nClusters = nClusters;
+	}
+
+	/**
+	 * Set how long a job is kept after its last page has been fetched
+	 */
+	public void setRetention(long retainMillis) {
+		this.retainMillis = retainMillis;
+	}
+
+	public int getJobCount() { return jobMap.size(); }
+
+	public void shutdown() {
+		scheduler.shutdownNow();
+		jobMap.clear();
 	}
 
 	public Object getJSON(String url, Map<String, String> queryMap, Logger logger) {
@@ -52,7 +135,9 @@ public class MockHttpServer {
 	public Object postJSON(String url, Map<String, String> queryMap, Logger logger) {
 		// Get the command
 		String command = queryMap.get("command");
-		if (command.equals("submit")) {
+		if (command == null) {
+			return jsonStatus(Status.ERROR, "No command");
+		} else if (command.equals("submit")) {
 			return mockSubmit(queryMap, logger);
 		} else if (command.equals("fetch")) {
 			return mockFetch(queryMap, logger);
@@ -73,9 +158,6 @@ public class MockHttpServer {
 		if (!queryMap.containsKey("inputData"))
 			return jsonStatus(Status.ERROR, "Call to mockSubmit without any input");
 
-		String jobId = "JobId "+lastID;
-		lastID++;
-
 		// Parse the input
 		JSONParser parser = new JSONParser();
 		JSONObject obj;
@@ -94,17 +176,27 @@ public class MockHttpServer {
 		if (!netObject.containsKey("nodes"))
 			return jsonStatus(Status.ERROR, "No nodes in network!");
 
+		// The same seed gives the same clusters
+		Long seed = null;
+		if (queryMap.containsKey(SEED)) {
+			try {
+				seed = Long.valueOf(queryMap.get(SEED));
+			} catch (NumberFormatException e) {
+				return jsonStatus(Status.ERROR, "Bad seed: "+e.getMessage());
+			}
+		}
+
+		String jobId = "JobId "+lastID.getAndIncrement();
+
 		// Save the job
-		dataMap.put(jobId, obj);
-		statusMap.put(jobId, new CyJobStatus(Status.SUBMITTED, null));
-		// Start our timer (if not already running)
-		if (timer == null) {
-			timer = new Timer("MockHttpServer timer");
-			timer.schedule(new MockHttpTask(this), 10000);
-		}
-		JSONObject jsonReturn = (JSONObject)jsonStatus(statusMap.get(jobId).getStatus(), "Job "+jobId+" submitted");
+		MockJob job = new MockJob(jobId, netObject, seed);
+		jobMap.put(jobId, job);
+		schedule(job);
+
+		JSONObject jsonReturn = (JSONObject)jsonStatus(Status.SUBMITTED, "Job "+jobId+" submitted");
 		jsonReturn.put(JOBID, jobId);
-		System.out.println("mockSubmit json: "+jsonReturn.toString());
+		log.debug("mock.submit", "job", jobId, "nodes", job.nodeIds.length, "duration", job.duration,
+		          "warmStart", job.membership != null);
 		return jsonReturn;
 	}
 
@@ -113,26 +205,39 @@ public class MockHttpServer {
 			return jsonStatus(Status.UNKNOWN, "Call to mockFetch without a jobID");
 		}
 		String jobId = queryMap.get(JOBID);
-		if (!statusMap.containsKey(jobId)) {
+		MockJob job = jobMap.get(jobId);
+		if (job == null) {
 			return jsonStatus(Status.UNKNOWN, "Call to mockFetch without an unknown jobID");
 		}
 
-		// Get the network data
-		JSONObject json = dataMap.get(jobId);
-		JSONObject jsonNetwork = (JSONObject)json.get("network");
-		JSONArray nodes = (JSONArray)jsonNetwork.get("nodes");
+		// Build a new result from the (immutable) input
+		int from = 0;
+		int to = job.nodeIds.length;
+		boolean pastEnd = false;
+		try {
+			if (queryMap.containsKey(CURSOR)) {
+				int cursor = Integer.parseInt(queryMap.get(CURSOR));
+				pastEnd = cursor >= to && to > 0;
+				from = Math.min(cursor, to);
+			}
+			if (queryMap.containsKey(LIMIT))
+				to = (int)Math.min((long)from + Integer.parseInt(queryMap.get(LIMIT)), to);
+		} catch (NumberFormatException e) {
+			return jsonStatus(Status.ERROR, "Bad cursor or limit: "+e.getMessage());
+		}
+		JSONObject json = job.getResults(nClusters, from, to);
+		if (to < job.nodeIds.length) {
+			json.put(NEXT_CURSOR, Integer.toString(to));
+			return json;
+		}
 
-		int nodeCount = nodes.size();
-		int nClusters = 5;
-		for (Object nodeObject: nodes) {
-			JSONObject node = (JSONObject) nodeObject;
-			double rand = Math.random();
-			int cluster = ((int)(rand*nodeCount))%nClusters;
-			node.put("ClusterNumber", Integer.valueOf(cluster));
+		if (pastEnd) {
+			// The caller has everything, so we're done with it
+			remove(jobId);
+		} else if (job.fetched.compareAndSet(false, true)) {
+			// Keep it around in case the last page has to be fetched again
+			retain(job);
 		}
-		
-		// Remove it
-		remove(jobId);
 		return json;
 	}
 
@@ -141,10 +246,9 @@ public class MockHttpServer {
 			return jsonStatus(Status.UNKNOWN, "Call to mockCancel without a jobID");
 		}
 		String jobId = queryMap.get(JOBID);
-		if (!statusMap.containsKey(jobId)) {
+		if (remove(jobId) == null) {
 			return jsonStatus(Status.UNKNOWN, "Call to mockCancel without an unknown jobID");
 		}
-		remove(jobId);
 
 		return jsonStatus(Status.CANCELED, "Job ID "+jobId+" canceled by user");
 	}
@@ -154,15 +258,28 @@ public class MockHttpServer {
 			return jsonStatus(Status.UNKNOWN, "Call to mockCheck without a jobID");
 		}
 		String jobId = queryMap.get(JOBID);
-		System.out.println("mockCheck for job id: "+jobId);
-		if (!statusMap.containsKey(jobId)) {
+		log.debug("mock.check", "job", jobId);
+		MockJob job = jobMap.get(jobId);
+		if (job == null) {
 			return jsonStatus(Status.UNKNOWN, "Call to mockCheck without an unknown jobID");
 		}
-		CyJobStatus status = statusMap.get(jobId);
-		if (status.getStatus().equals(Status.CANCELED)) {
-			remove(jobId);
+		Status status = job.status;
+		JSONObject json = (JSONObject)jsonStatus(status, job.message);
+		if (status == Status.RUNNING) {
+			double progress = job.getProgress();
+			json.put(PROGRESS, progress);
+			int level = (int)(progress*LEVELS);
+			int known = 0;
+			try {
+				if (queryMap.containsKey(PARTITION_LEVEL))
+					known = Integer.parseInt(queryMap.get(PARTITION_LEVEL));
+			} catch (NumberFormatException e) {
+				known = 0;
+			}
+			if (level > 0 && level > known)
+				json.put("partition", job.getPartition(level, nClusters));
 		}
-		return jsonStatus(status.getStatus(), status.getMessage());
+		return json;
 	}
 
 	private Object jsonStatus(Status status, String message) {
@@ -173,64 +290,178 @@ public class MockHttpServer {
 		return obj;
 	}
 
-	private void remove(String jobId) {
-		System.out.println("Removing "+jobId);
-		statusMap.remove(jobId);
-		dataMap.remove(jobId);
+	private MockJob remove(String jobId) {
+		MockJob job = jobMap.remove(jobId);
+		if (job != null) {
+			log.debug("mock.remove", "job", jobId);
+			job.cancelTransitions();
+		}
+		return job;
+	}
 
-		// If we've just removed the last job, reset our timer
-		if (statusMap.size() == 0) {
-			timer.cancel();
-			timer = null;
-		} else {
-			for (String j: statusMap.keySet()) {
-				System.out.println("Job: "+j+" has status "+statusMap.get(j));
+	private void retain(final MockJob job) {
+		job.addTransition(scheduler.schedule(new Runnable() {
+			public void run() {
+				remove(job.jobId);
 			}
-		}
+		}, retainMillis, TimeUnit.MILLISECONDS));
+	}
+
+	/**
+	 * Schedule this job's status transitions against its own deadlines
+	 */
+	private void schedule(MockJob job) {
+		long queued = job.duration * queueFraction < 1 ? 0 : (long)(job.duration * queueFraction);
+		job.addTransition(scheduler.schedule(new Transition(job, Status.SUBMITTED, Status.QUEUED),
+		                                     Math.min(queued/2, 1000L), TimeUnit.MILLISECONDS));
+		job.addTransition(scheduler.schedule(new Transition(job, Status.QUEUED, Status.RUNNING),
+		                                     queued, TimeUnit.MILLISECONDS));
+		job.addTransition(scheduler.schedule(new Transition(job, Status.RUNNING, Status.FINISHED),
+		                                     job.duration, TimeUnit.MILLISECONDS));
 	}
 
-	class MockHttpTask extends TimerTask {
-		final MockHttpServer server;
+	private long pickDuration() {
+		long range = maxDurationMillis - minDurationMillis;
+		if (range <= 0) return minDurationMillis;
+		return minDurationMillis + ThreadLocalRandom.current().nextLong(range+1);
+	}
+
+	class Transition implements Runnable {
+		final MockJob job;
+		final Status from;
+		final Status to;
 
-		MockHttpTask(MockHttpServer s) {
-			server = s;
+		Transition(MockJob job, Status from, Status to) {
+			this.job = job;
+			this.from = from;
+			this.to = to;
 		}
 
 		public void run() {
-			timer.cancel();
-			for (String jobId: statusMap.keySet()) {
-				// More or less randomly progress the status
-				double r = Math.random();
-				System.out.println("r = "+r);
-				if (r > 0.2) {
-					CyJobStatus stat = statusMap.get(jobId);
-					Status newStat = Status.UNKNOWN;
-					System.out.println("Current status = "+stat.getStatus().toString());
-					switch (stat.getStatus()) {
-						case SUBMITTED:
-							newStat = Status.QUEUED;
-							break;
-						case QUEUED:
-							newStat = Status.RUNNING;
-							break;
-						case RUNNING:
-							newStat = Status.FINISHED;
-							break;
-						case FINISHED:
-							newStat = Status.FINISHED;
-							break;
-						case CANCELED:
-							newStat = Status.CANCELED;
-							break;
-					}
-					System.out.println("New status = "+newStat.toString());
-					statusMap.put(jobId, new CyJobStatus(newStat, stat.getMessage()));
-				}
+			if (job.advance(from, to))
+				log.debug("mock.transition", "job", job.jobId, "from", from, "to", to);
+		}
+	}
+
+	class MockJob {
+		final String jobId;
+		final long duration;
+		final Object networkId;
+		final Object networkName;
+		final Object[] nodeIds;
+		final Object[] nodeNames;
+		final InitialMembership membership;
+		// Null unless the submission asked for one
+		final Long seed;
+		final long started = System.currentTimeMillis();
+		final List<ScheduledFuture<?>> transitions = Collections.synchronizedList(new ArrayList<ScheduledFuture<?>>());
+		volatile Status status = Status.SUBMITTED;
+		volatile String message = null;
+		// Set once the last page has been fetched
+		final AtomicBoolean fetched = new AtomicBoolean();
+
+		MockJob(String jobId, JSONObject netObject, Long seed) {
+			this.jobId = jobId;
+			this.seed = seed;
+			this.duration = pickDuration();
+			this.networkId = netObject.get("id");
+			this.networkName = netObject.get("name");
+			JSONArray nodes = (JSONArray)netObject.get("nodes");
+			nodeIds = new Object[nodes.size()];
+			nodeNames = new Object[nodes.size()];
+			int index = 0;
+			for (Object nodeObject: nodes) {
+				JSONObject node = (JSONObject) nodeObject;
+				nodeIds[index] = node.get("id");
+				nodeNames[index] = node.get("name");
+				index++;
+			}
+			membership = InitialMembership.fromJSON(netObject.get(InitialMembership.KEY));
+		}
+
+		void addTransition(ScheduledFuture<?> future) {
+			transitions.add(future);
+		}
+
+		void cancelTransitions() {
+			synchronized (transitions) {
+				for (ScheduledFuture<?> future: transitions)
+					future.cancel(false);
+				transitions.clear();
+			}
+		}
+
+		/**
+		 * Only move forward, so a late transition can never undo a
+		 * later one (or a cancel).
+		 */
+		synchronized boolean advance(Status from, Status to) {
+			if (status != from) {
+				// We might have skipped a step if the deadlines collided
+				if (!(from == Status.QUEUED && status == Status.SUBMITTED) &&
+				    !(from == Status.RUNNING && (status == Status.QUEUED || status == Status.SUBMITTED)))
+					return false;
 			}
-			timer = new Timer("MockHttpServer timer");
-			timer.schedule(new MockHttpTask(server), 5000);
+			status = to;
+			return true;
 		}
 
+		/**
+		 * How far through its running time the job is
+		 */
+		double getProgress() {
+			long queued = (long)(duration * queueFraction);
+			long running = duration - queued;
+			if (running <= 0)
+				return 1.0;
+			double progress = (double)(System.currentTimeMillis() - started - queued) / running;
+			return Math.max(0.0, Math.min(1.0, progress));
+		}
+
+		/**
+		 * The same partition every time for the same level
+		 */
+		JSONObject getPartition(int level, int clusters) {
+			Random random = new Random((seed != null ? seed : jobId.hashCode())*31L + level);
+			JSONArray ids = new JSONArray();
+			JSONArray assignments = new JSONArray();
+			for (int i = 0; i < nodeIds.length; i++) {
+				int cluster = membership == null ? -1 : membership.getCluster(i);
+				if (cluster < 0)
+					cluster = random.nextInt(clusters);
+				ids.add(nodeIds[i]);
+				assignments.add(Integer.valueOf(cluster));
+			}
+			JSONObject partition = new JSONObject();
+			partition.put("level", level);
+			partition.put("ids", ids);
+			partition.put("clusters", assignments);
+			return partition;
+		}
+
+		JSONObject getResults(int clusters, int from, int to) {
+			// Seeded results are the same every time a page is fetched
+			Random random = seed != null ? new Random(seed*31L + from) : ThreadLocalRandom.current();
+			JSONArray nodes = new JSONArray();
+			int nodeCount = nodeIds.length;
+			for (int i = from; i < to; i++) {
+				JSONObject node = new JSONObject();
+				node.put("id", nodeIds[i]);
+				node.put("name", nodeNames[i]);
+				int cluster = membership == null ? -1 : membership.getCluster(i);
+				if (cluster < 0)
+					cluster = ((int)(random.nextDouble()*nodeCount))%clusters;
+				node.put("ClusterNumber", Integer.valueOf(cluster));
+				nodes.add(node);
+			}
+			JSONObject network = new JSONObject();
+			network.put("id", networkId);
+			network.put("name", networkName);
+			network.put("nodes", nodes);
+			JSONObject json = new JSONObject();
+			json.put("network", network);
+			return json;
+		}
 	}
 
 }
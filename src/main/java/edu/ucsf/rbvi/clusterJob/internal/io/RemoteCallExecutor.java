@@ -0,0 +1,115 @@
+package edu.ucsf.rbvi.clusterJob.internal.io;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Where the execution service runs its blocking remote calls.  In DIRECT
+ * mode the calls run on the caller's thread (the way they always have).
+ * In VIRTUAL mode each call gets its own virtual thread, so thousands of
+ * jobs waiting on the network cost almost nothing in platform threads.
+ * Virtual threads need Java 21, and we compile for much older JVMs, so
+ * we look them up reflectively and fall back to a small dedicated pool
+ * (POOL mode) if they aren't there.
+ */
+public class RemoteCallExecutor {
+	public enum Mode {
+		DIRECT("direct"),
+		VIRTUAL("virtual"),
+		POOL("pool");
+
+		String text;
+		Mode(String text) {
+			this.text = text;
+		}
+		public String toString() { return text; }
+
+		public static Mode fromString(String text) {
+			if (text != null) {
+				for (Mode mode: values()) {
+					if (mode.text.equalsIgnoreCase(text.trim()))
+						return mode;
+				}
+			}
+			return DIRECT;
+		}
+	}
+
+	public static final int DEFAULT_POOL_SIZE = 16;
+	static final JobLogger log = JobLogger.getLogger(RemoteCallExecutor.class);
+
+	final Mode mode;
+	final ExecutorService executor;
+
+	RemoteCallExecutor(Mode mode, ExecutorService executor) {
+		this.mode = mode;
+		this.executor = executor;
+	}
+
+	/**
+	 * Create an executor for the requested mode.  If virtual threads aren't
+	 * available, we get a pool of poolSize daemon threads instead.
+	 */
+	public static RemoteCallExecutor create(Mode requested, int poolSize) {
+		if (requested == Mode.VIRTUAL) {
+			ExecutorService virtual = newVirtualThreadExecutor();
+			if (virtual != null)
+				return new RemoteCallExecutor(Mode.VIRTUAL, virtual);
+			log.info("remote.noVirtualThreads", "fallback", Mode.POOL, "poolSize", poolSize);
+			requested = Mode.POOL;
+		}
+		if (requested == Mode.POOL)
+			return new RemoteCallExecutor(Mode.POOL, newPool(poolSize));
+		return new RemoteCallExecutor(Mode.DIRECT, null);
+	}
+
+	public Mode getMode() { return mode; }
+
+	public <T> Future<T> submit(Callable<T> call) {
+		if (executor == null) {
+			FutureTask<T> task = new FutureTask<>(call);
+			task.run();
+			return task;
+		}
+		return executor.submit(call);
+	}
+
+	public void execute(Runnable runnable) {
+		if (executor == null)
+			runnable.run();
+		else
+			executor.execute(runnable);
+	}
+
+	public void shutdown() {
+		if (executor != null)
+			executor.shutdown();
+	}
+
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService)factory.invoke(null);
+		} catch (Exception e) {
+			// Older JVM (or preview features disabled)
+			return null;
+		}
+	}
+
+	private static ExecutorService newPool(int poolSize) {
+		return Executors.newFixedThreadPool(Math.max(1, poolSize), new ThreadFactory() {
+			final AtomicInteger count = new AtomicInteger();
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ClusterJob I/O "+count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+}
@@ -0,0 +1,51 @@
+package edu.ucsf.rbvi.clusterJob.internal.io;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Run at most one call per key at a time.  If a call for a key is already
+ * in flight, later callers wait for it and share its result rather than
+ * making their own.  The first caller runs the call on its own thread.
+ */
+public class SingleFlight<K, V> {
+	final ConcurrentMap<K, FutureTask<V>> inFlight = new ConcurrentHashMap<>();
+	final AtomicLong shared = new AtomicLong();
+
+	public V execute(K key, Callable<V> call) throws Exception {
+		FutureTask<V> task = new FutureTask<>(call);
+		FutureTask<V> existing = inFlight.putIfAbsent(key, task);
+		if (existing != null) {
+			shared.incrementAndGet();
+			return get(existing);
+		}
+		try {
+			task.run();
+		} finally {
+			inFlight.remove(key, task);
+		}
+		return get(task);
+	}
+
+	/**
+	 * How many calls were answered by someone else's request
+	 */
+	public long getSharedCount() { return shared.get(); }
+
+	private V get(FutureTask<V> task) throws Exception {
+		try {
+			return task.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception)
+				throw (Exception)cause;
+			if (cause instanceof Error)
+				throw (Error)cause;
+			throw e;
+		}
+	}
+}
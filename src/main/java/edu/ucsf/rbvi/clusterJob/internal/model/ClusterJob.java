@@ -7,7 +7,22 @@ import org.cytoscape.jobs.CyJobDataService;
 import org.cytoscape.jobs.CyJobExecutionService;
 import org.cytoscape.jobs.CyJobMonitor;
 
+import edu.ucsf.rbvi.clusterJob.internal.io.HttpUtils;
+
 public class ClusterJob extends AbstractCyJob {
+	JobMetrics metrics = null;
+	ShardGroup.Shard shard = null;
+	// Everything we send or receive for this job, so a cancel can stop it
+	final HttpUtils.RequestHandle requests = new HttpUtils.RequestHandle();
+	// Set if a newer submission for the same network replaced us
+	volatile boolean superseded = false;
+	String supersessionKey = null;
+	// What we pruned from the network before sending it
+	EdgeSparsifier.Stats sparsification = null;
+	// How far along the service says we are (0 to 1), or -1 if it hasn't said
+	volatile double progress = -1.0;
+	// The level of the last intermediate partition we got
+	volatile int partitionLevel = 0;
 
 	public ClusterJob(String name, String basePath, 
 	                  CyJobExecutionService executionService, 
@@ -24,4 +39,86 @@ public class ClusterJob extends AbstractCyJob {
 	public void setBasePath(String basePath) {
 		this.path = basePath;
 	}
+
+	public void setMetrics(JobMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public JobMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * If this job is one shard of a larger network, the shard
+	 */
+	public void setShard(ShardGroup.Shard shard) {
+		this.shard = shard;
+	}
+
+	public ShardGroup.Shard getShard() {
+		return shard;
+	}
+
+	public HttpUtils.RequestHandle getRequestHandle() {
+		return requests;
+	}
+
+	/**
+	 * Abort any upload or download in progress for this job, and any we
+	 * try to start from now on
+	 */
+	public void cancelRequests() {
+		requests.abort();
+	}
+
+	public boolean isCanceled() {
+		return requests.isAborted();
+	}
+
+	public void setSuperseded(boolean superseded) {
+		this.superseded = superseded;
+	}
+
+	public boolean isSuperseded() {
+		return superseded;
+	}
+
+	public void setSupersessionKey(String key) {
+		this.supersessionKey = key;
+	}
+
+	public String getSupersessionKey() {
+		return supersessionKey;
+	}
+
+	/**
+	 * Record what sparsification did to this job's edges
+	 */
+	public void setSparsification(EdgeSparsifier.Stats stats) {
+		this.sparsification = stats;
+		if (stats != null && metrics != null) {
+			metrics.record(JobMetrics.Stage.SPARSIFY, stats.getNanos());
+			metrics.record(JobMetrics.Stage.PRUNED_EDGES, stats.getEdgesPruned());
+		}
+	}
+
+	public EdgeSparsifier.Stats getSparsification() {
+		return sparsification;
+	}
+
+	public void setProgress(double progress) {
+		this.progress = progress;
+	}
+
+	public double getProgress() {
+		return progress;
+	}
+
+	public void setPartitionLevel(int level) {
+		this.partitionLevel = level;
+	}
+
+	public int getPartitionLevel() {
+		return partitionLevel;
+	}
 }
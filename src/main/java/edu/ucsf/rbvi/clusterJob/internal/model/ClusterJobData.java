@@ -8,6 +8,9 @@ import org.cytoscape.jobs.CyJobData;
 
 public class ClusterJobData implements CyJobData {
 	Map<String, Object> dataStore;
+	// If this data is submitted more than once, serialize it once
+	boolean shared = false;
+	String serialized = null;
 
 	public ClusterJobData() {
 		dataStore = new HashMap<>();
@@ -16,6 +19,30 @@ public class ClusterJobData implements CyJobData {
 	@Override
 	public Map<String, Object> getAllValues() { return dataStore; }
 
+	/**
+	 * Keep the serialized form around, since we'll be submitting this more
+	 * than once
+	 */
+	public synchronized void setShared(boolean shared) {
+		this.shared = shared;
+		if (!shared)
+			serialized = null;
+	}
+
+	public synchronized boolean isShared() { return shared; }
+
+	synchronized String getSerialized() { return serialized; }
+
+	synchronized void setSerialized(String serialized) {
+		if (shared)
+			this.serialized = serialized;
+	}
+
+	/**
+	 * Something changed, so the serialized form is out of date
+	 */
+	synchronized void invalidate() { serialized = null; }
+
 	@Override
 	public Object get(String key) {
 		if (dataStore.containsKey(key))
@@ -25,11 +52,13 @@ public class ClusterJobData implements CyJobData {
 
 	@Override
 	public void put(String key, Object value) {
+		invalidate();
 		dataStore.put(key, value);
 	}
 
 	@Override
 	public Object remove(String key) {
+		invalidate();
 		if (dataStore.containsKey(key))
 			return dataStore.remove(key);
 		return null;
@@ -47,6 +76,7 @@ public class ClusterJobData implements CyJobData {
 
 	@Override
 	public void clear() {
+		invalidate();
 		dataStore.clear();
 	}
 }
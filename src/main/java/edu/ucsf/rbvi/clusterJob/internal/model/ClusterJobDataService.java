@@ -6,7 +6,10 @@ import java.io.InputStreamReader;
 import java.io.IOException;
 import java.io.Reader;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -18,7 +21,6 @@ import org.json.simple.parser.ParseException;
 import org.cytoscape.jobs.CyJob;
 import org.cytoscape.jobs.CyJobData;
 import org.cytoscape.jobs.CyJobDataService;
-import org.cytoscape.jobs.SUIDUtil;
 import org.cytoscape.model.CyEdge;
 import org.cytoscape.model.CyIdentifiable;
 import org.cytoscape.model.CyNetwork;
@@ -30,15 +32,66 @@ import org.cytoscape.model.CyTable;
 import org.cytoscape.model.subnetwork.CyRootNetwork;
 import org.cytoscape.service.util.CyServiceRegistrar;
 
+import edu.ucsf.rbvi.clusterJob.internal.io.JobLogger;
+
 public class ClusterJobDataService implements CyJobDataService {
+	static final JobLogger log = JobLogger.getLogger(ClusterJobDataService.class);
+	public static final String NODE_COLUMNS = "nodeColumns";
+	public static final String EDGE_COLUMNS = "edgeColumns";
+	static final String COLUMNAR_PROPERTY = "clusterJob.columnar";
+	static final String NAME_DICTIONARY_PROPERTY = "clusterJob.nameDictionary";
 	final private CyServiceRegistrar registrar;
 	final private CyNetworkManager networkManager;
 	final private CyNetworkFactory networkFactory;
+	// Send attribute columns as typed blocks rather than with each element
+	private volatile boolean columnar;
+	// Only services we talk to with the command protocol can read anything
+	// but the original format, so the options above are ignored otherwise
+	private volatile boolean extendedFormat = false;
+	// Send edge endpoints as indexes into a node dictionary
+	private volatile boolean nameDictionary;
+	// Old to new SUIDs for networks restored from a session
+	final private SuidRemapCache remapCache = new SuidRemapCache();
 
 	public ClusterJobDataService(CyServiceRegistrar registrar) {
 		this.registrar = registrar;
 		this.networkManager = registrar.getService(CyNetworkManager.class);
 		this.networkFactory = registrar.getService(CyNetworkFactory.class);
+		this.columnar = "true".equalsIgnoreCase(System.getProperty(COLUMNAR_PROPERTY));
+		this.nameDictionary = "true".equalsIgnoreCase(System.getProperty(NAME_DICTIONARY_PROPERTY));
+	}
+
+	/**
+	 * Send attribute columns as typed blocks.  Off unless clusterJob.columnar
+	 * is true, and only used if the service supports it (see below).
+	 */
+	public void setColumnar(boolean columnar) { this.columnar = columnar; }
+
+	public boolean isColumnar() { return columnar; }
+
+	/**
+	 * Whether the service we're submitting to understands the extended
+	 * payload format (column blocks, node dictionary).  The execution service
+	 * sets this when it's pointed at a command protocol service.
+	 */
+	public void setExtendedFormat(boolean extendedFormat) { this.extendedFormat = extendedFormat; }
+
+	public boolean isExtendedFormat() { return extendedFormat; }
+
+	/**
+	 * Send edge endpoints as indexes into a node dictionary.  Off unless
+	 * clusterJob.nameDictionary is true, and like column blocks, only used
+	 * if the service supports the extended format.
+	 */
+	public void setNameDictionary(boolean nameDictionary) { this.nameDictionary = nameDictionary; }
+
+	public boolean isNameDictionary() { return nameDictionary; }
+
+	/**
+	 * A new session was loaded, so any SUID mappings we have are stale
+	 */
+	public void sessionLoaded() {
+		remapCache.clear();
 	}
 
 	@Override
@@ -64,27 +117,77 @@ public class ClusterJobDataService implements CyJobDataService {
 	                         List<String> edgeColumns) {
 		if (data == null)
 			data = new ClusterJobData();
-		Map<String, Object> netMap = new HashMap<>();
+		boolean columnBlocks = columnar && extendedFormat;
+		// The dictionary has to come before the edges so they can be streamed back
+		Map<String, Object> netMap = new LinkedHashMap<>();
 		addCyIdentifiable(netMap, network, network);
+		NodeDictionary dictionary = nameDictionary && extendedFormat ? new NodeDictionary() : null;
+		if (dictionary != null)
+			netMap.put(NodeDictionary.KEY, dictionary);
 		List<Map<String, Object>> nodeList = new ArrayList<>();
 		List<Map<String, Object>> edgeList = new ArrayList<>();
+		List<CyNode> nodes = new ArrayList<>();
+		List<CyEdge> edges = new ArrayList<>();
 		for (CyIdentifiable id: nodesAndEdges) {
 			if (id instanceof CyNode) {
-				Map<String, Object> node = makeNodeMap(network, (CyNode)id, nodeColumns);
+				Map<String, Object> node = makeNodeMap(network, (CyNode)id, columnBlocks ? null : nodeColumns);
 				nodeList.add(node);
+				nodes.add((CyNode)id);
 			} else if (id instanceof CyEdge) {
-				Map<String, Object> edge = makeEdgeMap(network, (CyEdge)id, edgeColumns);
+				Map<String, Object> edge = makeEdgeMap(network, (CyEdge)id, columnBlocks ? null : edgeColumns, dictionary);
 				edgeList.add(edge);
+				edges.add((CyEdge)id);
 			}
 		}
+		if (dictionary != null && dictionary.size() == 0)
+			netMap.remove(NodeDictionary.KEY);
 		if (nodeList.size() > 0)
 			netMap.put("nodes", nodeList);
 		if (edgeList.size() > 0)
 			netMap.put("edges", edgeList);
+		if (columnBlocks) {
+			addColumnBlocks(network, netMap, NODE_COLUMNS, network.getDefaultNodeTable(), nodeColumns, nodes, nodeList);
+			addColumnBlocks(network, netMap, EDGE_COLUMNS, network.getDefaultEdgeTable(), edgeColumns, edges, edgeList);
+		}
 		data.put(key, netMap);
 		return data;
 	}
 
+	/**
+	 * Add the current contents of column as the initial cluster for each
+	 * node of the network we added under key, so the service can warm-start
+	 * from it.  Returns false (and adds nothing) if there's nothing to start
+	 * from.
+	 */
+	public boolean addInitialMembership(CyJobData data, String key, String column) {
+		Object obj = data == null ? null : data.get(key);
+		if (!(obj instanceof Map))
+			return false;
+		Map<String, Object> netMap = (Map<String, Object>)obj;
+		Object id = netMap.get("id");
+		Object nodeList = netMap.get("nodes");
+		if (!(id instanceof Long) || !(nodeList instanceof List) || !networkManager.networkExists((Long)id))
+			return false;
+
+		CyNetwork network = networkManager.getNetwork((Long)id);
+		List<CyNode> nodes = new ArrayList<>();
+		for (Object node: (List<?>)nodeList) {
+			Object suid = ((Map<?, ?>)node).get("id");
+			CyNode cyNode = suid instanceof Long ? network.getNode((Long)suid) : null;
+			// A node that's gone can't line up with anything
+			if (cyNode == null)
+				return false;
+			nodes.add(cyNode);
+		}
+		InitialMembership membership = InitialMembership.extract(network, column, nodes);
+		if (membership == null)
+			return false;
+		netMap.put(InitialMembership.KEY, membership);
+		if (data instanceof ClusterJobData)
+			((ClusterJobData)data).invalidate();
+		return true;
+	}
+
 	@Override
 	public CyJobData getDataInstance() {
 		return new ClusterJobData();
@@ -132,42 +235,52 @@ public class ClusterJobDataService implements CyJobDataService {
 		if (data.containsKey("job")) {
 			job = (CyJob)data.get("job");
 
-			// See if this network was saved in the session information
-			network = SUIDUtil.restoreNetwork(job, networkManager, networkSUID, false);
-
-			List<Long> oldIds = new ArrayList<>();
-			if (network != null) {
-				if (netMap.containsKey("nodes")) {
-					for (Object o: (JSONArray)netMap.get("nodes")) {
-						Long id = (Long)((JSONObject)o).get("id");
-						if (id != null) oldIds.add(id);
-					}
-				}
-				if (netMap.containsKey("edges")) {
-					for (Object o: (JSONArray)netMap.get("edges")) {
-						Long id = (Long)((JSONObject)o).get("id");
-						if (id != null) oldIds.add(id);
-					}
-				}
-			}
-			suidMap = SUIDUtil.restoreSUIDs(job, network, oldIds, false);
+			// See if this network was saved in the session information.  The
+			// SUID mappings are shared by all of the jobs on this network.
+			network = remapCache.restoreNetwork(job, networkManager, networkSUID);
+			suidMap = remapCache.getSUIDMap(job, network, netMap);
 		}
 
 		// Find the network.  If we can't find one, create one
 		if (network == null)
 			network = findNetwork(networkSUID, networkName);
 	
+		// If we got column blocks, we need to remember the order of the nodes and edges
+		List<CyNode> resolvedNodes = netMap.containsKey(NODE_COLUMNS) ? new ArrayList<CyNode>() : null;
+		List<CyEdge> resolvedEdges = netMap.containsKey(EDGE_COLUMNS) ? new ArrayList<CyEdge>() : null;
+
 		Map<String, CyNode> nodeNameMap = null;
 		if (netMap.containsKey("nodes")) {
-			nodeNameMap = getNodes(network, (JSONArray)netMap.get("nodes"), suidMap);
+			nodeNameMap = getNodes(network, (JSONArray)netMap.get("nodes"), suidMap, resolvedNodes);
 		}
 		if (netMap.containsKey("edges")) {
-			getEdges(network, nodeNameMap, (JSONArray)netMap.get("edges"), suidMap);
+			if (nodeNameMap == null)
+				nodeNameMap = getNodeNameMap(network);
+			NodeDictionary dictionary = NodeDictionary.fromJSON(netMap.get(NodeDictionary.KEY));
+			getEdges(network, nodeNameMap, dictionary, (JSONArray)netMap.get("edges"), suidMap, resolvedEdges);
 		}
+		if (resolvedNodes != null)
+			applyColumnBlocks(network.getDefaultNodeTable(), (Map<?, ?>)netMap.get(NODE_COLUMNS), resolvedNodes);
+		if (resolvedEdges != null)
+			applyColumnBlocks(network.getDefaultEdgeTable(), (Map<?, ?>)netMap.get(EDGE_COLUMNS), resolvedEdges);
 		return network;
 	}
 
+	/**
+	 * The old to new SUID mapping for job's results on network, covering at
+	 * least ids.  This is the same mapping getNetworkData uses, for results
+	 * that are applied as they arrive.
+	 */
+	public Map<Long, CyIdentifiable> getRestoredIds(CyJob job, CyNetwork network, Collection<Long> ids) {
+		return remapCache.getSUIDMap(job, network, ids);
+	}
+
 	public Object getSerializedData(CyJobData data) {
+		// Have we already done this?
+		ClusterJobData shared = data instanceof ClusterJobData && ((ClusterJobData)data).isShared() ? (ClusterJobData)data : null;
+		if (shared != null && shared.getSerialized() != null)
+			return shared.getSerialized();
+
 		// Convert the data into JSON
 		StringBuilder sb = new StringBuilder();
 		sb.append("{\n");
@@ -178,6 +291,8 @@ public class ClusterJobDataService implements CyJobDataService {
 			sb.append(",\n");
 		}
 		sb.append("}");
+		if (shared != null)
+			shared.setSerialized(sb.toString());
 		return sb.toString();
 	}
 
@@ -218,7 +333,13 @@ public class ClusterJobDataService implements CyJobDataService {
 	}
 
 	private void convertToJSON(Object obj, StringBuilder sb) {
-		if (obj instanceof List) {
+		if (obj instanceof ColumnData) {
+			((ColumnData)obj).appendJSON(sb);
+		} else if (obj instanceof NodeDictionary) {
+			((NodeDictionary)obj).appendJSON(sb);
+		} else if (obj instanceof InitialMembership) {
+			((InitialMembership)obj).appendJSON(sb);
+		} else if (obj instanceof List) {
 			List<?> list = (List)obj;
 			sb.append("[");
 			boolean first = true;
@@ -274,11 +395,17 @@ public class ClusterJobDataService implements CyJobDataService {
 		return nodeMap;
 	}
 
-	private Map<String, Object> makeEdgeMap(CyNetwork network, CyEdge edge, List<String> edgeColumns) {
+	private Map<String, Object> makeEdgeMap(CyNetwork network, CyEdge edge, List<String> edgeColumns,
+	                                        NodeDictionary dictionary) {
 		Map<String, Object> edgeMap = new HashMap<>();
 		addCyIdentifiable(edgeMap, network, edge);
-		edgeMap.put("source", getNodePointer(network, edge.getSource()));
-		edgeMap.put("target", getNodePointer(network, edge.getTarget()));
+		if (dictionary != null) {
+			edgeMap.put("source", dictionary.intern(network, edge.getSource()));
+			edgeMap.put("target", dictionary.intern(network, edge.getTarget()));
+		} else {
+			edgeMap.put("source", getNodePointer(network, edge.getSource()));
+			edgeMap.put("target", getNodePointer(network, edge.getTarget()));
+		}
 		addColumns(edgeMap, network.getRow(edge), edgeColumns);
 		return edgeMap;
 	}
@@ -326,33 +453,115 @@ public class ClusterJobDataService implements CyJobDataService {
 		return nameNetwork;
 	}
 
-	private Map<String, CyNode> getNodes(CyNetwork network, JSONArray nodeArray, Map<Long, ? extends CyIdentifiable> restoredIds) {
+	private Map<String, CyNode> getNodes(CyNetwork network, JSONArray nodeArray, Map<Long, ? extends CyIdentifiable> restoredIds,
+	                                     List<CyNode> resolvedNodes) {
+		Map<String, CyNode> nodeNameMap = getNodeNameMap(network);
+		for (Object obj: nodeArray) {
+			CyNode node = applyNode(network, nodeNameMap, (JSONObject)obj, restoredIds);
+			if (resolvedNodes != null)
+				resolvedNodes.add(node);
+		}
+		return nodeNameMap;
+	}
+
+	/**
+	 * Read the requested columns a whole column at a time and add them to
+	 * netMap as typed blocks.  Columns that can't be stored as a block (lists)
+	 * are added to each element the old way.
+	 */
+	private void addColumnBlocks(CyNetwork network, Map<String, Object> netMap, String key, CyTable table,
+	                             List<String> columns, List<? extends CyIdentifiable> elements,
+	                             List<Map<String, Object>> elementMaps) {
+		if (columns == null || columns.size() == 0 || elements.size() == 0)
+			return;
+		Map<String, Object> blocks = new LinkedHashMap<>();
+		for (String column: columns) {
+			ColumnData block = ColumnData.extract(table, column, elements);
+			if (block != null) {
+				blocks.put(column, block);
+				continue;
+			}
+			List<String> single = Collections.singletonList(column);
+			for (int i = 0; i < elements.size(); i++)
+				addColumns(elementMaps.get(i), network.getRow(elements.get(i)), single);
+		}
+		if (blocks.size() > 0)
+			netMap.put(key, blocks);
+	}
+
+	/**
+	 * Write column blocks we got back to table.  elements are the nodes or
+	 * edges in the same order as the values in each block.
+	 */
+	public void applyColumnBlocks(CyTable table, Map<?, ?> blocks, List<? extends CyIdentifiable> elements) {
+		if (blocks == null) return;
+		for (Object column: blocks.keySet()) {
+			Object block = blocks.get(column);
+			if (block instanceof JSONObject)
+				ColumnData.apply(table, column.toString(), (JSONObject)block, elements);
+		}
+	}
+
+	/**
+	 * Get a map from shared name to node for all of the nodes in network.  This
+	 * is what we fall back on when the SUIDs in our results don't match.
+	 */
+	public Map<String, CyNode> getNodeNameMap(CyNetwork network) {
 		Map<String, CyNode> nodeNameMap = new HashMap<>();
 		for (CyNode node: network.getNodeList()) {
 			String nodeName = network.getRow(node).get(CyRootNetwork.SHARED_NAME, String.class);
 			nodeNameMap.put(nodeName, node);
 		}
-		for (Object obj: nodeArray) {
-			JSONObject nodeMap = (JSONObject)obj;
-			CyNode node = findNode(network, nodeNameMap, nodeMap, restoredIds);
-
-			for (Object key: nodeMap.keySet()) {
-				String column = (String) key;
-				if (column.equals("id") || column.equals("name")) continue;
-				Object columnObj = nodeMap.get(column);
-				if (columnObj instanceof JSONArray)
-					addListColumnData(network.getDefaultNodeTable(), node, column, (JSONArray)columnObj);
-				else
-					addColumnData(network.getDefaultNodeTable(), node, column, columnObj);
-			}
-		}
 		return nodeNameMap;
 	}
 
+	/**
+	 * Apply the results for a single node to network.  This is exposed so that
+	 * results can be applied one node at a time as they arrive.
+	 */
+	public CyNode applyNode(CyNetwork network, Map<String, CyNode> nodeNameMap, JSONObject nodeMap,
+	                        Map<Long, ? extends CyIdentifiable> restoredIds) {
+		CyNode node = findNode(network, nodeNameMap, nodeMap, restoredIds);
+
+		for (Object key: nodeMap.keySet()) {
+			String column = (String) key;
+			if (column.equals("id") || column.equals("name")) continue;
+			Object columnObj = nodeMap.get(column);
+			if (columnObj instanceof JSONArray)
+				addListColumnData(network.getDefaultNodeTable(), node, column, (JSONArray)columnObj);
+			else
+				addColumnData(network.getDefaultNodeTable(), node, column, columnObj);
+		}
+		return node;
+	}
+
 	private CyNode findNode(CyNetwork network, Map<String, CyNode> nodeNameMap, JSONObject nodeMap, 
 	                        Map<Long, ? extends CyIdentifiable> restoredIds) {
-		Long suid = (Long)nodeMap.get("id");
-		String name = (String)nodeMap.get("name");
+		return findNode(network, nodeNameMap, (Long)nodeMap.get("id"), (String)nodeMap.get("name"), restoredIds);
+	}
+
+	/**
+	 * Find an edge endpoint, which is either a full node pointer or an
+	 * index into the dictionary.  Dictionary entries are only looked up once.
+	 */
+	private CyNode findNode(CyNetwork network, Map<String, CyNode> nodeNameMap, NodeDictionary dictionary,
+	                        Object pointer, Map<Long, ? extends CyIdentifiable> restoredIds) {
+		if (!(pointer instanceof Number))
+			return findNode(network, nodeNameMap, (JSONObject)pointer, restoredIds);
+
+		int index = ((Number)pointer).intValue();
+		if (dictionary == null || index < 0 || index >= dictionary.size())
+			throw new IllegalArgumentException("Edge refers to node "+index+" which isn't in the node dictionary");
+		CyNode node = dictionary.getNode(index);
+		if (node == null) {
+			node = findNode(network, nodeNameMap, dictionary.getId(index), dictionary.getName(index), restoredIds);
+			dictionary.setNode(index, node);
+		}
+		return node;
+	}
+
+	private CyNode findNode(CyNetwork network, Map<String, CyNode> nodeNameMap, Long suid, String name,
+	                        Map<Long, ? extends CyIdentifiable> restoredIds) {
 		CyNode node = null;
 		if (restoredIds != null && restoredIds.containsKey(suid)) {
 			node = (CyNode)restoredIds.get(suid);
@@ -360,7 +569,7 @@ public class ClusterJobDataService implements CyJobDataService {
 			node = (CyNode)checkName(network, node, name);
 		}
 
-		if (node == null) {
+		if (node == null && suid != null) {
 			node = network.getNode(suid);
 			// Sanity check
 			node = (CyNode)checkName(network, node, name);
@@ -380,49 +589,70 @@ public class ClusterJobDataService implements CyJobDataService {
 		return node;
 	}
 
-	private void getEdges(CyNetwork network, Map<String, CyNode> nodeNameMap, JSONArray edgeArray,
-	                      Map<Long, ? extends CyIdentifiable> restoredIds) {
+	private void getEdges(CyNetwork network, Map<String, CyNode> nodeNameMap, NodeDictionary dictionary,
+	                      JSONArray edgeArray, Map<Long, ? extends CyIdentifiable> restoredIds,
+	                      List<CyEdge> resolvedEdges) {
 		for (Object obj: edgeArray) {
-			JSONObject edgeMap = (JSONObject)obj;
-			Long suid = (Long)edgeMap.get("id");
-			String name = (String)edgeMap.get("name");
-			CyEdge edge = null;
-			if (restoredIds != null && restoredIds.containsKey(suid)) {
-				edge = (CyEdge)restoredIds.get(suid);
-				// Sanity check
-				edge = (CyEdge)checkName(network, edge, name);
-			} else {
-				edge = network.getEdge(suid);
-				edge = (CyEdge)checkName(network, edge, name);
-			}
-			if (edge == null) {
-				JSONObject source = (JSONObject)edgeMap.get("source");
-				CyNode sourceNode = findNode(network, nodeNameMap, source, restoredIds);
-				JSONObject target = (JSONObject)edgeMap.get("target");
-				CyNode targetNode = findNode(network, nodeNameMap, target, restoredIds);
-				edge = network.addEdge(sourceNode, targetNode, false);
-				network.getRow(edge).set(CyRootNetwork.SHARED_NAME, name);
-				network.getRow(edge).set(CyRootNetwork.NAME, name);
-			}
+			CyEdge edge = applyEdge(network, nodeNameMap, dictionary, (JSONObject)obj, restoredIds);
+			if (resolvedEdges != null)
+				resolvedEdges.add(edge);
+		}
+	}
 
-			for (Object key: edgeMap.keySet()) {
-				String column = (String) key;
-				if (column.equals("id") || column.equals("name")) continue;
-				Object columnObj = edgeMap.get(column);
-				if (columnObj instanceof JSONArray)
-					addListColumnData(network.getDefaultEdgeTable(), edge, column, (JSONArray)columnObj);
-				else
-					addColumnData(network.getDefaultEdgeTable(), edge, column, columnObj);
-			}
+	/**
+	 * Apply the results for a single edge to network, creating it (and its
+	 * nodes) if we can't find it.
+	 */
+	public CyEdge applyEdge(CyNetwork network, Map<String, CyNode> nodeNameMap, JSONObject edgeMap,
+	                        Map<Long, ? extends CyIdentifiable> restoredIds) {
+		return applyEdge(network, nodeNameMap, null, edgeMap, restoredIds);
+	}
+
+	/**
+	 * As above, but the source and target may be indexes into dictionary.
+	 */
+	public CyEdge applyEdge(CyNetwork network, Map<String, CyNode> nodeNameMap, NodeDictionary dictionary,
+	                        JSONObject edgeMap, Map<Long, ? extends CyIdentifiable> restoredIds) {
+		Long suid = (Long)edgeMap.get("id");
+		String name = (String)edgeMap.get("name");
+		CyEdge edge = null;
+		if (restoredIds != null && restoredIds.containsKey(suid)) {
+			edge = (CyEdge)restoredIds.get(suid);
+			// Sanity check
+			edge = (CyEdge)checkName(network, edge, name);
+		} else {
+			edge = network.getEdge(suid);
+			edge = (CyEdge)checkName(network, edge, name);
 		}
+		if (edge == null) {
+			CyNode sourceNode = findNode(network, nodeNameMap, dictionary, edgeMap.get("source"), restoredIds);
+			CyNode targetNode = findNode(network, nodeNameMap, dictionary, edgeMap.get("target"), restoredIds);
+			edge = network.addEdge(sourceNode, targetNode, false);
+			network.getRow(edge).set(CyRootNetwork.SHARED_NAME, name);
+			network.getRow(edge).set(CyRootNetwork.NAME, name);
+		}
+
+		for (Object key: edgeMap.keySet()) {
+			String column = (String) key;
+			if (column.equals("id") || column.equals("name")) continue;
+			if (column.equals("source") || column.equals("target")) continue;
+			Object columnObj = edgeMap.get(column);
+			if (columnObj instanceof JSONArray)
+				addListColumnData(network.getDefaultEdgeTable(), edge, column, (JSONArray)columnObj);
+			else
+				addColumnData(network.getDefaultEdgeTable(), edge, column, columnObj);
+		}
+		return edge;
 	}
 
 	private CyIdentifiable checkName(CyNetwork net, CyIdentifiable cyId, String name) {
+		if (cyId == null)
+			return null;
 		String cyName = net.getRow(cyId).get(CyRootNetwork.SHARED_NAME, String.class);
-		if (cyName.equals(name))
+		if (cyName != null && cyName.equals(name))
 			return cyId;
 		cyName = net.getRow(cyId).get(CyNetwork.NAME, String.class);
-		if (cyName.equals(name))
+		if (cyName != null && cyName.equals(name))
 			return cyId;
 		return null;
 	}
@@ -477,7 +707,7 @@ public class ClusterJobDataService implements CyJobDataService {
 		else if (obj instanceof Boolean)
 			objType = Boolean.class;
 		else {
-			System.out.println("addColumnData - unknown type: "+obj.getClass());
+			log.warn("addColumnData.unknownType", "type", obj.getClass());
 			objType = String.class;
 		}
 		return objType;
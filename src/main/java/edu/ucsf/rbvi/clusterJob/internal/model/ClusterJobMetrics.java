@@ -0,0 +1,130 @@
+package edu.ucsf.rbvi.clusterJob.internal.model;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.simple.JSONObject;
+
+import edu.ucsf.rbvi.clusterJob.internal.model.JobMetrics.Stage;
+
+/**
+ * The metrics registry for all of the cluster jobs in this session.  We
+ * keep a histogram for each stage of the submit/poll/fetch/apply path,
+ * a handful of counters, and the per-job metrics for the most recent jobs.
+ */
+public class ClusterJobMetrics {
+	static final int MAX_JOBS = 1000;
+	final Map<Stage, Histogram> histograms = new EnumMap<>(Stage.class);
+	final Map<String, AtomicLong> counters = new TreeMap<>();
+	final Map<String, JobMetrics> jobs;
+
+	public ClusterJobMetrics() {
+		for (Stage stage: Stage.values()) {
+			histograms.put(stage, new Histogram(stage.toString(), stage.getUnit()));
+		}
+		// Only keep the most recent jobs around
+		jobs = new LinkedHashMap<String, JobMetrics>() {
+			protected boolean removeEldestEntry(Map.Entry<String, JobMetrics> eldest) {
+				return size() > MAX_JOBS;
+			}
+		};
+	}
+
+	public JobMetrics createJobMetrics() {
+		return new JobMetrics(this);
+	}
+
+	/**
+	 * Associate a job's metrics with its job id once the server gives us one
+	 */
+	public void register(String jobId, JobMetrics jobMetrics) {
+		if (jobId == null || jobMetrics == null) return;
+		synchronized (jobs) {
+			jobs.put(jobId, jobMetrics);
+		}
+	}
+
+	public JobMetrics getJobMetrics(String jobId) {
+		synchronized (jobs) {
+			return jobs.get(jobId);
+		}
+	}
+
+	public void record(Stage stage, long value) {
+		histograms.get(stage).record(value);
+	}
+
+	public Histogram getHistogram(Stage stage) {
+		return histograms.get(stage);
+	}
+
+	public void count(String counter) {
+		count(counter, 1L);
+	}
+
+	public void count(String counter, long delta) {
+		AtomicLong value;
+		synchronized (counters) {
+			value = counters.get(counter);
+			if (value == null) {
+				value = new AtomicLong();
+				counters.put(counter, value);
+			}
+		}
+		value.addAndGet(delta);
+	}
+
+	public long getCount(String counter) {
+		synchronized (counters) {
+			AtomicLong value = counters.get(counter);
+			return value == null ? 0L : value.get();
+		}
+	}
+
+	public void reset() {
+		for (Histogram h: histograms.values())
+			h.reset();
+		synchronized (counters) {
+			counters.clear();
+		}
+		synchronized (jobs) {
+			jobs.clear();
+		}
+	}
+
+	public JSONObject toJSON(boolean includeJobs) {
+		JSONObject obj = new JSONObject();
+		JSONObject hists = new JSONObject();
+		for (Stage stage: histograms.keySet()) {
+			hists.put(stage.toString(), histograms.get(stage).toJSON());
+		}
+		obj.put("histograms", hists);
+
+		JSONObject counts = new JSONObject();
+		synchronized (counters) {
+			for (String counter: counters.keySet())
+				counts.put(counter, counters.get(counter).get());
+		}
+		obj.put("counters", counts);
+
+		if (includeJobs) {
+			JSONObject jobObj = new JSONObject();
+			synchronized (jobs) {
+				for (String jobId: jobs.keySet())
+					jobObj.put(jobId, jobs.get(jobId).toJSON());
+			}
+			obj.put("jobs", jobObj);
+		}
+		return obj;
+	}
+
+	public void writeJSON(Writer writer, boolean includeJobs) throws IOException {
+		toJSON(includeJobs).writeJSONString(writer);
+		writer.flush();
+	}
+}
@@ -0,0 +1,172 @@
+package edu.ucsf.rbvi.clusterJob.internal.model;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.cytoscape.model.CyEdge;
+import org.cytoscape.model.CyNetwork;
+import org.cytoscape.model.CyNode;
+import org.cytoscape.model.CyTable;
+
+/**
+ * Count how often the two ends of each edge land in the same cluster over
+ * repeated runs of a stochastic clustering.  Only node pairs joined by an
+ * edge are counted, so the counts take one int per edge however many runs
+ * there are, and runs are added one assignment vector at a time without
+ * touching the network's tables.
+ *
+ * The consensus clusters are the components of the edges whose ends were
+ * together in at least a threshold fraction of the runs.  A node's
+ * stability is how well its edges agree with that: the fraction of runs
+ * each edge's ends were together (for edges inside its consensus cluster)
+ * or apart (for edges leaving it), averaged over its edges.
+ */
+public class CoAssociation {
+	public static final String CONSENSUS_COLUMN = "ConsensusCluster";
+	public static final String STABILITY_COLUMN = "ConsensusStability";
+
+	final List<CyNode> nodes;
+	final Map<Long, Integer> nodeIndex;
+	final int[] source;
+	final int[] target;
+	final int[] together;
+	int runs = 0;
+
+	public CoAssociation(CyNetwork network, List<CyNode> nodes) {
+		this.nodes = nodes;
+		nodeIndex = new HashMap<>(nodes.size()*2);
+		for (int i = 0; i < nodes.size(); i++)
+			nodeIndex.put(nodes.get(i).getSUID(), i);
+
+		int[] sources = new int[network.getEdgeCount()];
+		int[] targets = new int[network.getEdgeCount()];
+		int count = 0;
+		for (CyEdge edge: network.getEdgeList()) {
+			Integer s = nodeIndex.get(edge.getSource().getSUID());
+			Integer t = nodeIndex.get(edge.getTarget().getSUID());
+			if (s == null || t == null || s.equals(t))
+				continue;
+			sources[count] = s;
+			targets[count] = t;
+			count++;
+		}
+		source = Arrays.copyOf(sources, count);
+		target = Arrays.copyOf(targets, count);
+		together = new int[count];
+	}
+
+	public int getNodeCount() { return nodes.size(); }
+
+	public int getEdgeCount() { return source.length; }
+
+	public synchronized int getRunCount() { return runs; }
+
+	/**
+	 * Where a node goes in an assignment vector, or -1 if it isn't one of ours
+	 */
+	public int indexOf(Object suid) {
+		Integer index = suid instanceof Number ? nodeIndex.get(((Number)suid).longValue()) : null;
+		return index == null ? -1 : index;
+	}
+
+	/**
+	 * An empty assignment vector for one run: every node unassigned (-1)
+	 */
+	public int[] newAssignment() {
+		int[] assignment = new int[nodes.size()];
+		Arrays.fill(assignment, -1);
+		return assignment;
+	}
+
+	/**
+	 * Add one run's clusters.  Unassigned nodes are never together with
+	 * anything.
+	 */
+	public synchronized void add(int[] assignment) {
+		for (int e = 0; e < together.length; e++) {
+			int cluster = assignment[source[e]];
+			if (cluster >= 0 && cluster == assignment[target[e]])
+				together[e]++;
+		}
+		runs++;
+	}
+
+	/**
+	 * Write the consensus cluster and stability of each node to the node
+	 * table, in one pass.  Clusters are numbered from 0, largest first.
+	 * Returns the number of clusters.
+	 */
+	public synchronized int write(CyNetwork network, double threshold) {
+		int n = nodes.size();
+		int[] parent = new int[n];
+		for (int i = 0; i < n; i++)
+			parent[i] = i;
+		for (int e = 0; e < together.length; e++) {
+			if (runs > 0 && together[e] >= threshold*runs)
+				union(parent, source[e], target[e]);
+		}
+
+		// Number the clusters by size
+		int[] size = new int[n];
+		for (int i = 0; i < n; i++)
+			size[find(parent, i)]++;
+		Integer[] roots = new Integer[n];
+		int rootCount = 0;
+		for (int i = 0; i < n; i++) {
+			if (parent[i] == i)
+				roots[rootCount++] = i;
+		}
+		final int[] sizes = size;
+		Arrays.sort(roots, 0, rootCount, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				int c = Integer.compare(sizes[b], sizes[a]);
+				return c != 0 ? c : Integer.compare(a, b);
+			}
+		});
+		int[] clusterOf = new int[n];
+		for (int c = 0; c < rootCount; c++)
+			clusterOf[roots[c]] = c;
+
+		double[] agreement = new double[n];
+		int[] degree = new int[n];
+		for (int e = 0; e < together.length; e++) {
+			double fraction = runs == 0 ? 0.0 : (double)together[e]/runs;
+			boolean same = find(parent, source[e]) == find(parent, target[e]);
+			double agrees = same ? fraction : 1.0 - fraction;
+			agreement[source[e]] += agrees;
+			agreement[target[e]] += agrees;
+			degree[source[e]]++;
+			degree[target[e]]++;
+		}
+
+		CyTable table = network.getDefaultNodeTable();
+		if (table.getColumn(CONSENSUS_COLUMN) == null)
+			table.createColumn(CONSENSUS_COLUMN, Integer.class, false);
+		if (table.getColumn(STABILITY_COLUMN) == null)
+			table.createColumn(STABILITY_COLUMN, Double.class, false);
+		for (int i = 0; i < n; i++) {
+			CyNode node = nodes.get(i);
+			network.getRow(node).set(CONSENSUS_COLUMN, clusterOf[find(parent, i)]);
+			network.getRow(node).set(STABILITY_COLUMN, degree[i] == 0 ? 1.0 : agreement[i]/degree[i]);
+		}
+		return rootCount;
+	}
+
+	private static int find(int[] parent, int i) {
+		while (parent[i] != i) {
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+
+	private static void union(int[] parent, int a, int b) {
+		int ra = find(parent, a);
+		int rb = find(parent, b);
+		if (ra != rb)
+			parent[Math.max(ra, rb)] = Math.min(ra, rb);
+	}
+}
@@ -0,0 +1,312 @@
+package edu.ucsf.rbvi.clusterJob.internal.model;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONStreamAware;
+import org.json.simple.JSONValue;
+
+import org.cytoscape.model.CyColumn;
+import org.cytoscape.model.CyIdentifiable;
+import org.cytoscape.model.CyRow;
+import org.cytoscape.model.CyTable;
+
+/**
+ * A single attribute column for a list of nodes or edges, stored as a
+ * typed primitive array (strings are dictionary encoded) with a null
+ * bitmap.  The column is read for just the elements we're sending and
+ * written to the wire as one contiguous block:
+ * <pre>
+ *   { "type": "double", "values": [0.5, 0.0, 1.2], "nulls": [1] }
+ *   { "type": "string", "dictionary": ["a", "b"], "codes": [0, 1, 0], "nulls": [] }
+ * </pre>
+ * The i'th value belongs to the i'th element of the matching nodes or
+ * edges array.
+ */
+public class ColumnData implements JSONStreamAware {
+	public enum Type {
+		DOUBLE("double"),
+		LONG("long"),
+		INTEGER("integer"),
+		BOOLEAN("boolean"),
+		STRING("string");
+
+		String text;
+		Type(String text) {
+			this.text = text;
+		}
+		public String toString() { return text; }
+
+		public static Type fromString(String text) {
+			for (Type type: values()) {
+				if (type.text.equals(text))
+					return type;
+			}
+			return null;
+		}
+	}
+
+	static final String TYPE = "type";
+	static final String VALUES = "values";
+	static final String NULLS = "nulls";
+	static final String DICTIONARY = "dictionary";
+	static final String CODES = "codes";
+
+	final String name;
+	final Type type;
+	final int size;
+	final BitSet nulls;
+	double[] doubles = null;
+	long[] longs = null;
+	int[] codes = null;
+	List<String> dictionary = null;
+
+	ColumnData(String name, Type type, int size) {
+		this.name = name;
+		this.type = type;
+		this.size = size;
+		this.nulls = new BitSet(size);
+		// Everything is null until we see a value for it
+		nulls.set(0, size);
+		switch (type) {
+			case DOUBLE:
+				doubles = new double[size];
+				break;
+			case STRING:
+				codes = new int[size];
+				dictionary = new ArrayList<>();
+				break;
+			default:
+				longs = new long[size];
+				break;
+		}
+	}
+
+	public String getName() { return name; }
+
+	public Type getType() { return type; }
+
+	public int size() { return size; }
+
+	public boolean isNull(int index) { return nulls.get(index); }
+
+	public double getDouble(int index) { return doubles[index]; }
+
+	public long getLong(int index) { return longs[index]; }
+
+	/**
+	 * Can we store a column of this type as a block?  List columns can't be.
+	 */
+	public static boolean isSupported(Class<?> type) {
+		return getType(type) != null;
+	}
+
+	static Type getType(Class<?> type) {
+		if (Double.class.equals(type) || Float.class.equals(type)) return Type.DOUBLE;
+		if (Long.class.equals(type)) return Type.LONG;
+		if (Integer.class.equals(type)) return Type.INTEGER;
+		if (Boolean.class.equals(type)) return Type.BOOLEAN;
+		if (String.class.equals(type)) return Type.STRING;
+		return null;
+	}
+
+	/**
+	 * Read a column out of table for elements, in order.  Only the rows we
+	 * need are read, so a small submission from a big table stays cheap.
+	 * Returns null if the column doesn't exist or can't be stored as a
+	 * block.
+	 */
+	public static ColumnData extract(CyTable table, String columnName, List<? extends CyIdentifiable> elements) {
+		CyColumn column = table.getColumn(columnName);
+		if (column == null)
+			return null;
+		Type type = getType(column.getType());
+		if (type == null)
+			return null;
+
+		ColumnData data = new ColumnData(columnName, type, elements.size());
+		Class<?> columnType = column.getType();
+		Map<String, Integer> dictionaryIndex = type == Type.STRING ? new HashMap<String, Integer>() : null;
+		for (int position = 0; position < elements.size(); position++) {
+			Long suid = elements.get(position).getSUID();
+			// getRow would create the row if it isn't there
+			if (!table.rowExists(suid))
+				continue;
+			Object value = table.getRow(suid).get(columnName, columnType);
+			if (value != null)
+				data.set(position, value, dictionaryIndex);
+		}
+		return data;
+	}
+
+	private void set(int position, Object value, Map<String, Integer> dictionaryIndex) {
+		switch (type) {
+			case DOUBLE: {
+				double d = ((Number)value).doubleValue();
+				// JSON has no NaN or Infinity
+				if (Double.isNaN(d) || Double.isInfinite(d)) return;
+				doubles[position] = d;
+				break;
+			}
+			case LONG:
+			case INTEGER:
+				longs[position] = ((Number)value).longValue();
+				break;
+			case BOOLEAN:
+				longs[position] = ((Boolean)value) ? 1L : 0L;
+				break;
+			case STRING: {
+				String s = (String)value;
+				Integer code = dictionaryIndex.get(s);
+				if (code == null) {
+					code = dictionary.size();
+					dictionary.add(s);
+					dictionaryIndex.put(s, code);
+				}
+				codes[position] = code;
+				break;
+			}
+		}
+		nulls.clear(position);
+	}
+
+	public void appendJSON(StringBuilder sb) {
+		sb.append("{\"").append(TYPE).append("\":\"").append(type.toString()).append('"');
+		if (type == Type.STRING) {
+			sb.append(",\"").append(DICTIONARY).append("\":[");
+			for (int i = 0; i < dictionary.size(); i++) {
+				if (i > 0) sb.append(',');
+				sb.append('"').append(JSONValue.escape(dictionary.get(i))).append('"');
+			}
+			sb.append("],\"").append(CODES).append("\":[");
+			for (int i = 0; i < size; i++) {
+				if (i > 0) sb.append(',');
+				sb.append(codes[i]);
+			}
+		} else {
+			sb.append(",\"").append(VALUES).append("\":[");
+			for (int i = 0; i < size; i++) {
+				if (i > 0) sb.append(',');
+				if (type == Type.DOUBLE)
+					sb.append(doubles[i]);
+				else if (type == Type.BOOLEAN)
+					sb.append(longs[i] != 0L);
+				else
+					sb.append(longs[i]);
+			}
+		}
+		sb.append("],\"").append(NULLS).append("\":[");
+		boolean first = true;
+		for (int i = nulls.nextSetBit(0); i >= 0; i = nulls.nextSetBit(i+1)) {
+			if (!first) sb.append(',');
+			else first = false;
+			sb.append(i);
+		}
+		sb.append("]}");
+	}
+
+	@Override
+	public void writeJSONString(Writer out) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		appendJSON(sb);
+		out.write(sb.toString());
+	}
+
+	/**
+	 * Write a column block we received back to table, where elements are the
+	 * nodes or edges in the same order as the block's values.
+	 */
+	public static void apply(CyTable table, String columnName, JSONObject block,
+	                         List<? extends CyIdentifiable> elements) {
+		Type type = Type.fromString((String)block.get(TYPE));
+		if (type == null)
+			return;
+		Class<?> columnType = getColumnClass(type);
+		if (table.getColumn(columnName) == null)
+			table.createColumn(columnName, columnType, false);
+		else
+			columnType = table.getColumn(columnName).getType();
+
+		BitSet nullSet = new BitSet(elements.size());
+		JSONArray nullArray = (JSONArray)block.get(NULLS);
+		if (nullArray != null) {
+			for (Object o: nullArray)
+				nullSet.set(((Number)o).intValue());
+		}
+
+		JSONArray values = (JSONArray)block.get(type == Type.STRING ? CODES : VALUES);
+		JSONArray dict = (JSONArray)block.get(DICTIONARY);
+		if (values == null)
+			return;
+		int count = Math.min(values.size(), elements.size());
+		for (int i = 0; i < count; i++) {
+			CyIdentifiable element = elements.get(i);
+			if (element == null)
+				continue;
+			CyRow row = table.getRow(element.getSUID());
+			if (nullSet.get(i)) {
+				row.set(columnName, null);
+				continue;
+			}
+			Object value = values.get(i);
+			if (type == Type.STRING)
+				value = dict.get(((Number)value).intValue());
+			row.set(columnName, convert(value, columnType));
+		}
+	}
+
+	/**
+	 * Read the values of a whole number block we received, with missing for
+	 * the nulls.  Returns null if the block isn't a whole number block.
+	 */
+	public static long[] getLongs(JSONObject block, long missing) {
+		Type type = Type.fromString((String)block.get(TYPE));
+		JSONArray values = (JSONArray)block.get(VALUES);
+		if ((type != Type.LONG && type != Type.INTEGER) || values == null)
+			return null;
+		long[] longs = new long[values.size()];
+		for (int i = 0; i < longs.length; i++) {
+			Object value = values.get(i);
+			longs[i] = value instanceof Number ? ((Number)value).longValue() : missing;
+		}
+		JSONArray nullArray = (JSONArray)block.get(NULLS);
+		if (nullArray != null) {
+			for (Object o: nullArray) {
+				int index = ((Number)o).intValue();
+				if (index < longs.length)
+					longs[index] = missing;
+			}
+		}
+		return longs;
+	}
+
+	static Class<?> getColumnClass(Type type) {
+		switch (type) {
+			case DOUBLE: return Double.class;
+			case LONG: return Long.class;
+			case INTEGER: return Integer.class;
+			case BOOLEAN: return Boolean.class;
+			default: return String.class;
+		}
+	}
+
+	static Object convert(Object value, Class<?> columnType) {
+		if (value == null) return null;
+		if (Double.class.equals(columnType) && value instanceof Number)
+			return ((Number)value).doubleValue();
+		if (Long.class.equals(columnType) && value instanceof Number)
+			return ((Number)value).longValue();
+		if (Integer.class.equals(columnType) && value instanceof Number)
+			return ((Number)value).intValue();
+		if (String.class.equals(columnType))
+			return value.toString();
+		return value;
+	}
+}
@@ -0,0 +1,341 @@
+package edu.ucsf.rbvi.clusterJob.internal.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.json.simple.JSONObject;
+
+import org.cytoscape.model.CyEdge;
+import org.cytoscape.model.CyIdentifiable;
+import org.cytoscape.model.CyNetwork;
+import org.cytoscape.model.CyNode;
+
+/**
+ * Drop weak edges before a submission goes out.  Edges can be kept if
+ * their weight is at least a threshold (THRESHOLD), if they are one of
+ * the k strongest edges of either endpoint (TOP_K), or if they are
+ * significant at level alpha for either endpoint under the disparity
+ * filter of Serrano et al. (BACKBONE).  Nodes are never dropped.
+ *
+ * The weights are read from the edge table in one pass into a primitive
+ * array, and the keep/drop decisions are made in parallel over it.
+ */
+public class EdgeSparsifier {
+	// Below this many edges (or nodes) it isn't worth splitting the work
+	static final int CHUNK = 8192;
+	static final ForkJoinPool pool = new ForkJoinPool();
+
+	public enum Method {
+		NONE("None"),
+		THRESHOLD("Weight threshold"),
+		TOP_K("Strongest edges per node"),
+		BACKBONE("Disparity backbone");
+
+		String label;
+		Method(String label) {
+			this.label = label;
+		}
+
+		public String toString() { return label; }
+
+		public static Method fromString(String label) {
+			for (Method method: values()) {
+				if (method.label.equals(label) || method.name().equalsIgnoreCase(label))
+					return method;
+			}
+			return NONE;
+		}
+	}
+
+	/**
+	 * What a sparsification did
+	 */
+	public static class Stats {
+		final Method method;
+		final int edgesBefore;
+		final int edgesAfter;
+		final long nanos;
+
+		Stats(Method method, int edgesBefore, int edgesAfter, long nanos) {
+			this.method = method;
+			this.edgesBefore = edgesBefore;
+			this.edgesAfter = edgesAfter;
+			this.nanos = nanos;
+		}
+
+		public Method getMethod() { return method; }
+
+		public int getEdgesBefore() { return edgesBefore; }
+
+		public int getEdgesAfter() { return edgesAfter; }
+
+		public int getEdgesPruned() { return edgesBefore - edgesAfter; }
+
+		public long getNanos() { return nanos; }
+
+		public JSONObject toJSON() {
+			JSONObject obj = new JSONObject();
+			obj.put("method", method.name());
+			obj.put("edgesBefore", edgesBefore);
+			obj.put("edgesAfter", edgesAfter);
+			obj.put("time", nanos);
+			return obj;
+		}
+
+		public String toString() {
+			return method+": kept "+edgesAfter+" of "+edgesBefore+" edges";
+		}
+	}
+
+	final Method method;
+	final double threshold;
+	final int k;
+	final double alpha;
+	Stats stats = null;
+
+	/**
+	 * threshold is only used by THRESHOLD, k by TOP_K and alpha by BACKBONE
+	 */
+	public EdgeSparsifier(Method method, double threshold, int k, double alpha) {
+		this.method = method;
+		this.threshold = threshold;
+		this.k = Math.max(k, 1);
+		this.alpha = alpha;
+	}
+
+	/**
+	 * What the last call to sparsify did
+	 */
+	public Stats getStats() { return stats; }
+
+	/**
+	 * Return nodesAndEdges without the edges we don't want to send, with the
+	 * nodes and the remaining edges in their original order.  Without a
+	 * usable weight column, everything is kept.
+	 */
+	public List<CyIdentifiable> sparsify(CyNetwork network, List<CyIdentifiable> nodesAndEdges, String weightColumn) {
+		long start = System.nanoTime();
+		List<CyEdge> edges = new ArrayList<>();
+		Map<Long, Integer> nodeIndex = new HashMap<>();
+		for (CyIdentifiable id: nodesAndEdges) {
+			if (id instanceof CyEdge)
+				edges.add((CyEdge)id);
+			else if (id instanceof CyNode)
+				nodeIndex.put(id.getSUID(), nodeIndex.size());
+		}
+
+		double[] weights = method == Method.NONE ? null : getWeights(network, weightColumn, edges);
+		if (weights == null) {
+			stats = new Stats(Method.NONE, edges.size(), edges.size(), System.nanoTime()-start);
+			return nodesAndEdges;
+		}
+
+		boolean[] keep = new boolean[edges.size()];
+		switch (method) {
+			case THRESHOLD:
+				threshold(weights, keep);
+				break;
+			default:
+				int[] source = new int[edges.size()];
+				int[] target = new int[edges.size()];
+				for (int e = 0; e < edges.size(); e++) {
+					source[e] = endpoint(nodeIndex, edges.get(e).getSource());
+					target[e] = endpoint(nodeIndex, edges.get(e).getTarget());
+				}
+				Incidence incidence = new Incidence(nodeIndex.size(), source, target);
+				if (method == Method.TOP_K)
+					topK(incidence, weights, keep);
+				else
+					backbone(incidence, source, target, weights, keep);
+				break;
+		}
+
+		List<CyIdentifiable> result = new ArrayList<>(nodesAndEdges.size());
+		int edge = 0;
+		int kept = 0;
+		for (CyIdentifiable id: nodesAndEdges) {
+			if (!(id instanceof CyEdge)) {
+				result.add(id);
+			} else if (keep[edge++]) {
+				result.add(id);
+				kept++;
+			}
+		}
+		stats = new Stats(method, edges.size(), kept, System.nanoTime()-start);
+		return result;
+	}
+
+	private static int endpoint(Map<Long, Integer> nodeIndex, CyNode node) {
+		Integer index = nodeIndex.get(node.getSUID());
+		return index == null ? -1 : index;
+	}
+
+	/**
+	 * The weight of each edge, in order.  Missing weights count as 0.
+	 */
+	private static double[] getWeights(CyNetwork network, String weightColumn, List<CyEdge> edges) {
+		if (weightColumn == null || edges.size() == 0)
+			return null;
+		ColumnData column = ColumnData.extract(network.getDefaultEdgeTable(), weightColumn, edges);
+		if (column == null)
+			return null;
+		switch (column.getType()) {
+			case DOUBLE:
+				return column.doubles;
+			case LONG:
+			case INTEGER:
+				double[] weights = new double[edges.size()];
+				for (int i = 0; i < weights.length; i++)
+					weights[i] = column.longs[i];
+				return weights;
+			default:
+				return null;
+		}
+	}
+
+	private void threshold(final double[] weights, final boolean[] keep) {
+		pool.invoke(new Range(0, weights.length) {
+			void compute(int from, int to) {
+				for (int e = from; e < to; e++)
+					keep[e] = weights[e] >= threshold;
+			}
+		});
+	}
+
+	/**
+	 * Each node marks its k strongest edges.  Two nodes may both mark the
+	 * same edge, but they only ever set it to true.
+	 */
+	private void topK(final Incidence incidence, final double[] weights, final boolean[] keep) {
+		pool.invoke(new Range(0, incidence.nodeCount) {
+			void compute(int from, int to) {
+				int[] best = new int[k];
+				for (int node = from; node < to; node++) {
+					int start = incidence.offsets[node];
+					int degree = incidence.offsets[node+1] - start;
+					if (degree <= k) {
+						for (int i = 0; i < degree; i++)
+							keep[incidence.edges[start+i]] = true;
+						continue;
+					}
+					// Insertion into a small sorted array, since k is small
+					int count = 0;
+					for (int i = 0; i < degree; i++) {
+						int e = incidence.edges[start+i];
+						if (count == k && weights[e] <= weights[best[count-1]])
+							continue;
+						int slot = count < k ? count++ : count-1;
+						while (slot > 0 && weights[best[slot-1]] < weights[e]) {
+							best[slot] = best[slot-1];
+							slot--;
+						}
+						best[slot] = e;
+					}
+					for (int i = 0; i < count; i++)
+						keep[best[i]] = true;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Keep an edge if it carries more of either endpoint's strength than a
+	 * uniform split of that strength would give it by chance, i.e.
+	 * (1 - w/s)^(d-1) < alpha.  Edges to nodes of degree 1 are always kept.
+	 */
+	private void backbone(final Incidence incidence, final int[] source, final int[] target,
+	                      final double[] weights, final boolean[] keep) {
+		final double[] strength = new double[incidence.nodeCount];
+		pool.invoke(new Range(0, incidence.nodeCount) {
+			void compute(int from, int to) {
+				for (int node = from; node < to; node++) {
+					double s = 0.0;
+					for (int i = incidence.offsets[node]; i < incidence.offsets[node+1]; i++)
+						s += Math.max(weights[incidence.edges[i]], 0.0);
+					strength[node] = s;
+				}
+			}
+		});
+		pool.invoke(new Range(0, weights.length) {
+			void compute(int from, int to) {
+				for (int e = from; e < to; e++)
+					keep[e] = significant(source[e], e) || significant(target[e], e);
+			}
+
+			boolean significant(int node, int e) {
+				if (node < 0)
+					return false;
+				int degree = incidence.offsets[node+1] - incidence.offsets[node];
+				if (degree <= 1)
+					return true;
+				double w = Math.max(weights[e], 0.0);
+				if (w == 0.0 || strength[node] == 0.0)
+					return false;
+				return Math.pow(1.0 - w/strength[node], degree-1) < alpha;
+			}
+		});
+	}
+
+	/**
+	 * The edges touching each node, as one flat array: node n's edges are
+	 * edges[offsets[n]] up to edges[offsets[n+1]].
+	 */
+	static class Incidence {
+		final int nodeCount;
+		final int[] offsets;
+		final int[] edges;
+
+		Incidence(int nodeCount, int[] source, int[] target) {
+			this.nodeCount = nodeCount;
+			offsets = new int[nodeCount+1];
+			for (int e = 0; e < source.length; e++) {
+				if (source[e] >= 0) offsets[source[e]+1]++;
+				if (target[e] >= 0 && target[e] != source[e]) offsets[target[e]+1]++;
+			}
+			for (int n = 0; n < nodeCount; n++)
+				offsets[n+1] += offsets[n];
+			edges = new int[offsets[nodeCount]];
+			int[] next = new int[nodeCount];
+			System.arraycopy(offsets, 0, next, 0, nodeCount);
+			for (int e = 0; e < source.length; e++) {
+				if (source[e] >= 0) edges[next[source[e]]++] = e;
+				if (target[e] >= 0 && target[e] != source[e]) edges[next[target[e]]++] = e;
+			}
+		}
+	}
+
+	/**
+	 * Split [from, to) in half until it's small enough to do directly
+	 */
+	abstract static class Range extends RecursiveAction {
+		final int from;
+		final int to;
+
+		Range(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		abstract void compute(int from, int to);
+
+		@Override
+		protected void compute() {
+			if (to - from <= CHUNK) {
+				compute(from, to);
+				return;
+			}
+			final Range outer = this;
+			int middle = (from + to) >>> 1;
+			invokeAll(new Range(from, middle) {
+			            void compute(int from, int to) { outer.compute(from, to); }
+			          },
+			          new Range(middle, to) {
+			            void compute(int from, int to) { outer.compute(from, to); }
+			          });
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package edu.ucsf.rbvi.clusterJob.internal.model;
+
+import org.json.simple.JSONObject;
+
+/**
+ * A small, fixed-size histogram with power-of-two buckets.  Values
+ * are non-negative longs (nanoseconds or bytes).  Percentiles are
+ * estimated from the bucket upper bounds, which is plenty to see where
+ * the minutes go on a large job.
+ */
+public class Histogram {
+	static final int BUCKETS = 64;
+	final String name;
+	final String unit;
+	final long[] buckets = new long[BUCKETS];
+	long count = 0;
+	long sum = 0;
+	long min = Long.MAX_VALUE;
+	long max = 0;
+
+	public Histogram(String name, String unit) {
+		this.name = name;
+		this.unit = unit;
+	}
+
+	public String getName() { return name; }
+
+	public synchronized void record(long value) {
+		if (value < 0) return;
+		buckets[bucket(value)]++;
+		count++;
+		sum += value;
+		if (value < min) min = value;
+		if (value > max) max = value;
+	}
+
+	public synchronized long getCount() { return count; }
+
+	public synchronized long getSum() { return sum; }
+
+	/**
+	 * Estimate the value at the given percentile (0-100)
+	 */
+	public synchronized long getPercentile(double percentile) {
+		if (count == 0) return 0;
+		long rank = (long)Math.ceil(count * percentile / 100.0);
+		if (rank < 1) rank = 1;
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += buckets[i];
+			if (seen >= rank)
+				return Math.min(upperBound(i), max);
+		}
+		return max;
+	}
+
+	public synchronized void reset() {
+		for (int i = 0; i < BUCKETS; i++)
+			buckets[i] = 0;
+		count = 0;
+		sum = 0;
+		min = Long.MAX_VALUE;
+		max = 0;
+	}
+
+	public synchronized JSONObject toJSON() {
+		JSONObject obj = new JSONObject();
+		obj.put("unit", unit);
+		obj.put("count", count);
+		obj.put("sum", sum);
+		obj.put("min", count == 0 ? 0 : min);
+		obj.put("max", max);
+		obj.put("mean", count == 0 ? 0 : sum/count);
+		obj.put("p50", getPercentile(50.0));
+		obj.put("p90", getPercentile(90.0));
+		obj.put("p99", getPercentile(99.0));
+		return obj;
+	}
+
+	private static int bucket(long value) {
+		if (value == 0) return 0;
+		return Math.min(BUCKETS-1, 64 - Long.numberOfLeadingZeros(value));
+	}
+
+	private static long upperBound(int bucket) {
+		if (bucket == 0) return 0;
+		if (bucket >= 63) return Long.MAX_VALUE;
+		return (1L << bucket) - 1;
+	}
+}
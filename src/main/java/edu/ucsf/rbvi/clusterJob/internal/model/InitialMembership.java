@@ -0,0 +1,125 @@
+package edu.ucsf.rbvi.clusterJob.internal.model;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONStreamAware;
+import org.json.simple.JSONValue;
+
+import org.cytoscape.model.CyIdentifiable;
+import org.cytoscape.model.CyNetwork;
+
+/**
+ * The cluster each node of a submission is already in, so the service can
+ * start from the previous partition rather than from scratch:
+ * <pre>
+ *   "initialMembership": { "column": "ClusterNumber", "count": 2, "clusters": [0, 0, 1, -1] }
+ * </pre>
+ * The i'th entry is for the i'th element of the nodes array.  Clusters are
+ * renumbered 0..count-1 in the order we first see them, and nodes that
+ * aren't in a cluster yet are -1.
+ */
+public class InitialMembership implements JSONStreamAware {
+	public static final String KEY = "initialMembership";
+	static final String COLUMN = "column";
+	static final String COUNT = "count";
+	static final String CLUSTERS = "clusters";
+
+	final String column;
+	final int[] clusters;
+	final int count;
+
+	InitialMembership(String column, int[] clusters, int count) {
+		this.column = column;
+		this.clusters = clusters;
+		this.count = count;
+	}
+
+	/**
+	 * Read the current clusters for nodes out of column.  Returns null if
+	 * the column isn't a whole number column or none of the nodes have a
+	 * value yet.
+	 */
+	public static InitialMembership extract(CyNetwork network, String column, List<? extends CyIdentifiable> nodes) {
+		if (nodes.size() == 0)
+			return null;
+		ColumnData data = ColumnData.extract(network.getDefaultNodeTable(), column, nodes);
+		if (data == null || (data.getType() != ColumnData.Type.INTEGER && data.getType() != ColumnData.Type.LONG))
+			return null;
+
+		int[] clusters = new int[nodes.size()];
+		Map<Long, Integer> renumber = new HashMap<>();
+		for (int i = 0; i < clusters.length; i++) {
+			if (data.isNull(i)) {
+				clusters[i] = -1;
+				continue;
+			}
+			Long cluster = data.getLong(i);
+			Integer dense = renumber.get(cluster);
+			if (dense == null) {
+				dense = renumber.size();
+				renumber.put(cluster, dense);
+			}
+			clusters[i] = dense;
+		}
+		if (renumber.size() == 0)
+			return null;
+		return new InitialMembership(column, clusters, renumber.size());
+	}
+
+	/**
+	 * Read a membership we were sent.  Returns null if obj isn't one.
+	 */
+	public static InitialMembership fromJSON(Object obj) {
+		if (!(obj instanceof JSONObject))
+			return null;
+		Object array = ((JSONObject)obj).get(CLUSTERS);
+		if (!(array instanceof JSONArray))
+			return null;
+		JSONArray clusterArray = (JSONArray)array;
+		int[] clusters = new int[clusterArray.size()];
+		int count = 0;
+		for (int i = 0; i < clusters.length; i++) {
+			Object cluster = clusterArray.get(i);
+			clusters[i] = cluster instanceof Number ? ((Number)cluster).intValue() : -1;
+			count = Math.max(count, clusters[i]+1);
+		}
+		Object column = ((JSONObject)obj).get(COLUMN);
+		return new InitialMembership(column == null ? null : column.toString(), clusters, count);
+	}
+
+	public String getColumn() { return column; }
+
+	public int size() { return clusters.length; }
+
+	public int getClusterCount() { return count; }
+
+	/**
+	 * The cluster for the index'th node, or -1 if it isn't in one
+	 */
+	public int getCluster(int index) {
+		return index < clusters.length ? clusters[index] : -1;
+	}
+
+	public void appendJSON(StringBuilder sb) {
+		sb.append("{\"").append(COLUMN).append("\":\"").append(JSONValue.escape(column)).append("\",\"");
+		sb.append(COUNT).append("\":").append(count).append(",\"").append(CLUSTERS).append("\":[");
+		for (int i = 0; i < clusters.length; i++) {
+			if (i > 0) sb.append(',');
+			sb.append(clusters[i]);
+		}
+		sb.append("]}");
+	}
+
+	@Override
+	public void writeJSONString(Writer out) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		appendJSON(sb);
+		out.write(sb.toString());
+	}
+}
@@ -0,0 +1,66 @@
+package edu.ucsf.rbvi.clusterJob.internal.model;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * A partition the service has found so far for a job that's still
+ * running (e.g. after each Leiden level), as sent with a status check:
+ * <pre>
+ *   "partition": { "level": 2, "ids": [52, 53, 54], "clusters": [0, 0, 1] }
+ * </pre>
+ * ids are the node SUIDs we submitted, and levels only go up, so a
+ * partition is only worth applying if its level is higher than the last
+ * one we saw.
+ */
+public class IntermediatePartition {
+	public static final String KEY = "partition";
+	static final String LEVEL = "level";
+	static final String IDS = "ids";
+	static final String CLUSTERS = "clusters";
+
+	final int level;
+	final long[] ids;
+	final int[] clusters;
+
+	IntermediatePartition(int level, long[] ids, int[] clusters) {
+		this.level = level;
+		this.ids = ids;
+		this.clusters = clusters;
+	}
+
+	/**
+	 * Read a partition out of a status response.  Returns null if there
+	 * isn't one.
+	 */
+	public static IntermediatePartition fromJSON(Object obj) {
+		if (!(obj instanceof JSONObject))
+			return null;
+		JSONObject json = (JSONObject)obj;
+		Object level = json.get(LEVEL);
+		Object idArray = json.get(IDS);
+		Object clusterArray = json.get(CLUSTERS);
+		if (!(level instanceof Number) || !(idArray instanceof JSONArray) || !(clusterArray instanceof JSONArray))
+			return null;
+		JSONArray idList = (JSONArray)idArray;
+		JSONArray clusterList = (JSONArray)clusterArray;
+		int size = Math.min(idList.size(), clusterList.size());
+		long[] ids = new long[size];
+		int[] clusters = new int[size];
+		for (int i = 0; i < size; i++) {
+			Object id = idList.get(i);
+			Object cluster = clusterList.get(i);
+			ids[i] = id instanceof Number ? ((Number)id).longValue() : 0L;
+			clusters[i] = cluster instanceof Number ? ((Number)cluster).intValue() : -1;
+		}
+		return new IntermediatePartition(((Number)level).intValue(), ids, clusters);
+	}
+
+	public int getLevel() { return level; }
+
+	public int size() { return ids.length; }
+
+	public long getId(int index) { return ids[index]; }
+
+	public int getCluster(int index) { return clusters[index]; }
+}
@@ -0,0 +1,153 @@
+package edu.ucsf.rbvi.clusterJob.internal.model;
+
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.json.simple.JSONObject;
+
+import org.cytoscape.jobs.CyJobStatus.Status;
+
+/**
+ * Timings and sizes for a single {@link ClusterJob} as it moves through
+ * submit, poll, fetch and apply.  When a stage ends, its total for the
+ * job is published to the shared {@link ClusterJobMetrics} registry.
+ */
+public class JobMetrics {
+	public enum Stage {
+		SPARSIFY("sparsifyTime", "ns"),
+		PRUNED_EDGES("prunedEdges", "edges"),
+		SERIALIZE("serializeTime", "ns"),
+		PAYLOAD("payloadChars", "chars"),
+		UPLOAD("uploadTime", "ns"),
+		QUEUE_WAIT("queueWait", "ns"),
+		SERVER_RUN("serverRunTime", "ns"),
+		FETCH("fetchTime", "ns"),
+		FETCH_BYTES("fetchBytes", "bytes"),
+		PARSE("parseTime", "ns"),
+		APPLY("applyTime", "ns");
+
+		String text;
+		String unit;
+		Stage(String text, String unit) {
+			this.text = text;
+			this.unit = unit;
+		}
+		public String getUnit() { return unit; }
+		public String toString() { return text; }
+	}
+
+	final ClusterJobMetrics registry;
+	final Map<Stage, Long> values = new EnumMap<>(Stage.class);
+	final Set<Stage> published = EnumSet.noneOf(Stage.class);
+	long submitted = -1L;
+	long running = -1L;
+	long finished = -1L;
+	Status lastStatus = null;
+
+	public JobMetrics(ClusterJobMetrics registry) {
+		this.registry = registry;
+	}
+
+	/**
+	 * Record a stage in one go, publishing it to the registry
+	 */
+	public synchronized void record(Stage stage, long value) {
+		add(stage, value);
+		end(stage);
+	}
+
+	/**
+	 * Add part of a stage (e.g. the bytes in one page of results).
+	 * Nothing is published until the stage ends.
+	 */
+	public synchronized void add(Stage stage, long value) {
+		Long previous = values.get(stage);
+		values.put(stage, previous == null ? value : previous + value);
+	}
+
+	/**
+	 * The stage is over, so publish this job's total for it.  Each stage
+	 * is only published once per job.
+	 */
+	public synchronized void end(Stage stage) {
+		Long total = values.get(stage);
+		if (total == null || !published.add(stage))
+			return;
+		if (registry != null)
+			registry.record(stage, total);
+	}
+
+	public synchronized Long get(Stage stage) {
+		return values.get(stage);
+	}
+
+	/**
+	 * Mark the point where the server has accepted our job.  Queue wait
+	 * is measured from here.
+	 */
+	public synchronized void submitted() {
+		submitted = System.nanoTime();
+		lastStatus = Status.SUBMITTED;
+		if (registry != null)
+			registry.count("jobsSubmitted");
+	}
+
+	/**
+	 * Track status transitions reported by the server so we can split
+	 * the time spent on the server into queue wait and run time.
+	 */
+	public void statusChanged(Status status) {
+		Stage stage = null;
+		long value = 0L;
+		synchronized (this) {
+			if (status == null || status == lastStatus) return;
+			lastStatus = status;
+			long now = System.nanoTime();
+			switch (status) {
+				case RUNNING:
+					if (running < 0 && submitted >= 0) {
+						running = now;
+						stage = Stage.QUEUE_WAIT;
+						value = running - submitted;
+					}
+					break;
+				case FINISHED:
+					if (finished < 0 && submitted >= 0) {
+						finished = now;
+						// If we never saw RUNNING, charge everything to run time
+						if (running < 0) running = submitted;
+						stage = Stage.SERVER_RUN;
+						value = finished - running;
+					}
+					break;
+				case ERROR:
+				case FAILED:
+				case TERMINATED:
+					if (registry != null) registry.count("jobsFailed");
+					break;
+				case CANCELED:
+					if (registry != null) registry.count("jobsCanceled");
+					break;
+				default:
+					break;
+			}
+		}
+		if (stage != null) {
+			record(stage, value);
+			if (stage == Stage.SERVER_RUN && registry != null)
+				registry.count("jobsFinished");
+		}
+	}
+
+	public synchronized JSONObject toJSON() {
+		JSONObject obj = new JSONObject();
+		for (Stage stage: values.keySet()) {
+			obj.put(stage.toString(), values.get(stage));
+		}
+		if (lastStatus != null)
+			obj.put("status", lastStatus.toString());
+		return obj;
+	}
+}
@@ -0,0 +1,152 @@
+package edu.ucsf.rbvi.clusterJob.internal.model;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A compact open-addressing map from long keys (SUIDs) to objects.  Keys
+ * are kept in a primitive array, so there's no boxed Long or entry object
+ * per mapping, and lookups with a boxed key don't allocate.  0 can't be
+ * used as a key (SUIDs start at 1).  Not thread-safe.
+ */
+public class LongObjectMap<V> extends AbstractMap<Long, V> {
+	static final int MIN_CAPACITY = 16;
+	long[] keys;
+	Object[] values;
+	int size = 0;
+
+	public LongObjectMap() {
+		this(MIN_CAPACITY);
+	}
+
+	public LongObjectMap(int expected) {
+		int capacity = MIN_CAPACITY;
+		while (capacity < expected*2)
+			capacity <<= 1;
+		keys = new long[capacity];
+		values = new Object[capacity];
+	}
+
+	@Override
+	public int size() { return size; }
+
+	public V get(long key) {
+		int slot = find(key);
+		return slot < 0 ? null : (V)values[slot];
+	}
+
+	public boolean containsKey(long key) {
+		return find(key) >= 0;
+	}
+
+	public V put(long key, V value) {
+		if (key == 0)
+			throw new IllegalArgumentException("0 can't be used as a key");
+		if ((size+1)*2 > keys.length)
+			resize(keys.length*2);
+		int mask = keys.length-1;
+		int slot = hash(key) & mask;
+		while (keys[slot] != 0) {
+			if (keys[slot] == key) {
+				V old = (V)values[slot];
+				values[slot] = value;
+				return old;
+			}
+			slot = (slot+1) & mask;
+		}
+		keys[slot] = key;
+		values[slot] = value;
+		size++;
+		return null;
+	}
+
+	@Override
+	public V get(Object key) {
+		return key instanceof Long ? get(((Long)key).longValue()) : null;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return key instanceof Long && containsKey(((Long)key).longValue());
+	}
+
+	@Override
+	public V put(Long key, V value) {
+		return put(key.longValue(), value);
+	}
+
+	@Override
+	public void clear() {
+		keys = new long[MIN_CAPACITY];
+		values = new Object[MIN_CAPACITY];
+		size = 0;
+	}
+
+	@Override
+	public Set<Map.Entry<Long, V>> entrySet() {
+		return new AbstractSet<Map.Entry<Long, V>>() {
+			public int size() { return size; }
+
+			public Iterator<Map.Entry<Long, V>> iterator() {
+				return new Iterator<Map.Entry<Long, V>>() {
+					int next = advance(0);
+
+					int advance(int slot) {
+						while (slot < keys.length && keys[slot] == 0)
+							slot++;
+						return slot;
+					}
+
+					public boolean hasNext() { return next < keys.length; }
+
+					public Map.Entry<Long, V> next() {
+						if (!hasNext())
+							throw new NoSuchElementException();
+						Map.Entry<Long, V> entry = new SimpleImmutableEntry<Long, V>(keys[next], (V)values[next]);
+						next = advance(next+1);
+						return entry;
+					}
+
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+	}
+
+	private int find(long key) {
+		if (key == 0)
+			return -1;
+		int mask = keys.length-1;
+		int slot = hash(key) & mask;
+		while (keys[slot] != 0) {
+			if (keys[slot] == key)
+				return slot;
+			slot = (slot+1) & mask;
+		}
+		return -1;
+	}
+
+	private void resize(int capacity) {
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		keys = new long[capacity];
+		values = new Object[capacity];
+		size = 0;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != 0)
+				put(oldKeys[i], (V)oldValues[i]);
+		}
+	}
+
+	private static int hash(long key) {
+		// Mix the bits, since SUIDs are mostly sequential
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32));
+	}
+}
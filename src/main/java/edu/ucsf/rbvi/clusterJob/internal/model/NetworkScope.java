@@ -0,0 +1,166 @@
+package edu.ucsf.rbvi.clusterJob.internal.model;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.cytoscape.model.CyColumn;
+import org.cytoscape.model.CyEdge;
+import org.cytoscape.model.CyIdentifiable;
+import org.cytoscape.model.CyNetwork;
+import org.cytoscape.model.CyNode;
+import org.cytoscape.model.CyRow;
+import org.cytoscape.model.CyTableUtil;
+
+/**
+ * Which part of a network to send with a job.  Rather than always shipping
+ * the whole network, we can send the induced subgraph of just the selected
+ * nodes, the nodes matching a simple column filter, the connected
+ * components or the k-hop neighbourhood of the selected nodes.
+ */
+public enum NetworkScope {
+	ALL("All nodes"),
+	SELECTED("Selected nodes"),
+	FILTER("Nodes matching a filter"),
+	COMPONENT("Connected components of selected nodes"),
+	NEIGHBORHOOD("Neighborhood of selected nodes");
+
+	String label;
+	NetworkScope(String label) {
+		this.label = label;
+	}
+
+	public String toString() { return label; }
+
+	public static NetworkScope fromString(String label) {
+		for (NetworkScope scope: values()) {
+			if (scope.label.equals(label) || scope.name().equalsIgnoreCase(label))
+				return scope;
+		}
+		return null;
+	}
+
+	/**
+	 * Return the nodes in scope.  filterColumn and filterValue are only used
+	 * for FILTER, and hops only for NEIGHBORHOOD.
+	 */
+	public List<CyNode> getNodes(CyNetwork network, String filterColumn, String filterValue, int hops) {
+		switch (this) {
+			case SELECTED:
+				return CyTableUtil.getNodesInState(network, CyNetwork.SELECTED, true);
+			case FILTER:
+				return getMatchingNodes(network, filterColumn, filterValue);
+			case COMPONENT:
+				return expand(network, CyTableUtil.getNodesInState(network, CyNetwork.SELECTED, true), -1);
+			case NEIGHBORHOOD:
+				return expand(network, CyTableUtil.getNodesInState(network, CyNetwork.SELECTED, true), hops);
+			default:
+				return network.getNodeList();
+		}
+	}
+
+	/**
+	 * Return the nodes followed by the edges of the subgraph they induce,
+	 * ready to hand to addData.
+	 */
+	public static List<CyIdentifiable> getInducedSubgraph(CyNetwork network, Collection<CyNode> nodes) {
+		Set<CyNode> nodeSet = nodes instanceof Set ? (Set<CyNode>)nodes : new LinkedHashSet<CyNode>(nodes);
+		List<CyIdentifiable> elements = new ArrayList<CyIdentifiable>(nodeSet);
+		// If it's everything, don't bother checking each edge
+		if (nodeSet.size() == network.getNodeCount()) {
+			elements.addAll(network.getEdgeList());
+			return elements;
+		}
+		for (CyNode node: nodeSet) {
+			for (CyEdge edge: network.getAdjacentEdgeIterable(node, CyEdge.Type.ANY)) {
+				// Only take each edge from its source so we see it once
+				if (edge.getSource() == node && nodeSet.contains(edge.getTarget()))
+					elements.add(edge);
+			}
+		}
+		return elements;
+	}
+
+	/**
+	 * Split nodes into the connected components of the subgraph they induce,
+	 * largest first.
+	 */
+	public static List<List<CyNode>> getComponents(CyNetwork network, Collection<CyNode> nodes) {
+		Set<CyNode> nodeSet = nodes instanceof Set ? (Set<CyNode>)nodes : new LinkedHashSet<CyNode>(nodes);
+		Set<CyNode> visited = new HashSet<>();
+		List<List<CyNode>> components = new ArrayList<>();
+		for (CyNode seed: nodeSet) {
+			if (!visited.add(seed))
+				continue;
+			List<CyNode> component = new ArrayList<>();
+			Deque<CyNode> stack = new ArrayDeque<>();
+			stack.push(seed);
+			while (!stack.isEmpty()) {
+				CyNode node = stack.pop();
+				component.add(node);
+				for (CyNode neighbor: network.getNeighborList(node, CyEdge.Type.ANY)) {
+					if (nodeSet.contains(neighbor) && visited.add(neighbor))
+						stack.push(neighbor);
+				}
+			}
+			components.add(component);
+		}
+		Collections.sort(components, new Comparator<List<CyNode>>() {
+			public int compare(List<CyNode> a, List<CyNode> b) {
+				return Integer.compare(b.size(), a.size());
+			}
+		});
+		return components;
+	}
+
+	/**
+	 * Breadth first search out from seeds.  If hops is negative, keep going
+	 * until we've got the whole component.
+	 */
+	static List<CyNode> expand(CyNetwork network, List<CyNode> seeds, int hops) {
+		Set<CyNode> visited = new LinkedHashSet<>(seeds);
+		Deque<CyNode> frontier = new ArrayDeque<>(seeds);
+		int depth = 0;
+		while (!frontier.isEmpty() && (hops < 0 || depth < hops)) {
+			Deque<CyNode> next = new ArrayDeque<>();
+			for (CyNode node: frontier) {
+				for (CyNode neighbor: network.getNeighborList(node, CyEdge.Type.ANY)) {
+					if (visited.add(neighbor))
+						next.add(neighbor);
+				}
+			}
+			frontier = next;
+			depth++;
+		}
+		return new ArrayList<CyNode>(visited);
+	}
+
+	/**
+	 * A simple equality filter on a node column.  Values are compared as
+	 * strings, so this works for any column type.
+	 */
+	static List<CyNode> getMatchingNodes(CyNetwork network, String column, String value) {
+		List<CyNode> nodes = new ArrayList<>();
+		if (column == null || network.getDefaultNodeTable().getColumn(column) == null)
+			return nodes;
+		CyColumn cyColumn = network.getDefaultNodeTable().getColumn(column);
+		for (CyNode node: network.getNodeList()) {
+			CyRow row = network.getRow(node);
+			Object raw = row.getRaw(cyColumn.getName());
+			if (raw == null) {
+				if (value == null || value.length() == 0)
+					nodes.add(node);
+			} else if (raw.toString().equals(value)) {
+				nodes.add(node);
+			}
+		}
+		return nodes;
+	}
+}
@@ -0,0 +1,128 @@
+package edu.ucsf.rbvi.clusterJob.internal.model;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONStreamAware;
+import org.json.simple.JSONValue;
+
+import org.cytoscape.model.CyNetwork;
+import org.cytoscape.model.CyNode;
+import org.cytoscape.model.subnetwork.CyRootNetwork;
+
+/**
+ * The nodes referred to by the edges of a submission, each name and SUID
+ * sent exactly once:
+ * <pre>
+ *   "nodeDictionary": { "names": ["A", "B"], "ids": [52, 53] }
+ * </pre>
+ * Edge sources and targets are then just indexes into the dictionary,
+ * rather than repeating the full pointer for every edge.  On the way back,
+ * each index is resolved to a node once and then reused.
+ */
+public class NodeDictionary implements JSONStreamAware {
+	public static final String KEY = "nodeDictionary";
+	static final String NAMES = "names";
+	static final String IDS = "ids";
+
+	final List<String> names;
+	final List<Long> ids;
+	// Encoding: node SUID to index
+	final Map<Long, Integer> indexMap;
+	// Decoding: index to the node we resolved it to
+	final CyNode[] resolved;
+
+	/**
+	 * Create an empty dictionary for encoding
+	 */
+	public NodeDictionary() {
+		names = new ArrayList<>();
+		ids = new ArrayList<>();
+		indexMap = new HashMap<>();
+		resolved = null;
+	}
+
+	private NodeDictionary(List<String> names, List<Long> ids) {
+		this.names = names;
+		this.ids = ids;
+		this.indexMap = null;
+		this.resolved = new CyNode[names.size()];
+	}
+
+	/**
+	 * Read a dictionary we got back.  Returns null if obj isn't one.
+	 */
+	public static NodeDictionary fromJSON(Object obj) {
+		if (!(obj instanceof JSONObject))
+			return null;
+		JSONArray nameArray = (JSONArray)((JSONObject)obj).get(NAMES);
+		JSONArray idArray = (JSONArray)((JSONObject)obj).get(IDS);
+		if (nameArray == null)
+			return null;
+		List<String> names = new ArrayList<>(nameArray.size());
+		List<Long> ids = new ArrayList<>(nameArray.size());
+		for (int i = 0; i < nameArray.size(); i++) {
+			Object name = nameArray.get(i);
+			names.add(name == null ? null : name.toString());
+			Object id = idArray != null && i < idArray.size() ? idArray.get(i) : null;
+			ids.add(id instanceof Number ? ((Number)id).longValue() : null);
+		}
+		return new NodeDictionary(names, ids);
+	}
+
+	/**
+	 * Return the index for node, adding it if this is the first time we've
+	 * seen it.
+	 */
+	public int intern(CyNetwork network, CyNode node) {
+		Integer index = indexMap.get(node.getSUID());
+		if (index != null)
+			return index;
+		index = names.size();
+		names.add(network.getRow(node).get(CyRootNetwork.SHARED_NAME, String.class));
+		ids.add(node.getSUID());
+		indexMap.put(node.getSUID(), index);
+		return index;
+	}
+
+	public int size() { return names.size(); }
+
+	public String getName(int index) { return names.get(index); }
+
+	public Long getId(int index) { return ids.get(index); }
+
+	CyNode getNode(int index) { return resolved[index]; }
+
+	void setNode(int index, CyNode node) { resolved[index] = node; }
+
+	public void appendJSON(StringBuilder sb) {
+		sb.append("{\"").append(NAMES).append("\":[");
+		for (int i = 0; i < names.size(); i++) {
+			if (i > 0) sb.append(',');
+			String name = names.get(i);
+			if (name == null)
+				sb.append("null");
+			else
+				sb.append('"').append(JSONValue.escape(name)).append('"');
+		}
+		sb.append("],\"").append(IDS).append("\":[");
+		for (int i = 0; i < ids.size(); i++) {
+			if (i > 0) sb.append(',');
+			sb.append(ids.get(i));
+		}
+		sb.append("]}");
+	}
+
+	@Override
+	public void writeJSONString(Writer out) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		appendJSON(sb);
+		out.write(sb.toString());
+	}
+}
@@ -0,0 +1,181 @@
+package edu.ucsf.rbvi.clusterJob.internal.model;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.ContentHandler;
+import org.json.simple.parser.ParseException;
+
+/**
+ * A streaming parser for cluster results.  As each node (or edge) object
+ * in network.nodes (or network.edges) is completed it is handed off to a
+ * bounded queue rather than being added to the document, so the results
+ * can be applied while the rest of the response is still arriving.  When
+ * the queue is full the parser (and so the download) waits, which keeps
+ * memory bounded if applying falls behind.
+ *
+ * A node dictionary (network.nodeDictionary) is handed off the same way,
+ * so it needs to come before the edges that refer to it.  Everything else
+ * in the response is built up as usual and is available from
+ * {@link #getRoot} once parsing finishes.
+ */
+public class ResultStreamParser implements ContentHandler {
+	public enum Kind { NODE, EDGE, DICTIONARY, PAGE, END, ERROR }
+
+	/**
+	 * One entry in the queue between the download and the apply stages
+	 */
+	public static class ResultElement {
+		public static final ResultElement END = new ResultElement(Kind.END, null, null);
+		public final Kind kind;
+		public final JSONObject object;
+		public final Throwable error;
+
+		ResultElement(Kind kind, JSONObject object, Throwable error) {
+			this.kind = kind;
+			this.object = object;
+			this.error = error;
+		}
+
+		public static ResultElement error(Throwable t) {
+			return new ResultElement(Kind.ERROR, null, t);
+		}
+
+		/**
+		 * The end of one page of a paged fetch.  object is whatever was left
+		 * of that page's network (e.g. its column blocks).
+		 */
+		public static ResultElement page(JSONObject network) {
+			return new ResultElement(Kind.PAGE, network, null);
+		}
+	}
+
+	final BlockingQueue<ResultElement> queue;
+	final Deque<Object> stack = new ArrayDeque<>();
+	final Deque<String> path = new ArrayDeque<>();
+	Object root = null;
+	long nodeCount = 0;
+	long edgeCount = 0;
+
+	public ResultStreamParser(BlockingQueue<ResultElement> queue) {
+		this.queue = queue;
+	}
+
+	/**
+	 * The response, less the nodes and edges we streamed
+	 */
+	public Object getRoot() { return root; }
+
+	public long getNodeCount() { return nodeCount; }
+
+	public long getEdgeCount() { return edgeCount; }
+
+	@Override
+	public void startJSON() {
+		stack.clear();
+		path.clear();
+		root = null;
+	}
+
+	@Override
+	public void endJSON() {}
+
+	@Override
+	public boolean startObject() {
+		stack.push(new JSONObject());
+		return true;
+	}
+
+	@Override
+	public boolean endObject() throws IOException {
+		Object obj = stack.pop();
+		Kind kind = getStreamedKind();
+		if (kind == null) {
+			addValue(obj);
+			return true;
+		}
+		try {
+			queue.put(new ResultElement(kind, (JSONObject)obj, null));
+		} catch (InterruptedException ie) {
+			// Somebody gave up on us
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while streaming results");
+		}
+		if (kind == Kind.NODE) nodeCount++;
+		else if (kind == Kind.EDGE) edgeCount++;
+		return true;
+	}
+
+	@Override
+	public boolean startObjectEntry(String key) {
+		path.push(key);
+		return true;
+	}
+
+	@Override
+	public boolean endObjectEntry() {
+		path.pop();
+		return true;
+	}
+
+	@Override
+	public boolean startArray() {
+		stack.push(new JSONArray());
+		return true;
+	}
+
+	@Override
+	public boolean endArray() {
+		addValue(stack.pop());
+		return true;
+	}
+
+	@Override
+	public boolean primitive(Object value) {
+		addValue(value);
+		return true;
+	}
+
+	private void addValue(Object value) {
+		if (stack.isEmpty()) {
+			root = value;
+			return;
+		}
+		Object parent = stack.peek();
+		if (parent instanceof JSONObject)
+			((JSONObject)parent).put(path.peek(), value);
+		else
+			((JSONArray)parent).add(value);
+	}
+
+	/**
+	 * Are we just finishing an element of network.nodes or network.edges?
+	 * At that point the stack is {root, network, array} and the path is
+	 * {network, nodes|edges}.  For network.nodeDictionary the stack is
+	 * just {root, network}.
+	 */
+	private Kind getStreamedKind() {
+		if (stack.size() == 2 && path.size() == 2 && stack.peek() instanceof JSONObject) {
+			Iterator<String> keys = path.iterator();
+			if (NodeDictionary.KEY.equals(keys.next()) && "network".equals(keys.next()))
+				return Kind.DICTIONARY;
+			return null;
+		}
+		if (stack.size() != 3 || path.size() != 2 || !(stack.peek() instanceof JSONArray))
+			return null;
+		Iterator<String> keys = path.iterator();
+		String arrayKey = keys.next();
+		if (!"network".equals(keys.next()))
+			return null;
+		if ("nodes".equals(arrayKey))
+			return Kind.NODE;
+		if ("edges".equals(arrayKey))
+			return Kind.EDGE;
+		return null;
+	}
+}
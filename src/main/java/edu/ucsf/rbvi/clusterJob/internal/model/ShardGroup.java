@@ -0,0 +1,150 @@
+package edu.ucsf.rbvi.clusterJob.internal.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+
+import org.cytoscape.model.CyColumn;
+import org.cytoscape.model.CyNetwork;
+import org.cytoscape.model.CyNode;
+import org.cytoscape.model.CyRow;
+import org.cytoscape.model.CyTable;
+
+/**
+ * A set of cluster jobs that together cover one network, one job per
+ * shard of connected components.  Clusters never cross components, so
+ * each shard can be clustered independently; as each shard's results
+ * come in, its local cluster numbers are remapped to a block of numbers
+ * no other shard uses, giving one globally unique ClusterNumber column.
+ */
+public class ShardGroup {
+	public static final String CLUSTER_COLUMN = "ClusterNumber";
+
+	final int shardCount;
+	int nextCluster = 0;
+	int merged = 0;
+
+	public ShardGroup(int shardCount) {
+		this.shardCount = shardCount;
+	}
+
+	public int getShardCount() { return shardCount; }
+
+	public synchronized int getMergedCount() { return merged; }
+
+	public Shard createShard(int index, List<CyNode> nodes) {
+		return new Shard(index, nodes);
+	}
+
+	/**
+	 * Pack components into at most maxShards bins of roughly equal size
+	 * (by node count).  Each component goes in the emptiest bin, largest
+	 * component first, so big components end up on their own and small
+	 * ones are packed together.
+	 */
+	public static List<List<CyNode>> partition(List<List<CyNode>> components, int maxShards) {
+		int binCount = Math.max(1, Math.min(maxShards, components.size()));
+		List<List<CyNode>> sorted = new ArrayList<>(components);
+		Collections.sort(sorted, new Comparator<List<CyNode>>() {
+			public int compare(List<CyNode> a, List<CyNode> b) {
+				return Integer.compare(b.size(), a.size());
+			}
+		});
+
+		final List<List<CyNode>> bins = new ArrayList<>(binCount);
+		PriorityQueue<Integer> emptiest = new PriorityQueue<>(binCount, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				int c = Integer.compare(bins.get(a).size(), bins.get(b).size());
+				return c != 0 ? c : Integer.compare(a, b);
+			}
+		});
+		for (int i = 0; i < binCount; i++) {
+			bins.add(new ArrayList<CyNode>());
+			emptiest.add(i);
+		}
+		for (List<CyNode> component: sorted) {
+			int bin = emptiest.poll();
+			bins.get(bin).addAll(component);
+			emptiest.add(bin);
+		}
+
+		List<List<CyNode>> shards = new ArrayList<>(binCount);
+		for (List<CyNode> bin: bins) {
+			if (bin.size() > 0)
+				shards.add(bin);
+		}
+		return shards;
+	}
+
+	/**
+	 * Give the local cluster numbers of these nodes their own block of
+	 * global cluster numbers
+	 */
+	synchronized void merge(CyNetwork network, List<Long> nodeSUIDs) {
+		CyTable table = network.getDefaultNodeTable();
+		CyColumn column = table.getColumn(CLUSTER_COLUMN);
+		if (column == null)
+			return;
+
+		List<CyRow> rows = new ArrayList<>(nodeSUIDs.size());
+		TreeSet<Long> localClusters = new TreeSet<>();
+		for (Long suid: nodeSUIDs) {
+			CyNode node = network.getNode(suid);
+			if (node == null)
+				continue;
+			CyRow row = network.getRow(node);
+			Object local = row.getRaw(CLUSTER_COLUMN);
+			if (local instanceof Number) {
+				rows.add(row);
+				localClusters.add(((Number)local).longValue());
+			}
+		}
+
+		// Keep the order of the local numbers
+		Map<Long, Integer> globalClusters = new HashMap<>();
+		for (Long local: localClusters)
+			globalClusters.put(local, nextCluster++);
+
+		boolean isLong = column.getType().equals(Long.class);
+		for (CyRow row: rows) {
+			Integer global = globalClusters.get(((Number)row.getRaw(CLUSTER_COLUMN)).longValue());
+			if (isLong)
+				row.set(CLUSTER_COLUMN, global.longValue());
+			else
+				row.set(CLUSTER_COLUMN, global);
+		}
+		merged++;
+	}
+
+	/**
+	 * One job's share of the network
+	 */
+	public class Shard {
+		final int index;
+		final List<Long> nodeSUIDs;
+
+		Shard(int index, List<CyNode> nodes) {
+			this.index = index;
+			this.nodeSUIDs = new ArrayList<>(nodes.size());
+			for (CyNode node: nodes)
+				nodeSUIDs.add(node.getSUID());
+		}
+
+		public int getIndex() { return index; }
+
+		public ShardGroup getGroup() { return ShardGroup.this; }
+
+		/**
+		 * Our results have been applied to network, so make our cluster
+		 * numbers globally unique
+		 */
+		public void merge(CyNetwork network) {
+			ShardGroup.this.merge(network, nodeSUIDs);
+		}
+	}
+}
@@ -0,0 +1,181 @@
+package edu.ucsf.rbvi.clusterJob.internal.model;
+
+import java.lang.ref.WeakReference;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import org.cytoscape.jobs.CyJob;
+import org.cytoscape.jobs.SUIDUtil;
+import org.cytoscape.model.CyIdentifiable;
+import org.cytoscape.model.CyNetwork;
+import org.cytoscape.model.CyNetworkManager;
+
+/**
+ * Old to new SUID mappings for networks restored from a session.  Every
+ * job against the same network shares one mapping, which is only added
+ * to when a job refers to SUIDs we haven't mapped yet, so SUIDUtil is
+ * called at most once per job (and not at all once the mapping covers
+ * the network).  Mappings are published as immutable snapshots, so loads
+ * running at the same time can share them.  Clear the cache when a new
+ * session is loaded.
+ */
+public class SuidRemapCache {
+	final Map<Long, WeakReference<CyNetwork>> networks = new HashMap<>();
+	final Map<CyNetwork, Remap> remaps = new WeakHashMap<>();
+
+	/**
+	 * Find the current network for a network SUID from the session the job
+	 * was saved in.
+	 */
+	public CyNetwork restoreNetwork(CyJob job, CyNetworkManager networkManager, Long oldSUID) {
+		synchronized (this) {
+			WeakReference<CyNetwork> ref = oldSUID == null ? null : networks.get(oldSUID);
+			CyNetwork network = ref == null ? null : ref.get();
+			if (network != null && networkManager.networkExists(network.getSUID()))
+				return network;
+		}
+		CyNetwork network = SUIDUtil.restoreNetwork(job, networkManager, oldSUID, false);
+		if (network != null && oldSUID != null) {
+			synchronized (this) {
+				networks.put(oldSUID, new WeakReference<CyNetwork>(network));
+			}
+		}
+		return network;
+	}
+
+	/**
+	 * Return the old to new SUID mapping for network, making sure it covers
+	 * the nodes and edges (and node dictionary) in netMap.
+	 */
+	public Map<Long, CyIdentifiable> getSUIDMap(CyJob job, CyNetwork network, Map<String, Object> netMap) {
+		if (network == null)
+			return null;
+		return getRemap(network).cover(job, network, netMap);
+	}
+
+	/**
+	 * As above, for results that arrive a few at a time: make sure the
+	 * mapping covers ids.
+	 */
+	public Map<Long, CyIdentifiable> getSUIDMap(CyJob job, CyNetwork network, Collection<Long> ids) {
+		if (network == null)
+			return null;
+		return getRemap(network).cover(job, network, ids);
+	}
+
+	private synchronized Remap getRemap(CyNetwork network) {
+		Remap remap = remaps.get(network);
+		if (remap == null) {
+			remap = new Remap();
+			remaps.put(network, remap);
+		}
+		return remap;
+	}
+
+	public synchronized void clear() {
+		networks.clear();
+		remaps.clear();
+	}
+
+	static class Remap {
+		volatile LongObjectMap<CyIdentifiable> map = new LongObjectMap<>();
+		final Set<String> jobs = new HashSet<>();
+
+		synchronized Map<Long, CyIdentifiable> cover(CyJob job, CyNetwork network, Map<String, Object> netMap) {
+			String jobId = job.getJobId();
+			if (jobId != null && jobs.contains(jobId))
+				return map;
+
+			LongObjectMap<CyIdentifiable> current = map;
+			IdList missing = new IdList();
+			addMissing(current, netMap.get("nodes"), missing);
+			addMissing(current, netMap.get("edges"), missing);
+			NodeDictionary dictionary = NodeDictionary.fromJSON(netMap.get(NodeDictionary.KEY));
+			if (dictionary != null) {
+				for (int i = 0; i < dictionary.size(); i++)
+					missing.addMissing(current, dictionary.getId(i));
+			}
+
+			restore(job, network, current, missing);
+			if (jobId != null)
+				jobs.add(jobId);
+			return map;
+		}
+
+		/**
+		 * Cover just ids.  We don't mark the job as done, since more of its
+		 * results may be on the way.
+		 */
+		synchronized Map<Long, CyIdentifiable> cover(CyJob job, CyNetwork network, Collection<Long> ids) {
+			String jobId = job.getJobId();
+			if (jobId != null && jobs.contains(jobId))
+				return map;
+
+			LongObjectMap<CyIdentifiable> current = map;
+			IdList missing = new IdList();
+			for (Long id: ids)
+				missing.addMissing(current, id);
+			restore(job, network, current, missing);
+			return map;
+		}
+
+		private void restore(CyJob job, CyNetwork network, LongObjectMap<CyIdentifiable> current, IdList missing) {
+			if (missing.size() == 0)
+				return;
+			Map<Long, CyIdentifiable> restored = SUIDUtil.restoreSUIDs(job, network, missing, false);
+			if (restored != null && restored.size() > 0) {
+				LongObjectMap<CyIdentifiable> next = new LongObjectMap<>(current.size()+restored.size());
+				next.putAll(current);
+				for (Map.Entry<Long, CyIdentifiable> entry: restored.entrySet()) {
+					if (entry.getKey() != null && entry.getValue() != null)
+						next.put(entry.getKey().longValue(), entry.getValue());
+				}
+				map = next;
+			}
+		}
+
+		private void addMissing(LongObjectMap<CyIdentifiable> current, Object array, IdList missing) {
+			if (!(array instanceof JSONArray))
+				return;
+			for (Object o: (JSONArray)array) {
+				Object id = ((JSONObject)o).get("id");
+				if (id instanceof Number)
+					missing.addMissing(current, ((Number)id).longValue());
+			}
+		}
+	}
+
+	/**
+	 * The SUIDs to look up, with constant time contains()
+	 */
+	static class IdList extends AbstractList<Long> {
+		final List<Long> ids = new ArrayList<>();
+		final Set<Long> idSet = new HashSet<>();
+
+		void addMissing(LongObjectMap<CyIdentifiable> current, Long id) {
+			if (id == null || id.longValue() == 0 || current.containsKey(id.longValue()))
+				return;
+			if (idSet.add(id))
+				ids.add(id);
+		}
+
+		@Override
+		public Long get(int index) { return ids.get(index); }
+
+		@Override
+		public int size() { return ids.size(); }
+
+		@Override
+		public boolean contains(Object o) { return idSet.contains(o); }
+	}
+}
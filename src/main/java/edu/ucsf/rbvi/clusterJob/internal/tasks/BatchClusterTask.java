@@ -0,0 +1,341 @@
+package edu.ucsf.rbvi.clusterJob.internal.tasks;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import org.cytoscape.jobs.CyJob;
+import org.cytoscape.jobs.CyJobData;
+import org.cytoscape.jobs.CyJobExecutionService;
+import org.cytoscape.jobs.CyJobStatus;
+import org.cytoscape.jobs.CyJobStatus.Status;
+import org.cytoscape.model.CyColumn;
+import org.cytoscape.model.CyIdentifiable;
+import org.cytoscape.model.CyNetwork;
+import org.cytoscape.model.CyNetworkManager;
+import org.cytoscape.model.CyNode;
+import org.cytoscape.model.CyRow;
+import org.cytoscape.model.CyTable;
+import org.cytoscape.service.util.CyServiceRegistrar;
+import org.cytoscape.work.AbstractTask;
+import org.cytoscape.work.ObservableTask;
+import org.cytoscape.work.TaskMonitor;
+import org.cytoscape.work.Tunable;
+
+import edu.ucsf.rbvi.clusterJob.internal.handlers.ClusterJobHandler;
+import edu.ucsf.rbvi.clusterJob.internal.io.JobLogger;
+import edu.ucsf.rbvi.clusterJob.internal.model.ClusterJob;
+import edu.ucsf.rbvi.clusterJob.internal.model.NetworkScope;
+import edu.ucsf.rbvi.clusterJob.internal.model.ShardGroup;
+
+/**
+ * Cluster a list of networks with a list of algorithms, without any
+ * dialogs.  Each (network, algorithm) pair is a job.  A network's
+ * algorithms are run one after the other, since they all write the same
+ * cluster column.  With more than one algorithm, each one's clusters are
+ * also copied to a column of their own ("ClusterNumber (leiden)", say),
+ * so they aren't lost when the next one runs.  Up to maxConcurrent
+ * networks are in flight at once:
+ * as soon as one network is done, the next is started.  We poll and apply
+ * the jobs ourselves rather than going through the job manager, and report
+ * the timings for each job as JSON.
+ */
+public class BatchClusterTask extends AbstractTask implements ObservableTask {
+	static final JobLogger log = JobLogger.getLogger(BatchClusterTask.class);
+	static final String ALL = "all";
+	final CyServiceRegistrar registrar;
+	// Every job from this run of the task, so they don't supersede each other
+	final Object submission = new Object();
+	JSONObject result = null;
+	volatile boolean canceled = false;
+
+	@Tunable(description="Networks to cluster (names or SUIDs, comma separated, or 'all')", context="nogui")
+	public String networks = ALL;
+
+	@Tunable(description="Algorithms to run on each network (comma separated; with more than one, each also gets its own column)", context="nogui")
+	public String algorithms = "leiden";
+
+	@Tunable(description="Maximum number of jobs in flight at once", context="nogui")
+	public int maxConcurrent = 8;
+
+	@Tunable(description="How often to check on each job (milliseconds)", context="nogui")
+	public int pollMillis = 1000;
+
+	@Tunable(description="Give up on a job after this many seconds (0 to wait forever)", context="nogui")
+	public int timeout = 0;
+
+	@Tunable(description="JSON file to write the timings to", params="input=false", context="nogui")
+	public File file = null;
+
+	public BatchClusterTask(CyServiceRegistrar registrar) {
+		this.registrar = registrar;
+	}
+
+	public void run(final TaskMonitor monitor) throws Exception {
+		final CyJobExecutionService executionService =
+						registrar.getService(CyJobExecutionService.class, "(title=ClusterJobExecutor)");
+		List<CyNetwork> networkList = getNetworks(registrar.getService(CyNetworkManager.class), networks);
+		List<String> algorithmList = split(algorithms);
+		if (networkList.size() == 0 || algorithmList.size() == 0) {
+			monitor.showMessage(TaskMonitor.Level.ERROR, "No networks or no algorithms to run");
+			return;
+		}
+
+		final List<String> algorithmOrder = algorithmList;
+		final boolean ownColumns = algorithmList.size() > 1;
+		final int total = networkList.size()*algorithmList.size();
+		final AtomicInteger done = new AtomicInteger();
+		monitor.setTitle("Clustering "+networkList.size()+" networks");
+		long start = System.nanoTime();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(maxConcurrent, networkList.size())), new ThreadFactory() {
+			final AtomicInteger count = new AtomicInteger();
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ClusterJob batch "+count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		List<Future<List<JSONObject>>> futures = new ArrayList<>();
+		try {
+			for (final CyNetwork network: networkList) {
+				futures.add(pool.submit(new Callable<List<JSONObject>>() {
+					public List<JSONObject> call() {
+						List<JSONObject> timings = new ArrayList<>();
+						for (String algorithm: algorithmOrder) {
+							timings.add(runJob(executionService, network, algorithm, ownColumns));
+							int count = done.incrementAndGet();
+							monitor.setProgress((double)count/total);
+							monitor.setStatusMessage("Finished "+count+" of "+total+" jobs");
+						}
+						return timings;
+					}
+				}));
+			}
+
+			JSONArray jobs = new JSONArray();
+			int succeeded = 0;
+			for (Future<List<JSONObject>> future: futures) {
+				List<JSONObject> timings;
+				try {
+					timings = future.get();
+				} catch (ExecutionException ee) {
+					JSONObject timing = new JSONObject();
+					timing.put("status", Status.ERROR.toString());
+					timing.put("message", String.valueOf(ee.getCause()));
+					timings = Collections.singletonList(timing);
+				}
+				for (JSONObject timing: timings) {
+					if (Status.FINISHED.toString().equals(timing.get("status")))
+						succeeded++;
+					jobs.add(timing);
+				}
+			}
+
+			result = new JSONObject();
+			result.put("jobs", jobs);
+			result.put("total", total);
+			result.put("succeeded", succeeded);
+			result.put("failed", total-succeeded);
+			result.put("maxConcurrent", maxConcurrent);
+			result.put("wallTime", millis(System.nanoTime()-start));
+			monitor.showMessage(TaskMonitor.Level.INFO, succeeded+" of "+total+" jobs succeeded");
+		} finally {
+			pool.shutdownNow();
+		}
+
+		if (file != null) {
+			try (FileWriter writer = new FileWriter(file)) {
+				result.writeJSONString(writer);
+				monitor.showMessage(TaskMonitor.Level.INFO, "Wrote timings to "+file.getAbsolutePath());
+			} catch (IOException ioe) {
+				monitor.showMessage(TaskMonitor.Level.ERROR, "Unable to write timings: "+ioe.getMessage());
+			}
+		}
+	}
+
+	@Override
+	public void cancel() {
+		super.cancel();
+		canceled = true;
+	}
+
+	/**
+	 * Submit one job, wait for it and apply its results, returning how long
+	 * each step took.  If ownColumn is set, the results are also copied to
+	 * the algorithm's own column.
+	 */
+	JSONObject runJob(CyJobExecutionService executionService, CyNetwork network, String algorithm,
+	                  boolean ownColumn) {
+		JSONObject timing = new JSONObject();
+		timing.put("network", network.getRow(network).get(CyNetwork.NAME, String.class));
+		timing.put("networkSUID", network.getSUID());
+		timing.put("algorithm", algorithm);
+		long start = System.nanoTime();
+		if (canceled) {
+			timing.put("status", Status.CANCELED.toString());
+			timing.put("message", "Batch canceled");
+			return timing;
+		}
+
+		CyJob job = executionService.createCyJob("ClusterJob");
+		List<CyNode> nodes = network.getNodeList();
+		List<CyIdentifiable> nodesAndEdges = NetworkScope.getInducedSubgraph(network, nodes);
+		CyJobData data = job.getJobDataService().addData(null, "network", network, nodesAndEdges, null, null);
+		timing.put("nodes", nodes.size());
+		timing.put("edges", nodesAndEdges.size()-nodes.size());
+		Map<String, Object> configuration = Collections.<String, Object>singletonMap("algorithm", algorithm);
+
+		CyJobStatus status = executionService.executeJob(job, null, configuration, data);
+		// Older jobs for this network are now out of date, if this one was really submitted
+		boolean superseding = job instanceof ClusterJob && job.getJobId() != null && !isDone(status);
+		if (superseding)
+			ClusterJobHandler.supersede((ClusterJob)job, network.getSUID(), ShardGroup.CLUSTER_COLUMN, submission);
+		long submitted = System.nanoTime();
+		timing.put("submitTime", millis(submitted-start));
+		timing.put("jobId", job.getJobId());
+
+		long finished = submitted;
+		try {
+			// Wait for it to finish
+			long deadline = timeout > 0 ? submitted + timeout*1000000000L : Long.MAX_VALUE;
+			try {
+				while (!isDone(status)) {
+					if (canceled || System.nanoTime() > deadline) {
+						executionService.cancelJob(job);
+						status = new CyJobStatus(Status.CANCELED, canceled ? "Batch canceled" : "Timed out");
+						break;
+					}
+					Thread.sleep(pollMillis);
+					CyJobStatus check = executionService.checkJobStatus(job);
+					if (check != null)
+						status = check;
+				}
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				executionService.cancelJob(job);
+				status = new CyJobStatus(Status.CANCELED, "Interrupted");
+			}
+			finished = System.nanoTime();
+			timing.put("waitTime", millis(finished-submitted));
+
+			// Apply the results the same way the job manager would
+			if (status.getStatus() == Status.FINISHED) {
+				ClusterJobHandler handler = new ClusterJobHandler(job, network);
+				job.setJobMonitor(handler);
+				handler.loadData(job, null);
+				if (ownColumn && !(job instanceof ClusterJob && ((ClusterJob)job).isSuperseded()))
+					copyClusters(network, nodes, ShardGroup.CLUSTER_COLUMN+" ("+algorithm+")");
+			}
+		} finally {
+			// loadData does this for a finished job, but however we got
+			// here, this job no longer stands in the way of newer ones
+			if (superseding)
+				ClusterJobHandler.getSupersession().finished(((ClusterJob)job).getSupersessionKey(), job);
+		}
+		long applied = System.nanoTime();
+		timing.put("applyTime", millis(applied-finished));
+		timing.put("totalTime", millis(applied-start));
+		timing.put("status", status.getStatus().toString());
+		if (status.getMessage() != null)
+			timing.put("message", status.getMessage());
+		log.info("batch.job", "job", job.getJobId(), "network", network.getSUID(), "algorithm", algorithm,
+		         "status", status.getStatus(), "time", applied-start);
+		return timing;
+	}
+
+	/**
+	 * Copy the clusters we just applied to column
+	 */
+	static void copyClusters(CyNetwork network, List<CyNode> nodes, String column) {
+		CyTable table = network.getDefaultNodeTable();
+		CyColumn source = table.getColumn(ShardGroup.CLUSTER_COLUMN);
+		if (source == null)
+			return;
+		if (table.getColumn(column) == null)
+			table.createColumn(column, source.getType(), false);
+		for (CyNode node: nodes) {
+			CyRow row = network.getRow(node);
+			row.set(column, row.getRaw(ShardGroup.CLUSTER_COLUMN));
+		}
+	}
+
+	static boolean isDone(CyJobStatus status) {
+		switch (status.getStatus()) {
+			case SUBMITTED:
+			case QUEUED:
+			case RUNNING:
+				return false;
+			default:
+				return true;
+		}
+	}
+
+	private static double millis(long nanos) {
+		return nanos/1000000.0;
+	}
+
+	/**
+	 * Find networks by name or SUID
+	 */
+	static List<CyNetwork> getNetworks(CyNetworkManager networkManager, String networks) {
+		List<CyNetwork> list = new ArrayList<>();
+		if (networks == null || networks.trim().equalsIgnoreCase(ALL)) {
+			list.addAll(networkManager.getNetworkSet());
+			return list;
+		}
+		for (String name: split(networks)) {
+			CyNetwork found = null;
+			try {
+				found = networkManager.getNetwork(Long.parseLong(name));
+			} catch (NumberFormatException e) {
+				for (CyNetwork network: networkManager.getNetworkSet()) {
+					if (name.equals(network.getRow(network).get(CyNetwork.NAME, String.class))) {
+						found = network;
+						break;
+					}
+				}
+			}
+			if (found == null)
+				log.warn("batch.noNetwork", "network", name);
+			else if (!list.contains(found))
+				list.add(found);
+		}
+		return list;
+	}
+
+	private static List<String> split(String list) {
+		List<String> values = new ArrayList<>();
+		if (list == null)
+			return values;
+		for (String value: list.split(",")) {
+			if (value.trim().length() > 0)
+				values.add(value.trim());
+		}
+		return values;
+	}
+
+	@Override
+	public <R> R getResults(Class<? extends R> type) {
+		if (result == null) return null;
+		if (type.equals(String.class))
+			return (R)result.toJSONString();
+		if (type.isAssignableFrom(JSONObject.class))
+			return (R)result;
+		return null;
+	}
+}
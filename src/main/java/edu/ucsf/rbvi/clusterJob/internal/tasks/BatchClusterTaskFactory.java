@@ -0,0 +1,16 @@
+package edu.ucsf.rbvi.clusterJob.internal.tasks;
+
+import org.cytoscape.service.util.CyServiceRegistrar;
+import org.cytoscape.work.AbstractTaskFactory;
+import org.cytoscape.work.TaskIterator;
+
+public class BatchClusterTaskFactory extends AbstractTaskFactory {
+	final CyServiceRegistrar registrar;
+	public BatchClusterTaskFactory(CyServiceRegistrar registrar) {
+		this.registrar = registrar;
+	}
+
+	public TaskIterator createTaskIterator() {
+		return new TaskIterator(new BatchClusterTask(registrar));
+	}
+}
@@ -0,0 +1,276 @@
+package edu.ucsf.rbvi.clusterJob.internal.tasks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import org.cytoscape.jobs.CyJob;
+import org.cytoscape.jobs.CyJobData;
+import org.cytoscape.jobs.CyJobExecutionService;
+import org.cytoscape.jobs.CyJobStatus;
+import org.cytoscape.jobs.CyJobStatus.Status;
+import org.cytoscape.model.CyIdentifiable;
+import org.cytoscape.model.CyNode;
+import org.cytoscape.model.CyNetwork;
+import org.cytoscape.service.util.CyServiceRegistrar;
+import org.cytoscape.task.AbstractNetworkTask;
+import org.cytoscape.work.TaskMonitor;
+import org.cytoscape.work.Tunable;
+import org.cytoscape.work.util.ListSingleSelection;
+
+import edu.ucsf.rbvi.clusterJob.internal.io.ClusterJobExecutionService;
+import edu.ucsf.rbvi.clusterJob.internal.io.JobLogger;
+import edu.ucsf.rbvi.clusterJob.internal.model.ClusterJob;
+import edu.ucsf.rbvi.clusterJob.internal.model.ClusterJobData;
+import edu.ucsf.rbvi.clusterJob.internal.model.ClusterJobDataService;
+import edu.ucsf.rbvi.clusterJob.internal.model.CoAssociation;
+import edu.ucsf.rbvi.clusterJob.internal.model.ColumnData;
+import edu.ucsf.rbvi.clusterJob.internal.model.ResultStreamParser.Kind;
+import edu.ucsf.rbvi.clusterJob.internal.model.ResultStreamParser.ResultElement;
+import edu.ucsf.rbvi.clusterJob.internal.model.ShardGroup;
+
+/**
+ * Run the same clustering many times with different seeds and write the
+ * consensus.  The network is serialized once and the same payload is
+ * submitted for every run.  Each run's results are read straight into an
+ * assignment vector and added to a {@link CoAssociation}, rather than
+ * being applied to the network, so only the consensus cluster and
+ * stability columns are ever written.
+ */
+public class ConsensusTask extends AbstractNetworkTask {
+	static final JobLogger log = JobLogger.getLogger(ConsensusTask.class);
+	static final String SEED = "seed";
+	final CyServiceRegistrar registrar;
+	volatile boolean canceled = false;
+
+	@Tunable(description="Number of runs", gravity=1.0)
+	public int runs = 50;
+
+	@Tunable(description="Fraction of runs two nodes must be together in", gravity=2.0)
+	public double threshold = 0.5;
+
+	@Tunable(description="Edge weight column", gravity=3.0)
+	public ListSingleSelection<String> edgeWeightColumn;
+
+	@Tunable(description="Maximum number of runs in flight at once", gravity=4.0)
+	public int maxConcurrent = 8;
+
+	@Tunable(description="How often to check on each run (milliseconds)", gravity=5.0)
+	public int pollMillis = 1000;
+
+	public ConsensusTask(CyNetwork network, CyServiceRegistrar registrar) {
+		super(network);
+		this.registrar = registrar;
+		edgeWeightColumn = new ListSingleSelection<String>(SubmitJobTask.getWeightColumns(network));
+		edgeWeightColumn.setSelectedValue(SubmitJobTask.NO_WEIGHT);
+	}
+
+	public void run(final TaskMonitor monitor) throws Exception {
+		CyJobExecutionService service =
+						registrar.getService(CyJobExecutionService.class, "(title=ClusterJobExecutor)");
+		if (!(service instanceof ClusterJobExecutionService)) {
+			monitor.showMessage(TaskMonitor.Level.ERROR, "Consensus clustering needs the cluster job service");
+			return;
+		}
+		final ClusterJobExecutionService executionService = (ClusterJobExecutionService)service;
+		monitor.setTitle("Consensus clustering");
+
+		List<CyNode> nodes = network.getNodeList();
+		final CoAssociation coAssociation = new CoAssociation(network, nodes);
+		List<String> edgeColumns = null;
+		String weight = edgeWeightColumn.getSelectedValue();
+		if (weight != null && !weight.equals(SubmitJobTask.NO_WEIGHT))
+			edgeColumns = Collections.singletonList(weight);
+
+		// Serialize the network once for all of the runs
+		List<CyIdentifiable> nodesAndEdges = new ArrayList<CyIdentifiable>(nodes);
+		nodesAndEdges.addAll(network.getEdgeList());
+		final CyJobData data = executionService.getDataService().addData(null, "network", network, nodesAndEdges,
+		                                                                  null, edgeColumns);
+		if (data instanceof ClusterJobData) {
+			((ClusterJobData)data).setShared(true);
+			// Do it now, rather than in every one of the first runs at once
+			((ClusterJobDataService)executionService.getDataService()).getSerializedData(data);
+		}
+
+		final AtomicInteger done = new AtomicInteger();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(maxConcurrent, runs)), new ThreadFactory() {
+			final AtomicInteger count = new AtomicInteger();
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ClusterJob consensus "+count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		int succeeded = 0;
+		try {
+			List<Future<Boolean>> futures = new ArrayList<>();
+			for (int run = 0; run < runs && !canceled; run++) {
+				final int seed = run;
+				futures.add(pool.submit(new Callable<Boolean>() {
+					public Boolean call() throws Exception {
+						boolean ok = runOnce(executionService, data, seed, coAssociation);
+						int count = done.incrementAndGet();
+						monitor.setProgress((double)count/runs);
+						monitor.setStatusMessage("Finished "+count+" of "+runs+" runs");
+						return ok;
+					}
+				}));
+			}
+			for (Future<Boolean> future: futures) {
+				try {
+					if (future.get())
+						succeeded++;
+				} catch (ExecutionException ee) {
+					log.warn("consensus.runFailed", "error", String.valueOf(ee.getCause()));
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+			if (data instanceof ClusterJobData)
+				((ClusterJobData)data).setShared(false);
+		}
+
+		if (succeeded == 0) {
+			monitor.showMessage(TaskMonitor.Level.ERROR, "None of the runs finished");
+			return;
+		}
+		int clusters = coAssociation.write(network, threshold);
+		monitor.showMessage(TaskMonitor.Level.INFO, "Found "+clusters+" consensus clusters from "+succeeded+" of "+runs+" runs");
+		log.info("consensus.done", "network", network.getSUID(), "runs", succeeded, "clusters", clusters,
+		         "edges", coAssociation.getEdgeCount());
+	}
+
+	@Override
+	public void cancel() {
+		super.cancel();
+		canceled = true;
+	}
+
+	/**
+	 * Submit one run, wait for it, and add its clusters to coAssociation
+	 */
+	boolean runOnce(ClusterJobExecutionService executionService, CyJobData data, int seed,
+	                CoAssociation coAssociation) throws Exception {
+		// Don't start runs that are still queued once we've been canceled
+		if (canceled)
+			return false;
+		CyJob job = executionService.createCyJob("ClusterJob");
+		Map<String, Object> configuration = Collections.<String, Object>singletonMap(SEED, seed);
+		CyJobStatus status = executionService.executeJob(job, null, configuration, data);
+		while (!BatchClusterTask.isDone(status)) {
+			if (canceled) {
+				executionService.cancelJob(job);
+				return false;
+			}
+			Thread.sleep(pollMillis);
+			CyJobStatus check = executionService.checkJobStatus(job);
+			if (check != null)
+				status = check;
+		}
+		if (status.getStatus() != Status.FINISHED) {
+			log.warn("consensus.runFailed", "job", job.getJobId(), "status", status.getStatus(),
+			         "message", status.getMessage());
+			return false;
+		}
+
+		int[] assignment = readAssignment(executionService, (ClusterJob)job, coAssociation);
+		if (assignment == null)
+			return false;
+		coAssociation.add(assignment);
+		// We've used the results, so don't let the journal bring them back
+		executionService.resultsApplied(job);
+		return true;
+	}
+
+	/**
+	 * Read a run's clusters into an assignment vector, streaming them if we
+	 * can
+	 */
+	private int[] readAssignment(ClusterJobExecutionService executionService, ClusterJob job,
+	                             CoAssociation coAssociation) throws Exception {
+		int[] assignment = coAssociation.newAssignment();
+		BlockingQueue<ResultElement> queue = new ArrayBlockingQueue<>(1024);
+		Future<JSONObject> download = executionService.streamResults(job, queue);
+		if (download == null) {
+			// Fetch it all in one go
+			CyJobData results = executionService.getDataService().getDataInstance();
+			CyJobStatus status = executionService.fetchResults(job, results);
+			if (status.getStatus() != Status.FINISHED || !(results.get("network") instanceof JSONObject))
+				return null;
+			JSONObject netObject = (JSONObject)results.get("network");
+			List<Integer> indexes = new ArrayList<>();
+			if (netObject.get("nodes") instanceof JSONArray) {
+				for (Object node: (JSONArray)netObject.get("nodes"))
+					indexes.add(assign(assignment, coAssociation, (JSONObject)node));
+			}
+			assignBlock(assignment, netObject, indexes);
+			return assignment;
+		}
+
+		// The nodes since the last page, in case their clusters come as a column block
+		List<Integer> indexes = new ArrayList<>();
+		try {
+			while (true) {
+				ResultElement element = queue.take();
+				if (element.kind == Kind.END)
+					break;
+				if (element.kind == Kind.ERROR)
+					throw new IOException("Unable to fetch results", element.error);
+				if (element.kind == Kind.NODE) {
+					indexes.add(assign(assignment, coAssociation, element.object));
+				} else if (element.kind == Kind.PAGE) {
+					assignBlock(assignment, element.object, indexes);
+					indexes.clear();
+				}
+			}
+		} catch (Exception e) {
+			download.cancel(true);
+			queue.clear();
+			throw e;
+		}
+		JSONObject rest = download.get();
+		if (rest != null && rest.get("network") instanceof JSONObject)
+			assignBlock(assignment, (JSONObject)rest.get("network"), indexes);
+		return assignment;
+	}
+
+	private static int assign(int[] assignment, CoAssociation coAssociation, JSONObject node) {
+		int index = coAssociation.indexOf(node.get("id"));
+		Object cluster = node.get(ShardGroup.CLUSTER_COLUMN);
+		if (index >= 0 && cluster instanceof Number)
+			assignment[index] = ((Number)cluster).intValue();
+		return index;
+	}
+
+	/**
+	 * Pick up clusters sent as a column block for the nodes at indexes
+	 */
+	private static void assignBlock(int[] assignment, JSONObject netObject, List<Integer> indexes) {
+		if (netObject == null || !(netObject.get(ClusterJobDataService.NODE_COLUMNS) instanceof Map))
+			return;
+		Object block = ((Map<?, ?>)netObject.get(ClusterJobDataService.NODE_COLUMNS)).get(ShardGroup.CLUSTER_COLUMN);
+		long[] clusters = block instanceof JSONObject ? ColumnData.getLongs((JSONObject)block, -1L) : null;
+		if (clusters == null)
+			return;
+		for (int i = 0; i < clusters.length && i < indexes.size(); i++) {
+			int index = indexes.get(i);
+			if (index >= 0 && clusters[i] >= 0)
+				assignment[index] = (int)clusters[i];
+		}
+	}
+}
@@ -0,0 +1,18 @@
+package edu.ucsf.rbvi.clusterJob.internal.tasks;
+
+import org.cytoscape.model.CyNetwork;
+import org.cytoscape.service.util.CyServiceRegistrar;
+import org.cytoscape.task.AbstractNetworkTaskFactory;
+import org.cytoscape.work.TaskIterator;
+
+public class ConsensusTaskFactory extends AbstractNetworkTaskFactory {
+	final CyServiceRegistrar registrar;
+	public ConsensusTaskFactory(CyServiceRegistrar registrar) {
+		this.registrar = registrar;
+	}
+
+	public TaskIterator createTaskIterator(CyNetwork network) {
+		return new TaskIterator(new ConsensusTask(network, registrar));
+	}
+}
+
@@ -0,0 +1,60 @@
+package edu.ucsf.rbvi.clusterJob.internal.tasks;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import org.json.simple.JSONObject;
+
+import org.cytoscape.work.AbstractTask;
+import org.cytoscape.work.ObservableTask;
+import org.cytoscape.work.TaskMonitor;
+import org.cytoscape.work.Tunable;
+
+import edu.ucsf.rbvi.clusterJob.internal.model.ClusterJobMetrics;
+
+/**
+ * Report the submit/poll/fetch/apply metrics for all of the cluster
+ * jobs in this session, optionally dumping them to a JSON file.
+ */
+public class MetricsTask extends AbstractTask implements ObservableTask {
+	final ClusterJobMetrics metrics;
+	JSONObject result = null;
+
+	@Tunable(description="Include the metrics for each job", context="nogui")
+	public boolean includeJobs = false;
+
+	@Tunable(description="JSON file to write the metrics to", params="input=false", context="nogui")
+	public File file = null;
+
+	@Tunable(description="Reset the metrics after reporting them", context="nogui")
+	public boolean reset = false;
+
+	public MetricsTask(ClusterJobMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public void run(TaskMonitor monitor) {
+		result = metrics.toJSON(includeJobs);
+		if (file != null) {
+			try (FileWriter writer = new FileWriter(file)) {
+				result.writeJSONString(writer);
+				monitor.showMessage(TaskMonitor.Level.INFO, "Wrote metrics to "+file.getAbsolutePath());
+			} catch (IOException ioe) {
+				monitor.showMessage(TaskMonitor.Level.ERROR, "Unable to write metrics: "+ioe.getMessage());
+			}
+		}
+		if (reset)
+			metrics.reset();
+	}
+
+	@Override
+	public <R> R getResults(Class<? extends R> type) {
+		if (result == null) return null;
+		if (type.equals(String.class))
+			return (R)result.toJSONString();
+		if (type.isAssignableFrom(JSONObject.class))
+			return (R)result;
+		return null;
+	}
+}
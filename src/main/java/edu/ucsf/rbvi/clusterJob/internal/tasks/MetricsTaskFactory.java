@@ -0,0 +1,17 @@
+package edu.ucsf.rbvi.clusterJob.internal.tasks;
+
+import org.cytoscape.work.AbstractTaskFactory;
+import org.cytoscape.work.TaskIterator;
+
+import edu.ucsf.rbvi.clusterJob.internal.model.ClusterJobMetrics;
+
+public class MetricsTaskFactory extends AbstractTaskFactory {
+	final ClusterJobMetrics metrics;
+	public MetricsTaskFactory(ClusterJobMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public TaskIterator createTaskIterator() {
+		return new TaskIterator(new MetricsTask(metrics));
+	}
+}
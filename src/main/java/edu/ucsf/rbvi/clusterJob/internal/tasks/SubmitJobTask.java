@@ -1,6 +1,15 @@
 package edu.ucsf.rbvi.clusterJob.internal.tasks;
 
-import org.cytoscape.application.CyApplicationManager;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import org.cytoscape.jobs.CyJob;
 import org.cytoscape.jobs.CyJobData;
 import org.cytoscape.jobs.CyJobDataService;
@@ -8,51 +17,275 @@ import org.cytoscape.jobs.CyJobExecutionService;
 import org.cytoscape.jobs.CyJobManager;
 import org.cytoscape.jobs.CyJobStatus;
 import org.cytoscape.jobs.SUIDUtil;
+import org.cytoscape.model.CyColumn;
+import org.cytoscape.model.CyIdentifiable;
 import org.cytoscape.model.CyNetwork;
+import org.cytoscape.model.CyNode;
 import org.cytoscape.service.util.CyServiceRegistrar;
 import org.cytoscape.task.AbstractNetworkTask;
 import org.cytoscape.work.TaskIterator;
 import org.cytoscape.work.TaskMonitor;
+import org.cytoscape.work.Tunable;
+import org.cytoscape.work.util.ListSingleSelection;
 
 import edu.ucsf.rbvi.clusterJob.internal.handlers.ClusterJobHandler;
+import edu.ucsf.rbvi.clusterJob.internal.io.ClusterJobExecutionService;
+import edu.ucsf.rbvi.clusterJob.internal.io.RemoteCallExecutor;
+import edu.ucsf.rbvi.clusterJob.internal.model.ClusterJob;
+import edu.ucsf.rbvi.clusterJob.internal.model.EdgeSparsifier;
+import edu.ucsf.rbvi.clusterJob.internal.model.NetworkScope;
+import edu.ucsf.rbvi.clusterJob.internal.model.ShardGroup;
 
 public class SubmitJobTask extends AbstractNetworkTask {
+	static final String NO_WEIGHT = "(none)";
+	static final int MAX_PARALLEL_SUBMITS = 8;
 	final CyServiceRegistrar registrar;
+	// Every job from this run of the task, so they don't supersede each other
+	final Object submission = new Object();
+
+	@Tunable(description="Nodes to cluster", gravity=1.0)
+	public ListSingleSelection<NetworkScope> scope;
+
+	@Tunable(description="Filter column", dependsOn="scope=Nodes matching a filter", gravity=2.0)
+	public String filterColumn = null;
+
+	@Tunable(description="Filter value", dependsOn="scope=Nodes matching a filter", gravity=3.0)
+	public String filterValue = null;
+
+	@Tunable(description="Number of hops", dependsOn="scope=Neighborhood of selected nodes", gravity=4.0)
+	public int hops = 1;
+
+	@Tunable(description="Edge weight column", gravity=5.0)
+	public ListSingleSelection<String> edgeWeightColumn;
+
+	@Tunable(description="Submit connected components as separate jobs", gravity=6.0)
+	public boolean shard = false;
+
+	@Tunable(description="Maximum number of jobs", dependsOn="shard=true", gravity=7.0)
+	public int maxShards = 8;
+
+	@Tunable(description="Start from the current clusters", gravity=8.0)
+	public boolean warmStart = false;
+
+	@Tunable(description="Drop weak edges", gravity=9.0)
+	public ListSingleSelection<EdgeSparsifier.Method> sparsify;
+
+	@Tunable(description="Minimum edge weight", dependsOn="sparsify=Weight threshold", gravity=10.0)
+	public double minWeight = 0.0;
+
+	@Tunable(description="Edges to keep per node", dependsOn="sparsify=Strongest edges per node", gravity=11.0)
+	public int edgesPerNode = 10;
+
+	@Tunable(description="Significance level", dependsOn="sparsify=Disparity backbone", gravity=12.0)
+	public double alpha = 0.05;
+
+	// How to thin out the edges before we send them (null to send them all)
+	EdgeSparsifier.Method sparsifyMethod = null;
 
 	public SubmitJobTask(CyNetwork network, CyServiceRegistrar registrar) {
 		super(network);
 		this.registrar = registrar;
+		scope = new ListSingleSelection<NetworkScope>(NetworkScope.values());
+		scope.setSelectedValue(NetworkScope.ALL);
+		edgeWeightColumn = new ListSingleSelection<String>(getWeightColumns(network));
+		edgeWeightColumn.setSelectedValue(NO_WEIGHT);
+		sparsify = new ListSingleSelection<EdgeSparsifier.Method>(EdgeSparsifier.Method.values());
+		sparsify.setSelectedValue(EdgeSparsifier.Method.NONE);
 	}
 
 	public void run(TaskMonitor monitor) {
 		// Get the execution service
 		CyJobExecutionService executionService = 
 						registrar.getService(CyJobExecutionService.class, "(title=ClusterJobExecutor)");
-		CyApplicationManager appManager = registrar.getService(CyApplicationManager.class);
-		CyNetwork currentNetwork = appManager.getCurrentNetwork();
-
-		// Get our initial job
-		CyJob job = executionService.createCyJob("ClusterJob");
-		// Get the data service
-		CyJobDataService dataService = job.getJobDataService();
-		// Add our data
-		CyJobData jobData = dataService.addData(null, "network", currentNetwork, currentNetwork.getNodeList(), null, null);
-		// Create our handler
-		ClusterJobHandler jobHandler = new ClusterJobHandler(job, network);
-		job.setJobMonitor(jobHandler);
-		// Submit the job
-		CyJobStatus exStatus = executionService.executeJob(job, null, null, jobData);
-		if (exStatus.getStatus().equals(CyJobStatus.Status.ERROR) ||
-		    exStatus.getStatus().equals(CyJobStatus.Status.UNKNOWN)) {
-			monitor.showMessage(TaskMonitor.Level.ERROR, exStatus.toString());
+
+		// Only send the part of the network we were asked to cluster
+		NetworkScope selectedScope = scope.getSelectedValue();
+		if (selectedScope == null)
+			selectedScope = NetworkScope.ALL;
+		List<CyNode> nodes = selectedScope.getNodes(network, filterColumn, filterValue, hops);
+		if (nodes.size() == 0) {
+			monitor.showMessage(TaskMonitor.Level.ERROR, "No nodes to cluster for '"+selectedScope+"'");
 			return;
 		}
+		Map<String, Object> configuration = null;
+		if (warmStart && network.getDefaultNodeTable().getColumn(ShardGroup.CLUSTER_COLUMN) != null)
+			configuration = Collections.<String, Object>singletonMap(ClusterJobExecutionService.WARM_START,
+			                                                         ShardGroup.CLUSTER_COLUMN);
+		List<String> edgeColumns = null;
+		String weight = edgeWeightColumn.getSelectedValue();
+		if (weight != null && !weight.equals(NO_WEIGHT))
+			edgeColumns = Collections.singletonList(weight);
+
+		// Sparsification needs weights to work with
+		EdgeSparsifier.Method method = sparsify.getSelectedValue();
+		if (method != null && method != EdgeSparsifier.Method.NONE) {
+			if (edgeColumns == null)
+				monitor.showMessage(TaskMonitor.Level.WARN, "No edge weight column, so all edges will be sent");
+			else
+				sparsifyMethod = method;
+		}
+
+		// Clusters never cross components, so we can split them across jobs
+		if (shard && maxShards > 1) {
+			List<List<CyNode>> shards = ShardGroup.partition(NetworkScope.getComponents(network, nodes), maxShards);
+			if (shards.size() > 1) {
+				submitShards(monitor, executionService, shards, edgeColumns, configuration);
+				return;
+			}
+		}
 
-		// Save our SUIDs in case we get saved and restored
-		SUIDUtil.saveSUIDs(job, currentNetwork, currentNetwork.getNodeList());
+		List<CyIdentifiable> nodesAndEdges = NetworkScope.getInducedSubgraph(network, nodes);
+		PendingJob pending = new PendingJob(executionService, nodesAndEdges, edgeColumns);
+		monitor.setStatusMessage("Submitting "+nodes.size()+" nodes and "+(pending.nodesAndEdges.size()-nodes.size())+" edges");
+		// Submit the job
+		CyJobStatus exStatus = executionService.executeJob(pending.job, null, configuration, pending.data);
+		pending.register(monitor, exStatus);
+	}
+
+	/**
+	 * Submit each shard as its own job, all at once
+	 */
+	private void submitShards(TaskMonitor monitor, final CyJobExecutionService executionService,
+	                          List<List<CyNode>> shards, List<String> edgeColumns,
+	                          final Map<String, Object> configuration) {
+		monitor.setStatusMessage("Submitting "+shards.size()+" shards");
+		ShardGroup group = new ShardGroup(shards.size());
+		List<PendingJob> pendingJobs = new ArrayList<>();
+		for (int i = 0; i < shards.size(); i++) {
+			List<CyNode> shardNodes = shards.get(i);
+			PendingJob pending = new PendingJob(executionService, NetworkScope.getInducedSubgraph(network, shardNodes),
+			                                    edgeColumns);
+			if (pending.job instanceof ClusterJob)
+				((ClusterJob)pending.job).setShard(group.createShard(i, shardNodes));
+			pendingJobs.add(pending);
+		}
+
+		// If the execution service runs its calls inline, give ourselves some threads
+		ExecutorService pool = null;
+		if (!(executionService instanceof ClusterJobExecutionService) ||
+		    ((ClusterJobExecutionService)executionService).getRemoteExecutor().getMode() == RemoteCallExecutor.Mode.DIRECT)
+			pool = Executors.newFixedThreadPool(Math.min(shards.size(), MAX_PARALLEL_SUBMITS));
+
+		try {
+			List<Future<CyJobStatus>> futures = new ArrayList<>();
+			for (final PendingJob pending: pendingJobs) {
+				if (pool == null) {
+					futures.add(((ClusterJobExecutionService)executionService)
+					            .executeJobAsync(pending.job, null, configuration, pending.data));
+				} else {
+					futures.add(pool.submit(new Callable<CyJobStatus>() {
+						public CyJobStatus call() {
+							return executionService.executeJob(pending.job, null, configuration, pending.data);
+						}
+					}));
+				}
+			}
+
+			int submitted = 0;
+			for (int i = 0; i < pendingJobs.size(); i++) {
+				CyJobStatus exStatus;
+				try {
+					exStatus = futures.get(i).get();
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					monitor.showMessage(TaskMonitor.Level.ERROR, "Interrupted while submitting shards");
+					return;
+				} catch (ExecutionException ee) {
+					exStatus = new CyJobStatus(CyJobStatus.Status.ERROR, ee.getCause().getMessage());
+				}
+				if (pendingJobs.get(i).register(monitor, exStatus))
+					submitted++;
+			}
+			monitor.showMessage(TaskMonitor.Level.INFO, "Submitted "+submitted+" of "+shards.size()+" shards");
+		} finally {
+			if (pool != null)
+				pool.shutdown();
+		}
+	}
+
+	/**
+	 * A job with its data, ready to submit
+	 */
+	class PendingJob {
+		final CyJob job;
+		final CyJobData data;
+		final List<CyIdentifiable> nodesAndEdges;
 
-		CyJobManager manager = registrar.getService(CyJobManager.class);
-		manager.addJob(job, jobHandler, 5);
+		PendingJob(CyJobExecutionService executionService, List<CyIdentifiable> nodesAndEdges,
+		           List<String> edgeColumns) {
+			// Get our initial job
+			job = executionService.createCyJob("ClusterJob");
+			// Only send the edges that matter
+			if (sparsifyMethod != null) {
+				EdgeSparsifier sparsifier = new EdgeSparsifier(sparsifyMethod, minWeight, edgesPerNode, alpha);
+				nodesAndEdges = sparsifier.sparsify(network, nodesAndEdges, edgeColumns.get(0));
+				if (job instanceof ClusterJob)
+					((ClusterJob)job).setSparsification(sparsifier.getStats());
+			}
+			this.nodesAndEdges = nodesAndEdges;
+			// Get the data service
+			CyJobDataService dataService = job.getJobDataService();
+			// Add our data
+			data = dataService.addData(null, "network", network, nodesAndEdges, null, edgeColumns);
+		}
+
+		/**
+		 * Hand the job to the job manager if it was submitted.  A job that
+		 * failed, was canceled or never got an id wasn't, and mustn't
+		 * supersede the jobs that were.
+		 */
+		boolean register(TaskMonitor monitor, CyJobStatus exStatus) {
+			if (exStatus == null) {
+				monitor.showMessage(TaskMonitor.Level.ERROR, "No status for job");
+				return false;
+			}
+			switch (exStatus.getStatus()) {
+				case ERROR:
+				case FAILED:
+				case UNKNOWN:
+					monitor.showMessage(TaskMonitor.Level.ERROR, exStatus.toString());
+					return false;
+				case CANCELED:
+					monitor.showMessage(TaskMonitor.Level.WARN, exStatus.toString());
+					return false;
+				default:
+					break;
+			}
+			if (job.getJobId() == null) {
+				monitor.showMessage(TaskMonitor.Level.ERROR, "No job id for "+exStatus);
+				return false;
+			}
+
+			// Create our handler now that we have a job id
+			ClusterJobHandler jobHandler = new ClusterJobHandler(job, network);
+			job.setJobMonitor(jobHandler);
+
+			// Save our SUIDs in case we get saved and restored
+			SUIDUtil.saveSUIDs(job, network, nodesAndEdges);
+
+			// Older jobs for this network are now out of date
+			if (job instanceof ClusterJob)
+				ClusterJobHandler.supersede((ClusterJob)job, network.getSUID(), ShardGroup.CLUSTER_COLUMN, submission);
+
+			CyJobManager manager = registrar.getService(CyJobManager.class);
+			manager.addJob(job, jobHandler, 5);
+			return true;
+		}
+	}
+
+	static List<String> getWeightColumns(CyNetwork network) {
+		List<String> columns = new ArrayList<>();
+		columns.add(NO_WEIGHT);
+		if (network == null)
+			return columns;
+		for (CyColumn column: network.getDefaultEdgeTable().getColumns()) {
+			Class<?> type = column.getType();
+			if (column.isPrimaryKey())
+				continue;
+			if (type.equals(Double.class) || type.equals(Integer.class) || type.equals(Long.class))
+				columns.add(column.getName());
+		}
+		return columns;
 	}
 }
 
@@ -0,0 +1,180 @@
+package edu.ucsf.rbvi.clusterJob.internal.handlers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import org.cytoscape.model.CyColumn;
+import org.cytoscape.model.CyIdentifiable;
+import org.cytoscape.model.CyNetwork;
+import org.cytoscape.model.CyNode;
+import org.cytoscape.model.CyRow;
+import org.cytoscape.model.CyTable;
+
+import edu.ucsf.rbvi.clusterJob.internal.model.IntermediatePartition;
+
+public class ProvisionalResultsTest {
+	ProvisionalResults provisional;
+	CyNetwork network;
+	CyTable table;
+	// What's in the provisional column, by SUID
+	final Map<Long, Object> values = new HashMap<>();
+	boolean hasColumn = false;
+
+	@Before
+	public void setUp() {
+		provisional = new ProvisionalResults();
+		network = mock(CyNetwork.class);
+		table = mock(CyTable.class);
+		when(network.getDefaultNodeTable()).thenReturn(table);
+		when(table.getColumn(ProvisionalResults.PROVISIONAL_COLUMN)).thenAnswer(new Answer<CyColumn>() {
+			public CyColumn answer(InvocationOnMock invocation) {
+				return hasColumn ? mock(CyColumn.class) : null;
+			}
+		});
+		doAnswer(new Answer<Void>() {
+			public Void answer(InvocationOnMock invocation) {
+				hasColumn = true;
+				return null;
+			}
+		}).when(table).createColumn(anyString(), any(Class.class), anyBoolean());
+		doAnswer(new Answer<Void>() {
+			public Void answer(InvocationOnMock invocation) {
+				hasColumn = false;
+				values.clear();
+				return null;
+			}
+		}).when(table).deleteColumn(ProvisionalResults.PROVISIONAL_COLUMN);
+		when(network.getNode(anyLong())).thenAnswer(new Answer<CyNode>() {
+			public CyNode answer(InvocationOnMock invocation) {
+				CyNode node = mock(CyNode.class);
+				when(node.getSUID()).thenReturn((Long)invocation.getArguments()[0]);
+				return node;
+			}
+		});
+		when(network.getRow(any(CyIdentifiable.class))).thenAnswer(new Answer<CyRow>() {
+			public CyRow answer(InvocationOnMock invocation) {
+				final Long suid = ((CyIdentifiable)invocation.getArguments()[0]).getSUID();
+				CyRow row = mock(CyRow.class);
+				doAnswer(new Answer<Void>() {
+					public Void answer(InvocationOnMock invocation) {
+						values.put(suid, invocation.getArguments()[1]);
+						return null;
+					}
+				}).when(row).set(anyString(), any());
+				return row;
+			}
+		});
+	}
+
+	@After
+	public void tearDown() {
+		provisional.shutdown();
+	}
+
+	@Test
+	public void testWritesNewerLevels() throws Exception {
+		provisional.offer("job1", network, partition(1, 0, 0, 1));
+		drain();
+		assertEquals(Integer.valueOf(1), values.get(Long.valueOf(102)));
+
+		// An older level is ignored, a newer one only writes what changed
+		provisional.offer("job1", network, partition(1, 1, 1, 1));
+		provisional.offer("job1", network, partition(2, 0, 2, 1));
+		drain();
+		assertEquals(Integer.valueOf(0), values.get(Long.valueOf(100)));
+		assertEquals(Integer.valueOf(2), values.get(Long.valueOf(101)));
+		assertEquals(2, provisional.written.get("job1").level);
+	}
+
+	@Test
+	public void testOnlyTheNewestWaitingPartitionIsWritten() throws Exception {
+		// Hold the writer up so the offers pile up behind it
+		final CountDownLatch release = new CountDownLatch(1);
+		provisional.writer().execute(new Runnable() {
+			public void run() {
+				try {
+					release.await(5, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+				}
+			}
+		});
+		provisional.offer("job1", network, partition(1, 1, 1, 1));
+		provisional.offer("job1", network, partition(3, 3, 3, 3));
+		provisional.offer("job1", network, partition(2, 2, 2, 2));
+		release.countDown();
+		drain();
+		assertEquals(Integer.valueOf(3), values.get(Long.valueOf(100)));
+		assertEquals(3, provisional.written.get("job1").level);
+	}
+
+	@Test
+	public void testNothingWrittenOnceFinished() throws Exception {
+		provisional.offer("job1", network, partition(1, 0, 0, 0));
+		drain();
+		provisional.finished("job1");
+		provisional.offer("job1", network, partition(2, 1, 1, 1));
+		drain();
+		assertEquals(Integer.valueOf(0), values.get(Long.valueOf(100)));
+		assertNull(provisional.written.get("job1"));
+		assertEquals(0, provisional.pending.size());
+	}
+
+	@Test
+	public void testClear() throws Exception {
+		provisional.offer("job1", network, partition(1, 0, 1, 2));
+		provisional.offer("job2", network, partition(1, 0, 1, 2));
+		drain();
+
+		// job2 is still writing to the column
+		provisional.finished("job1");
+		provisional.clear(network);
+		verify(table, never()).deleteColumn(ProvisionalResults.PROVISIONAL_COLUMN);
+
+		provisional.finished("job2");
+		provisional.clear(network);
+		verify(table).deleteColumn(ProvisionalResults.PROVISIONAL_COLUMN);
+		assertEquals(0, values.size());
+	}
+
+	void drain() throws Exception {
+		provisional.writer().submit(new Runnable() {
+			public void run() {}
+		}).get(5, TimeUnit.SECONDS);
+	}
+
+	static IntermediatePartition partition(int level, int... clusters) {
+		JSONArray ids = new JSONArray();
+		JSONArray assignments = new JSONArray();
+		for (int i = 0; i < clusters.length; i++) {
+			ids.add(Long.valueOf(100+i));
+			assignments.add(Integer.valueOf(clusters[i]));
+		}
+		JSONObject json = new JSONObject();
+		json.put("level", level);
+		json.put("ids", ids);
+		json.put("clusters", assignments);
+		return IntermediatePartition.fromJSON(json);
+	}
+}
@@ -0,0 +1,151 @@
+package edu.ucsf.rbvi.clusterJob.internal.handlers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.cytoscape.jobs.CyJob;
+import org.cytoscape.jobs.CyJobStatus;
+import org.cytoscape.jobs.CyJobStatus.Status;
+
+import edu.ucsf.rbvi.clusterJob.internal.model.ClusterJob;
+
+public class StatusDispatcherTest {
+	StatusDispatcher dispatcher;
+	ClusterJob job;
+
+	@Before
+	public void setUp() {
+		dispatcher = new StatusDispatcher();
+		job = new ClusterJob("ClusterJob", null, null, null, null, "job1");
+	}
+
+	@After
+	public void tearDown() {
+		dispatcher.shutdown();
+	}
+
+	@Test
+	public void testDedupe() {
+		dispatcher.setWindow(60000);
+		assertTrue(dispatcher.statusChanged(job, new CyJobStatus(Status.RUNNING, "Running")));
+		// The same poll again
+		assertFalse(dispatcher.statusChanged(job, new CyJobStatus(Status.RUNNING, "Running")));
+		// A new message or more progress is still news
+		assertTrue(dispatcher.statusChanged(job, new CyJobStatus(Status.RUNNING, "Level 2")));
+		job.setProgress(0.5);
+		assertTrue(dispatcher.statusChanged(job, new CyJobStatus(Status.RUNNING, "Level 2")));
+		assertFalse(dispatcher.statusChanged(job, new CyJobStatus(Status.RUNNING, "Level 2")));
+		assertTrue(dispatcher.statusChanged(job, new CyJobStatus(Status.FINISHED, null)));
+		assertEquals(6, dispatcher.getReceivedCount());
+	}
+
+	@Test
+	public void testProgressTicks() {
+		dispatcher.setWindow(60000);
+		job.setProgress(0.451);
+		assertTrue(dispatcher.statusChanged(job, new CyJobStatus(Status.RUNNING, "Running (45%)")));
+		// Less than a percent isn't news
+		job.setProgress(0.4532);
+		assertFalse(dispatcher.statusChanged(job, new CyJobStatus(Status.RUNNING, "Running (45%)")));
+		// A whole percent is, but only once
+		job.setProgress(0.46);
+		assertTrue(dispatcher.statusChanged(job, new CyJobStatus(Status.RUNNING, "Running (46%)")));
+		assertFalse(dispatcher.statusChanged(job, new CyJobStatus(Status.RUNNING, "Running (46%)")));
+		// The percent alone in the message doesn't count
+		assertFalse(dispatcher.statusChanged(job, new CyJobStatus(Status.RUNNING, "Running (47%)")));
+		assertTrue(dispatcher.statusChanged(job, new CyJobStatus(Status.RUNNING, "Level 2 (46%)")));
+	}
+
+	@Test
+	public void testForget() {
+		dispatcher.setWindow(60000);
+		assertTrue(dispatcher.statusChanged(job, new CyJobStatus(Status.RUNNING, "Running")));
+		assertEquals(1, dispatcher.lastSeen.size());
+		dispatcher.forget(job.getJobId());
+		assertEquals(0, dispatcher.lastSeen.size());
+		dispatcher.forget(null);
+
+		// Terminal statuses aren't remembered either
+		assertTrue(dispatcher.statusChanged(job, new CyJobStatus(Status.CANCELED, null)));
+		assertEquals(0, dispatcher.lastSeen.size());
+	}
+
+	@Test
+	public void testDeliversAfterShutdown() throws Exception {
+		// The bundle can be stopped and started again in the same class loader
+		dispatcher.setWindow(0);
+		final BlockingQueue<Status> delivered = new LinkedBlockingQueue<>();
+		dispatcher.addListener(new StatusDispatcher.Listener() {
+			public void jobStatusChanged(CyJob job, CyJobStatus status) {
+				delivered.add(status.getStatus());
+			}
+		});
+		dispatcher.statusChanged(job, new CyJobStatus(Status.RUNNING, null));
+		dispatcher.shutdown();
+		assertTrue(dispatcher.deliverer.isShutdown());
+		delivered.clear();
+		dispatcher.statusChanged(job, new CyJobStatus(Status.FINISHED, null));
+		assertEquals(Status.FINISHED, delivered.poll(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testNullMessages() {
+		dispatcher.setWindow(60000);
+		assertTrue(dispatcher.statusChanged(job, new CyJobStatus(Status.QUEUED, null)));
+		assertFalse(dispatcher.statusChanged(job, new CyJobStatus(Status.QUEUED, null)));
+		assertTrue(dispatcher.statusChanged(job, new CyJobStatus(Status.QUEUED, "Queued")));
+	}
+
+	@Test
+	public void testCoalescesWithinWindow() throws Exception {
+		dispatcher.setWindow(200);
+		final BlockingQueue<String> delivered = new LinkedBlockingQueue<>();
+		dispatcher.addListener(new StatusDispatcher.Listener() {
+			public void jobStatusChanged(CyJob job, CyJobStatus status) {
+				delivered.add("listener "+status.getStatus());
+			}
+		});
+		StatusDispatcher.Listener monitor = new StatusDispatcher.Listener() {
+			public void jobStatusChanged(CyJob job, CyJobStatus status) {
+				delivered.add("monitor "+status.getStatus());
+			}
+		};
+		dispatcher.statusChanged(job, new CyJobStatus(Status.QUEUED, null), monitor);
+		dispatcher.statusChanged(job, new CyJobStatus(Status.RUNNING, null), monitor);
+		dispatcher.statusChanged(job, new CyJobStatus(Status.FINISHED, null), monitor);
+
+		// Only the latest, and the job's monitor hears first
+		assertEquals("monitor FINISHED", delivered.poll(5, TimeUnit.SECONDS));
+		assertEquals("listener FINISHED", delivered.poll(5, TimeUnit.SECONDS));
+		assertNull(delivered.poll(300, TimeUnit.MILLISECONDS));
+		assertEquals(1, dispatcher.getDeliveredCount());
+	}
+
+	@Test
+	public void testListenerFailureDoesNotStopDelivery() throws Exception {
+		dispatcher.setWindow(0);
+		final BlockingQueue<Status> delivered = new LinkedBlockingQueue<>();
+		dispatcher.addListener(new StatusDispatcher.Listener() {
+			public void jobStatusChanged(CyJob job, CyJobStatus status) {
+				throw new IllegalStateException("broken");
+			}
+		});
+		dispatcher.addListener(new StatusDispatcher.Listener() {
+			public void jobStatusChanged(CyJob job, CyJobStatus status) {
+				delivered.add(status.getStatus());
+			}
+		});
+		dispatcher.statusChanged(job, new CyJobStatus(Status.RUNNING, null));
+		assertEquals(Status.RUNNING, delivered.poll(5, TimeUnit.SECONDS));
+	}
+}
@@ -0,0 +1,85 @@
+package edu.ucsf.rbvi.clusterJob.internal.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class EndpointPoolTest {
+
+	@Test
+	public void testLeastOutstanding() {
+		EndpointPool pool = new EndpointPool(Arrays.asList("a", "b", "c"), EndpointPool.Strategy.LEAST_OUTSTANDING);
+		pool.jobStarted("1", "a");
+		pool.jobStarted("2", "b");
+		assertEquals("c", pool.select().getURL());
+		pool.jobStarted("3", "c");
+		pool.jobFinished("2");
+		pool.jobFinished("2");
+		assertEquals("b", pool.select().getURL());
+		assertEquals(0, pool.getEndpoint("b").getOutstanding());
+	}
+
+	@Test
+	public void testFailover() {
+		EndpointPool pool = new EndpointPool(Arrays.asList("a", "b", "c"), EndpointPool.Strategy.LEAST_OUTSTANDING);
+		Set<String> tried = new HashSet<>();
+
+		// A single failure doesn't take a replica out, so only the
+		// tried set keeps us from going straight back to it
+		String first = pool.select(tried).getURL();
+		pool.record(first, 1000000L, false);
+		assertTrue(pool.getEndpoint(first).isHealthy());
+		tried.add(first);
+		String second = pool.select(tried).getURL();
+		assertFalse(first.equals(second));
+		tried.add(second);
+		String third = pool.select(tried).getURL();
+		assertFalse(first.equals(third) || second.equals(third));
+		tried.add(third);
+
+		// With everything tried, we still get something
+		assertTrue(tried.contains(pool.select(tried).getURL()));
+	}
+
+	@Test
+	public void testDownReplicasArePassedOver() {
+		EndpointPool pool = new EndpointPool(Arrays.asList("a", "b"), EndpointPool.Strategy.LEAST_OUTSTANDING);
+		for (int i = 0; i < EndpointPool.MAX_FAILURES; i++)
+			pool.record("a", 1000000L, false);
+		assertFalse(pool.getEndpoint("a").isHealthy());
+		for (int i = 0; i < 3; i++)
+			assertEquals("b", pool.select().getURL());
+
+		// A success puts it straight back
+		pool.record("a", 1000000L, true);
+		assertTrue(pool.getEndpoint("a").isHealthy());
+	}
+
+	@Test
+	public void testAllDownOrTried() {
+		EndpointPool pool = new EndpointPool(Arrays.asList("a", "b"), EndpointPool.Strategy.LATENCY);
+		for (int i = 0; i < EndpointPool.MAX_FAILURES; i++)
+			pool.record("a", 1000000L, false);
+		for (int i = 0; i < EndpointPool.MAX_FAILURES; i++)
+			pool.record("b", 1000000L, false);
+
+		// "a" is due back first, but we've already tried it
+		Set<String> tried = new HashSet<>(Arrays.asList("a"));
+		assertEquals("b", pool.select(tried).getURL());
+	}
+
+	@Test
+	public void testFromString() {
+		assertNull(EndpointPool.fromString(" ", EndpointPool.Strategy.LATENCY));
+		EndpointPool pool = EndpointPool.fromString("a, b,a,", EndpointPool.Strategy.LATENCY);
+		assertEquals(2, pool.getEndpoints().size());
+		assertEquals("b", pool.getEndpoints().get(1).getURL());
+	}
+}
@@ -0,0 +1,238 @@
+package edu.ucsf.rbvi.clusterJob.internal.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.simple.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import org.cytoscape.jobs.CyJobStatus.Status;
+
+public class JobJournalTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testFoldOnReopen() throws Exception {
+		File directory = folder.newFolder();
+		JobJournal journal = new JobJournal(directory);
+		journal.submitted("job1", "ClusterJob", "http://host/cluster", 5, "abc", 52L, "net");
+		journal.statusChanged("job1", Status.QUEUED);
+		journal.statusChanged("job1", Status.RUNNING);
+		journal.submitted("job2", "ClusterJob", "http://host/cluster", 5, "def", 53L, "other");
+		journal.statusChanged("job2", Status.FAILED);
+		journal.submitted("job3", "ClusterJob", "http://host/cluster", 5, "ghi", 54L, "third");
+		journal.removed("job3");
+		journal.close();
+
+		journal = new JobJournal(directory);
+		List<JobJournal.Entry> outstanding = journal.getOutstanding();
+		assertEquals(1, outstanding.size());
+		JobJournal.Entry entry = outstanding.get(0);
+		assertEquals("job1", entry.jobId);
+		assertEquals(Status.RUNNING, entry.status);
+		assertEquals("http://host/cluster", entry.path);
+		assertEquals(5, entry.pollInterval);
+		assertEquals("abc", entry.hash);
+		assertEquals(Long.valueOf(52L), entry.networkSUID);
+		assertEquals("net", entry.networkName);
+		assertNull(journal.getEntry("job2"));
+		assertNull(journal.getEntry("job3"));
+		journal.close();
+	}
+
+	@Test
+	public void testCompact() throws Exception {
+		File directory = folder.newFolder();
+		JobJournal journal = new JobJournal(directory);
+		journal.submitted("job1", "ClusterJob", "path", 5, null, null, null);
+		// Polls that don't change anything aren't written
+		for (int i = 0; i < 10; i++)
+			journal.statusChanged("job1", Status.RUNNING);
+		journal.submitted("job2", "ClusterJob", "path", 5, null, null, null);
+		journal.applied("job2");
+		journal.close();
+		assertEquals(4, readLines(new File(directory, JobJournal.JOURNAL_FILE)).size());
+
+		// Reopening leaves one line per live job
+		new JobJournal(directory).close();
+		List<String> lines = readLines(new File(directory, JobJournal.JOURNAL_FILE));
+		assertEquals(1, lines.size());
+		assertTrue(lines.get(0).contains("\"job1\""));
+		assertFalse(new File(directory, JobJournal.JOURNAL_FILE+".tmp").exists());
+	}
+
+	@Test
+	public void testTornLastLine() throws Exception {
+		File directory = folder.newFolder();
+		JobJournal journal = new JobJournal(directory);
+		journal.submitted("job1", "ClusterJob", "path", 5, null, null, null);
+		journal.close();
+		// A crash in the middle of writing a record
+		try (Writer writer = new FileWriter(new File(directory, JobJournal.JOURNAL_FILE), true)) {
+			writer.write("{\"t\":1,\"event\":\"status\",\"job\":\"jo");
+		}
+
+		journal = new JobJournal(directory);
+		assertEquals(1, journal.getOutstanding().size());
+		assertEquals(Status.SUBMITTED, journal.getEntry("job1").status);
+		// And we can keep going after it
+		journal.statusChanged("job1", Status.FINISHED);
+		journal.close();
+		journal = new JobJournal(directory);
+		assertEquals(Status.FINISHED, journal.getEntry("job1").status);
+		journal.close();
+	}
+
+	@Test
+	public void testEmptyJournal() throws Exception {
+		File directory = folder.newFolder();
+		new JobJournal(directory).close();
+		JobJournal journal = new JobJournal(directory);
+		assertTrue(journal.getOutstanding().isEmpty());
+		assertNull(journal.getEntry(null));
+		// Events for jobs we never heard of are ignored
+		journal.statusChanged("nobody", Status.RUNNING);
+		journal.applied("nobody");
+		assertNull(journal.getEntry("nobody"));
+		journal.close();
+	}
+
+	@Test
+	public void testSavedResultsSurviveReopen() throws Exception {
+		File directory = folder.newFolder();
+		JobJournal journal = new JobJournal(directory);
+		journal.submitted("job/1", "ClusterJob", "path", 5, null, null, null);
+		JSONObject results = new JSONObject();
+		results.put("answer", 42L);
+		journal.saveResults("job/1", results);
+		journal.statusChanged("job/1", Status.FINISHED);
+		journal.close();
+
+		journal = new JobJournal(directory);
+		// Finished, but not applied, so still outstanding
+		assertEquals(1, journal.getOutstanding().size());
+		assertNotNull(journal.getResults("job/1"));
+		assertFalse(journal.isPaged("job/1"));
+		assertEquals(results.toJSONString(), read(journal.openResults("job/1")));
+
+		File file = journal.getResults("job/1");
+		journal.applied("job/1");
+		assertNull(journal.getResults("job/1"));
+		assertFalse(file.exists());
+		assertTrue(journal.getOutstanding().isEmpty());
+		journal.close();
+	}
+
+	@Test
+	public void testResultsTee() throws Exception {
+		File directory = folder.newFolder();
+		JobJournal journal = new JobJournal(directory);
+		journal.submitted("job1", "ClusterJob", "path", 5, null, null, null);
+		journal.submitted("job2", "ClusterJob", "path", 5, null, null, null);
+
+		JobJournal.ResultsTee tee = journal.teeResults("job1", new StringReader("{\"network\":{}}"));
+		assertEquals("{\"network\":{}}", read(tee));
+		tee.commit();
+		assertEquals("{\"network\":{}}", read(journal.openResults("job1")));
+
+		// A download that fails leaves nothing behind
+		tee = journal.teeResults("job2", new StringReader("{\"netw"));
+		read(tee);
+		tee.discard();
+		assertNull(journal.getResults("job2"));
+		assertNull(journal.openResults("job2"));
+		assertNull(journal.teeResults("nobody", new StringReader("")));
+		journal.close();
+	}
+
+	@Test
+	public void testPagedResults() throws Exception {
+		File directory = folder.newFolder();
+		JobJournal journal = new JobJournal(directory);
+		journal.submitted("job1", "ClusterJob", "path", 5, null, null, null);
+		JobJournal.PagedResults pages = journal.savePages("job1");
+		pages.addPage("{\"network\":{\"nodes\":[{\"id\":1}]},\n\"nextCursor\":\"1\"}");
+		pages.addPage("{\"network\":{\"nodes\":[{\"id\":2}]}}");
+		// Nothing counts until the last page is in
+		assertNull(journal.getResults("job1"));
+		pages.commit();
+		journal.close();
+
+		journal = new JobJournal(directory);
+		assertTrue(journal.isPaged("job1"));
+		List<String> lines = new ArrayList<>();
+		try (BufferedReader reader = new BufferedReader(journal.openResults("job1"))) {
+			String line;
+			while ((line = reader.readLine()) != null)
+				lines.add(line);
+		}
+		assertEquals(2, lines.size());
+		assertEquals("{\"network\":{\"nodes\":[{\"id\":1}]}, \"nextCursor\":\"1\"}", lines.get(0));
+		assertEquals("{\"network\":{\"nodes\":[{\"id\":2}]}}", lines.get(1));
+		journal.close();
+	}
+
+	@Test
+	public void testDiscardedPages() throws Exception {
+		File directory = folder.newFolder();
+		JobJournal journal = new JobJournal(directory);
+		journal.submitted("job1", "ClusterJob", "path", 5, null, null, null);
+		JobJournal.PagedResults pages = journal.savePages("job1");
+		pages.addPage("{}");
+		pages.discard();
+		assertNull(journal.getResults("job1"));
+		assertFalse(journal.isPaged("job1"));
+		assertNull(journal.savePages("nobody"));
+		journal.close();
+	}
+
+	@Test
+	public void testCrashBeforeCommit() throws Exception {
+		File directory = folder.newFolder();
+		JobJournal journal = new JobJournal(directory);
+		journal.submitted("job1", "ClusterJob", "path", 5, null, null, null);
+		// Pages were being saved when we went down
+		journal.savePages("job1").addPage("{}");
+		journal.close();
+
+		journal = new JobJournal(directory);
+		assertNull(journal.getResults("job1"));
+		// The half-written copy is cleaned up
+		assertEquals(0, new File(directory, JobJournal.RESULTS_DIR).listFiles().length);
+		journal.close();
+	}
+
+	private static List<String> readLines(File file) throws Exception {
+		return Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+	}
+
+	private static String read(Reader reader) throws Exception {
+		StringBuilder sb = new StringBuilder();
+		try {
+			char[] buffer = new char[64];
+			int n;
+			while ((n = reader.read(buffer, 0, buffer.length)) > 0)
+				sb.append(buffer, 0, n);
+		} finally {
+			reader.close();
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,308 @@
+package edu.ucsf.rbvi.clusterJob.internal.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.cytoscape.jobs.CyJobStatus.Status;
+
+public class MockHttpServerTest {
+	static final int THREADS = 8;
+	MockHttpServer server;
+	ExecutorService pool;
+
+	@Before
+	public void setUp() {
+		server = new MockHttpServer(4);
+		pool = Executors.newFixedThreadPool(THREADS);
+	}
+
+	@After
+	public void tearDown() {
+		pool.shutdownNow();
+		server.shutdown();
+	}
+
+	@Test
+	public void testConcurrentSubmitsGetUniqueIds() throws Exception {
+		// Nothing finishes while we're submitting
+		server.setJobDuration(60000, 60000, 0.5);
+		final int perThread = 50;
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Future<List<String>>> futures = new ArrayList<>();
+		for (int t = 0; t < THREADS; t++) {
+			futures.add(pool.submit(new Callable<List<String>>() {
+				public List<String> call() throws Exception {
+					start.await();
+					List<String> ids = new ArrayList<>();
+					for (int i = 0; i < perThread; i++)
+						ids.add(submit(null, 5));
+					return ids;
+				}
+			}));
+		}
+		start.countDown();
+
+		Set<String> ids = new HashSet<>();
+		for (Future<List<String>> future: futures) {
+			for (String id: future.get(10, TimeUnit.SECONDS)) {
+				assertNotNull(id);
+				assertTrue("duplicate id "+id, ids.add(id));
+			}
+		}
+		assertEquals(THREADS*perThread, ids.size());
+		assertEquals(THREADS*perThread, server.getJobCount());
+	}
+
+	@Test
+	public void testTransitionsOnlyMoveForward() throws Exception {
+		server.setJobDuration(50, 150, 0.4);
+		final List<String> ids = new ArrayList<>();
+		for (int i = 0; i < 40; i++)
+			ids.add(submit(null, 3));
+
+		// Poll every job from several threads until they're all done
+		final ConcurrentMap<String, Status> last = new ConcurrentHashMap<>();
+		List<Future<Void>> futures = new ArrayList<>();
+		for (int t = 0; t < THREADS; t++) {
+			futures.add(pool.submit(new Callable<Void>() {
+				public Void call() throws Exception {
+					long deadline = System.currentTimeMillis() + 10000;
+					Map<String, Status> seen = new HashMap<>();
+					while (System.currentTimeMillis() < deadline) {
+						boolean done = true;
+						for (String id: ids) {
+							Status status = check(id);
+							Status before = seen.get(id);
+							if (before != null)
+								assertTrue(id+" went from "+before+" to "+status, rank(status) >= rank(before));
+							seen.put(id, status);
+							if (status != Status.FINISHED)
+								done = false;
+						}
+						if (done) break;
+						Thread.sleep(5);
+					}
+					last.putAll(seen);
+					return null;
+				}
+			}));
+		}
+		for (Future<Void> future: futures)
+			future.get(20, TimeUnit.SECONDS);
+
+		for (String id: ids)
+			assertEquals(Status.FINISHED, last.get(id));
+	}
+
+	@Test
+	public void testLateTransitionsAreIgnored() {
+		server.setJobDuration(60000, 60000, 0.5);
+		String id = submit(null, 3);
+		MockHttpServer.MockJob job = server.jobMap.get(id);
+
+		// The finish deadline can come before the others if they collide
+		assertTrue(job.advance(Status.RUNNING, Status.FINISHED));
+		assertFalse(job.advance(Status.SUBMITTED, Status.QUEUED));
+		assertFalse(job.advance(Status.QUEUED, Status.RUNNING));
+		assertEquals(Status.FINISHED, check(id));
+	}
+
+	@Test
+	public void testFetchDoesNotChangeTheJob() throws Exception {
+		server.setJobDuration(0, 0, 0.0);
+		final String id = submit(Long.valueOf(42), 20);
+		MockHttpServer.MockJob job = server.jobMap.get(id);
+		Object[] nodeIds = job.nodeIds.clone();
+		Object[] nodeNames = job.nodeNames.clone();
+		waitFor(id, Status.FINISHED);
+
+		// Many fetches at once all see the same thing
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Future<JSONObject>> futures = new ArrayList<>();
+		for (int t = 0; t < THREADS; t++) {
+			futures.add(pool.submit(new Callable<JSONObject>() {
+				public JSONObject call() throws Exception {
+					start.await();
+					return fetch(id, null, null);
+				}
+			}));
+		}
+		start.countDown();
+
+		JSONObject first = null;
+		for (Future<JSONObject> future: futures) {
+			JSONObject result = future.get(10, TimeUnit.SECONDS);
+			assertEquals(20, nodes(result).size());
+			if (first == null)
+				first = result;
+			else
+				assertEquals(first, result);
+		}
+
+		assertArrayEquals(nodeIds, job.nodeIds);
+		assertArrayEquals(nodeNames, job.nodeNames);
+		assertEquals(Status.FINISHED, check(id));
+	}
+
+	@Test
+	public void testPagedFetch() {
+		server.setJobDuration(0, 0, 0.0);
+		String id = submit(null, 5);
+		waitFor(id, Status.FINISHED);
+
+		JSONObject page = fetch(id, "0", "2");
+		assertEquals(2, nodes(page).size());
+		assertEquals("2", page.get(MockHttpServer.NEXT_CURSOR));
+		page = fetch(id, "2", "2");
+		assertEquals("4", page.get(MockHttpServer.NEXT_CURSOR));
+
+		// The last page can be fetched again
+		page = fetch(id, "4", "2");
+		assertEquals(1, nodes(page).size());
+		assertNull(page.get(MockHttpServer.NEXT_CURSOR));
+		page = fetch(id, "4", "2");
+		assertEquals(1, nodes(page).size());
+		assertEquals(1, server.getJobCount());
+
+		// But asking past the end means we're done with it
+		page = fetch(id, "5", "2");
+		assertEquals(0, nodes(page).size());
+		assertEquals(0, server.getJobCount());
+	}
+
+	@Test
+	public void testRetention() throws Exception {
+		server.setJobDuration(0, 0, 0.0);
+		server.setRetention(20);
+		String id = submit(null, 3);
+		waitFor(id, Status.FINISHED);
+		fetch(id, null, null);
+		long deadline = System.currentTimeMillis() + 5000;
+		while (server.getJobCount() > 0 && System.currentTimeMillis() < deadline)
+			Thread.sleep(5);
+		assertEquals(0, server.getJobCount());
+	}
+
+	@Test
+	public void testCancel() {
+		server.setJobDuration(60000, 60000, 0.5);
+		String id = submit(null, 3);
+		JSONObject result = post("cancel", id);
+		assertEquals(Status.CANCELED.toString(), result.get(MockHttpServer.STATUS));
+		assertEquals(0, server.getJobCount());
+		assertEquals(Status.UNKNOWN, check(id));
+		result = post("cancel", id);
+		assertEquals(Status.UNKNOWN.toString(), result.get(MockHttpServer.STATUS));
+	}
+
+	@Test
+	public void testBadSubmit() {
+		Map<String, String> query = new HashMap<>();
+		query.put("command", "submit");
+		JSONObject result = (JSONObject)server.postJSON("mock", query, null);
+		assertEquals(Status.ERROR.toString(), result.get(MockHttpServer.STATUS));
+		query.put("inputData", "{\"network\": {}}");
+		result = (JSONObject)server.postJSON("mock", query, null);
+		assertEquals(Status.ERROR.toString(), result.get(MockHttpServer.STATUS));
+		assertEquals(0, server.getJobCount());
+	}
+
+	String submit(Long seed, int nodeCount) {
+		JSONArray nodes = new JSONArray();
+		for (int i = 0; i < nodeCount; i++) {
+			JSONObject node = new JSONObject();
+			node.put("id", Long.valueOf(100+i));
+			node.put("name", "node "+i);
+			nodes.add(node);
+		}
+		JSONObject network = new JSONObject();
+		network.put("id", Long.valueOf(1));
+		network.put("name", "network");
+		network.put("nodes", nodes);
+		JSONObject input = new JSONObject();
+		input.put("network", network);
+
+		Map<String, String> query = new HashMap<>();
+		query.put("command", "submit");
+		query.put("inputData", input.toJSONString());
+		if (seed != null)
+			query.put(MockHttpServer.SEED, seed.toString());
+		JSONObject result = (JSONObject)server.postJSON("mock", query, null);
+		assertEquals(Status.SUBMITTED.toString(), result.get(MockHttpServer.STATUS));
+		return (String)result.get(MockHttpServer.JOBID);
+	}
+
+	Status check(String id) {
+		JSONObject result = post("check", id);
+		return Status.valueOf((String)result.get(MockHttpServer.STATUS));
+	}
+
+	JSONObject fetch(String id, String cursor, String limit) {
+		Map<String, String> query = new HashMap<>();
+		query.put("command", "fetch");
+		query.put(MockHttpServer.JOBID, id);
+		if (cursor != null)
+			query.put(MockHttpServer.CURSOR, cursor);
+		if (limit != null)
+			query.put(MockHttpServer.LIMIT, limit);
+		return (JSONObject)server.postJSON("mock", query, null);
+	}
+
+	JSONObject post(String command, String id) {
+		Map<String, String> query = new HashMap<>();
+		query.put("command", command);
+		query.put(MockHttpServer.JOBID, id);
+		return (JSONObject)server.postJSON("mock", query, null);
+	}
+
+	void waitFor(String id, Status status) {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (check(id) != status && System.currentTimeMillis() < deadline) {
+			try {
+				Thread.sleep(5);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+		assertEquals(status, check(id));
+	}
+
+	static JSONArray nodes(JSONObject result) {
+		return (JSONArray)((JSONObject)result.get("network")).get("nodes");
+	}
+
+	static int rank(Status status) {
+		switch (status) {
+			case SUBMITTED: return 0;
+			case QUEUED: return 1;
+			case RUNNING: return 2;
+			case FINISHED: return 3;
+			default: return -1;
+		}
+	}
+}
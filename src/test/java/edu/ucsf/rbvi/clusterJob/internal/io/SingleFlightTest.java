@@ -0,0 +1,98 @@
+package edu.ucsf.rbvi.clusterJob.internal.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class SingleFlightTest {
+
+	@Test
+	public void testSharesCallsInFlight() throws Exception {
+		final SingleFlight<String, Integer> flight = new SingleFlight<>();
+		final AtomicInteger calls = new AtomicInteger();
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final Callable<Integer> call = new Callable<Integer>() {
+			public Integer call() throws Exception {
+				started.countDown();
+				release.await();
+				return calls.incrementAndGet();
+			}
+		};
+
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<Integer>> futures = new ArrayList<>();
+			futures.add(pool.submit(new Callable<Integer>() {
+				public Integer call() throws Exception {
+					return flight.execute("job", call);
+				}
+			}));
+			assertTrue(started.await(5, TimeUnit.SECONDS));
+			for (int i = 0; i < 3; i++) {
+				futures.add(pool.submit(new Callable<Integer>() {
+					public Integer call() throws Exception {
+						return flight.execute("job", call);
+					}
+				}));
+			}
+			// Give the others a chance to join the first call
+			while (flight.getSharedCount() < 3)
+				Thread.sleep(10);
+			release.countDown();
+			for (Future<Integer> future: futures)
+				assertEquals(Integer.valueOf(1), future.get(5, TimeUnit.SECONDS));
+			assertEquals(1, calls.get());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testNothingSharedOnceDone() throws Exception {
+		SingleFlight<String, Integer> flight = new SingleFlight<>();
+		final AtomicInteger calls = new AtomicInteger();
+		Callable<Integer> call = new Callable<Integer>() {
+			public Integer call() {
+				return calls.incrementAndGet();
+			}
+		};
+		assertEquals(Integer.valueOf(1), flight.execute("job", call));
+		assertEquals(Integer.valueOf(2), flight.execute("job", call));
+		assertEquals(0, flight.getSharedCount());
+	}
+
+	@Test
+	public void testThrowsTheCallsException() throws Exception {
+		SingleFlight<String, Integer> flight = new SingleFlight<>();
+		try {
+			flight.execute("job", new Callable<Integer>() {
+				public Integer call() throws Exception {
+					throw new IOException("down");
+				}
+			});
+			fail("Expected an IOException");
+		} catch (IOException e) {
+			assertEquals("down", e.getMessage());
+		}
+		// A failure doesn't stick
+		assertEquals(Integer.valueOf(3), flight.execute("job", new Callable<Integer>() {
+			public Integer call() {
+				return 3;
+			}
+		}));
+	}
+}
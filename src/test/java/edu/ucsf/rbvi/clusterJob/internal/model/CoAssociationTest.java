@@ -0,0 +1,76 @@
+package edu.ucsf.rbvi.clusterJob.internal.model;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import org.cytoscape.model.CyNode;
+
+public class CoAssociationTest {
+	TestNetwork net;
+	CyNode a, b, c, d;
+
+	@Before
+	public void setUp() {
+		// a - b - c - d
+		net = new TestNetwork();
+		a = net.addNode("a");
+		b = net.addNode("b");
+		c = net.addNode("c");
+		d = net.addNode("d");
+		net.addEdge(a, b);
+		net.addEdge(b, c);
+		net.addEdge(c, d);
+	}
+
+	@Test
+	public void testConsensus() {
+		CoAssociation coAssociation = new CoAssociation(net.network, net.nodes);
+		for (int run = 0; run < 3; run++)
+			coAssociation.add(new int[] {0, 0, 1, 1});
+		coAssociation.add(new int[] {2, 2, 2, 2});
+		assertEquals(4, coAssociation.getRunCount());
+
+		assertEquals(2, coAssociation.write(net.network, 0.5));
+		assertEquals(0, net.get(a, CoAssociation.CONSENSUS_COLUMN));
+		assertEquals(0, net.get(b, CoAssociation.CONSENSUS_COLUMN));
+		assertEquals(1, net.get(c, CoAssociation.CONSENSUS_COLUMN));
+		assertEquals(1, net.get(d, CoAssociation.CONSENSUS_COLUMN));
+		// a's only edge always agreed; b's edge to c was apart 3 runs out of 4
+		assertEquals(1.0, (Double)net.get(a, CoAssociation.STABILITY_COLUMN), 1e-9);
+		assertEquals((1.0+0.75)/2, (Double)net.get(b, CoAssociation.STABILITY_COLUMN), 1e-9);
+	}
+
+	@Test
+	public void testUnassignedNodesAreNeverTogether() {
+		CoAssociation coAssociation = new CoAssociation(net.network, net.nodes);
+		int[] assignment = coAssociation.newAssignment();
+		assertArrayEquals(new int[] {-1, -1, -1, -1}, assignment);
+		coAssociation.add(assignment);
+		assertEquals(4, coAssociation.write(net.network, 0.5));
+	}
+
+	@Test
+	public void testNoRuns() {
+		CoAssociation coAssociation = new CoAssociation(net.network, net.nodes);
+		// Every node on its own, and every edge agrees with that
+		assertEquals(4, coAssociation.write(net.network, 0.5));
+		assertEquals(1.0, (Double)net.get(b, CoAssociation.STABILITY_COLUMN), 1e-9);
+	}
+
+	@Test
+	public void testIgnoredEdges() {
+		CyNode outside = net.addNode("outside");
+		net.addEdge(a, a);
+		net.addEdge(a, outside);
+		CoAssociation coAssociation = new CoAssociation(net.network, net.nodes.subList(0, 4));
+		// Self loops and edges to nodes we aren't clustering don't count
+		assertEquals(3, coAssociation.getEdgeCount());
+		assertEquals(4, coAssociation.getNodeCount());
+		assertEquals(-1, coAssociation.indexOf(outside.getSUID()));
+		assertEquals(2, coAssociation.indexOf(c.getSUID()));
+		assertEquals(-1, coAssociation.indexOf("not a SUID"));
+	}
+}
@@ -0,0 +1,157 @@
+package edu.ucsf.rbvi.clusterJob.internal.model;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.cytoscape.model.CyNode;
+
+public class ColumnDataTest {
+	TestNetwork net;
+	CyNode a, b, c;
+
+	@Before
+	public void setUp() {
+		net = new TestNetwork();
+		a = net.addNode("a");
+		b = net.addNode("b");
+		c = net.addNode("c");
+	}
+
+	@Test
+	public void testDoubleRoundTrip() throws Exception {
+		net.nodeTable.addColumn("score", Double.class);
+		net.network.getRow(a).set("score", 0.5);
+		net.network.getRow(c).set("score", 1.25);
+
+		ColumnData data = ColumnData.extract(net.network.getDefaultNodeTable(), "score", net.nodes);
+		assertEquals(ColumnData.Type.DOUBLE, data.getType());
+		assertEquals(3, data.size());
+		assertEquals(0.5, data.getDouble(0), 0.0);
+		assertTrue(data.isNull(1));
+		assertEquals(1.25, data.getDouble(2), 0.0);
+
+		TestNetwork copy = copyOf(net);
+		ColumnData.apply(copy.network.getDefaultNodeTable(), "score", decode(data), copy.nodes);
+		assertEquals(0.5, copy.get(copy.nodes.get(0), "score"));
+		assertNull(copy.get(copy.nodes.get(1), "score"));
+		assertEquals(1.25, copy.get(copy.nodes.get(2), "score"));
+	}
+
+	@Test
+	public void testStringRoundTrip() throws Exception {
+		net.nodeTable.addColumn("type", String.class);
+		net.network.getRow(a).set("type", "x \"quoted\"");
+		net.network.getRow(b).set("type", "y");
+		net.network.getRow(c).set("type", "x \"quoted\"");
+
+		ColumnData data = ColumnData.extract(net.network.getDefaultNodeTable(), "type", net.nodes);
+		// Each distinct string is sent once
+		assertEquals(2, data.dictionary.size());
+
+		TestNetwork copy = copyOf(net);
+		ColumnData.apply(copy.network.getDefaultNodeTable(), "type", decode(data), copy.nodes);
+		assertEquals("x \"quoted\"", copy.get(copy.nodes.get(0), "type"));
+		assertEquals("y", copy.get(copy.nodes.get(1), "type"));
+		assertEquals("x \"quoted\"", copy.get(copy.nodes.get(2), "type"));
+	}
+
+	@Test
+	public void testWholeNumbersAndBooleans() throws Exception {
+		net.nodeTable.addColumn("ClusterNumber", Integer.class);
+		net.nodeTable.addColumn("selected", Boolean.class);
+		net.network.getRow(a).set("ClusterNumber", 3);
+		net.network.getRow(b).set("ClusterNumber", 7);
+		net.network.getRow(a).set("selected", true);
+		net.network.getRow(c).set("selected", false);
+
+		ColumnData clusters = ColumnData.extract(net.network.getDefaultNodeTable(), "ClusterNumber", net.nodes);
+		assertArrayEquals(new long[] {3, 7, -1}, ColumnData.getLongs(decode(clusters), -1L));
+
+		ColumnData selected = ColumnData.extract(net.network.getDefaultNodeTable(), "selected", net.nodes);
+		TestNetwork copy = copyOf(net);
+		ColumnData.apply(copy.network.getDefaultNodeTable(), "selected", decode(selected), copy.nodes);
+		assertEquals(true, copy.get(copy.nodes.get(0), "selected"));
+		assertNull(copy.get(copy.nodes.get(1), "selected"));
+		assertEquals(false, copy.get(copy.nodes.get(2), "selected"));
+	}
+
+	@Test
+	public void testOnlyTheRowsWeAskFor() {
+		net.nodeTable.addColumn("score", Double.class);
+		net.network.getRow(a).set("score", 1.0);
+		net.network.getRow(c).set("score", 3.0);
+		// In a different order from the table
+		ColumnData data = ColumnData.extract(net.network.getDefaultNodeTable(), "score", Arrays.asList(c, a));
+		assertEquals(2, data.size());
+		assertEquals(3.0, data.getDouble(0), 0.0);
+		assertEquals(1.0, data.getDouble(1), 0.0);
+	}
+
+	@Test
+	public void testMissingRowsAndBadValues() throws Exception {
+		net.nodeTable.addColumn("score", Double.class);
+		net.network.getRow(a).set("score", Double.NaN);
+		CyNode notInTable = net.addNode("d");
+		net.nodeTable.rows.remove(notInTable.getSUID());
+
+		ColumnData data = ColumnData.extract(net.network.getDefaultNodeTable(), "score", Arrays.asList(a, notInTable));
+		assertTrue(data.isNull(0));
+		assertTrue(data.isNull(1));
+		// Reading it mustn't create the row
+		assertFalse(net.nodeTable.rows.containsKey(notInTable.getSUID()));
+		JSONObject block = decode(data);
+		assertEquals(2, ((List<?>)block.get("nulls")).size());
+	}
+
+	@Test
+	public void testEmpty() throws Exception {
+		net.nodeTable.addColumn("score", Double.class);
+		ColumnData data = ColumnData.extract(net.network.getDefaultNodeTable(), "score",
+		                                     Collections.<CyNode>emptyList());
+		assertEquals(0, data.size());
+		JSONObject block = decode(data);
+		assertTrue(((List<?>)block.get("values")).isEmpty());
+		assertTrue(((List<?>)block.get("nulls")).isEmpty());
+
+		net.nodeTable.addColumn("count", Long.class);
+		ColumnData counts = ColumnData.extract(net.network.getDefaultNodeTable(), "count",
+		                                       Collections.<CyNode>emptyList());
+		assertEquals(0, ColumnData.getLongs(decode(counts), -1L).length);
+	}
+
+	@Test
+	public void testUnsupportedColumns() {
+		assertNull(ColumnData.extract(net.network.getDefaultNodeTable(), "missing", net.nodes));
+		net.nodeTable.addColumn("aliases", List.class);
+		assertNull(ColumnData.extract(net.network.getDefaultNodeTable(), "aliases", net.nodes));
+		assertFalse(ColumnData.isSupported(List.class));
+	}
+
+	/**
+	 * A network with nodes in the same order, but nothing in its tables
+	 */
+	private static TestNetwork copyOf(TestNetwork net) {
+		TestNetwork copy = new TestNetwork();
+		for (int i = 0; i < net.nodes.size(); i++)
+			copy.addNode("copy "+i);
+		return copy;
+	}
+
+	private static JSONObject decode(ColumnData data) throws Exception {
+		StringBuilder sb = new StringBuilder();
+		data.appendJSON(sb);
+		return (JSONObject)new JSONParser().parse(sb.toString());
+	}
+}
@@ -0,0 +1,115 @@
+package edu.ucsf.rbvi.clusterJob.internal.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import org.cytoscape.model.CyEdge;
+import org.cytoscape.model.CyIdentifiable;
+import org.cytoscape.model.CyNode;
+
+public class EdgeSparsifierTest {
+	static final String WEIGHT = "weight";
+	TestNetwork net;
+	CyNode a, b, c, d;
+	CyEdge ab, ac, ad, bc, bd, cd;
+	List<CyIdentifiable> nodesAndEdges;
+
+	@Before
+	public void setUp() {
+		// Every pair of four nodes
+		net = new TestNetwork();
+		net.edgeTable.addColumn(WEIGHT, Double.class);
+		a = net.addNode("a");
+		b = net.addNode("b");
+		c = net.addNode("c");
+		d = net.addNode("d");
+		ab = net.addEdge(a, b, WEIGHT, 6.0);
+		ac = net.addEdge(a, c, WEIGHT, 1.0);
+		ad = net.addEdge(a, d, WEIGHT, 2.0);
+		bc = net.addEdge(b, c, WEIGHT, 3.0);
+		bd = net.addEdge(b, d, WEIGHT, 4.0);
+		cd = net.addEdge(c, d, WEIGHT, 5.0);
+		nodesAndEdges = new ArrayList<>();
+		nodesAndEdges.addAll(net.nodes);
+		nodesAndEdges.addAll(net.edges);
+	}
+
+	@Test
+	public void testThreshold() {
+		EdgeSparsifier sparsifier = new EdgeSparsifier(EdgeSparsifier.Method.THRESHOLD, 4.0, 0, 0.0);
+		List<CyIdentifiable> kept = sparsifier.sparsify(net.network, nodesAndEdges, WEIGHT);
+		assertEquals(Arrays.<CyIdentifiable>asList(a, b, c, d, ab, bd, cd), kept);
+		assertEquals(3, sparsifier.getStats().getEdgesPruned());
+	}
+
+	@Test
+	public void testTopK() {
+		// Each node keeps its strongest edge
+		EdgeSparsifier sparsifier = new EdgeSparsifier(EdgeSparsifier.Method.TOP_K, 0.0, 1, 0.0);
+		List<CyIdentifiable> kept = sparsifier.sparsify(net.network, nodesAndEdges, WEIGHT);
+		assertEquals(Arrays.<CyIdentifiable>asList(a, b, c, d, ab, cd), kept);
+
+		// With two each, only a-c is left out
+		sparsifier = new EdgeSparsifier(EdgeSparsifier.Method.TOP_K, 0.0, 2, 0.0);
+		kept = sparsifier.sparsify(net.network, nodesAndEdges, WEIGHT);
+		assertEquals(Arrays.<CyIdentifiable>asList(a, b, c, d, ab, ad, bc, bd, cd), kept);
+	}
+
+	@Test
+	public void testTopKAtLeastDegree() {
+		// Nodes with no more than k edges keep all of them
+		EdgeSparsifier sparsifier = new EdgeSparsifier(EdgeSparsifier.Method.TOP_K, 0.0, 3, 0.0);
+		assertEquals(nodesAndEdges, sparsifier.sparsify(net.network, nodesAndEdges, WEIGHT));
+		sparsifier = new EdgeSparsifier(EdgeSparsifier.Method.TOP_K, 0.0, 10, 0.0);
+		assertEquals(nodesAndEdges, sparsifier.sparsify(net.network, nodesAndEdges, WEIGHT));
+		assertEquals(0, sparsifier.getStats().getEdgesPruned());
+	}
+
+	@Test
+	public void testBackbone() {
+		EdgeSparsifier sparsifier = new EdgeSparsifier(EdgeSparsifier.Method.BACKBONE, 0.0, 0, 0.25);
+		List<CyIdentifiable> kept = sparsifier.sparsify(net.network, nodesAndEdges, WEIGHT);
+		assertEquals(Arrays.<CyIdentifiable>asList(a, b, c, d, ab, cd), kept);
+	}
+
+	@Test
+	public void testBackboneKeepsLeaves() {
+		CyNode leaf = net.addNode("leaf");
+		CyEdge weak = net.addEdge(a, leaf, WEIGHT, 0.1);
+		nodesAndEdges.add(leaf);
+		nodesAndEdges.add(weak);
+		EdgeSparsifier sparsifier = new EdgeSparsifier(EdgeSparsifier.Method.BACKBONE, 0.0, 0, 0.01);
+		List<CyIdentifiable> kept = sparsifier.sparsify(net.network, nodesAndEdges, WEIGHT);
+		assertEquals(weak, kept.get(kept.size()-1));
+	}
+
+	@Test
+	public void testNothingToDo() {
+		EdgeSparsifier sparsifier = new EdgeSparsifier(EdgeSparsifier.Method.THRESHOLD, 4.0, 0, 0.0);
+		// No weight column, or one we don't have
+		assertSame(nodesAndEdges, sparsifier.sparsify(net.network, nodesAndEdges, null));
+		assertSame(nodesAndEdges, sparsifier.sparsify(net.network, nodesAndEdges, "missing"));
+		assertEquals(EdgeSparsifier.Method.NONE, sparsifier.getStats().getMethod());
+		// No edges
+		List<CyIdentifiable> nodes = new ArrayList<CyIdentifiable>(net.nodes);
+		assertSame(nodes, sparsifier.sparsify(net.network, nodes, WEIGHT));
+	}
+
+	@Test
+	public void testMissingWeights() {
+		CyEdge unweighted = net.addEdge(a, b);
+		nodesAndEdges.add(unweighted);
+		// Missing weights count as 0
+		EdgeSparsifier sparsifier = new EdgeSparsifier(EdgeSparsifier.Method.THRESHOLD, 0.0, 0, 0.0);
+		assertEquals(nodesAndEdges, sparsifier.sparsify(net.network, nodesAndEdges, WEIGHT));
+		sparsifier = new EdgeSparsifier(EdgeSparsifier.Method.THRESHOLD, 0.5, 0, 0.0);
+		assertEquals(nodesAndEdges.size()-1, sparsifier.sparsify(net.network, nodesAndEdges, WEIGHT).size());
+	}
+}
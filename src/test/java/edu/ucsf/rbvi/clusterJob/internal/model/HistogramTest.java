@@ -0,0 +1,70 @@
+package edu.ucsf.rbvi.clusterJob.internal.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.json.simple.JSONObject;
+import org.junit.Test;
+
+public class HistogramTest {
+
+	@Test
+	public void testEmpty() {
+		Histogram histogram = new Histogram("fetch", "ns");
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getPercentile(50.0));
+		JSONObject json = histogram.toJSON();
+		assertEquals(0L, json.get("min"));
+		assertEquals(0L, json.get("mean"));
+	}
+
+	@Test
+	public void testRecord() {
+		Histogram histogram = new Histogram("fetch", "ns");
+		for (long value = 1; value <= 100; value++)
+			histogram.record(value);
+		// Negative values are ignored
+		histogram.record(-1);
+		assertEquals(100, histogram.getCount());
+		assertEquals(5050, histogram.getSum());
+		JSONObject json = histogram.toJSON();
+		assertEquals(1L, json.get("min"));
+		assertEquals(100L, json.get("max"));
+		assertEquals(50L, json.get("mean"));
+	}
+
+	@Test
+	public void testPercentiles() {
+		Histogram histogram = new Histogram("fetch", "ns");
+		for (int i = 0; i < 90; i++)
+			histogram.record(10);
+		for (int i = 0; i < 10; i++)
+			histogram.record(1000);
+		// Estimates are bucket upper bounds, so at least the real value and less than twice it
+		long p50 = histogram.getPercentile(50.0);
+		assertTrue(p50 >= 10 && p50 < 20);
+		long p99 = histogram.getPercentile(99.0);
+		assertTrue(p99 >= 1000 && p99 < 2000);
+		// Never more than the largest value we saw
+		assertEquals(1000, histogram.getPercentile(100.0));
+	}
+
+	@Test
+	public void testZeroAndHuge() {
+		Histogram histogram = new Histogram("size", "chars");
+		histogram.record(0);
+		assertEquals(0, histogram.getPercentile(100.0));
+		histogram.record(Long.MAX_VALUE);
+		assertEquals(Long.MAX_VALUE, histogram.getPercentile(100.0));
+	}
+
+	@Test
+	public void testReset() {
+		Histogram histogram = new Histogram("fetch", "ns");
+		histogram.record(5);
+		histogram.reset();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getSum());
+		assertEquals(0, histogram.getPercentile(50.0));
+	}
+}
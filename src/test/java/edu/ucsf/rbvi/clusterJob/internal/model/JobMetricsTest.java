@@ -0,0 +1,40 @@
+package edu.ucsf.rbvi.clusterJob.internal.model;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import edu.ucsf.rbvi.clusterJob.internal.model.JobMetrics.Stage;
+
+public class JobMetricsTest {
+
+	@Test
+	public void testPagesArePublishedAsOneTotal() {
+		ClusterJobMetrics registry = new ClusterJobMetrics();
+		JobMetrics metrics = registry.createJobMetrics();
+		metrics.add(Stage.FETCH_BYTES, 100);
+		metrics.add(Stage.FETCH_BYTES, 50);
+		assertEquals(0, registry.getHistogram(Stage.FETCH_BYTES).getCount());
+
+		metrics.end(Stage.FETCH_BYTES);
+		assertEquals(1, registry.getHistogram(Stage.FETCH_BYTES).getCount());
+		assertEquals(150, registry.getHistogram(Stage.FETCH_BYTES).getSum());
+		assertEquals(Long.valueOf(150), metrics.get(Stage.FETCH_BYTES));
+	}
+
+	@Test
+	public void testStagesArePublishedOnce() {
+		ClusterJobMetrics registry = new ClusterJobMetrics();
+		JobMetrics metrics = registry.createJobMetrics();
+		metrics.record(Stage.FETCH, 10);
+		metrics.record(Stage.FETCH, 20);
+		metrics.end(Stage.FETCH);
+		assertEquals(1, registry.getHistogram(Stage.FETCH).getCount());
+		assertEquals(10, registry.getHistogram(Stage.FETCH).getSum());
+		assertEquals(Long.valueOf(30), metrics.get(Stage.FETCH));
+
+		// Nothing to publish for a stage that never started
+		metrics.end(Stage.APPLY);
+		assertEquals(0, registry.getHistogram(Stage.APPLY).getCount());
+	}
+}
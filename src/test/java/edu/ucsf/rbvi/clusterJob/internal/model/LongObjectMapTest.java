@@ -0,0 +1,82 @@
+package edu.ucsf.rbvi.clusterJob.internal.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class LongObjectMapTest {
+
+	@Test
+	public void testPutAndGet() {
+		LongObjectMap<String> map = new LongObjectMap<>();
+		assertNull(map.put(52L, "a"));
+		assertEquals("a", map.get(52L));
+		assertEquals("a", map.get(Long.valueOf(52L)));
+		assertTrue(map.containsKey(52L));
+		assertFalse(map.containsKey(53L));
+		assertEquals("a", map.put(52L, "b"));
+		assertEquals("b", map.get(52L));
+		assertEquals(1, map.size());
+	}
+
+	@Test
+	public void testEmpty() {
+		LongObjectMap<String> map = new LongObjectMap<>(0);
+		assertEquals(0, map.size());
+		assertNull(map.get(1L));
+		assertFalse(map.entrySet().iterator().hasNext());
+	}
+
+	@Test
+	public void testOtherKeys() {
+		LongObjectMap<String> map = new LongObjectMap<>();
+		map.put(1L, "a");
+		// 0 is never a key, and neither is anything that isn't a Long
+		assertNull(map.get(0L));
+		assertFalse(map.containsKey(0L));
+		assertNull(map.get("1"));
+		assertFalse(map.containsKey(Integer.valueOf(1)));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testZeroKey() {
+		new LongObjectMap<String>().put(0L, "a");
+	}
+
+	@Test
+	public void testGrowsAndIterates() {
+		LongObjectMap<Long> map = new LongObjectMap<>();
+		Map<Long, Long> expected = new HashMap<>();
+		// Sequential SUIDs, plus some that collide in the low bits
+		for (long key = 1; key <= 1000; key++) {
+			map.put(key, Long.valueOf(key*2));
+			expected.put(key, key*2);
+		}
+		for (long key = 1L << 32; key < (1L << 32) + 100; key++) {
+			map.put(key, Long.valueOf(-key));
+			expected.put(key, -key);
+		}
+		assertEquals(expected.size(), map.size());
+		for (Map.Entry<Long, Long> entry: expected.entrySet())
+			assertEquals(entry.getValue(), map.get(entry.getKey().longValue()));
+		assertEquals(expected, new HashMap<Long, Long>(map));
+	}
+
+	@Test
+	public void testClear() {
+		LongObjectMap<String> map = new LongObjectMap<>();
+		for (long key = 1; key <= 100; key++)
+			map.put(key, "v");
+		map.clear();
+		assertEquals(0, map.size());
+		assertNull(map.get(50L));
+		map.put(50L, "w");
+		assertEquals("w", map.get(50L));
+	}
+}
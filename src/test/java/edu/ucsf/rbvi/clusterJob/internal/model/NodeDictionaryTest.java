@@ -0,0 +1,67 @@
+package edu.ucsf.rbvi.clusterJob.internal.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.json.simple.parser.JSONParser;
+import org.junit.Test;
+
+import org.cytoscape.model.CyNode;
+
+public class NodeDictionaryTest {
+
+	@Test
+	public void testInternRoundTrip() throws Exception {
+		TestNetwork net = new TestNetwork();
+		CyNode a = net.addNode("a");
+		CyNode b = net.addNode("b \"quoted\"");
+		NodeDictionary dictionary = new NodeDictionary();
+		assertEquals(0, dictionary.intern(net.network, a));
+		assertEquals(1, dictionary.intern(net.network, b));
+		// Each node only goes in once
+		assertEquals(0, dictionary.intern(net.network, a));
+		assertEquals(2, dictionary.size());
+
+		NodeDictionary decoded = decode(dictionary);
+		assertEquals(2, decoded.size());
+		assertEquals("a", decoded.getName(0));
+		assertEquals(a.getSUID(), decoded.getId(0));
+		assertEquals("b \"quoted\"", decoded.getName(1));
+		assertEquals(b.getSUID(), decoded.getId(1));
+	}
+
+	@Test
+	public void testNullName() throws Exception {
+		TestNetwork net = new TestNetwork();
+		CyNode a = net.addNode(null);
+		NodeDictionary dictionary = new NodeDictionary();
+		dictionary.intern(net.network, a);
+		NodeDictionary decoded = decode(dictionary);
+		assertNull(decoded.getName(0));
+		assertEquals(a.getSUID(), decoded.getId(0));
+	}
+
+	@Test
+	public void testEmpty() throws Exception {
+		NodeDictionary decoded = decode(new NodeDictionary());
+		assertEquals(0, decoded.size());
+	}
+
+	@Test
+	public void testFromJSON() throws Exception {
+		assertNull(NodeDictionary.fromJSON(null));
+		assertNull(NodeDictionary.fromJSON("names"));
+		assertNull(NodeDictionary.fromJSON(new JSONParser().parse("{\"ids\":[1]}")));
+		// Ids are optional
+		NodeDictionary dictionary = NodeDictionary.fromJSON(new JSONParser().parse("{\"names\":[\"a\",\"b\"],\"ids\":[7]}"));
+		assertEquals(2, dictionary.size());
+		assertEquals(Long.valueOf(7), dictionary.getId(0));
+		assertNull(dictionary.getId(1));
+	}
+
+	private static NodeDictionary decode(NodeDictionary dictionary) throws Exception {
+		StringBuilder sb = new StringBuilder();
+		dictionary.appendJSON(sb);
+		return NodeDictionary.fromJSON(new JSONParser().parse(sb.toString()));
+	}
+}
@@ -0,0 +1,99 @@
+package edu.ucsf.rbvi.clusterJob.internal.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.Test;
+
+import edu.ucsf.rbvi.clusterJob.internal.model.ResultStreamParser.Kind;
+import edu.ucsf.rbvi.clusterJob.internal.model.ResultStreamParser.ResultElement;
+
+public class ResultStreamParserTest {
+
+	@Test
+	public void testStreamsNodesAndEdges() throws Exception {
+		String json = "{\"network\":{\"id\":1,\"name\":\"net\"," +
+		              "\"nodes\":[{\"id\":52,\"ClusterNumber\":0,\"attrs\":{\"x\":1}},{\"id\":53,\"ClusterNumber\":1}]," +
+		              "\"nodeDictionary\":{\"names\":[\"a\",\"b\"],\"ids\":[52,53]}," +
+		              "\"edges\":[{\"source\":0,\"target\":1}]," +
+		              "\"nodeColumns\":{\"ClusterNumber\":{\"type\":\"integer\",\"values\":[0,1],\"nulls\":[]}}}," +
+		              "\"nextCursor\":\"2\"}";
+		LinkedBlockingQueue<ResultElement> queue = new LinkedBlockingQueue<>();
+		ResultStreamParser parser = parse(json, queue);
+
+		List<ResultElement> elements = new ArrayList<>(queue);
+		assertEquals(4, elements.size());
+		assertEquals(Kind.NODE, elements.get(0).kind);
+		assertEquals(52L, elements.get(0).object.get("id"));
+		// Objects inside a node stay part of it
+		assertEquals(1L, ((JSONObject)elements.get(0).object.get("attrs")).get("x"));
+		assertEquals(Kind.NODE, elements.get(1).kind);
+		assertEquals(Kind.DICTIONARY, elements.get(2).kind);
+		assertEquals("b", NodeDictionary.fromJSON(elements.get(2).object).getName(1));
+		assertEquals(Kind.EDGE, elements.get(3).kind);
+		assertEquals(2, parser.getNodeCount());
+		assertEquals(1, parser.getEdgeCount());
+
+		// Everything else is left in the document
+		JSONObject root = (JSONObject)parser.getRoot();
+		assertEquals("2", root.get("nextCursor"));
+		JSONObject network = (JSONObject)root.get("network");
+		assertEquals("net", network.get("name"));
+		assertTrue(((JSONArray)network.get("nodes")).isEmpty());
+		assertTrue(((JSONArray)network.get("edges")).isEmpty());
+		assertNull(network.get("nodeDictionary"));
+		assertTrue(network.get("nodeColumns") instanceof JSONObject);
+	}
+
+	@Test
+	public void testEmptyLists() throws Exception {
+		LinkedBlockingQueue<ResultElement> queue = new LinkedBlockingQueue<>();
+		ResultStreamParser parser = parse("{\"network\":{\"nodes\":[],\"edges\":[]}}", queue);
+		assertTrue(queue.isEmpty());
+		assertEquals(0, parser.getNodeCount());
+		assertTrue(parser.getRoot() instanceof JSONObject);
+	}
+
+	@Test
+	public void testLastPage() throws Exception {
+		// The last page of a paged fetch has no cursor
+		LinkedBlockingQueue<ResultElement> queue = new LinkedBlockingQueue<>();
+		ResultStreamParser parser = parse("{\"network\":{\"nodes\":[{\"id\":54}]}}", queue);
+		assertEquals(1, queue.size());
+		assertNull(((JSONObject)parser.getRoot()).get("nextCursor"));
+	}
+
+	@Test
+	public void testOnlyNetworkNodesAreStreamed() throws Exception {
+		LinkedBlockingQueue<ResultElement> queue = new LinkedBlockingQueue<>();
+		ResultStreamParser parser = parse("{\"nodes\":[{\"id\":1}],\"other\":{\"nodes\":[{\"id\":2}]}}", queue);
+		assertTrue(queue.isEmpty());
+		JSONObject root = (JSONObject)parser.getRoot();
+		assertEquals(1, ((JSONArray)root.get("nodes")).size());
+	}
+
+	@Test
+	public void testReusedForEachDocument() throws Exception {
+		LinkedBlockingQueue<ResultElement> queue = new LinkedBlockingQueue<>();
+		ResultStreamParser parser = new ResultStreamParser(queue);
+		new JSONParser().parse(new StringReader("{\"network\":{\"nodes\":[{\"id\":1}]}}"), parser);
+		new JSONParser().parse(new StringReader("[1, 2]"), parser);
+		assertEquals(1, queue.size());
+		assertEquals(2, ((JSONArray)parser.getRoot()).size());
+	}
+
+	private static ResultStreamParser parse(String json, LinkedBlockingQueue<ResultElement> queue) throws Exception {
+		ResultStreamParser parser = new ResultStreamParser(queue);
+		new JSONParser().parse(new StringReader(json), parser);
+		return parser;
+	}
+}
@@ -0,0 +1,104 @@
+package edu.ucsf.rbvi.clusterJob.internal.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import org.cytoscape.model.CyNode;
+
+public class ShardGroupTest {
+
+	@Test
+	public void testPartitionBalances() {
+		TestNetwork net = new TestNetwork();
+		List<List<CyNode>> components = new ArrayList<>();
+		for (int size: new int[] {2, 5, 2, 3})
+			components.add(component(net, size));
+
+		List<List<CyNode>> shards = ShardGroup.partition(components, 2);
+		assertEquals(2, shards.size());
+		// 5 and 2 in one, 3 and 2 in the other
+		assertEquals(7, shards.get(0).size());
+		assertEquals(5, shards.get(1).size());
+		Set<CyNode> seen = new HashSet<>();
+		for (List<CyNode> shard: shards)
+			seen.addAll(shard);
+		assertEquals(new HashSet<>(net.nodes), seen);
+	}
+
+	@Test
+	public void testPartitionBoundaries() {
+		TestNetwork net = new TestNetwork();
+		assertTrue(ShardGroup.partition(Collections.<List<CyNode>>emptyList(), 4).isEmpty());
+
+		List<List<CyNode>> components = Arrays.asList(component(net, 3), component(net, 1));
+		// More shards than components, and fewer than one
+		assertEquals(2, ShardGroup.partition(components, 10).size());
+		List<List<CyNode>> one = ShardGroup.partition(components, 0);
+		assertEquals(1, one.size());
+		assertEquals(4, one.get(0).size());
+		// Empty components don't make empty shards
+		components = Arrays.asList(component(net, 2), Collections.<CyNode>emptyList());
+		assertEquals(1, ShardGroup.partition(components, 2).size());
+	}
+
+	@Test
+	public void testMerge() {
+		TestNetwork net = new TestNetwork();
+		net.nodeTable.addColumn(ShardGroup.CLUSTER_COLUMN, Integer.class);
+		List<CyNode> first = component(net, 3);
+		List<CyNode> second = component(net, 3);
+		setClusters(net, first, 4, 1, 4);
+		setClusters(net, second, 0, 7, null);
+
+		ShardGroup group = new ShardGroup(2);
+		ShardGroup.Shard shard0 = group.createShard(0, first);
+		ShardGroup.Shard shard1 = group.createShard(1, second);
+		assertEquals(1, shard1.getIndex());
+		assertTrue(shard1.getGroup() == group);
+
+		shard1.merge(net.network);
+		shard0.merge(net.network);
+		assertEquals(2, group.getMergedCount());
+		// Each shard gets its own block, in the order the local numbers came in
+		assertEquals(0, net.get(second.get(0), ShardGroup.CLUSTER_COLUMN));
+		assertEquals(1, net.get(second.get(1), ShardGroup.CLUSTER_COLUMN));
+		assertNull(net.get(second.get(2), ShardGroup.CLUSTER_COLUMN));
+		assertEquals(3, net.get(first.get(0), ShardGroup.CLUSTER_COLUMN));
+		assertEquals(2, net.get(first.get(1), ShardGroup.CLUSTER_COLUMN));
+		assertEquals(3, net.get(first.get(2), ShardGroup.CLUSTER_COLUMN));
+	}
+
+	@Test
+	public void testMergeLongColumn() {
+		TestNetwork net = new TestNetwork();
+		net.nodeTable.addColumn(ShardGroup.CLUSTER_COLUMN, Long.class);
+		List<CyNode> nodes = component(net, 2);
+		net.network.getRow(nodes.get(0)).set(ShardGroup.CLUSTER_COLUMN, 9L);
+		net.network.getRow(nodes.get(1)).set(ShardGroup.CLUSTER_COLUMN, 5L);
+		new ShardGroup(1).createShard(0, nodes).merge(net.network);
+		assertEquals(1L, net.get(nodes.get(0), ShardGroup.CLUSTER_COLUMN));
+		assertEquals(0L, net.get(nodes.get(1), ShardGroup.CLUSTER_COLUMN));
+	}
+
+	private static List<CyNode> component(TestNetwork net, int size) {
+		List<CyNode> nodes = new ArrayList<>();
+		for (int i = 0; i < size; i++)
+			nodes.add(net.addNode("n"+net.nodes.size()));
+		return nodes;
+	}
+
+	private static void setClusters(TestNetwork net, List<CyNode> nodes, Integer... clusters) {
+		for (int i = 0; i < nodes.size(); i++)
+			net.network.getRow(nodes.get(i)).set(ShardGroup.CLUSTER_COLUMN, clusters[i]);
+	}
+}
@@ -0,0 +1,185 @@
+package edu.ucsf.rbvi.clusterJob.internal.model;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import org.cytoscape.model.CyColumn;
+import org.cytoscape.model.CyEdge;
+import org.cytoscape.model.CyIdentifiable;
+import org.cytoscape.model.CyNetwork;
+import org.cytoscape.model.CyNode;
+import org.cytoscape.model.CyRow;
+import org.cytoscape.model.CyTable;
+import org.cytoscape.model.subnetwork.CyRootNetwork;
+
+/**
+ * A small mocked network for tests.  Its node and edge tables keep
+ * whatever is set in them.
+ */
+class TestNetwork {
+	final CyNetwork network = mock(CyNetwork.class);
+	final List<CyNode> nodes = new ArrayList<>();
+	final List<CyEdge> edges = new ArrayList<>();
+	final Table nodeTable = new Table();
+	final Table edgeTable = new Table();
+	long nextSUID = 100;
+
+	TestNetwork() {
+		when(network.getSUID()).thenReturn(nextSUID++);
+		when(network.getNodeList()).thenReturn(nodes);
+		when(network.getEdgeList()).thenReturn(edges);
+		when(network.getNodeCount()).thenAnswer(new Answer<Integer>() {
+			public Integer answer(InvocationOnMock invocation) {
+				return nodes.size();
+			}
+		});
+		when(network.getEdgeCount()).thenAnswer(new Answer<Integer>() {
+			public Integer answer(InvocationOnMock invocation) {
+				return edges.size();
+			}
+		});
+		when(network.getDefaultNodeTable()).thenReturn(nodeTable.table);
+		when(network.getDefaultEdgeTable()).thenReturn(edgeTable.table);
+		when(network.getNode(anyLong())).thenAnswer(new Answer<CyNode>() {
+			public CyNode answer(InvocationOnMock invocation) {
+				long suid = (Long)invocation.getArguments()[0];
+				for (CyNode node: nodes) {
+					if (node.getSUID() == suid)
+						return node;
+				}
+				return null;
+			}
+		});
+		when(network.getRow(any(CyIdentifiable.class))).thenAnswer(new Answer<CyRow>() {
+			public CyRow answer(InvocationOnMock invocation) {
+				CyIdentifiable id = (CyIdentifiable)invocation.getArguments()[0];
+				return (id instanceof CyEdge ? edgeTable : nodeTable).table.getRow(id.getSUID());
+			}
+		});
+		nodeTable.addColumn(CyRootNetwork.SHARED_NAME, String.class);
+	}
+
+	CyNode addNode(String name) {
+		CyNode node = mock(CyNode.class);
+		when(node.getSUID()).thenReturn(nextSUID++);
+		nodes.add(node);
+		nodeTable.table.getRow(node.getSUID()).set(CyRootNetwork.SHARED_NAME, name);
+		return node;
+	}
+
+	CyEdge addEdge(CyNode source, CyNode target) {
+		CyEdge edge = mock(CyEdge.class);
+		when(edge.getSUID()).thenReturn(nextSUID++);
+		when(edge.getSource()).thenReturn(source);
+		when(edge.getTarget()).thenReturn(target);
+		edges.add(edge);
+		return edge;
+	}
+
+	CyEdge addEdge(CyNode source, CyNode target, String column, Object weight) {
+		CyEdge edge = addEdge(source, target);
+		edgeTable.table.getRow(edge.getSUID()).set(column, weight);
+		return edge;
+	}
+
+	Object get(CyIdentifiable id, String column) {
+		Table table = id instanceof CyEdge ? edgeTable : nodeTable;
+		Map<String, Object> values = table.rows.get(id.getSUID());
+		return values == null ? null : values.get(column);
+	}
+
+	/**
+	 * A table of rows by SUID
+	 */
+	static class Table {
+		final CyTable table = mock(CyTable.class);
+		final Map<String, CyColumn> columns = new HashMap<>();
+		final Map<Long, Map<String, Object>> rows = new HashMap<>();
+
+		Table() {
+			when(table.getColumn(anyString())).thenAnswer(new Answer<CyColumn>() {
+				public CyColumn answer(InvocationOnMock invocation) {
+					return columns.get((String)invocation.getArguments()[0]);
+				}
+			});
+			doAnswer(new Answer<Void>() {
+				public Void answer(InvocationOnMock invocation) {
+					Object[] args = invocation.getArguments();
+					addColumn((String)args[0], (Class<?>)args[1]);
+					return null;
+				}
+			}).when(table).createColumn(anyString(), any(Class.class), anyBoolean());
+			when(table.rowExists(any())).thenAnswer(new Answer<Boolean>() {
+				public Boolean answer(InvocationOnMock invocation) {
+					return rows.containsKey(invocation.getArguments()[0]);
+				}
+			});
+			when(table.getRow(any())).thenAnswer(new Answer<CyRow>() {
+				public CyRow answer(InvocationOnMock invocation) {
+					return getRow((Long)invocation.getArguments()[0]);
+				}
+			});
+		}
+
+		void addColumn(String name, Class<?> type) {
+			CyColumn column = mock(CyColumn.class);
+			when(column.getName()).thenReturn(name);
+			doAnswer(new ReturnType(type)).when(column).getType();
+			columns.put(name, column);
+		}
+
+		CyRow getRow(Long suid) {
+			Map<String, Object> values = rows.get(suid);
+			if (values == null) {
+				values = new HashMap<>();
+				rows.put(suid, values);
+			}
+			final Map<String, Object> rowValues = values;
+			CyRow row = mock(CyRow.class);
+			Answer<Object> get = new Answer<Object>() {
+				public Object answer(InvocationOnMock invocation) {
+					return rowValues.get((String)invocation.getArguments()[0]);
+				}
+			};
+			when(row.get(anyString(), any(Class.class))).thenAnswer(get);
+			when(row.getRaw(anyString())).thenAnswer(get);
+			doAnswer(new Answer<Void>() {
+				public Void answer(InvocationOnMock invocation) {
+					Object[] args = invocation.getArguments();
+					if (args[1] == null)
+						rowValues.remove((String)args[0]);
+					else
+						rowValues.put((String)args[0], args[1]);
+					return null;
+				}
+			}).when(row).set(anyString(), any());
+			return row;
+		}
+	}
+
+	// getType() returns a wildcard type, which thenReturn won't take
+	static class ReturnType implements Answer<Object> {
+		final Class<?> type;
+
+		ReturnType(Class<?> type) {
+			this.type = type;
+		}
+
+		public Object answer(InvocationOnMock invocation) {
+			return type;
+		}
+	}
+}